@@ -0,0 +1,91 @@
+package info.miranda.gd.benchmark;
+
+import info.miranda.gd.GdImage;
+import info.miranda.gd.GdPoint;
+import info.miranda.gd.GdUtils;
+import info.miranda.gd.enums.GdImageColorType;
+
+/*
+	Test images shared by the benchmarks.
+*/
+class GdBenchmarkImages {
+
+	/* number of palette entries allocated for palette images */
+	static final int PALETTE_SIZE = 216;
+
+	/**
+	 * Creates a square image with a smooth color pattern, so that the
+	 * blending and resampling code does real work.
+	 */
+	static GdImage createPattern(final int size, final GdImageColorType colorType) {
+		final GdImage im = new GdImage(size, size, colorType);
+		if (colorType == GdImageColorType.TRUE_COLOR) {
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					im.setPixel(x, y, GdUtils.trueColorMixAlpha(x * 255 / size, y * 255 / size,
+							(x + y) * 127 / size, (x * y) % 64));
+				}
+			}
+		} else {
+			allocateColorCube(im);
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					im.setPixel(x, y, (x * 6 / size) * 36 + (y * 6 / size) * 6 + ((x + y) * 3 / size));
+				}
+			}
+		}
+		return im;
+	}
+
+	/**
+	 * Creates a square image of a single background color, the usual
+	 * canvas for drawing and filling.
+	 */
+	static GdImage createCanvas(final int size, final GdImageColorType colorType) {
+		final GdImage im = new GdImage(size, size, colorType);
+		if (colorType == GdImageColorType.PALETTE_BASED_COLOR) {
+			allocateColorCube(im);
+			im.fillRectangle(0, 0, size - 1, size - 1, 0);
+		} else {
+			im.fillRectangle(0, 0, size - 1, size - 1, GdUtils.trueColorMixAlpha(240, 240, 240, 0));
+		}
+		return im;
+	}
+
+	/* 6x6x6 color cube */
+	private static void allocateColorCube(final GdImage im) {
+		for (int r = 0; r < 6; r++) {
+			for (int g = 0; g < 6; g++) {
+				for (int b = 0; b < 6; b++) {
+					im.colorAllocate(r * 51, g * 51, b * 51);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a color to draw with: semi transparent for truecolor images,
+	 *         the closest palette entry otherwise
+	 */
+	static int drawingColor(final GdImage im, final GdImageColorType colorType, final int r, final int g, final int b) {
+		if (colorType == GdImageColorType.TRUE_COLOR) {
+			return GdUtils.trueColorMixAlpha(r, g, b, 48);
+		}
+		return im.findColorClosest(r, g, b);
+	}
+
+	/**
+	 * @return a self intersecting star spanning most of the image
+	 */
+	static GdPoint[] star(final int size, final int points) {
+		final GdPoint[] p = new GdPoint[points * 2];
+		final double c = size / 2.0;
+		for (int i = 0; i < p.length; i++) {
+			final double r = (i % 2 == 0) ? size * 0.48 : size * 0.2;
+			final double a = Math.PI * i / points;
+			p[i] = new GdPoint((int) (c + r * Math.cos(a)), (int) (c + r * Math.sin(a)));
+		}
+		return p;
+	}
+
+}
@@ -0,0 +1,90 @@
+package info.miranda.gd.benchmark;
+
+import info.miranda.gd.GdImage;
+import info.miranda.gd.enums.GdImageColorType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+	Copy entry points, from a pattern image into a canvas of the same type.
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GdCopyBenchmark {
+
+	@Param({"64", "512", "2048"})
+	int size;
+
+	@Param({"TRUE_COLOR", "PALETTE_BASED_COLOR"})
+	GdImageColorType colorType;
+
+	GdImage src;
+	GdImage dst;
+
+	@Setup
+	public void setup() {
+		src = GdBenchmarkImages.createPattern(size, colorType);
+		dst = GdBenchmarkImages.createCanvas(size, colorType);
+	}
+
+	@Benchmark
+	public void imageCopy() {
+		GdImage.imageCopy(dst, src, 0, 0, 0, 0, size, size);
+	}
+
+	@Benchmark
+	public void imageCopyMerge() {
+		GdImage.imageCopyMerge(dst, src, 0, 0, 0, 0, size, size, 50);
+	}
+
+	@Benchmark
+	public void imageCopyMergeGray() {
+		GdImage.imageCopyMergeGray(dst, src, 0, 0, 0, 0, size, size, 50);
+	}
+
+	@Benchmark
+	public void imageCopyResized() {
+		GdImage.imageCopyResized(dst, src, 0, 0, 0, 0, size, size / 2, size / 3, size);
+	}
+
+	@Benchmark
+	public void imageCopyResampled() {
+		GdImage.imageCopyResampled(dst, src, 0, 0, 0, 0, size, size / 2, size / 3, size);
+	}
+
+	@Benchmark
+	public void imageCopyRotated() {
+		GdImage.imageCopyRotated(dst, src, size / 2.0, size / 2.0, 0, 0, size, size, 30);
+	}
+
+	@Benchmark
+	public GdImage imageClone() {
+		return src.imageClone();
+	}
+
+	@Benchmark
+	public void flipHorizontal() {
+		dst.flipHorizontal();
+	}
+
+	@Benchmark
+	public void flipVertical() {
+		dst.flipVertical();
+	}
+
+}
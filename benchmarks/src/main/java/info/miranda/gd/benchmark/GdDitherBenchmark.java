@@ -0,0 +1,97 @@
+package info.miranda.gd.benchmark;
+
+import info.miranda.gd.GdImage;
+import info.miranda.gd.GdUtils;
+import info.miranda.gd.enums.GdDitherMethod;
+import info.miranda.gd.enums.GdImageColorType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+	Mapping an image to a fixed palette with paletteCopy(), without
+	dithering and with each dithering method, so that the time of the
+	quantization does not hide that of the mapping. The image is a 256
+	color version of smooth gradients, quantized once; paletteCopy()
+	replaces its pixels, so every call works on a fresh clone of it.
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GdDitherBenchmark {
+
+	@Param({"512", "2048"})
+	int size;
+
+	@Param({"NONE", "GD_DITHER_ORDERED", "GD_DITHER_FLOYD_STEINBERG"})
+	String dither;
+
+	@Param({"1", "4"})
+	int parallelism;
+
+	GdImage src;
+	GdImage palette;
+	GdImage im;
+
+	@Setup
+	public void setup() {
+		src = createGradient(size).createPaletteFromTrueColor(false, GdUtils.MAX_COLORS);
+		palette = createPalette();
+	}
+
+	@Setup(Level.Invocation)
+	public void copy() {
+		im = src.imageClone();
+		im.setParallelism(parallelism);
+		if (!dither.equals("NONE")) {
+			im.setDitherMethod(GdDitherMethod.valueOf(dither));
+		}
+	}
+
+	/* Smooth gradients, which band badly without dithering. */
+	private static GdImage createGradient(final int size) {
+		final GdImage im = new GdImage(size, size, GdImageColorType.TRUE_COLOR);
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				im.setPixel(x, y, GdUtils.trueColorMix(x * 255 / size, y * 255 / size, (x + y) * 127 / size));
+			}
+		}
+		return im;
+	}
+
+	/* 6x6x6 color cube and 40 grays */
+	private static GdImage createPalette() {
+		final GdImage im = new GdImage(1, 1, GdImageColorType.PALETTE_BASED_COLOR);
+		for (int r = 0; r < 6; r++) {
+			for (int g = 0; g < 6; g++) {
+				for (int b = 0; b < 6; b++) {
+					im.colorAllocate(r * 51, g * 51, b * 51);
+				}
+			}
+		}
+		for (int i = 0; i < 40; i++) {
+			im.colorAllocate(i * 255 / 39 + 3, i * 255 / 39 + 3, i * 255 / 39 + 3);
+		}
+		return im;
+	}
+
+	@Benchmark
+	public void remap() {
+		GdImage.paletteCopy(im, palette, !dither.equals("NONE"));
+	}
+
+}
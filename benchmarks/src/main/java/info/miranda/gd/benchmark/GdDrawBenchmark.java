@@ -0,0 +1,156 @@
+package info.miranda.gd.benchmark;
+
+import info.miranda.gd.GdImage;
+import info.miranda.gd.GdPoint;
+import info.miranda.gd.GdUtils;
+import info.miranda.gd.enums.GdImageColorType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+	Drawing primitives. Each operation covers most of the canvas. The
+	subclasses choose the image type: GdDrawTrueColorBenchmark adds the
+	blending mode, which palette images, see GdDrawPaletteBenchmark,
+	ignore.
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public abstract class GdDrawBenchmark {
+
+	@Param({"64", "512", "2048"})
+	int size;
+
+	GdImage im;
+	int color;
+	int other;
+	int third;
+	GdPoint[] star;
+
+	/* flood fills alternate between two fill colors so that every call repaints */
+	boolean flip;
+
+	abstract GdImageColorType colorType();
+
+	/* Sets up the canvas before anything is drawn. */
+	void prepare(final GdImage im) {
+	}
+
+	@Setup
+	public void setup() {
+		im = GdBenchmarkImages.createCanvas(size, colorType());
+		prepare(im);
+		color = GdBenchmarkImages.drawingColor(im, colorType(), 200, 80, 40);
+		other = GdBenchmarkImages.drawingColor(im, colorType(), 40, 80, 200);
+		third = GdBenchmarkImages.drawingColor(im, colorType(), 40, 200, 80);
+		star = GdBenchmarkImages.star(size, 7);
+	}
+
+	@Benchmark
+	public void setPixel() {
+		final int y = size / 2;
+		for (int x = 0; x < size; x++) {
+			im.setPixel(x, y, color);
+		}
+	}
+
+	private void drawLines(final int color) {
+		im.drawLine(0, 0, size - 1, size - 1, color);
+		im.drawLine(0, size - 1, size - 1, 0, color);
+		im.drawLine(0, size / 2, size - 1, size / 2, color);
+		im.drawLine(size / 2, 0, size / 2, size - 1, color);
+		im.drawLine(0, size / 3, size - 1, size * 2 / 3, color);
+	}
+
+	@Benchmark
+	public void drawLine() {
+		drawLines(color);
+	}
+
+	@Benchmark
+	public void drawLineThick() {
+		im.setThickness(5);
+		drawLines(color);
+		im.setThickness(1);
+	}
+
+	@Benchmark
+	public void drawLineAntiAliased() {
+		im.setAntiAliased(color);
+		drawLines(GdUtils.SPECIAL_COLOR_ANTI_ALIASED);
+	}
+
+	@Benchmark
+	public void drawRectangle() {
+		im.drawRectangle(1, 1, size - 2, size - 2, color);
+	}
+
+	@Benchmark
+	public void fillRectangle() {
+		im.fillRectangle(1, 1, size - 2, size - 2, color);
+	}
+
+	@Benchmark
+	public void drawPolygon() {
+		im.drawPolygon(star, color);
+	}
+
+	@Benchmark
+	public void fillPolygon() {
+		im.fillPolygon(star, color);
+	}
+
+	@Benchmark
+	public void fillPolygonAntiAliased() {
+		im.setAntiAliased(color);
+		im.fillPolygon(star, GdUtils.SPECIAL_COLOR_ANTI_ALIASED);
+	}
+
+	@Benchmark
+	public void drawEllipse() {
+		im.drawEllipse(size / 2, size / 2, size - 2, size * 2 / 3, color);
+	}
+
+	@Benchmark
+	public void fillEllipse() {
+		im.fillEllipse(size / 2, size / 2, size - 2, size * 2 / 3, color);
+	}
+
+	@Benchmark
+	public void drawArc() {
+		im.drawArc(size / 2, size / 2, size - 2, size - 2, 30, 300, color);
+	}
+
+	@Benchmark
+	public void fillArc() {
+		im.fillArc(size / 2, size / 2, size - 2, size - 2, 30, 300, color, GdUtils.gdPie);
+	}
+
+	@Benchmark
+	public void fill() {
+		flip = !flip;
+		im.gdImageFill(size / 2, size / 2, flip ? color : other);
+	}
+
+	/* nothing is drawn in the border color, so the whole canvas is filled */
+	@Benchmark
+	public void fillToBorder() {
+		flip = !flip;
+		im.fillToBorder(size / 2, size / 2, third, flip ? color : other);
+	}
+
+}
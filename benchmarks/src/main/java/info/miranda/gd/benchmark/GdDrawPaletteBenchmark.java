@@ -0,0 +1,15 @@
+package info.miranda.gd.benchmark;
+
+import info.miranda.gd.enums.GdImageColorType;
+
+/*
+	Drawing primitives on palette images, which do not blend.
+*/
+public class GdDrawPaletteBenchmark extends GdDrawBenchmark {
+
+	@Override
+	GdImageColorType colorType() {
+		return GdImageColorType.PALETTE_BASED_COLOR;
+	}
+
+}
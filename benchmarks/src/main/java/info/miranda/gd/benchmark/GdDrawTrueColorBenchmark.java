@@ -0,0 +1,26 @@
+package info.miranda.gd.benchmark;
+
+import info.miranda.gd.GdImage;
+import info.miranda.gd.enums.GdEffect;
+import info.miranda.gd.enums.GdImageColorType;
+import org.openjdk.jmh.annotations.Param;
+
+/*
+	Drawing primitives on truecolor images, for every blending mode.
+*/
+public class GdDrawTrueColorBenchmark extends GdDrawBenchmark {
+
+	@Param({"REPLACE", "ALPHA_BLEND", "NORMAL", "OVERLAY", "MULTIPLY"})
+	GdEffect effect;
+
+	@Override
+	GdImageColorType colorType() {
+		return GdImageColorType.TRUE_COLOR;
+	}
+
+	@Override
+	void prepare(final GdImage im) {
+		im.setAlphaBlending(effect);
+	}
+
+}
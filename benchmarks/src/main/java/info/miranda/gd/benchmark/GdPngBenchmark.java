@@ -0,0 +1,175 @@
+package info.miranda.gd.benchmark;
+
+import info.miranda.gd.GdImage;
+import info.miranda.gd.enums.GdEffect;
+import info.miranda.gd.enums.GdImageColorType;
+import info.miranda.gd.enums.GdPngFilterStrategy;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+	PNG encoding for every filter strategy on a small corpus of generated
+	images: charts (flat colors, lines and text-like detail), in truecolor
+	and palette, and photo-like images (smooth shading with sensor noise),
+	with and without alpha. The output goes to a channel that only counts
+	the bytes; the size of the latest image written is reported next to
+	the time as the "bytes" counter.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GdPngBenchmark {
+
+	@Param({"CHART", "CHART_PALETTE", "PHOTO", "PHOTO_ALPHA"})
+	String image;
+
+	@Param({"1600"})
+	int width;
+
+	@Param({"GD_PNG_FILTER_DEFAULT", "GD_PNG_FILTER_NONE", "GD_PNG_FILTER_SUB", "GD_PNG_FILTER_UP",
+			"GD_PNG_FILTER_AVERAGE", "GD_PNG_FILTER_PAETH", "GD_PNG_FILTER_MINSUM", "GD_PNG_FILTER_ENTROPY"})
+	GdPngFilterStrategy strategy;
+
+	/* threads png() compresses with */
+	@Param({"1"})
+	int parallelism;
+
+	GdImage im;
+	CountingChannel out;
+
+	/* Counts the bytes written, throws them away. */
+	private static class CountingChannel implements WritableByteChannel {
+		long count;
+
+		public int write(final ByteBuffer src) {
+			final int n = src.remaining();
+			src.position(src.limit());
+			count += n;
+			return n;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+
+	/* Size of the PNG, the same on every call. */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Output {
+		public long bytes;
+	}
+
+	@Setup
+	public void setup() {
+		final int height = width * 3 / 4;
+		if (image.equals("CHART")) {
+			im = createChart(width, height, GdImageColorType.TRUE_COLOR);
+		} else if (image.equals("CHART_PALETTE")) {
+			im = createChart(width, height, GdImageColorType.PALETTE_BASED_COLOR);
+		} else {
+			im = createPhoto(width, height, image.equals("PHOTO_ALPHA"));
+		}
+		im.setPngFilter(strategy);
+		im.setParallelism(parallelism);
+		out = new CountingChannel();
+	}
+
+	@Benchmark
+	public void png(final Output output) throws IOException {
+		out.count = 0;
+		im.png(out);
+		output.bytes = out.count;
+	}
+
+	/* Bars, a grid, a pie and a polyline on white, with dense tick marks. */
+	private static GdImage createChart(final int width, final int height, final GdImageColorType type) {
+		final GdImage im = new GdImage(width, height, type);
+		final Random random = new Random(1);
+		final int white = im.colorAllocate(255, 255, 255);
+		final int grey = im.colorAllocate(220, 220, 220);
+		final int black = im.colorAllocate(0, 0, 0);
+		final int[] series = {
+			im.colorAllocate(31, 119, 180), im.colorAllocate(255, 127, 14),
+			im.colorAllocate(44, 160, 44), im.colorAllocate(214, 39, 40)
+		};
+
+		im.fillRectangle(0, 0, width - 1, height - 1, white);
+		for (int x = 0; x < width; x += 40) {
+			im.drawLine(x, 0, x, height - 1, grey);
+		}
+		for (int y = 0; y < height; y += 40) {
+			im.drawLine(0, y, width - 1, y, grey);
+		}
+		final int bars = 24;
+		final int barWidth = width / 2 / bars;
+		for (int i = 0; i < bars; i++) {
+			final int top = height - 20 - random.nextInt(height * 2 / 3);
+			im.fillRectangle(20 + i * barWidth, top, 20 + (i + 1) * barWidth - 4, height - 20, series[i % 4]);
+			for (int t = 0; t < 6; t++) {
+				im.drawLine(20 + i * barWidth + t * 2, height - 16, 20 + i * barWidth + t * 2, height - 12, black);
+			}
+		}
+		int angle = 0;
+		for (int i = 0; i < 4; i++) {
+			final int end = (i == 3) ? 360 : angle + 40 + random.nextInt(80);
+			im.fillArc(width * 3 / 4, height / 4, width / 4, width / 4, angle, end, series[i], 0);
+			angle = end;
+		}
+		int py = height / 2;
+		for (int x = width / 2; x < width - 10; x += 8) {
+			final int ny = Math.max(height / 3, Math.min(height - 30, py + random.nextInt(41) - 20));
+			im.drawLine(x, py, x + 8, ny, black);
+			py = ny;
+		}
+		return im;
+	}
+
+	/* Smooth shading with a little gaussian noise in every channel. */
+	private static GdImage createPhoto(final int width, final int height, final boolean alpha) {
+		final GdImage im = new GdImage(width, height, GdImageColorType.TRUE_COLOR);
+		final Random random = new Random(2);
+		im.setAlphaBlending(GdEffect.REPLACE);
+		im.setSaveAlpha(alpha ? 1 : 0);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				final double u = (double) x / width;
+				final double v = (double) y / height;
+				final double light = 0.5 + 0.5 * Math.sin(u * 7 + Math.cos(v * 5) * 2);
+				final int r = clamp(40 + 180 * light * v + random.nextGaussian() * 3);
+				final int g = clamp(70 + 120 * light + random.nextGaussian() * 3);
+				final int b = clamp(200 - 150 * u * light + random.nextGaussian() * 3);
+				final int a = alpha ? Math.min(127, (int) (127 * u * v * 1.5)) : 0;
+				im.setPixel(x, y, (a << 24) | (r << 16) | (g << 8) | b);
+			}
+		}
+		return im;
+	}
+
+	private static int clamp(final double v) {
+		return v < 0 ? 0 : (v > 255 ? 255 : (int) v);
+	}
+
+}
@@ -0,0 +1,111 @@
+package info.miranda.gd.benchmark;
+
+import info.miranda.gd.GdImage;
+import info.miranda.gd.enums.GdImageColorType;
+import info.miranda.gd.enums.GdInterpolationMethod;
+import info.miranda.gd.utils.GdAffine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+	scale(), rotateInterpolated() and the affine transforms for every
+	interpolation method. All of them convert a palette source to truecolor in place, so palette
+	sources are restored before each call.
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GdScaleBenchmark {
+
+	@Param({"64", "512", "2048"})
+	int size;
+
+	@Param({"TRUE_COLOR", "PALETTE_BASED_COLOR"})
+	GdImageColorType colorType;
+
+	@Param({"GD_NEAREST_NEIGHBOUR", "GD_BILINEAR_FIXED", "GD_BICUBIC_FIXED", "GD_BELL", "GD_BESSEL",
+			"GD_BICUBIC", "GD_BLACKMAN", "GD_BOX", "GD_BSPLINE", "GD_CATMULLROM", "GD_GAUSSIAN",
+			"GD_GENERALIZED_CUBIC", "GD_HERMITE", "GD_HAMMING", "GD_HANNING", "GD_MITCHELL",
+			"GD_POWER", "GD_QUADRATIC", "GD_SINC", "GD_TRIANGLE"})
+	GdInterpolationMethod method;
+
+	/* slices the scaler and rotation engines split their work into */
+	@Param({"1"})
+	int parallelism;
+
+	GdImage source;
+	GdImage im;
+	GdAffine rotation;
+	GdAffine shear;
+	GdAffine quarterTurn;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		source = GdBenchmarkImages.createPattern(size, colorType);
+		source.setInterpolationMethod(method);
+		im = source;
+		rotation = new GdAffine().rotate(30);
+		shear = new GdAffine().shearHorizontal(20);
+		quarterTurn = new GdAffine().rotate(90);
+	}
+
+	@Setup(Level.Invocation)
+	public void restore() {
+		if (colorType == GdImageColorType.PALETTE_BASED_COLOR) {
+			im = source.imageClone();
+			im.setInterpolationMethod(method);
+		}
+	}
+
+	@Benchmark
+	public GdImage scaleDown() {
+		return im.scale(size / 3, size / 3, parallelism);
+	}
+
+	@Benchmark
+	public GdImage scaleUp() {
+		return im.scale(size * 3 / 2, size * 3 / 2, parallelism);
+	}
+
+	@Benchmark
+	public GdImage rotateInterpolated() {
+		return im.rotateInterpolated(30.0f, 0, parallelism);
+	}
+
+	@Benchmark
+	public GdImage rotateInterpolated90() {
+		return im.rotateInterpolated(90.0f, 0, parallelism);
+	}
+
+	@Benchmark
+	public GdImage transformAffineRotate() {
+		return im.gdTransformAffineGetImage(null, rotation);
+	}
+
+	@Benchmark
+	public GdImage transformAffineShear() {
+		return im.gdTransformAffineGetImage(null, shear);
+	}
+
+	/* pixel aligned, takes the fast path */
+	@Benchmark
+	public GdImage transformAffineQuarterTurn() {
+		return im.gdTransformAffineGetImage(null, quarterTurn);
+	}
+
+}
@@ -0,0 +1,216 @@
+package info.miranda.gd;
+
+import info.miranda.gd.enums.GdDitherMethod;
+import info.miranda.gd.interfaces.GdCallbackRange;
+import info.miranda.gd.interfaces.GdPixelStorageInterface;
+import info.miranda.gd.utils.GdParallel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+	Maps the pixels of an image to a palette, with or without dithering,
+	in getParallelism() threads of the image. The result is the same for
+	any number of threads.
+
+	Ordered dithering adds a threshold of an 8x8 Bayer matrix to every
+	pixel, so all pixels are independent. Floyd-Steinberg error diffusion
+	runs in raster order: a pixel needs the errors of the three pixels
+	above it, so each row may run while the row above is at least two
+	pixels ahead. Rows are handed out in order to the threads, which
+	publish their progress every few pixels and wait on the row above;
+	the rows thus move on as a wavefront, sharing two error buffers.
+*/
+class GdDither {
+
+	/* pixels done between two publications of the progress of a row */
+	private static final int BLOCK = 32;
+
+	private static final int[] BAYER = {
+		 0, 32,  8, 40,  2, 34, 10, 42,
+		48, 16, 56, 24, 50, 18, 58, 26,
+		12, 44,  4, 36, 14, 46,  6, 38,
+		60, 28, 52, 20, 62, 30, 54, 22,
+		 3, 35, 11, 43,  1, 33,  9, 41,
+		51, 19, 59, 27, 49, 17, 57, 25,
+		15, 47,  7, 39, 13, 45,  5, 37,
+		63, 31, 55, 23, 61, 29, 53, 21
+	};
+
+	/**
+	 * Maps the pixels of src to the palette of quantizer.
+	 * @param src truecolor image, or palette image whose pixels are taken for the colors of its palette
+	 * @param out receives the palette indexes; may be the pixels of src
+	 * @param quantizer palette to map to
+	 * @param transparentIndex index for the pixels of the transparent color of a truecolor src
+	 * @param method dithering, null for none
+	 */
+	static void remap(final GdImage src, final GdPixelStorageInterface out, final GdQuantizer quantizer,
+					  final int transparentIndex, final GdDitherMethod method) {
+		quantizer.prepare();
+		if (method == null) {
+			remapPlain(src, out, quantizer, transparentIndex);
+		} else if (method == GdDitherMethod.GD_DITHER_ORDERED) {
+			remapOrdered(src, out, quantizer, transparentIndex);
+		} else {
+			remapDiffusion(src, out, quantizer, transparentIndex);
+		}
+	}
+
+	/* the transparent color of a truecolor image, a value no pixel has otherwise */
+	private static int transparentColor(final GdImage src) {
+		return src.trueColor ? src.transparent : -1;
+	}
+
+	/* Reads row y of src as truecolor pixels. */
+	private static void readRow(final GdImage src, final int y, final int[] row) {
+		if (src.trueColor) {
+			src.tpixels.getRow(y, 0, row, 0, src.sx);
+			return;
+		}
+		src.pixels.getRow(y, 0, row, 0, src.sx);
+		for (int x = 0; x < src.sx; x++) {
+			final int c = row[x];
+			row[x] = GdUtils.trueColorMixAlpha(src.red[c], src.green[c], src.blue[c], src.alpha[c]);
+		}
+	}
+
+	private static int clamp(final int v, final int max) {
+		return v < 0 ? 0 : (v > max ? max : v);
+	}
+
+	private static void remapPlain(final GdImage src, final GdPixelStorageInterface out,
+								   final GdQuantizer quantizer, final int transparentIndex) {
+		final int transparent = transparentColor(src);
+		GdParallel.forRange(src.parallelPool, src.parallelism, src.sy, new GdCallbackRange() {
+			@Override
+			public void callbackRange(final int from, final int to) {
+				final int[] row = new int[src.sx];
+				for (int y = from; y < to; y++) {
+					readRow(src, y, row);
+					for (int x = 0; x < src.sx; x++) {
+						row[x] = (row[x] == transparent) ? transparentIndex : quantizer.map(row[x]);
+					}
+					out.setRow(y, 0, row, 0, src.sx);
+				}
+			}
+		});
+	}
+
+	private static void remapOrdered(final GdImage src, final GdPixelStorageInterface out,
+									 final GdQuantizer quantizer, final int transparentIndex) {
+		final int transparent = transparentColor(src);
+	/* a threshold spans one step between the levels of a channel, as if
+	   the palette were a regular cube */
+		final int levels = Math.max(2, (int) Math.round(Math.cbrt(quantizer.colors)));
+		final double step = 255.0 / (levels - 1);
+		final int[] threshold = new int[64];
+		for (int i = 0; i < 64; i++) {
+			threshold[i] = (int) Math.round((BAYER[i] + 0.5) / 64.0 * step - step / 2);
+		}
+		GdParallel.forRange(src.parallelPool, src.parallelism, src.sy, new GdCallbackRange() {
+			@Override
+			public void callbackRange(final int from, final int to) {
+				final int[] row = new int[src.sx];
+				for (int y = from; y < to; y++) {
+					readRow(src, y, row);
+					final int line = (y & 7) << 3;
+					for (int x = 0; x < src.sx; x++) {
+						final int p = row[x];
+						if (p == transparent) {
+							row[x] = transparentIndex;
+							continue;
+						}
+						final int t = threshold[line | (x & 7)];
+						row[x] = quantizer.map(clamp(GdUtils.trueColorGetRed(p) + t, 255),
+								clamp(GdUtils.trueColorGetGreen(p) + t, 255),
+								clamp(GdUtils.trueColorGetBlue(p) + t, 255),
+								GdUtils.trueColorGetAlpha(p));
+					}
+					out.setRow(y, 0, row, 0, src.sx);
+				}
+			}
+		});
+	}
+
+	private static void remapDiffusion(final GdImage src, final GdPixelStorageInterface out,
+									   final GdQuantizer quantizer, final int transparentIndex) {
+		final int transparent = transparentColor(src);
+		final int sx = src.sx;
+		final int sy = src.sy;
+		final AtomicInteger nextRow = new AtomicInteger();
+		/* pixels of each row done so far */
+		final AtomicIntegerArray progress = new AtomicIntegerArray(sy);
+		/* errors in sixteenths, 4 channels, one pixel of margin at both
+		   ends; row y reads errors[y & 1] and adds to the other one */
+		final int[][] errors = {new int[4 * (sx + 2)], new int[4 * (sx + 2)]};
+		final int threads = Math.max(1, Math.min(src.parallelism, sy));
+
+		GdParallel.forRange(src.parallelPool, threads, threads, new GdCallbackRange() {
+			@Override
+			public void callbackRange(final int from, final int to) {
+				final int[] row = new int[sx];
+				for (int y = nextRow.getAndIncrement(); y < sy; y = nextRow.getAndIncrement()) {
+					readRow(src, y, row);
+					final int[] cur = errors[y & 1];
+					final int[] next = errors[(y + 1) & 1];
+					int above = (y == 0) ? sx : 0;
+					int cr = 0, cg = 0, cb = 0, ca = 0;
+					for (int x = 0; x < sx; x++) {
+					/* wait for the pixels above, to the left and right */
+						final int need = Math.min(x + 2, sx);
+						while (above < need) {
+							above = progress.get(y - 1);
+							if (above < need) {
+								Thread.yield();
+							}
+						}
+						final int e = 4 * (x + 1);
+						final int p = row[x];
+						if (p == transparent) {
+							row[x] = transparentIndex;
+							cur[e] = cur[e + 1] = cur[e + 2] = cur[e + 3] = 0;
+							cr = cg = cb = ca = 0;
+						} else {
+							final int r = clamp(GdUtils.trueColorGetRed(p) + ((cur[e] + cr + 8) >> 4), 255);
+							final int g = clamp(GdUtils.trueColorGetGreen(p) + ((cur[e + 1] + cg + 8) >> 4), 255);
+							final int b = clamp(GdUtils.trueColorGetBlue(p) + ((cur[e + 2] + cb + 8) >> 4), 255);
+							final int a = clamp(GdUtils.trueColorGetAlpha(p) + ((cur[e + 3] + ca + 8) >> 4),
+									GdUtils.ALPHA_MAX);
+							cur[e] = cur[e + 1] = cur[e + 2] = cur[e + 3] = 0;
+							final int c = quantizer.map(r, g, b, a);
+							row[x] = c;
+							final int er = r - quantizer.red[c];
+							final int eg = g - quantizer.green[c];
+							final int eb = b - quantizer.blue[c];
+							final int ea = a - quantizer.alpha[c];
+						/* 7/16 to the right, 3/16, 5/16 and 1/16 below */
+							cr = er * 7;
+							cg = eg * 7;
+							cb = eb * 7;
+							ca = ea * 7;
+							next[e - 4] += er * 3;
+							next[e - 3] += eg * 3;
+							next[e - 2] += eb * 3;
+							next[e - 1] += ea * 3;
+							next[e] += er * 5;
+							next[e + 1] += eg * 5;
+							next[e + 2] += eb * 5;
+							next[e + 3] += ea * 5;
+							next[e + 4] += er;
+							next[e + 5] += eg;
+							next[e + 6] += eb;
+							next[e + 7] += ea;
+						}
+						if (((x + 1) % BLOCK) == 0) {
+							progress.set(y, x + 1);
+						}
+					}
+					out.setRow(y, 0, row, 0, sx);
+					progress.set(y, sx);
+				}
+			}
+		});
+	}
+
+}
@@ -1,18 +1,39 @@
 package info.miranda.gd;
 
 import info.miranda.gd.enums.GdAxis;
+import info.miranda.gd.enums.GdDitherMethod;
 import info.miranda.gd.enums.GdEffect;
 import info.miranda.gd.enums.GdImageColorType;
 import info.miranda.gd.enums.GdInterpolationMethod;
+import info.miranda.gd.enums.GdPaletteQuantizationMethod;
+import info.miranda.gd.enums.GdPngFilterStrategy;
+import info.miranda.gd.enums.GdScaleEngine;
+import info.miranda.gd.enums.GdStorageMode;
 import info.miranda.gd.filter.*;
+import info.miranda.gd.interfaces.GdCallbackCoverage;
 import info.miranda.gd.interfaces.GdCallbackImageColor;
+import info.miranda.gd.interfaces.GdCallbackRange;
 import info.miranda.gd.interfaces.GdFilterInterface;
+import info.miranda.gd.interfaces.GdPixelStorageInterface;
+import info.miranda.gd.storage.GdPixelStorageByte;
+import info.miranda.gd.storage.GdPixelStorageDirect;
+import info.miranda.gd.storage.GdPixelStorageInt;
 import info.miranda.gd.utils.GdAffine;
+import info.miranda.gd.utils.GdParallel;
+import info.miranda.gd.utils.GdRasterizer;
 import info.miranda.gd.utils.GdRect;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
 
 import static info.miranda.gd.utils.GdMath.fmod;
 import static java.lang.Math.PI;
@@ -31,7 +52,7 @@ import static java.lang.Math.tan;
 */
 public class GdImage {
 	/* Palette-based image pixels */
-	int[][] pixels;
+	GdPixelStorageInterface pixels;
 	int sx;
 	int sy;
 	/* These are valid in palette images only. See also
@@ -77,7 +98,7 @@ public class GdImage {
 	/* Truecolor flag and pixels. New 2.0 fields appear here at the
 	   end to minimize breakage of existing object code. */
 	boolean trueColor;
-	int[][] tpixels;
+	GdPixelStorageInterface tpixels;
 	/* Should alpha channel be copied, or applied, each time a
 	   pixel is drawn? This applies to truecolor images only.
 	   No attempt is made to alpha-blend in palette images,
@@ -124,6 +145,36 @@ public class GdImage {
 	int paletteQuantizationMaxQuality;
 	GdInterpolationMethod interpolation_id;
 	GdFilterInterface interpolation;
+	/* Where the pixels live; images derived from this one (clones, scaled,
+	   rotated or transformed copies) are created with the same mode. */
+	GdStorageMode storageMode = GdStorageMode.HEAP;
+	/* Number of slices the lines of scaling and rotation are split into
+	   (1 = single threaded) and the pool running them (null = common pool).
+	   Derived images inherit both. */
+	int parallelism = 1;
+	ForkJoinPool parallelPool;
+	/* Arithmetic used by the generic two-pass scaler, see setScaleEngine(). */
+	GdScaleEngine scaleEngine = GdScaleEngine.GD_SCALE_DOUBLE;
+	/* Dithering of trueColorToPalette() and paletteCopy(), see setDitherMethod(). */
+	GdDitherMethod ditherMethod = GdDitherMethod.GD_DITHER_FLOYD_STEINBERG;
+	/* Bytes of filtered scanlines per block of parallel PNG compression, see setPngBlockSize(). */
+	int pngBlockSize = GdPngWriter.BLOCK_SIZE;
+	/* Choice of the filter of each PNG scanline, see setPngFilter(). */
+	GdPngFilterStrategy pngFilter = GdPngFilterStrategy.GD_PNG_FILTER_DEFAULT;
+	/* Scratch row of fillSpan(). */
+	private int[] spanRow;
+	/* Coverage rasterizer of the anti-aliased fills. */
+	private GdRasterizer rasterizer;
+	/* Segment stack of the flood fills. */
+	private FillStack fillStack;
+	/* Bumped by paletteChanged() whenever red, green, blue, alpha, open or
+	   colorsTotal change, so that paletteIndex knows to rebuild. */
+	int paletteVersion;
+	private GdPaletteIndex paletteIndex;
+	/* RGBA to palette index cube of colorInverseMap(), built on first use. */
+	private GdInverseColormap inverseColormap;
+	private int inverseColormapBits = 5;
+	private int inverseColormapAlphaBits = 3;
 
 	/* 2.0.12: this now checks the clipping rectangle */
 	private boolean isBoundsSafe(final int x, final int y) {
@@ -136,8 +187,33 @@ public class GdImage {
 	 * @param colorType image color type, either palette or true color.
 	 */
 	public GdImage(final int sx, final int sy, final GdImageColorType colorType) {
-		this.sx = sx;
-		this.sy = sy;
+		this(sx, sy, colorType, GdStorageMode.HEAP);
+	}
+
+	/**
+	 * @param sx The image width.
+	 * @param sy The image height.
+	 * @param colorType image color type, either palette or true color.
+	 * @param storageMode where to keep the pixels; DIRECT and MAPPED images live
+	 *                    outside of the Java heap and may be larger than 2 GB.
+	 */
+	public GdImage(final int sx, final int sy, final GdImageColorType colorType, final GdStorageMode storageMode) {
+		this(createStorage(sx, sy, colorType, storageMode), colorType);
+	}
+
+	/**
+	 * @param storage pixel storage to draw into, its size is the image size. Truecolor
+	 *                images need a storage able to hold full 32 bit values. Images
+	 *                derived from this one use the storage mode of a GdPixelStorageDirect,
+	 *                heap storage otherwise.
+	 * @param colorType image color type, either palette or true color.
+	 */
+	public GdImage(final GdPixelStorageInterface storage, final GdImageColorType colorType) {
+		this.sx = storage.getWidth();
+		this.sy = storage.getHeight();
+		if (storage instanceof GdPixelStorageDirect) {
+			storageMode = ((GdPixelStorageDirect) storage).isMapped() ? GdStorageMode.MAPPED : GdStorageMode.DIRECT;
+		}
 		transparent = (-1);
 		interlace = 0;
 		thick = 1;
@@ -153,7 +229,7 @@ public class GdImage {
 
 		switch (colorType) {
 			case TRUE_COLOR:
-				tpixels = new int[sy][sx];
+				tpixels = storage;
 				trueColor = true;
 	/* 2.0.2: alpha blending is now on by default, and saving of alpha is
 	   off by default. This allows font antialiasing to work as expected
@@ -165,7 +241,7 @@ public class GdImage {
 				break;
 
 			case PALETTE_BASED_COLOR:
-				pixels = new int[sy][sx];
+				pixels = storage;
 				colorsTotal = 0;
 				for (int i = 0; (i < GdUtils.MAX_COLORS); i++) {
 					open[i] = true;
@@ -178,12 +254,146 @@ public class GdImage {
 		}
 	}
 
+	private static GdPixelStorageInterface createStorage(final int sx, final int sy, final GdImageColorType colorType,
+														final GdStorageMode storageMode) {
+		final boolean palette = (colorType == GdImageColorType.PALETTE_BASED_COLOR);
+		switch (storageMode) {
+			case DIRECT:
+				return new GdPixelStorageDirect(sx, sy, palette ? 1 : 4);
+			case MAPPED:
+				return GdPixelStorageDirect.mapScratchFile(sx, sy, palette ? 1 : 4, null);
+			default:
+				if (palette) {
+					return new GdPixelStorageByte(sx, sy);
+				}
+				return new GdPixelStorageInt(sx, sy);
+		}
+	}
+
+	/* Creates an image of the same storage mode as this one. */
+	private GdImage createImage(final int sx, final int sy, final GdImageColorType colorType) {
+		final GdImage im = new GdImage(sx, sy, colorType, storageMode);
+		im.parallelism = parallelism;
+		im.parallelPool = parallelPool;
+		im.scaleEngine = scaleEngine;
+		im.ditherMethod = ditherMethod;
+		im.pngBlockSize = pngBlockSize;
+		im.pngFilter = pngFilter;
+		return im;
+	}
+
+	public GdStorageMode getStorageMode() {
+		return storageMode;
+	}
+
+	/**
+	 * Releases the pixels, as gdImageDestroy(). Heap pixels are simply
+	 * dropped; direct and mapped ones are released by
+	 * GdPixelStorageDirect.release(), so the memory is freed at the next
+	 * garbage collection even if the image is still referenced. The image
+	 * must not be used afterwards.
+	 */
+	public void destroy() {
+		for (final GdPixelStorageInterface storage : new GdPixelStorageInterface[] {pixels, tpixels}) {
+			if (storage instanceof GdPixelStorageDirect) {
+				((GdPixelStorageDirect) storage).release();
+			}
+		}
+		pixels = null;
+		tpixels = null;
+	}
+
+	/**
+	 * Sets how many slices scaling and rotation split their work into; the
+	 * result is the same for any value.
+	 * @param parallelism number of slices, 1 (the default) runs in the calling thread
+	 */
+	public void setParallelism(final int parallelism) {
+		this.parallelism = MAX(1, parallelism);
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param pool pool running the slices, null for the common fork-join pool
+	 */
+	public void setParallelPool(final ForkJoinPool pool) {
+		this.parallelPool = pool;
+	}
+
+	public ForkJoinPool getParallelPool() {
+		return parallelPool;
+	}
+
+	/**
+	 * Selects the dithering used when trueColorToPalette(),
+	 * createPaletteFromTrueColor() or paletteCopy() are asked to dither.
+	 * Both methods use getParallelism() threads.
+	 * @param method GD_DITHER_FLOYD_STEINBERG (the default) or GD_DITHER_ORDERED
+	 */
+	public void setDitherMethod(final GdDitherMethod method) {
+		this.ditherMethod = method;
+	}
+
+	public GdDitherMethod getDitherMethod() {
+		return ditherMethod;
+	}
+
+	/**
+	 * Selects the arithmetic of the generic (two-pass) scaling filters.
+	 * GD_SCALE_FIXED uses integer weights and is faster; its channels stay
+	 * within 1 of the double precision GD_SCALE_DOUBLE default per pass.
+	 * @param engine the scaling engine
+	 */
+	public void setScaleEngine(final GdScaleEngine engine) {
+		this.scaleEngine = engine;
+	}
+
+	public GdScaleEngine getScaleEngine() {
+		return scaleEngine;
+	}
+
+	/**
+	 * Sets the size of the blocks png() compresses concurrently when
+	 * getParallelism() is more than 1. Each block is primed with the last
+	 * 32 KiB of the one before it, so larger blocks only cost memory
+	 * (getParallelism() blocks are held at a time); smaller ones spread
+	 * smaller images over more threads.
+	 * @param size bytes of filtered scanlines per block, at least 32 KiB;
+	 *             the default is 128 KiB
+	 */
+	public void setPngBlockSize(final int size) {
+		this.pngBlockSize = MAX(GdPngWriter.WINDOW, size);
+	}
+
+	public int getPngBlockSize() {
+		return pngBlockSize;
+	}
+
+	/**
+	 * Selects how png() filters the scanlines. A fixed filter costs
+	 * nothing to choose; GD_PNG_FILTER_MINSUM, the default for truecolor
+	 * images, tries all five on every row and GD_PNG_FILTER_ENTROPY on a
+	 * sample of each row. Palette images compress best unfiltered, which
+	 * is their default.
+	 * @param strategy the filter strategy, GD_PNG_FILTER_DEFAULT for the default of the image type
+	 */
+	public void setPngFilter(final GdPngFilterStrategy strategy) {
+		this.pngFilter = strategy;
+	}
+
+	public GdPngFilterStrategy getPngFilter() {
+		return pngFilter;
+	}
+
 	public int getPixel(final int x, final int y) {
 		if (isBoundsSafe(x, y)) {
 			if (trueColor) {
-				return tpixels[y][x];
+				return tpixels.get(x, y);
 			} else {
-				return pixels[y][x];
+				return pixels.get(x, y);
 			}
 		} else {
 			return 0;
@@ -201,7 +411,7 @@ public class GdImage {
 	}
 
 	public int getPalettePixel(final int x, final int y) {
-		return pixels[(y)][(x)];
+		return pixels.get((x), (y));
 	}
 
 	/* This function accepts truecolor pixel values only. The
@@ -356,27 +566,174 @@ public class GdImage {
 						switch (alphaBlendingFlag) {
 							default:
 							case REPLACE:
-								tpixels[y][x] = color;
+								tpixels.set(x, y, color);
 								break;
 							case ALPHA_BLEND:
 							case NORMAL:
-								tpixels[y][x] = gdAlphaBlend(tpixels[y][x], color);
+								tpixels.set(x, y, gdAlphaBlend(tpixels.get(x, y), color));
 								break;
 							case OVERLAY:
-								tpixels[y][x] = gdLayerOverlay(tpixels[y][x], color);
+								tpixels.set(x, y, gdLayerOverlay(tpixels.get(x, y), color));
 								break;
 							case MULTIPLY:
-								tpixels[y][x] = gdLayerMultiply(tpixels[y][x], color);
+								tpixels.set(x, y, gdLayerMultiply(tpixels.get(x, y), color));
 								break;
 						}
 					} else {
-						pixels[y][x] = color;
+						pixels.set(x, y, color);
 					}
 				}
 				break;
 		}
 	}
 
+	/* Sets the pixels x1..x2 (x1 <= x2) of row y, exactly as calling
+	   setPixel() for each of them from left to right would, but clips and
+	   picks the blending once for the whole span. */
+	private void fillSpan(final int y, int x1, int x2, final int color) {
+		if (isPatternColor(color)) {
+			for (int x = x1; x <= x2; x++) {
+				setPixel(x, y, color);
+			}
+			return;
+		}
+
+		if (y < cy1 || y > cy2) {
+			return;
+		}
+		if (x1 < cx1) {
+			x1 = cx1;
+		}
+		if (x2 > cx2) {
+			x2 = cx2;
+		}
+		final int len = x2 - x1 + 1;
+		if (len <= 0) {
+			return;
+		}
+
+		if (!trueColor) {
+			pixels.fill(y, x1, len, color);
+			return;
+		}
+
+		final boolean blend = (alphaBlendingFlag == GdEffect.ALPHA_BLEND || alphaBlendingFlag == GdEffect.NORMAL);
+		if (blend && GdUtils.trueColorGetAlpha(color) == GdUtils.ALPHA_TRANSPARENT) {
+			return;
+		}
+	/* an opaque color replaces, see gdAlphaBlend() */
+		if (blend && GdUtils.trueColorGetAlpha(color) == GdUtils.ALPHA_OPAQUE) {
+			tpixels.fill(y, x1, len, color);
+			return;
+		}
+		switch (alphaBlendingFlag) {
+			case OVERLAY:
+			case MULTIPLY:
+			case ALPHA_BLEND:
+			case NORMAL:
+				break;
+			default:
+			case REPLACE:
+				tpixels.fill(y, x1, len, color);
+				return;
+		}
+
+		final int[] row = spanRow(len);
+		tpixels.getRow(y, x1, row, 0, len);
+		switch (alphaBlendingFlag) {
+			case OVERLAY:
+				for (int i = 0; i < len; i++) {
+					row[i] = gdLayerOverlay(row[i], color);
+				}
+				break;
+			case MULTIPLY:
+				for (int i = 0; i < len; i++) {
+					row[i] = gdLayerMultiply(row[i], color);
+				}
+				break;
+			default:
+				for (int i = 0; i < len; i++) {
+					row[i] = gdAlphaBlend(row[i], color);
+				}
+				break;
+		}
+		tpixels.setRow(y, x1, row, 0, len);
+	}
+
+	/* Sets the pixels y1..y2 (y1 <= y2) of column x, like fillSpan() does
+	   for rows. */
+	private void fillColumnSpan(final int x, int y1, int y2, final int color) {
+		if (isPatternColor(color)) {
+			for (int y = y1; y <= y2; y++) {
+				setPixel(x, y, color);
+			}
+			return;
+		}
+
+		if (x < cx1 || x > cx2) {
+			return;
+		}
+		if (y1 < cy1) {
+			y1 = cy1;
+		}
+		if (y2 > cy2) {
+			y2 = cy2;
+		}
+
+		if (!trueColor) {
+			for (int y = y1; y <= y2; y++) {
+				pixels.set(x, y, color);
+			}
+			return;
+		}
+		switch (alphaBlendingFlag) {
+			default:
+			case REPLACE:
+				for (int y = y1; y <= y2; y++) {
+					tpixels.set(x, y, color);
+				}
+				break;
+			case ALPHA_BLEND:
+			case NORMAL:
+				for (int y = y1; y <= y2; y++) {
+					tpixels.set(x, y, gdAlphaBlend(tpixels.get(x, y), color));
+				}
+				break;
+			case OVERLAY:
+				for (int y = y1; y <= y2; y++) {
+					tpixels.set(x, y, gdLayerOverlay(tpixels.get(x, y), color));
+				}
+				break;
+			case MULTIPLY:
+				for (int y = y1; y <= y2; y++) {
+					tpixels.set(x, y, gdLayerMultiply(tpixels.get(x, y), color));
+				}
+				break;
+		}
+	}
+
+	/* Styles, brushes, tiles and antialiasing depend on every single pixel. */
+	private static boolean isPatternColor(final int color) {
+		switch (color) {
+			case GdUtils.SPECIAL_COLOR_STYLED:
+			case GdUtils.SPECIAL_COLOR_STYLED_BRUSHED:
+			case GdUtils.SPECIAL_COLOR_BRUSHED:
+			case GdUtils.SPECIAL_COLOR_TILED:
+			case GdUtils.SPECIAL_COLOR_ANTI_ALIASED:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/* Scratch row for the blending spans, grown as needed. */
+	private int[] spanRow(final int len) {
+		if (spanRow == null || spanRow.length < len) {
+			spanRow = new int[MAX(len, sx)];
+		}
+		return spanRow;
+	}
+
 	private void brushApply(final int x, final int y) {
 		int x1, y1, x2, y2;
 		int srcx, srcy;
@@ -432,12 +789,7 @@ public class GdImage {
 					/* Truecolor brush. Very slow
 					   on a palette destination. */
 						if (brush.trueColor) {
-							setPixel(lx, ly,
-									colorResolveAlpha(
-											GdUtils.trueColorGetRed(p),
-											GdUtils.trueColorGetGreen(p),
-											GdUtils.trueColorGetBlue(p),
-											GdUtils.trueColorGetAlpha(p)));
+							setPixel(lx, ly, colorResolvePixel(p));
 						} else {
 							setPixel(lx, ly, brushColorMap[p]);
 						}
@@ -472,12 +824,7 @@ public class GdImage {
 				if (tile.trueColor) {
 				/* Truecolor tile. Very slow
 				   on a palette destination. */
-					setPixel(x, y,
-							colorResolveAlpha(
-									GdUtils.trueColorGetRed(p),
-									GdUtils.trueColorGetGreen(p),
-									GdUtils.trueColorGetBlue(p),
-									GdUtils.trueColorGetAlpha(p)));
+					setPixel(x, y, colorResolvePixel(p));
 				} else {
 					setPixel(x, y, tileColorMap[p]);
 				}
@@ -497,43 +844,30 @@ public class GdImage {
  * return a color index in one search over the color table.
  */
 
-	/* Opaque only */
-	private int colorResolve(int r, int g, int b) {
-		return colorResolveAlpha(r, g, b, GdUtils.ALPHA_OPAQUE);
-	}
-
 	/* Based on gdImageColorExactAlpha and gdImageColorClosestAlpha */
 	private int colorResolveAlpha(int r, int g, int b, int a) {
 		int c;
-		int ct = -1;
+		int ct;
 		int op = -1;
-		long rd, gd, bd, ad, dist;
-		long mindist = 4 * 255 * 255;	/* init to max poss dist */
+		final long mindist = 4 * 255 * 255;	/* init to max poss dist */
 		if (trueColor) {
 			return GdUtils.trueColorMixAlpha(r, g, b, a);
 		}
 
-		for (c = 0; c < colorsTotal; c++) {
+	/* don't ever resolve to the color that has
+	 * been designated as the transparent color */
+		final GdPaletteIndex index = paletteIndex();
+		ct = index.closestOpaque(r, g, b, a);
+		if (ct >= 0 && index.lastDistance() == 0) {
+			return ct;		/* Return exact match color */
+		}
+		if (index.lastDistance() >= mindist) {
+			ct = -1;
+		}
+		for (c = colorsTotal - 1; c >= 0; c--) {
 			if (open[c]) {
 				op = c;		/* Save open slot */
-				continue;		/* Color not in use */
-			}
-			if (c == transparent) {
-			/* don't ever resolve to the color that has
-			 * been designated as the transparent color */
-				continue;
-			}
-			rd = (long) (red[c] - r);
-			gd = (long) (green[c] - g);
-			bd = (long) (blue[c] - b);
-			ad = (long) (alpha[c] - a);
-			dist = rd * rd + gd * gd + bd * bd + ad * ad;
-			if (dist < mindist) {
-				if (dist == 0) {
-					return c;		/* Return exact match color */
-				}
-				mindist = dist;
-				ct = c;
+				break;
 			}
 		}
 	/* no exact match.  We now know closest, but first try to allocate exact */
@@ -550,9 +884,19 @@ public class GdImage {
 		blue[op] = b;
 		alpha[op] = a;
 		open[op] = false;
+		paletteChanged();
 		return op;			/* Return newly allocated color */
 	}
 
+	/* colorResolveAlpha() of a truecolor pixel, for the paths copying
+	   pixel after pixel into a palette image. Exact matches and the closest
+	   entries of a full palette must be the ones findColorClosestAlpha()
+	   gives, so this stays a palette search and not colorInverseMap(). */
+	private int colorResolvePixel(final int c) {
+		return colorResolveAlpha(GdUtils.trueColorGetRed(c), GdUtils.trueColorGetGreen(c),
+				GdUtils.trueColorGetBlue(c), GdUtils.trueColorGetAlpha(c));
+	}
+
 	/* Returns exact, 100% opaque matches only */
 	public int colorExact(final int r, final int g, final int b) {
 		return colorExactAlpha(r, g, b, GdUtils.ALPHA_OPAQUE);
@@ -563,15 +907,7 @@ public class GdImage {
 		if (trueColor) {
 			return GdUtils.trueColorMixAlpha(r, g, b, a);
 		}
-		for (int i = 0; (i < (colorsTotal)); i++) {
-			if (open[i]) {
-				continue;
-			}
-			if ((red[i] == r) && (green[i] == g) && (blue[i] == b) && (alpha[i] == a)) {
-				return i;
-			}
-		}
-		return -1;
+		return paletteIndex().exact(r, g, b, a);
 	}
 
 	/* These functions still work with truecolor images,
@@ -605,6 +941,7 @@ public class GdImage {
 		blue[ct] = b;
 		alpha[ct] = a;
 		open[ct] = false;
+		paletteChanged();
 		return ct;
 	}
 
@@ -614,6 +951,20 @@ public class GdImage {
 		}
 	/* Mark it open. */
 		open[color] = true;
+		paletteChanged();
+	}
+
+	/* To be called after changing the palette arrays. */
+	void paletteChanged() {
+		paletteVersion++;
+	}
+
+	/* Nearest color search over the palette, built on first use. */
+	private GdPaletteIndex paletteIndex() {
+		if (paletteIndex == null) {
+			paletteIndex = new GdPaletteIndex(this);
+		}
+		return paletteIndex;
 	}
 
 	/* Bresenham as presented in Foley & Van Dam */
@@ -803,9 +1154,7 @@ public class GdImage {
 				y2 = t;
 			}
 
-			for (; y1 <= y2; y1++) {
-				setPixel(x, y1, col);
-			}
+			fillColumnSpan(x, y1, y2, col);
 		}
 		return;
 	}
@@ -822,9 +1171,7 @@ public class GdImage {
 				x1 = t;
 			}
 
-			for (; x1 <= x2; x1++) {
-				setPixel(x1, y, col);
-			}
+			fillSpan(y, x1, x2, col);
 		}
 		return;
 	}
@@ -977,7 +1324,53 @@ public class GdImage {
 		dr = blendColor(t, r, dr);
 		dg = blendColor(t, g, dg);
 		db = blendColor(t, b, db);
-		tpixels[y][x] = GdUtils.trueColorMixAlpha(dr, dg, db, GdUtils.ALPHA_OPAQUE);
+		tpixels.set(x, y, GdUtils.trueColorMixAlpha(dr, dg, db, GdUtils.ALPHA_OPAQUE));
+	}
+
+	/* The rasterizer, emptied for a new shape. */
+	private GdRasterizer aaRasterizer() {
+		if (rasterizer == null) {
+			rasterizer = new GdRasterizer();
+		} else {
+			rasterizer.reset();
+		}
+		return rasterizer;
+	}
+
+	/* Fills the shape held by the rasterizer with AA_color in a single pass,
+	   blending every pixel by its coverage the way setAAPixelColor() does
+	   for the anti-aliased lines. */
+	private void aaFill(final GdRasterizer r) {
+		r.render(cx1, cy1, cx2, cy2, new GdCallbackCoverage() {
+			public void callbackCoverage(final int y, final int x, final int len, final int[] coverage) {
+				aaSpan(y, x, len, coverage);
+			}
+		});
+	}
+
+	private void aaSpan(final int y, final int x, final int len, final int[] coverage) {
+		final int color = AA_color;
+		final int dr = GdUtils.trueColorGetRed(color);
+		final int dg = GdUtils.trueColorGetGreen(color);
+		final int db = GdUtils.trueColorGetBlue(color);
+		final int[] row = spanRow(len);
+		tpixels.getRow(y, x, row, 0, len);
+		for (int i = 0; i < len; i++) {
+			if (coverage[i] == 0) {
+				continue;
+			}
+			final int t = 0xFF - coverage[i];
+			final int p = row[i];
+			if ((p == color) || ((p == AA_dont_blend) && (t != 0x00))) {
+				continue;
+			}
+			row[i] = GdUtils.trueColorMixAlpha(
+					blendColor(t, GdUtils.trueColorGetRed(p), dr),
+					blendColor(t, GdUtils.trueColorGetGreen(p), dg),
+					blendColor(t, GdUtils.trueColorGetBlue(p), db),
+					GdUtils.ALPHA_OPAQUE);
+		}
+		tpixels.setRow(y, x, row, 0, len);
 	}
 
 	/**
@@ -1025,9 +1418,7 @@ public class GdImage {
 		}
 
 		for (y = y1; (y <= y2); y++) {
-			for (x = x1; (x <= x2); x++) {
-				setPixel(x, y, color);
-			}
+			fillSpan(y, x1, x2, color);
 		}
 	}
 
@@ -1137,6 +1528,16 @@ public class GdImage {
 		int ints;
 		int fill_color;
 
+		if (c == GdUtils.SPECIAL_COLOR_ANTI_ALIASED && trueColor && p.length >= 3) {
+		/* Exact coverage in one pass, with the vertices on pixel centers. */
+			final GdRasterizer r = aaRasterizer();
+			for (i = 0; (i < p.length); i++) {
+				final GdPoint q = p[(i == 0) ? p.length - 1 : i - 1];
+				r.addLine(q.x + 0.5, q.y + 0.5, p[i].x + 0.5, p[i].y + 0.5);
+			}
+			aaFill(r);
+			return;
+		}
 		if (c == GdUtils.SPECIAL_COLOR_ANTI_ALIASED) {
 			fill_color = AA_color;
 		} else {
@@ -1171,62 +1572,117 @@ public class GdImage {
 		if (maxy > cy2) {
 			maxy = cy2;
 		}
-	/* Fix in 1.3: count a vertex only once */
+	/* Edge list, every edge top to bottom; horizontal edges never
+	   intersect a scanline and are left out. Fix in 1.3: count a vertex only
+	   once, an edge covers y1 <= y < y2. */
+		final int n = p.length;
+		final int[] ex1 = new int[n];
+		final int[] ey1 = new int[n];
+		final int[] ex2 = new int[n];
+		final int[] ey2 = new int[n];
+		final long[] order = new long[n];
+		int edges = 0;
+		for (i = 0; (i < n); i++) {
+			if (i == 0) {
+				ind1 = n - 1;
+				ind2 = 0;
+			} else {
+				ind1 = i - 1;
+				ind2 = i;
+			}
+			y1 = p[ind1].y;
+			y2 = p[ind2].y;
+			if (y1 < y2) {
+				x1 = p[ind1].x;
+				x2 = p[ind2].x;
+			} else if (y1 > y2) {
+				y2 = p[ind1].y;
+				y1 = p[ind2].y;
+				x2 = p[ind1].x;
+				x1 = p[ind2].x;
+			} else {
+				continue;
+			}
+			ex1[edges] = x1;
+			ey1[edges] = y1;
+			ex2[edges] = x2;
+			ey2[edges] = y2;
+			order[edges] = ((long) y1 << 32) | edges;
+			edges++;
+		}
+	/* sorted by top, so that edges become active in this order */
+		Arrays.sort(order, 0, edges);
+
+	/* Active edges, kept ordered by their intersection with the previous
+	   scanline, so that sorting the next one is almost free. step[] holds
+	   (y - y1) * (x2 - x1) for the current y. */
+		final int[] active = new int[edges];
+		final int[] step = new int[edges];
+		int nactive = 0;
+		int next = 0;
+
 		for (y = miny; (y <= maxy); y++) {
-			ints = 0;
-			for (i = 0; (i < p.length); i++) {
-				if (i == 0) {
-					ind1 = p.length - 1;
-					ind2 = 0;
-				} else {
-					ind1 = i - 1;
-					ind2 = i;
+			if (y == pmaxy) {
+			/* the bottom row only has the ends of the edges meeting there */
+				ints = 0;
+				for (i = 0; (i < edges); i++) {
+					if (ey2[i] == pmaxy) {
+						polyInts[ints++] = ex2[i];
+					}
 				}
-				y1 = p[ind1].y;
-				y2 = p[ind2].y;
-				if (y1 < y2) {
-					x1 = p[ind1].x;
-					x2 = p[ind2].x;
-				} else if (y1 > y2) {
-					y2 = p[ind1].y;
-					y1 = p[ind2].y;
-					x2 = p[ind1].x;
-					x1 = p[ind2].x;
-				} else {
-					continue;
+				Arrays.sort(polyInts, 0, ints);
+			} else {
+			/* drop the edges ending above this scanline, add the ones starting
+			   on it (or above, when the top was clipped) */
+				j = 0;
+				for (i = 0; (i < nactive); i++) {
+					if (y < ey2[active[i]]) {
+						active[j++] = active[i];
+					}
+				}
+				nactive = j;
+				while (next < edges && (int) (order[next] >> 32) <= y) {
+					final int e = (int) order[next++];
+					if (y < ey2[e]) {
+						step[e] = (y - ey1[e]) * (ex2[e] - ex1[e]);
+						active[nactive++] = e;
+					}
 				}
 
 			/* Do the following math as float intermediately, and round to ensure
 			 * that Polygon and FilledPolygon for the same set of points have the
 			 * same footprint. */
-
-				if ((y >= y1) && (y < y2)) {
-					polyInts[ints++] = (int) ((float) ((y - y1) * (x2 - x1)) /
-							(float) (y2 - y1) + 0.5 + x1);
-				} else if ((y == pmaxy) && (y == y2)) {
-					polyInts[ints++] = x2;
+				for (i = 0; (i < nactive); i++) {
+					final int e = active[i];
+					polyInts[i] = (int) ((float) step[e] / (float) (ey2[e] - ey1[e]) + 0.5 + ex1[e]);
+					step[e] += ex2[e] - ex1[e];
 				}
-			}
-		/*
-		  2.0.26: polygons pretty much always have less than 100 points,
-		  and most of the time they have considerably less. For such trivial
-		  cases, insertion sort is a good choice. Also a good choice for
-		  future implementations that may wish to indirect through a table.
-		*/
-			for (i = 1; (i < ints); i++) {
-				index = polyInts[i];
-				j = i;
-				while ((j > 0) && (polyInts[j - 1] > index)) {
-					polyInts[j] = polyInts[j - 1];
-					j--;
+				ints = nactive;
+
+			/* insertion sort, moving the edges along with their intersections */
+				for (i = 1; (i < ints); i++) {
+					index = polyInts[i];
+					final int e = active[i];
+					j = i;
+					while ((j > 0) && (polyInts[j - 1] > index)) {
+						polyInts[j] = polyInts[j - 1];
+						active[j] = active[j - 1];
+						j--;
+					}
+					polyInts[j] = index;
+					active[j] = e;
 				}
-				polyInts[j] = index;
 			}
+
 			for (i = 0; (i < (ints-1)); i += 2) {
 			/* 2.0.29: back to line to prevent segfaults when
 			  performing a pattern fill */
-				drawLine(polyInts[i], y, polyInts[i + 1], y,
-						fill_color);
+				if (thick == 1) {
+					fillSpan(y, polyInts[i], polyInts[i + 1], fill_color);
+				} else {
+					drawLine(polyInts[i], y, polyInts[i + 1], y,
+							fill_color);
+				}
 			}
 		}
 	/* If we are drawing this AA, then redraw the border with AA lines. */
@@ -1257,7 +1713,7 @@ public class GdImage {
 
 	public void fillArc(final int cx, final int cy, final int w, final int h, int s, int e,
 								 final int color, final int style) {
-		GdPoint[] pts = new GdPoint[3];
+		final GdPoint[] pts = {new GdPoint(), new GdPoint(), new GdPoint()};
 		int lx = 0, ly = 0;
 		int fx = 0, fy = 0;
 
@@ -1287,6 +1743,29 @@ public class GdImage {
 			}
 		}
 
+		if (color == GdUtils.SPECIAL_COLOR_ANTI_ALIASED && trueColor && (style & GdUtils.gdNoFill) == 0) {
+		/* The same pie or triangle as below, filled with exact coverage
+		   in one pass instead of a fan of polygons. */
+			final GdRasterizer r = aaRasterizer();
+			final double ox = cx + 0.5;
+			final double oy = cy + 0.5;
+			final double rx = w / 2.0;
+			final double ry = h / 2.0;
+			if ((style & GdUtils.gdChord) != 0) {
+				final double x1 = ox + cos(s * PI / 180) * rx;
+				final double y1 = oy + sin(s * PI / 180) * ry;
+				final double x2 = ox + cos(e * PI / 180) * rx;
+				final double y2 = oy + sin(e * PI / 180) * ry;
+				r.addLine(x1, y1, x2, y2);
+				r.addLine(x2, y2, ox, oy);
+				r.addLine(ox, oy, x1, y1);
+			} else {
+				r.addPie(ox, oy, rx, ry, s * PI / 180, e * PI / 180);
+			}
+			aaFill(r);
+			return;
+		}
+
 		for (int i = s; (i <= e); i++) {
 			final int x = (int) (((long) GdUtils.COS_T[i % 360] * (long) w / (2 * 1024)) + cx);
 			final int y = (int) (((long) GdUtils.SIN_T[i % 360] * (long) h / (2 * 1024)) + cy);
@@ -1383,15 +1862,19 @@ public class GdImage {
 	public void fillEllipse(final int mx, final int my, final int w, final int h, final int c) {
 		int mx1=0,mx2=0,my1=0,my2=0;
 		long aq,bq,dx,dy,r,rx,ry;
-		int i;
 		int old_y2;
 
+		if (c == GdUtils.SPECIAL_COLOR_ANTI_ALIASED && trueColor) {
+			final GdRasterizer raster = aaRasterizer();
+			raster.addEllipse(mx + 0.5, my + 0.5, w / 2.0, h / 2.0);
+			aaFill(raster);
+			return;
+		}
+
 		final int a=w>>1;
 		final int b=h>>1;
 
-		for (int x = mx-a; x <= mx+a; x++) {
-			setPixel(x, my, c);
-		}
+		fillSpan(my, mx-a, mx+a, c);
 
 		mx1 = mx-a;
 		my1 = my;
@@ -1422,14 +1905,8 @@ public class GdImage {
 				r  +=rx;
 			}
 			if(old_y2!=my2) {
-				for(i=mx1; i<=mx2; i++) {
-					setPixel(i, my1, c);
-				}
-			}
-			if(old_y2!=my2) {
-				for(i=mx1; i<=mx2; i++) {
-					setPixel(i, my2, c);
-				}
+				fillSpan(my1, mx1, mx2, c);
+				fillSpan(my2, mx1, mx2, c);
 			}
 			old_y2 = my2;
 		}
@@ -1442,67 +1919,100 @@ public class GdImage {
 		int i;
 		GdEffect restoreAlphaBleding;
 
-		if (border < 0) {
-		/* Refuse to fill to a non-solid border */
+		if (border < 0 || color < 0 || (!trueColor && color >= GdUtils.MAX_COLORS)) {
+		/* Refuse to fill to a non-solid border, or with a color that
+		   does not stay as painted */
+			return;
+		}
+	/* Only the clipping rectangle is scanned, so that every pixel looked
+	   at is painted for good and the fill ends. */
+		if (x < cx1 || x > cx2 || y < cy1 || y > cy2) {
 			return;
 		}
-
-		leftLimit = (-1);
 
 		restoreAlphaBleding = alphaBlendingFlag;
 		alphaBlendingFlag = GdEffect.REPLACE;
 
-		for (i = x; (i >= 0); i--) {
-			if (getPixel(i, y) == border) {
-				break;
-			}
-			setPixel(i, y, color);
-			leftLimit = i;
-		}
-		if (leftLimit == (-1)) {
-			alphaBlendingFlag = restoreAlphaBleding;
-			return;
-		}
-	/* Seek right */
-		rightLimit = x;
-		for (i = (x + 1); (i < sx); i++) {
-		if (getPixel(i, y) == border) {
-			break;
-		}
-		setPixel(i, y, color);
-		rightLimit = i;
-	}
-	/* Look at lines above and below and start paints */
-	/* Above */
-		if (y > 0) {
-			lastBorder = true;
-			for (i = leftLimit; (i <= rightLimit); i++) {
-				int c;
-				c = getPixel(i, y - 1);
-				if (lastBorder) {
-					if ((c != border) && (c != color)) {
-						fillToBorder(i, y - 1, border, color);
-						lastBorder = false;
+	/* The C code recurses into every run it finds above and below. Here each
+	   run still being looked at keeps its row, limits, side being scanned
+	   (-1 above, 1 below), next pixel and lastBorder on a stack on the heap,
+	   so that the runs are visited, and filled, in the very same order.
+	   Every run on the stack has been painted, so there are never more
+	   runs than pixels. */
+		final GdPixelStorageInterface data = trueColor ? tpixels : pixels;
+		int[] runs = new int[6 * 64];
+		int top = 0;
+		int rx = x, ry = y;
+		boolean enter = true;
+
+		for (;;) {
+			if (enter) {
+				enter = false;
+				for (i = rx; (i >= cx1); i--) {
+					if (data.get(i, ry) == border) {
+						break;
+					}
+				}
+				leftLimit = i + 1;
+				if (leftLimit <= rx) {
+				/* Seek right */
+					for (i = (rx + 1); (i <= cx2); i++) {
+						if (data.get(i, ry) == border) {
+							break;
+						}
+					}
+					rightLimit = i - 1;
+					fillSpan(ry, leftLimit, rightLimit, color);
+
+				/* Look at lines above and below and start paints */
+					if (ry > cy1 || ry < cy2) {
+						if (top + 6 > runs.length) {
+							runs = Arrays.copyOf(runs, runs.length * 2);
+						}
+						runs[top] = ry;
+						runs[top + 1] = leftLimit;
+						runs[top + 2] = rightLimit;
+						runs[top + 3] = (ry > cy1) ? -1 : 1;
+						runs[top + 4] = leftLimit;
+						runs[top + 5] = 1;
+						top += 6;
 					}
-				} else if ((c == border) || (c == color)) {
-					lastBorder = true;
 				}
 			}
-		}
-	/* Below */
-		if (y < ((sy) - 1)) {
-			lastBorder = true;
-			for (i = leftLimit; (i <= rightLimit); i++) {
-				int c = getPixel(i, y + 1);
+			if (top == 0) {
+				break;
+			}
+
+			final int f = top - 6;
+			final int row = runs[f] + runs[f + 3];
+			rightLimit = runs[f + 2];
+			lastBorder = runs[f + 5] != 0;
+			for (i = runs[f + 4]; (i <= rightLimit); i++) {
+				final int c = data.get(i, row);
 				if (lastBorder) {
 					if ((c != border) && (c != color)) {
-						fillToBorder(i, y + 1, border, color);
-						lastBorder = false;
+						runs[f + 4] = i + 1;
+						runs[f + 5] = 0;
+						rx = i;
+						ry = row;
+						enter = true;
+						break;
 					}
 				} else if ((c == border) || (c == color)) {
 					lastBorder = true;
 				}
 			}
+			if (enter) {
+				continue;
+			}
+		/* done with this side: Below, or back to the run that found this one */
+			if (runs[f + 3] < 0 && runs[f] < cy2) {
+				runs[f + 3] = 1;
+				runs[f + 4] = runs[f + 1];
+				runs[f + 5] = 1;
+			} else {
+				top = f;
+			}
 		}
 		alphaBlendingFlag = restoreAlphaBleding;
 	}
@@ -1516,7 +2026,7 @@ public class GdImage {
  * contain the same color as the color to fill. To do not bloat normal filling
  * code I added a 2nd private function.
  */
-	private int gdImageTileGet(final int x, final int y) {
+	int gdImageTileGet(final int x, final int y) {
 		int tileColor;
 		if (tile == null) {
 			return -1;
@@ -1534,7 +2044,7 @@ public class GdImage {
 			}
 		} else {
 			if (tile.trueColor) {
-				tileColor = colorResolveAlpha(GdUtils.trueColorGetRed(p), GdUtils.trueColorGetGreen(p), GdUtils.trueColorGetBlue(p), GdUtils.trueColorGetAlpha(p));
+				tileColor = colorResolvePixel(p);
 			} else {
 				tileColor = colorResolveAlpha(tile.getRed(p), tile.getGreen(p), tile.getBlue(p), tile.getAlpha(p));
 			}
@@ -1542,27 +2052,53 @@ public class GdImage {
 		return tileColor;
 	}
 
-	/* horizontal segment of scan line y */
+	/* Stack of horizontal segments of scan line y, four ints each in one
+	   growable array; pop() leaves the segment in y, xl, xr and dy. */
 	private class FillStack {
-		private Stack<FillStack> stack = new Stack<FillStack>();
+		private int[] segments = new int[4 * 64];
+		private int size;
+		/* rows segments may be pushed for */
+		private int top, bottom;
 		int y, xl, xr, dy;
 
 		public void push(final int Y, final int XL, final int XR, final int DY) {
-			final FillStack sp = new FillStack();
-			if (Y+(DY)>=0 && Y+(DY)<sy)
-			{sp.y = Y; sp.xl = XL; sp.xr = XR; sp.dy = DY;}
-			stack.push(sp);
+			if (Y+(DY)>=top && Y+(DY)<=bottom) {
+				if (size + 4 > segments.length) {
+					segments = Arrays.copyOf(segments, segments.length * 2);
+				}
+				segments[size++] = Y;
+				segments[size++] = XL;
+				segments[size++] = XR;
+				segments[size++] = DY;
+			}
 		}
 
-		public FillStack pop() {
-			return stack.pop();
+		public void pop() {
+			dy = segments[--size];
+			xr = segments[--size];
+			xl = segments[--size];
+			y = segments[--size];
 		}
 
 		public boolean empty() {
-			return stack.empty();
+			return size == 0;
 		}
 	};
 
+	/* The fill stack is kept with the image, so that repeated fills do not
+	   allocate once it has grown large enough. It takes the segments of
+	   rows top to bottom. */
+	private FillStack fillStack(final int top, final int bottom) {
+		if (fillStack == null) {
+			fillStack = new FillStack();
+		} else {
+			fillStack.size = 0;
+		}
+		fillStack.top = top;
+		fillStack.bottom = bottom;
+		return fillStack;
+	}
+
 /* max depth of stack */
 //	#define FILL_MAX ((int)(sy*sx)/4)
 //			#define FILL_PUSH(Y, XL, XR, DY) \
@@ -1578,10 +2114,6 @@ public class GdImage {
 
 		final GdEffect alphablending_bak;
 
-	/* stack of filled segments */
-	/* struct seg stack[FILL_MAX],*sp = stack; */
-		final FillStack stack = new FillStack();
-
 		if (!trueColor && nc > (colorsTotal - 1)) {
 			return;
 		}
@@ -1595,10 +2127,11 @@ public class GdImage {
 			return;
 		}
 
-		final int wx2=sx;
-		final int wy2=sy;
 		oc = getPixel(x, y);
-		if (oc==nc || x<0 || x>wx2 || y<0 || y>wy2) {
+	/* the C code lets x == sx and y == sy through, where getPixel() reads
+	   nothing; the scans below read the rows directly, and only within
+	   the clipping rectangle */
+		if (oc==nc || x<cx1 || x>cx2 || y<cy1 || y>cy2) {
 			alphaBlendingFlag = alphablending_bak;
 			return;
 		}
@@ -1627,19 +2160,37 @@ public class GdImage {
 			return;
 		}
 
+	/* stack of filled segments */
+	/* struct seg stack[FILL_MAX],*sp = stack; */
+		final FillStack stack = fillStack(cy1, cy2);
+		final boolean pattern = isPatternColor(nc);
+	/* every pixel read is within the clipping rectangle, so the rows are
+	   read directly; pixels outside it would keep oc, since fillSpan() and
+	   setPixel() leave them alone, and be scanned again and again */
+		final GdPixelStorageInterface data = trueColor ? tpixels : pixels;
+
 	/* required! */
 		stack.push(y, x, x, 1);
 	/* seed segment (popped 1st) */
 		stack.push(y + 1, x, x, -1);
 		while (!stack.empty()) {
-			final FillStack sp = stack.pop();
-			y = sp.y+(dy = sp.dy); x1 = sp.xl; x2 = sp.xr;
-
-			for (x=x1; x>=0 && getPixel(x, y)==oc; x--) {
-				setPixel(x, y, nc);
+			stack.pop();
+			y = stack.y+(dy = stack.dy); x1 = stack.xl; x2 = stack.xr;
+
+		/* scan first, then fill the whole run at once. Styles and brushes
+		   may paint pixels still to be scanned, so in both directions they
+		   go pixel by pixel while scanning, as in the C code. */
+			for (x=x1; x>=cx1 && data.get(x, y)==oc; x--) {
+				if (pattern) {
+					setPixel(x, y, nc);
+				}
 			}
-			if (x>=x1) {
-				for (x++; x<=x2 && (getPixel(x, y)!=oc); x++);
+			if (!pattern) {
+				fillSpan(y, x+1, x1, nc);
+			}
+			final boolean skip = (x>=x1);
+			if (skip) {
+				for (x++; x<=x2 && (data.get(x, y)!=oc); x++);
 
 				l = x;
 			} else {
@@ -1652,16 +2203,26 @@ public class GdImage {
 				x = x1+1;
 			}
 
+		/* the C code jumps into the loop below, past the filling part */
+			if (skip && x>x2) {
+				continue;
+			}
 			do {
-				for (; x<=wx2 && getPixel(x, y)==oc; x++) {
-					setPixel(x, y, nc);
+				final int start = x;
+				for (; x<=cx2 && data.get(x, y)==oc; x++) {
+					if (pattern) {
+						setPixel(x, y, nc);
+					}
+				}
+				if (!pattern) {
+					fillSpan(y, start, x-1, nc);
 				}
 				stack.push(y, l, x-1, dy);
 			/* leak on right? */
 				if (x>x2+1) {
 					stack.push(y, x2+1, x-1, -dy);
 				}
-				for (x++; x<=x2 && (getPixel(x, y)!=oc); x++);
+				for (x++; x<=x2 && (data.get(x, y)!=oc); x++);
 
 				l = x;
 			} while (x<=x2);
@@ -1673,9 +2234,7 @@ public class GdImage {
 	private void fillTiled(int x, int y, int nc) {
 		int l, x1, x2, dy;
 		int oc;   /* old pixel value */
-	/* stack of filled segments */
-		final FillStack stack = new FillStack();
-		boolean[] pts = new boolean[sx * sy];
+		int i;
 
 		if (tile == null) {
 			return;
@@ -1688,6 +2247,16 @@ public class GdImage {
 			return;
 		}
 
+	/* stack of filled segments */
+		final FillStack stack = fillStack(0, wy2 - 1);
+	/* pixels already painted, one bit each; like the rows of the C code,
+	   the rows have room for x == sx, pixel (x, y) is bit y * (sx + 1) + x */
+		final int ptsRow = wx2 + 1;
+		final long[] pts = new long[(int) (((long) ptsRow * wy2 + 63) >>> 6)];
+	/* colors of the tile, resolved on first use */
+		final int[] tileColors = new int[tile.sx * tile.sy];
+		final long[] tileResolved = new long[(tileColors.length + 63) >>> 6];
+
 		oc = getPixel(x, y);
 
 	/* required! */
@@ -1695,15 +2264,17 @@ public class GdImage {
 	/* seed segment (popped 1st) */
 		stack.push(y+1, x, x, -1);
 		while (!stack.empty()) {
-			final FillStack sp = stack.pop();
-			y = sp.y+(dy = sp.dy); x1 = sp.xl; x2 = sp.xr;
-			for (x=x1; x>=0 && (!pts[y + x*wx2] && getPixel(x,y)==oc); x--) {
-				nc = gdImageTileGet(x,y);
-				pts[y + x*wx2]=true;
+			stack.pop();
+			y = stack.y+(dy = stack.dy); x1 = stack.xl; x2 = stack.xr;
+			final int row = y * ptsRow;
+			for (x=x1; x>=0 && ((pts[(i = row + x) >>> 6] & (1L << i)) == 0 && getPixel(x,y)==oc); x--) {
+				nc = tileGetCached(x, y, tileColors, tileResolved);
+				pts[i >>> 6] |= 1L << i;
 				setPixel(x, y, nc);
 			}
-			if (x>=x1) {
-				for (x++; x<=x2 && (pts[y + x*wx2] || getPixel(x, y)!=oc); x++);
+			final boolean skip = (x>=x1);
+			if (skip) {
+				for (x++; x<=x2 && ((pts[(i = row + x) >>> 6] & (1L << i)) != 0 || getPixel(x, y)!=oc); x++);
 				l = x;
 			} else {
 				l = x+1;
@@ -1715,14 +2286,15 @@ public class GdImage {
 				x = x1+1;
 			}
 
+		/* the C code jumps into the loop below, past the filling part */
+			if (skip && x>x2) {
+				continue;
+			}
+
 			do {
-				for (; x<wx2 && (!pts[y + x*wx2] && getPixel(x, y)==oc) ; x++) {
-					if (pts[y + x*wx2]) {
-					/* we should never be here */
-						break;
-					}
-					nc = gdImageTileGet(x,y);
-					pts[y + x*wx2]=true;
+				for (; x<wx2 && ((pts[(i = row + x) >>> 6] & (1L << i)) == 0 && getPixel(x, y)==oc) ; x++) {
+					nc = tileGetCached(x, y, tileColors, tileResolved);
+					pts[i >>> 6] |= 1L << i;
 					setPixel(x, y, nc);
 				}
 				stack.push(y, l, x-1, dy);
@@ -1730,12 +2302,24 @@ public class GdImage {
 				if (x>x2+1) {
 					stack.push(y, x2+1, x-1, -dy);
 				}
-				for (x++; x<=x2 && (pts[y + x*wx2] || getPixel(x, y)!=oc); x++);
+				for (x++; x<=x2 && ((pts[(i = row + x) >>> 6] & (1L << i)) != 0 || getPixel(x, y)!=oc); x++);
 				l = x;
 			} while (x<=x2);
 		}
 	}
 
+	/* gdImageTileGet() through a cache of the tile colors, so that a palette
+	   destination resolves every tile pixel only once per fill. Resolving
+	   does not change once done, so the colors are the same as without it. */
+	private int tileGetCached(final int x, final int y, final int[] tileColors, final long[] tileResolved) {
+		final int i = (y % tile.sy) * tile.sx + (x % tile.sx);
+		if ((tileResolved[i >>> 6] & (1L << i)) == 0) {
+			tileColors[i] = gdImageTileGet(x, y);
+			tileResolved[i >>> 6] |= 1L << i;
+		}
+		return tileColors[i];
+	}
+
 	/* Line thickness (defaults to 1). Affects lines, ellipses,
 	   rectangles, polygons and so forth. */
 	public void setThickness(int thickness) {
@@ -1925,6 +2509,132 @@ public class GdImage {
 		if (res_y > 0) this.res_y = res_y;
 	}
 
+	/**
+	 * Writes the image as PNG, at the default compression level.
+	 * @see #png(WritableByteChannel, int)
+	 */
+	public void png(final WritableByteChannel out) throws IOException {
+		png(out, -1);
+	}
+
+	/**
+	 * Writes the image as PNG, as gdImagePngEx(). The scanlines are read,
+	 * filtered and compressed one at a time and go to the channel in IDAT
+	 * chunks of at most 64 KiB, so the memory used does not depend on the
+	 * size of the image. The channel is not closed.
+	 * With getParallelism() above 1, blocks of setPngBlockSize() bytes are
+	 * filtered and compressed in that many threads and joined into one
+	 * zlib stream; the file is a little larger, the pixels the same.
+	 * Truecolor images are saved with their alpha channel if setSaveAlpha()
+	 * is set; interlacing follows setInterlace() and pHYs the resolution.
+	 * The filter of each scanline is chosen as set by setPngFilter().
+	 * @param level zlib compression level, 0 to 9, -1 for the default
+	 * @throws IOException if the channel fails or a palette image has no colors
+	 */
+	public void png(final WritableByteChannel out, final int level) throws IOException {
+		new GdPngWriter(out).write(this, level);
+	}
+
+	/**
+	 * Reads a PNG image, as gdImageCreateFromPng().
+	 * @see #createFromPng(ReadableByteChannel, GdStorageMode)
+	 */
+	public static GdImage createFromPng(final ReadableByteChannel in) throws IOException {
+		return createFromPng(in, GdStorageMode.HEAP);
+	}
+
+	/**
+	 * Reads a PNG image from a channel, which is not closed. The channel
+	 * is read through a 64 KiB buffer and the image data is inflated and
+	 * stored a scanline at a time, so nothing but the image is held in
+	 * full. Palette and grayscale files give palette images, with the
+	 * transparency of tRNS; the others give truecolor images, with
+	 * saveAlpha set if they have an alpha channel. 16 bit samples are
+	 * reduced to 8 bits; interlaced files are supported.
+	 * @param storageMode where to keep the pixels of the image
+	 * @throws IOException if the channel fails or the file is not a valid PNG
+	 */
+	public static GdImage createFromPng(final ReadableByteChannel in, final GdStorageMode storageMode)
+			throws IOException {
+		return new GdPngReader(in).read(storageMode);
+	}
+
+	/**
+	 * Reads a PNG file.
+	 * @see #createFromPng(File, GdStorageMode)
+	 */
+	public static GdImage createFromPng(final File file) throws IOException {
+		return createFromPng(file, GdStorageMode.HEAP);
+	}
+
+	/**
+	 * Reads a PNG file as createFromPng(ReadableByteChannel, GdStorageMode)
+	 * does, but through a memory mapping of the file instead of a buffer on
+	 * the heap.
+	 * @param storageMode where to keep the pixels of the image
+	 */
+	public static GdImage createFromPng(final File file, final GdStorageMode storageMode) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				return createFromPng(channel, storageMode);
+			}
+			return new GdPngReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())).read(storageMode);
+		}
+	}
+
+	/**
+	 * Reads a PNG image scaled to width x height. While the file is
+	 * decoded, its scanlines are reduced by averaging boxes of pixels, by
+	 * the largest whole factors that keep the image at least the size
+	 * asked for, so the full size image is never held. The exact size
+	 * then comes from scale() with the given method, on an image at most
+	 * twice as wide and high as the result. The image is truecolor
+	 * whenever it was reduced or scaled.
+	 * @param method interpolation used for the final scale()
+	 * @throws IOException if the channel fails or the file is not a valid PNG
+	 */
+	public static GdImage createFromPngScaled(final ReadableByteChannel in, final int width, final int height,
+											  final GdInterpolationMethod method) throws IOException {
+		checkScaledSize(width, height);
+		return scaleTo(new GdPngReader(in).shrinkTo(width, height).read(GdStorageMode.HEAP), width, height, method);
+	}
+
+	/**
+	 * Reads a PNG file scaled to width x height, through a memory mapping.
+	 * @see #createFromPngScaled(ReadableByteChannel, int, int, GdInterpolationMethod)
+	 */
+	public static GdImage createFromPngScaled(final File file, final int width, final int height,
+											  final GdInterpolationMethod method) throws IOException {
+		checkScaledSize(width, height);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final GdPngReader reader;
+			if (channel.size() > Integer.MAX_VALUE) {
+				reader = new GdPngReader(channel);
+			} else {
+				reader = new GdPngReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			}
+			return scaleTo(reader.shrinkTo(width, height).read(GdStorageMode.HEAP), width, height, method);
+		}
+	}
+
+	private static void checkScaledSize(final int width, final int height) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("bad image size " + width + "x" + height);
+		}
+	}
+
+	/* The image itself if it has the size already, else scaled with the method. */
+	private static GdImage scaleTo(final GdImage im, final int width, final int height,
+								   final GdInterpolationMethod method) {
+		if (im.sx == width && im.sy == height) {
+			return im;
+		}
+		if (im.setInterpolationMethod(method) == 0) {
+			throw new IllegalArgumentException("bad interpolation method " + method);
+		}
+		return im.scale(width, height);
+	}
+
 
 	/* convert a palette image to true color */
 	public void paletteToTrueColor() {
@@ -1939,11 +2649,12 @@ public class GdImage {
 		final int sy = this.sy;
 		final int sx = this.sx;
 
-		tpixels = new int[sy][sx];
+		tpixels = createStorage(sx, sy, GdImageColorType.TRUE_COLOR, storageMode);
 
+		final int[] src_row = new int[sx];
+		final int[] dst_row = new int[sx];
 		for (y = 0; y < sy; y++) {
-			int[] src_row = pixels[y];
-			int[] dst_row = tpixels[y];
+			pixels.getRow(y, 0, src_row, 0, sx);
 
 			for (x = 0; x < sx; x++) {
 				final int c = src_row[x];
@@ -1953,6 +2664,7 @@ public class GdImage {
 					dst_row[x] = GdUtils.trueColorMixAlpha(red[c], green[c], blue[c], alpha[c]);
 				}
 			}
+			tpixels.setRow(y, 0, dst_row, 0, sx);
 		}
 
 		/* free old palette buffer */
@@ -1962,6 +2674,118 @@ public class GdImage {
 		saveAlphaFlag = 1;
 	}
 
+	/**
+	 * Selects the quantization method of trueColorToPalette() and
+	 * createPaletteFromTrueColor().
+	 * @param method GD_QUANT_DEFAULT or GD_QUANT_JQUANT for median cut,
+	 *               GD_QUANT_NEUQUANT for NeuQuant; GD_QUANT_LIQ is not available
+	 * @param speed 1 (best quality) to 10 (fastest), 0 for the default of the method;
+	 *              only NeuQuant uses it
+	 * @return false if the method is not available, the setting is then left as it was
+	 */
+	public boolean trueColorToPaletteSetMethod(final GdPaletteQuantizationMethod method, int speed) {
+		if (method == GdPaletteQuantizationMethod.GD_QUANT_LIQ) {
+			return false;
+		}
+		paletteQuantizationMethod = method.ordinal();
+		if (speed < 0 || speed > 10) {
+			speed = 0;
+		}
+		paletteQuantizationSpeed = speed;
+		return true;
+	}
+
+	/* Quality bounds of GD_QUANT_LIQ, kept for compatibility; ignored by the available methods. */
+	public void trueColorToPaletteSetQuality(final int min_quality, final int max_quality) {
+		if (min_quality >= 0 && min_quality <= 100 &&
+				max_quality >= 0 && max_quality <= 100 && min_quality <= max_quality) {
+			paletteQuantizationMinQuality = min_quality;
+			paletteQuantizationMaxQuality = max_quality;
+		}
+	}
+
+	/**
+	 * Converts this truecolor image to a palette image in place. The colors
+	 * are chosen by the method of trueColorToPaletteSetMethod(); building
+	 * the histogram and mapping the pixels are split into getParallelism()
+	 * slices of rows. If the image has a transparent color, its pixels get
+	 * an entry of their own at the end of the palette, which becomes the
+	 * transparent index.
+	 * @param ditherFlag dither by the method of setDitherMethod()
+	 * @param colorsWanted maximum number of colors, at most 256
+	 * @return true on success; palette images are left as they are
+	 */
+	public boolean trueColorToPalette(final boolean ditherFlag, final int colorsWanted) {
+		return trueColorToPaletteBody(ditherFlag, colorsWanted, this);
+	}
+
+	/**
+	 * Like trueColorToPalette(), but leaves this image as it is.
+	 * @return the new palette image
+	 */
+	public GdImage createPaletteFromTrueColor(final boolean ditherFlag, final int colorsWanted) {
+		final GdImage dst = createImage(sx, sy, GdImageColorType.PALETTE_BASED_COLOR);
+		trueColorToPaletteBody(ditherFlag, colorsWanted, dst);
+		return dst;
+	}
+
+	private boolean trueColorToPaletteBody(final boolean ditherFlag, int colorsWanted, final GdImage dst) {
+		if (!trueColor) {
+		/* (Almost) nothing to do! */
+			if (dst != this) {
+				imageCopy(dst, this, 0, 0, 0, 0, sx, sy);
+			}
+			return true;
+		}
+
+		final int transparentColor = transparent;
+	/* If we have a transparent color (the alphaless mode of transparency), we
+	 * must reserve a palette entry for it at the end of the palette. */
+		final int maxColors = (transparentColor >= 0) ? GdUtils.MAX_COLORS - 1 : GdUtils.MAX_COLORS;
+		colorsWanted = MAX(1, MIN(colorsWanted, maxColors));
+
+		final GdQuantizer quantizer = GdQuantizer.create(
+				GdPaletteQuantizationMethod.values()[paletteQuantizationMethod], paletteQuantizationSpeed);
+		quantizer.quantize(this, colorsWanted);
+
+		final GdPixelStorageInterface out = (dst == this)
+				? createStorage(sx, sy, GdImageColorType.PALETTE_BASED_COLOR, storageMode) : dst.pixels;
+		final int transparentIndex = quantizer.colors;
+		GdDither.remap(this, out, quantizer, transparentIndex, ditherFlag ? ditherMethod : null);
+
+		for (int i = 0; i < GdUtils.MAX_COLORS; i++) {
+			dst.red[i] = quantizer.red[i];
+			dst.green[i] = quantizer.green[i];
+			dst.blue[i] = quantizer.blue[i];
+			dst.alpha[i] = quantizer.alpha[i];
+			dst.open[i] = (i >= quantizer.colors);
+		}
+		dst.colorsTotal = quantizer.colors;
+	/* If we had a 'transparent' color, increment the color count so it's
+	 * officially in the palette and convert the transparent variable to point to
+	 * an index rather than a color. */
+		if (transparentColor >= 0) {
+			dst.red[transparentIndex] = GdUtils.trueColorGetRed(transparentColor);
+			dst.green[transparentIndex] = GdUtils.trueColorGetGreen(transparentColor);
+			dst.blue[transparentIndex] = GdUtils.trueColorGetBlue(transparentColor);
+			dst.alpha[transparentIndex] = GdUtils.trueColorGetAlpha(transparentColor);
+			dst.open[transparentIndex] = false;
+			dst.transparent = transparentIndex;
+			dst.colorsTotal++;
+		} else {
+			dst.transparent = -1;
+		}
+		dst.paletteChanged();
+
+		if (dst == this) {
+		/* Get rid of the truecolor image data. */
+			pixels = out;
+			tpixels = null;
+			trueColor = false;
+		}
+		return true;
+	}
+
 	/* Assumes opaque is the preferred alpha channel value */
 	public int findColorClosest(final int r, final int g, final int b) {
 		return findColorClosestAlpha(r, g, b, GdUtils.ALPHA_OPAQUE);
@@ -1972,46 +2796,93 @@ public class GdImage {
 	   beats the exact same color with radically different
 	   transparency */
 	public int findColorClosestAlpha(final int r, final int g, final int b, final int a) {
-		int i;
-		long rd, gd, bd, ad;
-		int ct = (-1);
-		boolean first = true;
-		long mindist = 0;
 		if (trueColor) {
 			return GdUtils.trueColorMixAlpha(r, g, b, a);
 		}
-		for (i = 0; (i < (colorsTotal)); i++) {
-			long dist;
-			if (open[i]) {
-				continue;
-			}
-			rd = (red[i] - r);
-			gd = (green[i] - g);
-			bd = (blue[i] - b);
-		/* gd 2.02: whoops, was - b (thanks to David Marwood) */
-		/* gd 2.16: was blue rather than alpha! Geez! Thanks to
-		   Artur Jakub Jerzak */
-			ad = (alpha[i] - a);
-			dist = rd * rd + gd * gd + bd * bd + ad * ad;
-			if (first || (dist < mindist)) {
-				mindist = dist;
-				ct = i;
-				first = false;
-			}
+	/* squared distance over red, green, blue and alpha, ties going
+	   to the lowest index; see GdPaletteIndex */
+		return paletteIndex().closest(r, g, b, a);
+	}
+
+	/**
+	 * Sets the size of the cube used by colorInverseMap() and
+	 * inverseMapRow(): how many high bits of red, green and blue (1 to 8)
+	 * and of alpha (0 to 7) select a cell. The default is 5 and 3, a cube
+	 * of 32x32x32x8 cells; alpha is ignored while all the palette entries
+	 * have the same alpha.
+	 * @param bits bits per color channel
+	 * @param alphaBits bits of alpha; 3 * bits + alphaBits must not exceed 24
+	 */
+	public void setInverseColormapBits(final int bits, final int alphaBits) {
+		inverseColormap = new GdInverseColormap(red, green, blue, alpha, open, bits, bits, bits, alphaBits);
+		inverseColormapBits = bits;
+		inverseColormapAlphaBits = alphaBits;
+	}
+
+	/* Inverse colormap of the palette, built on first use and kept in step
+	   with the palette. */
+	GdInverseColormap inverseColormap() {
+		if (inverseColormap == null) {
+			inverseColormap = new GdInverseColormap(red, green, blue, alpha, open,
+					inverseColormapBits, inverseColormapBits, inverseColormapBits, inverseColormapAlphaBits);
 		}
-		return ct;
+		if (inverseColormap.getVersion() != paletteVersion) {
+			inverseColormap.reset(colorsTotal, paletteVersion);
+		}
+		return inverseColormap;
+	}
+
+	/**
+	 * Fast approximation of findColorClosestAlpha() for mapping many colors
+	 * to a palette that does not change in between: the answer for the cell
+	 * of the color in a lookup cube is computed once and reused until the
+	 * palette changes. See setInverseColormapBits(). The quantizer maps its
+	 * colors this way; the answer can differ from findColorClosestAlpha()
+	 * when two entries are almost as close.
+	 * @return palette index, -1 for an empty palette; the truecolor value on truecolor images
+	 */
+	public int colorInverseMap(final int r, final int g, final int b, final int a) {
+		if (trueColor) {
+			return GdUtils.trueColorMixAlpha(r, g, b, a);
+		}
+		return inverseColormap().lookup(r, g, b, a);
+	}
+
+	/**
+	 * Maps a run of truecolor pixels to palette indexes with colorInverseMap().
+	 * @param src truecolor pixels
+	 * @param srcOffset first pixel in src
+	 * @param dst receives the palette indexes, -1 for an empty palette
+	 * @param dstOffset first index in dst
+	 * @param len number of pixels
+	 */
+	public void inverseMapRow(final int[] src, final int srcOffset, final int[] dst, final int dstOffset, final int len) {
+		if (trueColor) {
+			System.arraycopy(src, srcOffset, dst, dstOffset, len);
+			return;
+		}
+		inverseColormap().map(src, srcOffset, dst, dstOffset, len);
 	}
 
 
 
+	private static void copyRows(final GdPixelStorageInterface src, final GdPixelStorageInterface dst) {
+		final int width = src.getWidth();
+		final int[] row = new int[width];
+		for (int y = 0; y < src.getHeight(); y++) {
+			src.getRow(y, 0, row, 0, width);
+			dst.setRow(y, 0, row, 0, width);
+		}
+	}
+
 	public GdImage imageClone() {
 		GdImage dst;
-		int i, x;
+		int i;
 
 		if (this.trueColor) {
-			dst = new GdImage(this.sx , this.sy, GdImageColorType.TRUE_COLOR);
+			dst = createImage(this.sx , this.sy, GdImageColorType.TRUE_COLOR);
 		} else {
-			dst = new GdImage(this.sx , this.sy, GdImageColorType.PALETTE_BASED_COLOR);
+			dst = createImage(this.sx , this.sy, GdImageColorType.PALETTE_BASED_COLOR);
 		}
 
 		if (!this.trueColor) {
@@ -2023,17 +2894,10 @@ public class GdImage {
 				dst.alpha[i] = this.alpha[i];
 				dst.open[i]  = this.open[i];
 			}
-			for (i = 0; i < this.sy; i++) {
-				for (x = 0; x < this.sx; x++) {
-					dst.pixels[i][x] = this.pixels[i][x];
-				}
-			}
+			dst.paletteChanged();
+			copyRows(this.pixels, dst.pixels);
 		} else {
-			for (i = 0; i < this.sy; i++) {
-				for (x = 0; x < this.sx; x++) {
-					dst.tpixels[i][x] = this.tpixels[i][x];
-				}
-			}
+			copyRows(this.tpixels, dst.tpixels);
 		}
 
 		if (this.styleLength > 0) {
@@ -2058,12 +2922,12 @@ public class GdImage {
 		dst.cy2 = this.cy2;
 
 		dst.res_x = this.res_x;
-		dst.res_y = this.res_x;
+		dst.res_y = this.res_y;
 
 		dst.paletteQuantizationMethod     = this.paletteQuantizationMethod;
 		dst.paletteQuantizationSpeed      = this.paletteQuantizationSpeed;
 		dst.paletteQuantizationMinQuality = this.paletteQuantizationMinQuality;
-		dst.paletteQuantizationMinQuality = this.paletteQuantizationMinQuality;
+		dst.paletteQuantizationMaxQuality = this.paletteQuantizationMaxQuality;
 
 		dst.interpolation_id = this.interpolation_id;
 		dst.interpolation    = this.interpolation;
@@ -2087,9 +2951,7 @@ public class GdImage {
 
 		if (this.polyAllocated > 0) {
 			dst.polyAllocated = this.polyAllocated;
-			for (i = 0; i < this.polyAllocated; i++) {
-				dst.polyInts[i] = this.polyInts[i];
-			}
+			dst.polyInts = Arrays.copyOf(this.polyInts, this.polyAllocated);
 		}
 
 		return dst;
@@ -2151,11 +3013,7 @@ public class GdImage {
 				 destination image. This is slow and
 				 works badly, but it beats crashing! Thanks
 				 to Padhrig McCarthy. */
-					mapTo = dst.colorResolveAlpha(
-							GdUtils.trueColorGetRed(c),
-							GdUtils.trueColorGetGreen(c),
-							GdUtils.trueColorGetBlue(c),
-							GdUtils.trueColorGetAlpha(c));
+					mapTo = dst.colorResolvePixel(c);
 				} else if (colorMap[c] == (-1)) {
 				/* If it's the same image, mapping is trivial */
 					if (dst == src) {
@@ -2208,7 +3066,7 @@ public class GdImage {
 							+ dst.getBlue(dc) * ((100 - pct) / 100.0));
 
 				/* Find a reasonable color */
-					nc = dst.colorResolve(ncR, ncG, ncB);
+					nc = dst.colorResolvePixel(GdUtils.trueColorMix(ncR, ncG, ncB));
 				}
 				dst.setPixel(tox, toy, nc);
 				tox++;
@@ -2342,11 +3200,7 @@ public class GdImage {
 						/* Remap to the palette available in the
 						   destination image. This is slow and
 						   works badly. */
-							mapTo = dst.colorResolveAlpha(
-									GdUtils.trueColorGetRed(c),
-									GdUtils.trueColorGetGreen(c),
-									GdUtils.trueColorGetBlue(c),
-									GdUtils.trueColorGetAlpha(c));
+							mapTo = dst.colorResolvePixel(c);
 						} else {
 						/* Have we established a mapping for this color? */
 							if (colorMap[c] == (-1)) {
@@ -2440,11 +3294,7 @@ public class GdImage {
 						}
 						dst.setPixel((int) dx, (int) dy, cmap[c]);
 					} else {
-						dst.setPixel((int) dx, (int) dy, dst.colorResolveAlpha(
-								src.getRed(c),
-								src.getGreen(c),
-								src.getBlue(c),
-								src.getAlpha(c)));
+						dst.setPixel((int) dx, (int) dy, dst.colorResolvePixel(c));
 					}
 				}
 			}
@@ -2778,49 +3628,29 @@ public class GdImage {
 	}
 
 	public void flipVertical() {
-		if (trueColor) {
-			for (int y = 0; y < sy / 2; y++) {
-				int[] row_dst = tpixels[y];
-				int[] row_src = tpixels[sy - 1 - y];
-				for (int x = 0; x < sx; x++) {
-					int p;
-					p = row_dst[x];
-					row_dst[x] = tpixels[sy - 1 - y][x];
-					row_src[x] = p;
-				}
-			}
-		} else {
-			for (int y = 0; y < sy / 2; y++) {
-				for (int x = 0; x < sx; x++) {
-					int p = tpixels[y][x];
-					tpixels[y][x] =	tpixels[sy - 1 - y][x];
-					tpixels[sy - 1 - y][x] = p;
-				}
-			}
+		final GdPixelStorageInterface f = trueColor ? tpixels : pixels;
+		final int[] row_dst = new int[sx];
+		final int[] row_src = new int[sx];
+		for (int y = 0; y < sy / 2; y++) {
+			f.getRow(y, 0, row_dst, 0, sx);
+			f.getRow(sy - 1 - y, 0, row_src, 0, sx);
+			f.setRow(y, 0, row_src, 0, sx);
+			f.setRow(sy - 1 - y, 0, row_dst, 0, sx);
 		}
 	}
 
 	public void flipHorizontal() {
-		if (trueColor) {
-			for (int y = 0; y < sy; y++) {
-				final int[] row = tpixels[y];
-				for (int x = 0; x < (sx >> 1); x++) {
-					final int z = sx - 1 - x;
-					final int tmp = row[x];
-					row[x] = row[z];
-					row[z] = tmp;
-				}
-			}
-		} else {
-			for (int y = 0; y < sy; y++) {
-				final int[] row = pixels[y];
-				for (int x = 0; x < (sx >> 1); x++) {
-					final int z = sx - 1 - x;
-					final int tmp = row[x];
-					row[x] = row[z];
-					row[z] = tmp;
-				}
+		final GdPixelStorageInterface f = trueColor ? tpixels : pixels;
+		final int[] row = new int[sx];
+		for (int y = 0; y < sy; y++) {
+			f.getRow(y, 0, row, 0, sx);
+			for (int x = 0; x < (sx >> 1); x++) {
+				final int z = sx - 1 - x;
+				final int tmp = row[x];
+				row[x] = row[z];
+				row[z] = tmp;
 			}
+			f.setRow(y, 0, row, 0, sx);
 		}
 	}
 
@@ -2882,7 +3712,7 @@ public class GdImage {
 		}
 	}
 
-	private static GdHWBType RGB_to_HWB(GdRGBType RGB) {
+	static GdHWBType RGB_to_HWB(GdRGBType RGB) {
 
 	/*
 	 * RGB are each on [0, 1]. W and B are returned on [0, 1] and H is
@@ -2903,13 +3733,14 @@ public class GdImage {
 	}
 
 	static double HWB_Diff(final int r1, final int g1, final int b1, final int r2, final int g2, final int b2) {
-		double diff;
-
 		final GdRGBType RGB1 = new GdRGBType(r1, g1, b1);
 		final GdRGBType RGB2 = new GdRGBType(r2, g2, b2);
 
-		final GdHWBType HWB1 = RGB_to_HWB(RGB1);
-		final GdHWBType HWB2 = RGB_to_HWB (RGB2);
+		return HWB_Diff(RGB_to_HWB(RGB1), RGB_to_HWB (RGB2));
+	}
+
+	static double HWB_Diff(final GdHWBType HWB1, final GdHWBType HWB2) {
+		double diff;
 
 	/*
 	 * I made this bit up; it seems to produce OK results, and it is certainly
@@ -2935,27 +3766,10 @@ public class GdImage {
 
 	/* An alternate method */
 	public int colorClosestHWB(final int r, final int g, final int b) {
-		int i;
-	/* long rd, gd, bd; */
-		int ct = (-1);
-		boolean first = true;
-		double mindist = 0;
 		if (trueColor) {
 			return GdUtils.trueColorMix(r, g, b);
 		}
-		for (i = 0; (i < (colorsTotal)); i++) {
-			double dist;
-			if (open[i]) {
-				continue;
-			}
-			dist = HWB_Diff (red[i], green[i], blue[i], r, g, b);
-			if (first || (dist < mindist)) {
-				mindist = dist;
-				ct = i;
-				first = false;
-			}
-		}
-		return ct;
+		return paletteIndex().closestHWB(r, g, b);
 	}
 
 	/* Specifies a color index (if a palette image) or an
@@ -2978,11 +3792,22 @@ public class GdImage {
 			if (color != -1) {
 				alpha[color] = GdUtils.ALPHA_TRANSPARENT;
 			}
+			paletteChanged();
 		}
 		transparent = color;
 	}
 
 	public static void paletteCopy(GdImage to, GdImage from) {
+		paletteCopy(to, from, false);
+	}
+
+	/**
+	 * Gives to the palette of from, mapping its pixels to the closest colors
+	 * by from.findColorClosestAlpha().
+	 * @param ditherFlag dither the pixels by the method of to.setDitherMethod()
+	 *                   instead of mapping each color to its closest match
+	 */
+	public static void paletteCopy(final GdImage to, final GdImage from, final boolean ditherFlag) {
 		int i;
 		int x, y, p;
 		int[] xlate = new int[256];
@@ -2997,22 +3822,26 @@ public class GdImage {
 			xlate[i] = -1;
 		};
 
-		for (y = 0; y < (to.sy); y++) {
-			for (x = 0; x < (to.sx); x++) {
-			/* Optimization: no gdImageGetPixel */
-				p = to.pixels[y][x];
-				if (xlate[p] == -1) {
-				/* This ought to use HWB, but we don't have an alpha-aware
-				   version of that yet. */
-					xlate[p] = from.findColorClosestAlpha(to.red[p], to.green[p], to.blue[p], to.alpha[p]);
-				/*printf("Mapping %d (%d, %d, %d, %d) to %d (%d, %d, %d, %d)\n", */
-				/*      p,  to->red[p], to->green[p], to->blue[p], to->alpha[p], */
-				/*      xlate[p], from->red[xlate[p]], from->green[xlate[p]], from->blue[xlate[p]], from->alpha[xlate[p]]); */
+		if (ditherFlag) {
+			GdDither.remap(to, to.pixels, GdQuantizer.forPalette(from), -1, to.ditherMethod);
+		} else {
+			for (y = 0; y < (to.sy); y++) {
+				for (x = 0; x < (to.sx); x++) {
+				/* Optimization: no gdImageGetPixel */
+					p = to.pixels.get(x, y);
+					if (xlate[p] == -1) {
+					/* This ought to use HWB, but we don't have an alpha-aware
+					   version of that yet. */
+						xlate[p] = from.findColorClosestAlpha(to.red[p], to.green[p], to.blue[p], to.alpha[p]);
+					/*printf("Mapping %d (%d, %d, %d, %d) to %d (%d, %d, %d, %d)\n", */
+					/*      p,  to->red[p], to->green[p], to->blue[p], to->alpha[p], */
+					/*      xlate[p], from->red[xlate[p]], from->green[xlate[p]], from->blue[xlate[p]], from->alpha[xlate[p]]); */
+					};
+				/* Optimization: no gdImageSetPixel */
+					to.pixels.set(x, y, xlate[p]);
 				};
-			/* Optimization: no gdImageSetPixel */
-				to.pixels[y][x] = xlate[p];
 			};
-		};
+		}
 
 		for (i = 0; (i < (from.colorsTotal)); i++) {
 		/*printf("Copying color %d (%d, %d, %d, %d)\n", i, from->red[i], from->blue[i], from->green[i], from->alpha[i]); */
@@ -3028,6 +3857,7 @@ public class GdImage {
 		};
 
 		to.colorsTotal = from.colorsTotal;
+		to.paletteChanged();
 	}
 /*
  * The two pass scaling function is based on:
@@ -3131,28 +3961,82 @@ TODO:
 		return (((x) << 8) / (y));
 	}
 
-	private static class ContributionType {
-		double[] Weights;  /* Normalized weights of neighboring pixels */
-		int Left,Right;   /* Bounds of source pixels window */
-
-		public ContributionType(final int windows_size) {
-			this.Weights = new double[windows_size];
-		}
-	}  /* Contirbution information for a single pixel */
-
+	/* Contribution information of a whole row (or column), kept in flat
+	   arrays: pixel u reads source pixels Left[u]..Right[u] with the weights
+	   starting at Weights[u * WindowSize]. Never modified once computed, the
+	   tables are shared between threads and scale calls. */
 	private static class LineContribType {
-		ContributionType[] ContribRow; /* Row (or column) of contribution weights */
-		int WindowSize,      /* Filter window size (of affecting source pixels) */
+		final double[] Weights; /* Normalized weights of neighboring pixels */
+		final int[] FixedWeights; /* Weights with SCALE_FX_BITS fractional bits, same layout */
+		final int[] Left, Right; /* Bounds of source pixels window */
+		final int WindowSize,      /* Filter window size (of affecting source pixels) */
 			LineLength;      /* Length of line (no. or rows / cols) */
 
 		public LineContribType(final int line_length, final int windows_size) {
 			this.WindowSize = windows_size;
 			this.LineLength = line_length;
-			this.ContribRow = new ContributionType[line_length];
-			for (int u = 0 ; u < line_length ; u++) {
-				this.ContribRow[u] = new ContributionType(windows_size);
+			this.Weights = new double[line_length * windows_size];
+			this.FixedWeights = new int[line_length * windows_size];
+			this.Left = new int[line_length];
+			this.Right = new int[line_length];
+		}
+	}
+
+	/* Key of the contribution tables cache. */
+	private static class LineContribKey {
+		final int src_len, dst_len;
+		final GdInterpolationMethod method;
+
+		LineContribKey(final int src_len, final int dst_len, final GdInterpolationMethod method) {
+			this.src_len = src_len;
+			this.dst_len = dst_len;
+			this.method = method;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof LineContribKey)) {
+				return false;
+			}
+			final LineContribKey k = (LineContribKey) o;
+			return src_len == k.src_len && dst_len == k.dst_len && method == k.method;
+		}
+
+		@Override
+		public int hashCode() {
+			return (src_len * 31 + dst_len) * 31 + method.hashCode();
+		}
+	}
+
+	/* Most recently used contribution tables; services scaling many images to
+	   the same few sizes skip the kernel evaluation entirely. */
+	private static final int CONTRIBUTIONS_CACHE_SIZE = 64;
+	private static final Map<LineContribKey, LineContribType> contributionsCache =
+		new LinkedHashMap<LineContribKey, LineContribType>(CONTRIBUTIONS_CACHE_SIZE, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<LineContribKey, LineContribType> eldest) {
+				return size() > CONTRIBUTIONS_CACHE_SIZE;
+			}
+		};
+
+	private static LineContribType _gdContributionsGet(final int line_size, final int src_size,
+														final GdInterpolationMethod method, final GdFilterInterface filter) {
+		final LineContribKey key = new LineContribKey(src_size, line_size, method);
+		LineContribType res;
+		synchronized (contributionsCache) {
+			res = contributionsCache.get(key);
+		}
+		if (res == null) {
+			/* computed outside of the lock; two threads missing on the same key
+			   both compute the same table and one of them wins */
+			res = _gdContributionsCalc(line_size, src_size, (double)line_size / (double)src_size, filter);
+			if (res != null) {
+				synchronized (contributionsCache) {
+					contributionsCache.put(key, res);
+				}
 			}
 		}
+		return res;
 	}
 
 /* Each core filter has its own radius */
@@ -3210,14 +4094,14 @@ TODO:
 
 	private int _setEdgePixel(final int x, final int y, final long coverage, final int bgColor) {
 		final long f_127 = gd_itofx(127);
-		int c = this.tpixels[y][x];
+		int c = this.tpixels.get(x, y);
 		c = c | (( (int) (gd_fxtof(gd_mulfx(coverage, f_127)) + 50.5f)) << 24);
 		return _color_blend(bgColor, c);
 	}
 
-	private int getPixelOverflowTC(final int x, final int y, final int bgColor) {
+	int getPixelOverflowTC(final int x, final int y, final int bgColor) {
 		if (isBoundsSafe(x, y)) {
-			final int c = this.tpixels[y][x];
+			final int c = this.tpixels.get(x, y);
 			if (c == this.transparent) {
 				return bgColor == -1 ? GdUtils.trueColorMixAlpha(0, 0, 0, 127) : bgColor;
 			}
@@ -3226,18 +4110,18 @@ TODO:
 			int border = 0;
 
 			if (y < this.cy1) {
-				border = this.tpixels[0][this.cx1];
+				border = this.tpixels.get(this.cx1, 0);
 				return getPixelOverflowTCProcessBorder(border);
 			}
 
 			if (y < this.cy1) {
-				border = this.tpixels[0][this.cx1];
+				border = this.tpixels.get(this.cx1, 0);
 				return getPixelOverflowTCProcessBorder(border);
 			}
 
 			if (y > this.cy2) {
 				if (x >= this.cx1 && x <= this.cx1) {
-					border = this.tpixels[this.cy2][x];
+					border = this.tpixels.get(x, this.cy2);
 					return getPixelOverflowTCProcessBorder(border);
 				} else {
 					return GdUtils.trueColorMixAlpha(0, 0, 0, 127);
@@ -3246,12 +4130,12 @@ TODO:
 
 		/* y is bound safe at this point */
 			if (x < this.cx1) {
-				border = this.tpixels[y][this.cx1];
+				border = this.tpixels.get(this.cx1, y);
 				return getPixelOverflowTCProcessBorder(border);
 			}
 
 			if (x > this.cx2) {
-				border = this.tpixels[y][this.cx2];
+				border = this.tpixels.get(this.cx2, y);
 			}
 
 			return getPixelOverflowTCProcessBorder(border);
@@ -3266,7 +4150,7 @@ TODO:
 		}
 	}
 
-	private int colorIndex2RGBA(final int c) {
+	int colorIndex2RGBA(final int c) {
 		return GdUtils.trueColorMixAlpha(this.red[(c)], this.green[(c)], this.blue[(c)], this.alpha[(c)]);
 	}
 
@@ -3274,10 +4158,10 @@ TODO:
 		return GdUtils.trueColorMixAlpha(this.red[(c)], this.green[(c)], this.blue[(c)], this.alpha[(a)]);
 	}
 
-	private int getPixelOverflowPalette(final int x, final int y, final int bgColor)
+	int getPixelOverflowPalette(final int x, final int y, final int bgColor)
 	{
 		if (isBoundsSafe(x, y)) {
-			final int c = this.pixels[y][x];
+			final int c = this.pixels.get(x, y);
 			if (c == this.transparent) {
 				return bgColor == -1 ? GdUtils.trueColorMixAlpha(0, 0, 0, 127) : bgColor;
 			}
@@ -3325,7 +4209,7 @@ TODO:
 		}
 	}
 
-	private int getPixelInterpolateWeight(final double x, final double y, final int bgColor)
+	int getPixelInterpolateWeight(final double x, final double y, final int bgColor)
 	{
 	/* Closest pixel <= (xf,yf) */
 		int sx = (int)(x);
@@ -3369,98 +4253,7 @@ TODO:
 		return GdUtils.trueColorMixAlpha(r, g, b, a);
 	}
 
-	/**
-	 * InternalFunction: getPixelInterpolated
-	 *  Returns the interpolated color value using the default interpolation
-	 *  method. The returned color is always in the ARGB format (truecolor).
-	 *
-	 * Parameters:
-	 * 	im - Image to set the default interpolation method
-	 *  y - X value of the ideal position
-	 *  y - Y value of the ideal position
-	 *  method - Interpolation method <gdInterpolationMethod>
-	 *
-	 * Returns:
-	 *  GD_TRUE if the affine is rectilinear or GD_FALSE
-	 *
-	 * See also:
-	 *  <gdSetInterpolationMethod>
-	 */
-	int getPixelInterpolated(final double x, final double y, final int bgColor)
-	{
-		final int xi=(int)((x) < 0 ? x - 1: x);
-		final int yi=(int)((y) < 0 ? y - 1: y);
-		int yii;
-		int i;
-		double kernel, kernel_cache_y;
-		double[] kernel_x = new double[12];
-		double[] kernel_y = new double[4];
-		double new_r = 0.0f, new_g = 0.0f, new_b = 0.0f, new_a = 0.0f;
-
-	/* These methods use special implementations */
-		if (this.interpolation_id == GdInterpolationMethod.GD_BILINEAR_FIXED || this.interpolation_id == GdInterpolationMethod.GD_BICUBIC_FIXED || this.interpolation_id == GdInterpolationMethod.GD_NEAREST_NEIGHBOUR) {
-			return -1;
-		}
-
-		if (this.interpolation_id == GdInterpolationMethod.GD_WEIGHTED4) {
-			return getPixelInterpolateWeight(x, y, bgColor);
-		}
-
-		if (this.interpolation_id == GdInterpolationMethod.GD_NEAREST_NEIGHBOUR) {
-			if (this.trueColor) {
-				return getPixelOverflowTC(xi, yi, bgColor);
-			} else {
-				return getPixelOverflowPalette(xi, yi, bgColor);
-			}
-		}
-		if (this.interpolation != null) {
-			for (i=0; i<4; i++) {
-				kernel_x[i] = (double) this.interpolation.filter((double) (xi + i - 1 - x));
-				kernel_y[i] = (double) this.interpolation.filter((double)(yi+i-1-y));
-			}
-		} else {
-			return -1;
-		}
-
-	/*
-	 * TODO: use the known fast rgba multiplication implementation once
-	 * the new formats are in place
-	 */
-		for (yii = yi-1; yii < yi+3; yii++) {
-			int xii;
-			kernel_cache_y = kernel_y[yii-(yi-1)];
-			if (this.trueColor) {
-				for (xii=xi-1; xii<xi+3; xii++) {
-					final int rgbs = getPixelOverflowTC(xii, yii, bgColor);
-
-					kernel = kernel_cache_y * kernel_x[xii-(xi-1)];
-					new_r += kernel * GdUtils.trueColorGetRed(rgbs);
-					new_g += kernel * GdUtils.trueColorGetGreen(rgbs);
-					new_b += kernel * GdUtils.trueColorGetBlue(rgbs);
-					new_a += kernel * GdUtils.trueColorGetAlpha(rgbs);
-				}
-			} else {
-				for (xii=xi-1; xii<xi+3; xii++) {
-					final int rgbs = getPixelOverflowPalette(xii, yii, bgColor);
-
-					kernel = kernel_cache_y * kernel_x[xii-(xi-1)];
-					new_r += kernel * GdUtils.trueColorGetRed(rgbs);
-					new_g += kernel * GdUtils.trueColorGetGreen(rgbs);
-					new_b += kernel * GdUtils.trueColorGetBlue(rgbs);
-					new_a += kernel * GdUtils.trueColorGetAlpha(rgbs);
-				}
-			}
-		}
-
-		new_r = CLAMP((int) new_r, 0, 255);
-		new_g = CLAMP((int) new_g, 0, 255);
-		new_b = CLAMP((int) new_b, 0, 255);
-		new_a = CLAMP((int) new_a, 0, GdUtils.ALPHA_MAX);
-
-		return GdUtils.trueColorMixAlpha(((int) new_r), ((int) new_g), ((int) new_b), ((int) new_a));
-	}
-
-	private LineContribType _gdContributionsCalc(int line_size, int src_size, double scale_d,  final GdFilterInterface filter) {
+	private static LineContribType _gdContributionsCalc(int line_size, int src_size, double scale_d,  final GdFilterInterface filter) {
 		double width_d;
 		double scale_f_d = 1.0;
 		final double filter_width_d = DEFAULT_BOX_RADIUS;
@@ -3494,11 +4287,12 @@ TODO:
 				}
 			}
 
-			res.ContribRow[u].Left = iLeft;
-			res.ContribRow[u].Right = iRight;
+			final int w = u * windows_size;
+			res.Left[u] = iLeft;
+			res.Right[u] = iRight;
 
 			for (iSrc = iLeft; iSrc <= iRight; iSrc++) {
-				dTotalWeight += (res.ContribRow[u].Weights[iSrc-iLeft] =  scale_f_d * filter.filter(scale_f_d * (dCenter - (double) iSrc)));
+				dTotalWeight += (res.Weights[w + iSrc-iLeft] =  scale_f_d * filter.filter(scale_f_d * (dCenter - (double) iSrc)));
 			}
 
 			if (dTotalWeight < 0.0) {
@@ -3507,9 +4301,25 @@ TODO:
 
 			if (dTotalWeight > 0.0) {
 				for (iSrc = iLeft; iSrc <= iRight; iSrc++) {
-					res.ContribRow[u].Weights[iSrc-iLeft] /= dTotalWeight;
+					res.Weights[w + iSrc-iLeft] /= dTotalWeight;
+				}
+			}
+
+		/* Fixed point weights; the rounding error is put on the biggest one
+		   so that they still add up to exactly one */
+			int iTotal = 0;
+			int iMax = w;
+			for (iSrc = iLeft; iSrc <= iRight; iSrc++) {
+				final int k = w + iSrc - iLeft;
+				res.FixedWeights[k] = (int) floor(res.Weights[k] * SCALE_FX_ONE + 0.5);
+				iTotal += res.FixedWeights[k];
+				if (res.Weights[k] > res.Weights[iMax]) {
+					iMax = k;
 				}
 			}
+			if (dTotalWeight > 0.0) {
+				res.FixedWeights[iMax] += SCALE_FX_ONE - iTotal;
+			}
 		}
 		return res;
 	}
@@ -3524,68 +4334,183 @@ TODO:
 
 		for (ndx = 0; ndx < dst_len; ndx++) {
 			double r = 0, g = 0, b = 0, a = 0;
-			final int left = contrib.ContribRow[ndx].Left;
-			final int right = contrib.ContribRow[ndx].Right;
+			final int left = contrib.Left[ndx];
+			final int right = contrib.Right[ndx];
+			final double[] weights = contrib.Weights;
+			final int w = ndx * contrib.WindowSize - left;
 
 		/* Accumulate each channel */
 			for (int i = left; i <= right; i++) {
-				final int left_channel = i - left;
 				final int srcpx;
 				if (axis == GdAxis.HORIZONTAL) {
-					srcpx = pSrc.tpixels[row][i];
+					srcpx = pSrc.tpixels.get(i, row);
 				} else {
-					srcpx = pSrc.tpixels[i][row];
+					srcpx = pSrc.tpixels.get(row, i);
 				}
 
-				r += contrib.ContribRow[ndx].Weights[left_channel]
-						* (double)(GdUtils.trueColorGetRed(srcpx));
-				g += contrib.ContribRow[ndx].Weights[left_channel]
-						* (double)(GdUtils.trueColorGetGreen(srcpx));
-				b += contrib.ContribRow[ndx].Weights[left_channel]
-						* (double)(GdUtils.trueColorGetBlue(srcpx));
-				a += contrib.ContribRow[ndx].Weights[left_channel]
-						* (double)(GdUtils.trueColorGetAlpha(srcpx));
+				r += weights[w + i] * (double)(GdUtils.trueColorGetRed(srcpx));
+				g += weights[w + i] * (double)(GdUtils.trueColorGetGreen(srcpx));
+				b += weights[w + i] * (double)(GdUtils.trueColorGetBlue(srcpx));
+				a += weights[w + i] * (double)(GdUtils.trueColorGetAlpha(srcpx));
 			}/* for */
 
 			final int dest_val = GdUtils.trueColorMixAlpha(uchar_clamp(r, 0xFF), uchar_clamp(g, 0xFF),
 					uchar_clamp(b, 0xFF),
 					uchar_clamp(a, 0x7F)); /* alpha is 0..127 */
 			if (axis == GdAxis.HORIZONTAL) {
-				dst.tpixels[row][ndx] = dest_val;
-				dst.tpixels[ndx][row] = dest_val;
+				dst.tpixels.set(ndx, row, dest_val);
+			} else {
+				dst.tpixels.set(row, ndx, dest_val);
 			}
 		}/* for */
 	}/* _gdScaleOneAxis*/
 
 
+	/* Fractional bits of the fixed point scaler weights. The sums of a
+	   channel times the weights stay well within an int. */
+	private static final int SCALE_FX_BITS = 16;
+	private static final int SCALE_FX_ONE = 1 << SCALE_FX_BITS;
+
+	/* Rounds a fixed point channel sum and clamps it to 0..max, the same
+	   way uchar_clamp does for doubles. */
+	private static int scale_fx_clamp(final int v, final int max) {
+		final int result = (v + (SCALE_FX_ONE >> 1)) >> SCALE_FX_BITS;
+		if (result < 0) {
+			return 0;
+		}
+		return result > max ? max : result;
+	}
+
+	/* Fixed point horizontal pass over rows from..to-1: each row is
+	   unpacked into planar channels, which the taps then read. */
+	private static void _gdScaleHorizontalFixed(final GdImage pSrc, final GdImage dst,
+												final int src_len, final int dst_len,
+												final int from, final int to, final LineContribType contrib)
+	{
+		final int[] line = new int[src_len];
+		final int[] r = new int[src_len];
+		final int[] g = new int[src_len];
+		final int[] b = new int[src_len];
+		final int[] a = new int[src_len];
+		final int[] out = new int[dst_len];
+		final int[] weights = contrib.FixedWeights;
+		final int window = contrib.WindowSize;
+
+		for (int row = from; row < to; row++) {
+			pSrc.tpixels.getRow(row, 0, line, 0, src_len);
+			for (int x = 0; x < src_len; x++) {
+				final int c = line[x];
+				a[x] = (c >> 24) & 0x7F;
+				r[x] = (c >> 16) & 0xFF;
+				g[x] = (c >> 8) & 0xFF;
+				b[x] = c & 0xFF;
+			}
+
+			for (int ndx = 0; ndx < dst_len; ndx++) {
+				final int left = contrib.Left[ndx];
+				final int right = contrib.Right[ndx];
+				int sr = 0, sg = 0, sb = 0, sa = 0;
+				for (int i = left, k = ndx * window; i <= right; i++, k++) {
+					final int wt = weights[k];
+					sr += wt * r[i];
+					sg += wt * g[i];
+					sb += wt * b[i];
+					sa += wt * a[i];
+				}
+				out[ndx] = GdUtils.trueColorMixAlpha(scale_fx_clamp(sr, 0xFF), scale_fx_clamp(sg, 0xFF),
+						scale_fx_clamp(sb, 0xFF), scale_fx_clamp(sa, 0x7F));
+			}
+			dst.tpixels.setRow(row, 0, out, 0, dst_len);
+		}
+	}
+
+	/* Fixed point vertical pass producing destination rows from..to-1. Whole
+	   source rows are accumulated into planar sums, so the inner loop runs
+	   over plain int arrays with one weight. */
+	private static void _gdScaleVerticalFixed(final GdImage pSrc, final GdImage dst, final int width,
+											  final int from, final int to, final LineContribType contrib)
+	{
+		final int[] line = new int[width];
+		final int[] r = new int[width];
+		final int[] g = new int[width];
+		final int[] b = new int[width];
+		final int[] a = new int[width];
+		final int[] weights = contrib.FixedWeights;
+		final int window = contrib.WindowSize;
+
+		for (int ndx = from; ndx < to; ndx++) {
+			final int left = contrib.Left[ndx];
+			final int right = contrib.Right[ndx];
+			Arrays.fill(r, 0);
+			Arrays.fill(g, 0);
+			Arrays.fill(b, 0);
+			Arrays.fill(a, 0);
+			for (int i = left, k = ndx * window; i <= right; i++, k++) {
+				final int wt = weights[k];
+				pSrc.tpixels.getRow(i, 0, line, 0, width);
+				for (int x = 0; x < width; x++) {
+					final int c = line[x];
+					a[x] += wt * ((c >> 24) & 0x7F);
+					r[x] += wt * ((c >> 16) & 0xFF);
+					g[x] += wt * ((c >> 8) & 0xFF);
+					b[x] += wt * (c & 0xFF);
+				}
+			}
+			for (int x = 0; x < width; x++) {
+				line[x] = GdUtils.trueColorMixAlpha(scale_fx_clamp(r[x], 0xFF), scale_fx_clamp(g[x], 0xFF),
+						scale_fx_clamp(b[x], 0xFF), scale_fx_clamp(a[x], 0x7F));
+			}
+			dst.tpixels.setRow(ndx, 0, line, 0, width);
+		}
+	}
+
 	private int _gdScalePass(final GdImage pSrc, final int src_len,
 							   final GdImage pDst, final int dst_len,
 							   final int num_lines,
-							   final GdAxis axis)
+							   final GdAxis axis, final int parallelism)
 	{
-		int line_ndx;
-		LineContribType contrib;
+		final LineContribType contrib;
 
     /* Same dim, just copy it. */
 		assert(dst_len != src_len); // TODO: caller should handle this.
 
-		contrib = _gdContributionsCalc(dst_len, src_len,
-				(double)dst_len / (double)src_len,
-				pSrc.interpolation);
+		contrib = _gdContributionsGet(dst_len, src_len, pSrc.interpolation_id, pSrc.interpolation);
 		if (contrib == null) {
 			return 0;
 		}
 
-	/* Scale each line */
-		for (line_ndx = 0; line_ndx < num_lines; line_ndx++) {
-			_gdScaleOneAxis(pSrc, pDst, dst_len, line_ndx, contrib, axis);
+		if (scaleEngine == GdScaleEngine.GD_SCALE_FIXED) {
+			if (axis == GdAxis.HORIZONTAL) {
+				GdParallel.forRange(parallelPool, parallelism, num_lines, new GdCallbackRange() {
+					public void callbackRange(final int from, final int to) {
+						_gdScaleHorizontalFixed(pSrc, pDst, src_len, dst_len, from, to, contrib);
+					}
+				});
+			} else {
+				/* split the destination rows instead of the columns */
+				GdParallel.forRange(parallelPool, parallelism, dst_len, new GdCallbackRange() {
+					public void callbackRange(final int from, final int to) {
+						_gdScaleVerticalFixed(pSrc, pDst, num_lines, from, to, contrib);
+					}
+				});
+			}
+			return 1;
 		}
 
+	/* Scale each line; lines are independent, contrib is only read */
+		GdParallel.forRange(parallelPool, parallelism, num_lines, new GdCallbackRange() {
+			public void callbackRange(final int from, final int to) {
+				for (int line_ndx = from; line_ndx < to; line_ndx++) {
+					_gdScaleOneAxis(pSrc, pDst, dst_len, line_ndx, contrib, axis);
+				}
+			}
+		});
+
 		return 1;
 	}/* _gdScalePass*/
 
 
-	private GdImage scaleTwoPass(final int new_width, final int new_height) {
+	private GdImage scaleTwoPass(final int new_width, final int new_height, final int parallelism) {
 		final int src_width = sx;
 		final int src_height = sy;
 		GdImage tmp_im = null;
@@ -3605,10 +4530,10 @@ TODO:
 		if (src_width == new_width) {
 			tmp_im = this;
 		} else {
-			tmp_im = new GdImage(new_width, src_height, GdImageColorType.TRUE_COLOR);
+			tmp_im = createImage(new_width, src_height, GdImageColorType.TRUE_COLOR);
 			tmp_im.setInterpolationMethod(interpolation_id);
 
-			_gdScalePass(this, src_width, tmp_im, new_width, src_height, GdAxis.HORIZONTAL);
+			_gdScalePass(this, src_width, tmp_im, new_width, src_height, GdAxis.HORIZONTAL, parallelism);
 		}/* if .. else*/
 
     /* If vertical sizes match, we're done. */
@@ -3618,10 +4543,10 @@ TODO:
 		}/* if */
 
     /* Otherwise, we need to scale vertically. */
-		dst = new GdImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
+		dst = createImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
 		if (dst != null) {
 			dst.setInterpolationMethod(interpolation_id);
-			_gdScalePass(tmp_im, src_height, dst, new_height, new_width, GdAxis.VERTICAL);
+			_gdScalePass(tmp_im, src_height, dst, new_height, new_width, GdAxis.VERTICAL, parallelism);
 		}/* if */
 
 		return dst;
@@ -3651,7 +4576,7 @@ TODO:
 		int dst_offset_y = 0;
 		int i;
 
-		dst_img = new GdImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
+		dst_img = createImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
 
 		if (dst_img == null) {
 			return null;
@@ -3669,7 +4594,7 @@ TODO:
 					final int m = gd_fxtoi(f_a);
 					final int n = gd_fxtoi(f_b);
 
-					dst_img.tpixels[dst_offset_y][dst_offset_x++] = this.tpixels[m][n];
+					dst_img.tpixels.set(dst_offset_x++, dst_offset_y, this.tpixels.get(n, m));
 				}
 			} else {
 				for (j=0; j<new_width; j++) {
@@ -3680,7 +4605,7 @@ TODO:
 					final int m = gd_fxtoi(f_a);
 					final int n = gd_fxtoi(f_b);
 
-					dst_img.tpixels[dst_offset_y][dst_offset_x++] = colorIndex2RGBA(this.pixels[m][n]);
+					dst_img.tpixels.set(dst_offset_x++, dst_offset_y, colorIndex2RGBA(this.pixels.get(n, m)));
 				}
 			}
 			dst_offset_y++;
@@ -3690,7 +4615,7 @@ TODO:
 
 	private int getPixelOverflowColorTC(final int x, final int y, final int color) {
 		if (isBoundsSafe(x, y)) {
-			final int c = this.tpixels[y][x];
+			final int c = this.tpixels.get(x, y);
 			if (c == this.transparent) {
 				return GdUtils.trueColorMixAlpha(0, 0, 0, 127);
 			}
@@ -3698,18 +4623,18 @@ TODO:
 		} else {
 			int border = 0;
 			if (y < this.cy1) {
-				border = this.tpixels[0][this.cx1];
+				border = this.tpixels.get(this.cx1, 0);
 				return getPixelOverflowColorTCProcessBorder(border);
 			}
 
 			if (y < this.cy1) {
-				border = this.tpixels[0][this.cx1];
+				border = this.tpixels.get(this.cx1, 0);
 				return getPixelOverflowColorTCProcessBorder(border);
 			}
 
 			if (y > this.cy2) {
 				if (x >= this.cx1 && x <= this.cx1) {
-					border = this.tpixels[this.cy2][x];
+					border = this.tpixels.get(x, this.cy2);
 					return getPixelOverflowColorTCProcessBorder(border);
 				} else {
 					return GdUtils.trueColorMixAlpha(0, 0, 0, 127);
@@ -3718,12 +4643,12 @@ TODO:
 
 		/* y is bound safe at this point */
 			if (x < this.cx1) {
-				border = this.tpixels[y][this.cx1];
+				border = this.tpixels.get(this.cx1, y);
 				return getPixelOverflowColorTCProcessBorder(border);
 			}
 
 			if (x > this.cx2) {
-				border = this.tpixels[y][this.cx2];
+				border = this.tpixels.get(this.cx2, y);
 			}
 
 			return getPixelOverflowColorTCProcessBorder(border);
@@ -3752,11 +4677,13 @@ TODO:
 		GdImage new_img;
 		final int transparent = this.transparent;
 
-		new_img = new GdImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
+		new_img = createImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
 		if (new_img == null) {
 			return null;
 		}
-		new_img.transparent = GdUtils.trueColorMixAlpha(this.red[transparent], this.green[transparent], this.blue[transparent], this.alpha[transparent]);
+		if (transparent >= 0) {
+			new_img.transparent = GdUtils.trueColorMixAlpha(this.red[transparent], this.green[transparent], this.blue[transparent], this.alpha[transparent]);
+		}
 
 		for (int i=0; i < _height; i++) {
 			final long f_i = gd_itofx(i);
@@ -3816,7 +4743,7 @@ TODO:
 					final char blue = (char) gd_fxtoi(gd_mulfx(f_w1, f_b1) + gd_mulfx(f_w2, f_b2) + gd_mulfx(f_w3, f_b3) + gd_mulfx(f_w4, f_b4));
 					final char alpha = (char) gd_fxtoi(gd_mulfx(f_w1, f_a1) + gd_mulfx(f_w2, f_a2) + gd_mulfx(f_w3, f_a3) + gd_mulfx(f_w4, f_a4));
 
-					new_img.tpixels[dst_offset_v][dst_offset_h] = GdUtils.trueColorMixAlpha(red, green, blue, alpha);
+					new_img.tpixels.set(dst_offset_h, dst_offset_v, GdUtils.trueColorMixAlpha(red, green, blue, alpha));
 				}
 
 				dst_offset_h++;
@@ -3838,7 +4765,7 @@ TODO:
 
 		int dst_offset_h;
 		int dst_offset_v = 0;
-		final GdImage new_img = new GdImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
+		final GdImage new_img = createImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
 
 		for (int i=0; i < dst_h; i++) {
 			dst_offset_h = 0;
@@ -3893,7 +4820,7 @@ TODO:
 					final char blue  = (char) gd_fxtoi(gd_mulfx(f_w1, f_b1) + gd_mulfx(f_w2, f_b2) + gd_mulfx(f_w3, f_b3) + gd_mulfx(f_w4, f_b4));
 					final char alpha = (char) gd_fxtoi(gd_mulfx(f_w1, f_a1) + gd_mulfx(f_w2, f_a2) + gd_mulfx(f_w3, f_a3) + gd_mulfx(f_w4, f_a4));
 
-					new_img.tpixels[dst_offset_v][dst_offset_h] = GdUtils.trueColorMixAlpha(red, green, blue, alpha);
+					new_img.tpixels.set(dst_offset_h, dst_offset_v, GdUtils.trueColorMixAlpha(red, green, blue, alpha));
 				}
 
 				dst_offset_h++;
@@ -3935,7 +4862,7 @@ TODO:
 			paletteToTrueColor();
 		}
 
-		final GdImage dst = new GdImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
+		final GdImage dst = createImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
 
 		dst.saveAlphaFlag = 1;
 
@@ -3943,7 +4870,6 @@ TODO:
 			dst_offset_x = 0;
 
 			for (int j=0; j < new_width; j++) {
-				int[] dst_row = dst.tpixels[dst_offset_y];
 				long f_red = 0, f_green = 0, f_blue = 0, f_alpha = 0;
 				char red, green, blue, alpha = 0;
 				final long f_f, f_g;
@@ -4119,7 +5045,7 @@ TODO:
 						f_RX = gd_divfx((f_a-gd_mulfx(f_4,f_b)+gd_mulfx(f_6,f_c)-gd_mulfx(f_4,f_d)),f_6);
 						f_R = gd_mulfx(f_RY,f_RX);
 
-						c = tpixels[src_offset_y[_k]][src_offset_x[_k]];
+						c = tpixels.get(src_offset_x[_k], src_offset_y[_k]);
 						f_rs = gd_itofx(GdUtils.trueColorGetRed(c));
 						f_gs = gd_itofx(GdUtils.trueColorGetGreen(c));
 						f_bs = gd_itofx(GdUtils.trueColorGetBlue(c));
@@ -4137,7 +5063,7 @@ TODO:
 				blue   = (char) CLAMP(gd_fxtoi(gd_mulfx(f_blue,  f_gamma)),  0, 255);
 				alpha  = (char) CLAMP(gd_fxtoi(gd_mulfx(f_alpha,  f_gamma)), 0, 127);
 
-				dst_row[dst_offset_x] = GdUtils.trueColorMixAlpha(red, green, blue, alpha);
+				dst.tpixels.set(dst_offset_x, dst_offset_y, GdUtils.trueColorMixAlpha(red, green, blue, alpha));
 
 				dst_offset_x++;
 			}
@@ -4147,6 +5073,18 @@ TODO:
 	}
 
 	public GdImage scale(final int new_width, final int new_height) {
+		return scale(new_width, new_height, parallelism);
+	}
+
+	/**
+	 * Scales the image, splitting the work of the generic two-pass filters
+	 * into the given number of slices instead of the image's parallelism.
+	 * @param new_width width of the new image
+	 * @param new_height height of the new image
+	 * @param parallelism number of slices, 1 runs in the calling thread
+	 * @return the scaled image
+	 */
+	public GdImage scale(final int new_width, final int new_height, final int parallelism) {
 		if (interpolation_id == null) {
 			return null;
 		}
@@ -4172,14 +5110,14 @@ TODO:
 				if (interpolation == null) {
 					return null;
 				}
-				im_scaled = scaleTwoPass(new_width, new_height);
+				im_scaled = scaleTwoPass(new_width, new_height, parallelism);
 				break;
 		}
 
 		return im_scaled;
 	}
 
-	private GdImage rotateNearestNeighbour(final float degrees, final int bgColor) {
+	private GdImage rotateNearestNeighbour(final float degrees, final int bgColor, final int parallelism) {
 		float _angle = ((float) (-degrees / 180.0f) * (float)PI);
 		final int src_w = sx;
 		final int src_h = sy;
@@ -4191,9 +5129,6 @@ TODO:
 		final long f_cos = gd_dtofx(cos(-_angle));
 		final long f_sin = gd_dtofx(sin(-_angle));
 
-		int dst_offset_x;
-		int dst_offset_y = 0;
-		int i;
 
 	/* impact perf a bit, but not that much. Implementation for palette
 	   images can be done at a later point.
@@ -4202,35 +5137,39 @@ TODO:
 			paletteToTrueColor();
 		}
 
-		final GdImage dst = new GdImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
+		final GdImage dst = createImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
 		dst.saveAlphaFlag = 1;
-		for (i = 0; i < new_height; i++) {
-			int j;
-			dst_offset_x = 0;
-			for (j = 0; j < new_width; j++) {
-				long f_i = gd_itofx((int)i - (int)new_height / 2);
-				long f_j = gd_itofx((int)j - (int)new_width  / 2);
-				long f_m = gd_mulfx(f_j,f_sin) + gd_mulfx(f_i,f_cos) + f_0_5 + f_H;
-				long f_n = gd_mulfx(f_j,f_cos) - gd_mulfx(f_i,f_sin) + f_0_5 + f_W;
-				int m = gd_fxtoi(f_m);
-				int n = gd_fxtoi(f_n);
-
-				if ((m > 0) && (m < src_h-1) && (n > 0) && (n < src_w-1)) {
-					if (dst_offset_y < new_height) {
-						dst.tpixels[dst_offset_y][dst_offset_x++] = this.tpixels[m][n];
-					}
-				} else {
-					if (dst_offset_y < new_height) {
-						dst.tpixels[dst_offset_y][dst_offset_x++] = bgColor;
+		GdParallel.forRange(parallelPool, parallelism, new_height, new GdCallbackRange() {
+			public void callbackRange(final int from, final int to) {
+				for (int i = from; i < to; i++) {
+					final int dst_offset_y = i;
+					int dst_offset_x = 0;
+					int j;
+					for (j = 0; j < new_width; j++) {
+						long f_i = gd_itofx((int)i - (int)new_height / 2);
+						long f_j = gd_itofx((int)j - (int)new_width  / 2);
+						long f_m = gd_mulfx(f_j,f_sin) + gd_mulfx(f_i,f_cos) + f_0_5 + f_H;
+						long f_n = gd_mulfx(f_j,f_cos) - gd_mulfx(f_i,f_sin) + f_0_5 + f_W;
+						int m = gd_fxtoi(f_m);
+						int n = gd_fxtoi(f_n);
+
+						if ((m > 0) && (m < src_h-1) && (n > 0) && (n < src_w-1)) {
+							if (dst_offset_y < new_height) {
+								dst.tpixels.set(dst_offset_x++, dst_offset_y, tpixels.get(n, m));
+							}
+						} else {
+							if (dst_offset_y < new_height) {
+								dst.tpixels.set(dst_offset_x++, dst_offset_y, bgColor);
+							}
+						}
 					}
 				}
 			}
-			dst_offset_y++;
-		}
+		});
 		return dst;
 	}
 
-	private GdImage rotateGeneric(final float degrees, final int bgColor) {
+	private GdImage rotateGeneric(final float degrees, final int bgColor, final int parallelism) {
 		float _angle = ((float) (-degrees / 180.0f) * (float)PI);
 		final int src_w  = sx;
 		final int src_h = sy;
@@ -4242,10 +5181,7 @@ TODO:
 		final long f_cos = gd_dtofx(cos(-_angle));
 		final long f_sin = gd_dtofx(sin(-_angle));
 
-		int dst_offset_x;
-		int dst_offset_y = 0;
-		int i;
-		GdImage dst;
+		final GdImage dst;
 
 		final long f_slop_y = f_sin;
 		final long f_slop_x = f_cos;
@@ -4264,53 +5200,54 @@ TODO:
 			paletteToTrueColor();
 		}
 
-		dst = new GdImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
+		dst = createImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
 		dst.saveAlphaFlag = 1;
 
-		for (i = 0; i < new_height; i++) {
-			int j;
-			dst_offset_x = 0;
-			for (j = 0; j < new_width; j++) {
-				long f_i = gd_itofx((int)i - (int)new_height / 2);
-				long f_j = gd_itofx((int)j - (int)new_width  / 2);
-				long f_m = gd_mulfx(f_j,f_sin) + gd_mulfx(f_i,f_cos) + f_0_5 + f_H;
-				long f_n = gd_mulfx(f_j,f_cos) - gd_mulfx(f_i,f_sin) + f_0_5 + f_W;
-				long m = gd_fxtoi(f_m);
-				long n = gd_fxtoi(f_n);
-
-				if ((n <= 0) || (m <= 0) || (m >= src_h) || (n >= src_w)) {
-					dst.tpixels[dst_offset_y][dst_offset_x++] = bgColor;
-				} else if ((n <= 1) || (m <= 1) || (m >= src_h - 1) || (n >= src_w - 1)) {
-					int c = getPixelInterpolated(n, m, bgColor);
-					c = c | (( GdUtils.trueColorGetAlpha(c) + ((int)(127* gd_fxtof(f_slop)))) << 24);
-
-					dst.tpixels[dst_offset_y][dst_offset_x++] = _color_blend(bgColor, c);
-				} else {
-					dst.tpixels[dst_offset_y][dst_offset_x++] = getPixelInterpolated(n, m, bgColor);
+		GdParallel.forRange(parallelPool, parallelism, new_height, new GdCallbackRange() {
+			public void callbackRange(final int from, final int to) {
+				final GdSampler sampler = GdSampler.create(GdImage.this, bgColor);
+				for (int i = from; i < to; i++) {
+					final int dst_offset_y = i;
+					int dst_offset_x = 0;
+					int j;
+					for (j = 0; j < new_width; j++) {
+						long f_i = gd_itofx((int)i - (int)new_height / 2);
+						long f_j = gd_itofx((int)j - (int)new_width  / 2);
+						long f_m = gd_mulfx(f_j,f_sin) + gd_mulfx(f_i,f_cos) + f_0_5 + f_H;
+						long f_n = gd_mulfx(f_j,f_cos) - gd_mulfx(f_i,f_sin) + f_0_5 + f_W;
+						long m = gd_fxtoi(f_m);
+						long n = gd_fxtoi(f_n);
+
+						if ((n <= 0) || (m <= 0) || (m >= src_h) || (n >= src_w)) {
+							dst.tpixels.set(dst_offset_x++, dst_offset_y, bgColor);
+						} else if ((n <= 1) || (m <= 1) || (m >= src_h - 1) || (n >= src_w - 1)) {
+							int c = sampler.sample(n, m);
+							c = c | (( GdUtils.trueColorGetAlpha(c) + ((int)(127* gd_fxtof(f_slop)))) << 24);
+
+							dst.tpixels.set(dst_offset_x++, dst_offset_y, _color_blend(bgColor, c));
+						} else {
+							dst.tpixels.set(dst_offset_x++, dst_offset_y, sampler.sample(n, m));
+						}
+					}
 				}
 			}
-			dst_offset_y++;
-		}
+		});
 		return dst;
 	}
 
-	private GdImage rotateBilinear(final float degrees, final int bgColor) {
+	private GdImage rotateBilinear(final float degrees, final int bgColor, final int parallelism) {
 		float _angle = (float)((- degrees / 180.0f) * PI);
 		final int src_w = sx;
 		final int src_h = sy;
-		int new_width = abs((int)(src_w*cos(_angle))) + abs((int)(src_h*sin(_angle) + 0.5f));
-		int new_height = abs((int)(src_w*sin(_angle))) + abs((int)(src_h*cos(_angle) + 0.5f));
+		final int new_width = abs((int)(src_w*cos(_angle))) + abs((int)(src_h*sin(_angle) + 0.5f));
+		final int new_height = abs((int)(src_w*sin(_angle))) + abs((int)(src_h*cos(_angle) + 0.5f));
 		final long f_0_5 = gd_ftofx(0.5f);
 		final long f_H = gd_itofx(src_h/2);
 		final long f_W = gd_itofx(src_w/2);
 		final long f_cos = gd_dtofx(cos(-_angle));
 		final long f_sin = gd_dtofx(sin(-_angle));
 		final long f_1 = gd_itofx(1);
-		int i;
-		int dst_offset_x;
-		int dst_offset_y = 0;
-		int src_offset_x, src_offset_y;
-		GdImage dst;
+		final GdImage dst;
 
 	/* impact perf a bit, but not that much. Implementation for palette
 	   images can be done at a later point.
@@ -4319,97 +5256,101 @@ TODO:
 			paletteToTrueColor();
 		}
 
-		dst = new GdImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
+		dst = createImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
 		dst.saveAlphaFlag = 1;
 
-		for (i = 0; i < new_height; i++) {
-			int j;
-			dst_offset_x = 0;
-
-			for (j=0; j < new_width; j++) {
-				final long f_i = gd_itofx((int)i - (int)new_height / 2);
-				final long f_j = gd_itofx((int)j - (int)new_width  / 2);
-				final long f_m = gd_mulfx(f_j,f_sin) + gd_mulfx(f_i,f_cos) + f_0_5 + f_H;
-				final long f_n = gd_mulfx(f_j,f_cos) - gd_mulfx(f_i,f_sin) + f_0_5 + f_W;
-				final int m = gd_fxtoi(f_m);
-				final int n = gd_fxtoi(f_n);
-
-				if ((m > 0) && (m < src_h - 1) && (n > 0) && (n < src_w - 1)) {
-					final long f_f = f_m - gd_itofx(m);
-					final long f_g = f_n - gd_itofx(n);
-					final long f_w1 = gd_mulfx(f_1-f_f, f_1-f_g);
-					final long f_w2 = gd_mulfx(f_1-f_f, f_g);
-					final long f_w3 = gd_mulfx(f_f, f_1-f_g);
-					final long f_w4 = gd_mulfx(f_f, f_g);
-
-					src_offset_x = n + 1;
-					src_offset_y = m + 1;
-
-					if (n < src_w - 1) {
-						src_offset_y = m;
-					}
+		GdParallel.forRange(parallelPool, parallelism, new_height, new GdCallbackRange() {
+			public void callbackRange(final int from, final int to) {
+				for (int i = from; i < to; i++) {
+					final int dst_offset_y = i;
+					int dst_offset_x = 0;
+					int j;
+
+					for (j=0; j < new_width; j++) {
+						final long f_i = gd_itofx((int)i - (int)new_height / 2);
+						final long f_j = gd_itofx((int)j - (int)new_width  / 2);
+						final long f_m = gd_mulfx(f_j,f_sin) + gd_mulfx(f_i,f_cos) + f_0_5 + f_H;
+						final long f_n = gd_mulfx(f_j,f_cos) - gd_mulfx(f_i,f_sin) + f_0_5 + f_W;
+						final int m = gd_fxtoi(f_m);
+						final int n = gd_fxtoi(f_n);
+
+						if ((m > 0) && (m < src_h - 1) && (n > 0) && (n < src_w - 1)) {
+							final long f_f = f_m - gd_itofx(m);
+							final long f_g = f_n - gd_itofx(n);
+							final long f_w1 = gd_mulfx(f_1-f_f, f_1-f_g);
+							final long f_w2 = gd_mulfx(f_1-f_f, f_g);
+							final long f_w3 = gd_mulfx(f_f, f_1-f_g);
+							final long f_w4 = gd_mulfx(f_f, f_g);
+
+							int src_offset_x = n + 1;
+							int src_offset_y = m + 1;
+
+							if (n < src_w - 1) {
+								src_offset_y = m;
+							}
 
-					if (m < src_h - 1) {
-						src_offset_x = n;
-					}
+							if (m < src_h - 1) {
+								src_offset_x = n;
+							}
 
-					{
-						final int pixel1 = tpixels[src_offset_y][src_offset_x];
-						int pixel2, pixel3, pixel4;
-
-						if (src_offset_y + 1 >= src_h) {
-							pixel2 = bgColor;
-							pixel3 = bgColor;
-							pixel4 = bgColor;
-						} else if (src_offset_x + 1 >= src_w) {
-							pixel2 = bgColor;
-							pixel3 = bgColor;
-							pixel4 = bgColor;
+							{
+								final int pixel1 = tpixels.get(src_offset_x, src_offset_y);
+								int pixel2, pixel3, pixel4;
+
+								if (src_offset_y + 1 >= src_h) {
+									pixel2 = bgColor;
+									pixel3 = bgColor;
+									pixel4 = bgColor;
+								} else if (src_offset_x + 1 >= src_w) {
+									pixel2 = bgColor;
+									pixel3 = bgColor;
+									pixel4 = bgColor;
+								} else {
+									pixel2 = tpixels.get(src_offset_x + 1, src_offset_y);
+									pixel3 = tpixels.get(src_offset_x, src_offset_y + 1);
+									pixel4 = tpixels.get(src_offset_x + 1, src_offset_y + 1);
+								}
+								{
+									final long f_r1 = gd_itofx(GdUtils.trueColorGetRed(pixel1));
+									final long f_r2 = gd_itofx(GdUtils.trueColorGetRed(pixel2));
+									final long f_r3 = gd_itofx(GdUtils.trueColorGetRed(pixel3));
+									final long f_r4 = gd_itofx(GdUtils.trueColorGetRed(pixel4));
+									final long f_g1 = gd_itofx(GdUtils.trueColorGetGreen(pixel1));
+									final long f_g2 = gd_itofx(GdUtils.trueColorGetGreen(pixel2));
+									final long f_g3 = gd_itofx(GdUtils.trueColorGetGreen(pixel3));
+									final long f_g4 = gd_itofx(GdUtils.trueColorGetGreen(pixel4));
+									final long f_b1 = gd_itofx(GdUtils.trueColorGetBlue(pixel1));
+									final long f_b2 = gd_itofx(GdUtils.trueColorGetBlue(pixel2));
+									final long f_b3 = gd_itofx(GdUtils.trueColorGetBlue(pixel3));
+									final long f_b4 = gd_itofx(GdUtils.trueColorGetBlue(pixel4));
+									final long f_a1 = gd_itofx(GdUtils.trueColorGetAlpha(pixel1));
+									final long f_a2 = gd_itofx(GdUtils.trueColorGetAlpha(pixel2));
+									final long f_a3 = gd_itofx(GdUtils.trueColorGetAlpha(pixel3));
+									final long f_a4 = gd_itofx(GdUtils.trueColorGetAlpha(pixel4));
+									final long f_red = gd_mulfx(f_w1, f_r1) + gd_mulfx(f_w2, f_r2) + gd_mulfx(f_w3, f_r3) + gd_mulfx(f_w4, f_r4);
+									final long f_green = gd_mulfx(f_w1, f_g1) + gd_mulfx(f_w2, f_g2) + gd_mulfx(f_w3, f_g3) + gd_mulfx(f_w4, f_g4);
+									final long f_blue = gd_mulfx(f_w1, f_b1) + gd_mulfx(f_w2, f_b2) + gd_mulfx(f_w3, f_b3) + gd_mulfx(f_w4, f_b4);
+									final long f_alpha = gd_mulfx(f_w1, f_a1) + gd_mulfx(f_w2, f_a2) + gd_mulfx(f_w3, f_a3) + gd_mulfx(f_w4, f_a4);
+
+									final char red   = (char) CLAMP(gd_fxtoi(f_red),   0, 255);
+									final char green = (char) CLAMP(gd_fxtoi(f_green), 0, 255);
+									final char blue  = (char) CLAMP(gd_fxtoi(f_blue),  0, 255);
+									final char alpha = (char) CLAMP(gd_fxtoi(f_alpha), 0, 127);
+
+									dst.tpixels.set(dst_offset_x++, dst_offset_y, GdUtils.trueColorMixAlpha(red, green, blue, alpha));
+								}
+							}
 						} else {
-							pixel2 = tpixels[src_offset_y][src_offset_x + 1];
-							pixel3 = tpixels[src_offset_y + 1][src_offset_x];
-							pixel4 = tpixels[src_offset_y + 1][src_offset_x + 1];
-						}
-						{
-							final long f_r1 = gd_itofx(GdUtils.trueColorGetRed(pixel1));
-							final long f_r2 = gd_itofx(GdUtils.trueColorGetRed(pixel2));
-							final long f_r3 = gd_itofx(GdUtils.trueColorGetRed(pixel3));
-							final long f_r4 = gd_itofx(GdUtils.trueColorGetRed(pixel4));
-							final long f_g1 = gd_itofx(GdUtils.trueColorGetGreen(pixel1));
-							final long f_g2 = gd_itofx(GdUtils.trueColorGetGreen(pixel2));
-							final long f_g3 = gd_itofx(GdUtils.trueColorGetGreen(pixel3));
-							final long f_g4 = gd_itofx(GdUtils.trueColorGetGreen(pixel4));
-							final long f_b1 = gd_itofx(GdUtils.trueColorGetBlue(pixel1));
-							final long f_b2 = gd_itofx(GdUtils.trueColorGetBlue(pixel2));
-							final long f_b3 = gd_itofx(GdUtils.trueColorGetBlue(pixel3));
-							final long f_b4 = gd_itofx(GdUtils.trueColorGetBlue(pixel4));
-							final long f_a1 = gd_itofx(GdUtils.trueColorGetAlpha(pixel1));
-							final long f_a2 = gd_itofx(GdUtils.trueColorGetAlpha(pixel2));
-							final long f_a3 = gd_itofx(GdUtils.trueColorGetAlpha(pixel3));
-							final long f_a4 = gd_itofx(GdUtils.trueColorGetAlpha(pixel4));
-							final long f_red = gd_mulfx(f_w1, f_r1) + gd_mulfx(f_w2, f_r2) + gd_mulfx(f_w3, f_r3) + gd_mulfx(f_w4, f_r4);
-							final long f_green = gd_mulfx(f_w1, f_g1) + gd_mulfx(f_w2, f_g2) + gd_mulfx(f_w3, f_g3) + gd_mulfx(f_w4, f_g4);
-							final long f_blue = gd_mulfx(f_w1, f_b1) + gd_mulfx(f_w2, f_b2) + gd_mulfx(f_w3, f_b3) + gd_mulfx(f_w4, f_b4);
-							final long f_alpha = gd_mulfx(f_w1, f_a1) + gd_mulfx(f_w2, f_a2) + gd_mulfx(f_w3, f_a3) + gd_mulfx(f_w4, f_a4);
-
-							final char red   = (char) CLAMP(gd_fxtoi(f_red),   0, 255);
-							final char green = (char) CLAMP(gd_fxtoi(f_green), 0, 255);
-							final char blue  = (char) CLAMP(gd_fxtoi(f_blue),  0, 255);
-							final char alpha = (char) CLAMP(gd_fxtoi(f_alpha), 0, 127);
-
-							dst.tpixels[dst_offset_y][dst_offset_x++] = GdUtils.trueColorMixAlpha(red, green, blue, alpha);
+							dst.tpixels.set(dst_offset_x++, dst_offset_y, bgColor);
 						}
 					}
-				} else {
-					dst.tpixels[dst_offset_y][dst_offset_x++] = bgColor;
 				}
 			}
-			dst_offset_y++;
-		}
+		});
 		return dst;
 	}
 
-	private GdImage rotateBicubicFixed(final float degrees,final int bgColor) {
+	private GdImage rotateBicubicFixed(final float degrees,final int bgColor, final int parallelism) {
 		final float _angle = (float)((- degrees / 180.0f) * PI);
 		final int src_w = sx;
 		final int src_h = sy;
@@ -4426,10 +5367,7 @@ TODO:
 		final long f_6 = gd_itofx(6);
 		final long f_gama = gd_ftofx(1.04f);
 
-		int dst_offset_x;
-		int dst_offset_y = 0;
-		int i;
-		GdImage dst;
+		final GdImage dst;
 
 	/* impact perf a bit, but not that much. Implementation for palette
 	   images can be done at a later point.
@@ -4438,253 +5376,269 @@ TODO:
 			paletteToTrueColor();
 		}
 
-		dst = new GdImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
+		dst = createImage(new_width, new_height, GdImageColorType.TRUE_COLOR);
 
 		if (dst == null) {
 			return null;
 		}
 		dst.saveAlphaFlag = 1;
 
-		for (i=0; i < new_height; i++) {
-			int j;
-			dst_offset_x = 0;
-
-			for (j=0; j < new_width; j++) {
-				final long f_i = gd_itofx((int)i - (int)new_height / 2);
-				final long f_j = gd_itofx((int)j - (int)new_width  / 2);
-				final long f_m = gd_mulfx(f_j,f_sin) + gd_mulfx(f_i,f_cos) + f_0_5 + f_H;
-				final long f_n = gd_mulfx(f_j,f_cos) - gd_mulfx(f_i,f_sin) + f_0_5 + f_W;
-				final int m = gd_fxtoi(f_m);
-				final int n = gd_fxtoi(f_n);
-
-				if ((m > 0) && (m < src_h - 1) && (n > 0) && (n < src_w-1)) {
-					final long f_f = f_m - gd_itofx(m);
-					final long f_g = f_n - gd_itofx(n);
-					int[] src_offset_x = new int[16];
-					int[] src_offset_y = new int[16];
-					char red, green, blue, alpha;
-					long f_red=0, f_green=0, f_blue=0, f_alpha=0;
-
-					if ((m < 1) || (n < 1)) {
-						src_offset_x[0] = n;
-						src_offset_y[0] = m;
-					} else {
-						src_offset_x[0] = n - 1;
-						src_offset_y[0] = m;
-					}
-
-					if (m < 1) {
-						src_offset_x[1] = n;
-						src_offset_y[1] = m;
-					} else {
-						src_offset_x[1] = n;
-						src_offset_y[1] = m ;
-					}
-
-					if ((m < 1) || (n >= src_w-1)) {
-						src_offset_x[2] = - 1;
-						src_offset_y[2] = - 1;
-					} else {
-						src_offset_x[2] = n + 1;
-						src_offset_y[2] = m ;
-					}
-
-					if ((m < 1) || (n >= src_w-2)) {
-						src_offset_x[3] = - 1;
-						src_offset_y[3] = - 1;
-					} else {
-						src_offset_x[3] = n + 1 + 1;
-						src_offset_y[3] = m ;
-					}
-
-					if (n < 1) {
-						src_offset_x[4] = - 1;
-						src_offset_y[4] = - 1;
-					} else {
-						src_offset_x[4] = n - 1;
-						src_offset_y[4] = m;
-					}
-
-					src_offset_x[5] = n;
-					src_offset_y[5] = m;
-					if (n >= src_w-1) {
-						src_offset_x[6] = - 1;
-						src_offset_y[6] = - 1;
-					} else {
-						src_offset_x[6] = n + 1;
-						src_offset_y[6] = m;
-					}
-
-					if (n >= src_w-2) {
-						src_offset_x[7] = - 1;
-						src_offset_y[7] = - 1;
-					} else {
-						src_offset_x[7] = n + 1 + 1;
-						src_offset_y[7] = m;
-					}
-
-					if ((m >= src_h-1) || (n < 1)) {
-						src_offset_x[8] = - 1;
-						src_offset_y[8] = - 1;
-					} else {
-						src_offset_x[8] = n - 1;
-						src_offset_y[8] = m;
-					}
-
-					if (m >= src_h-1) {
-						src_offset_x[8] = - 1;
-						src_offset_y[8] = - 1;
-					} else {
-						src_offset_x[9] = n;
-						src_offset_y[9] = m;
-					}
+		GdParallel.forRange(parallelPool, parallelism, new_height, new GdCallbackRange() {
+			public void callbackRange(final int from, final int to) {
+				for (int i = from; i < to; i++) {
+					final int dst_offset_y = i;
+					int dst_offset_x = 0;
+					int j;
+
+					for (j=0; j < new_width; j++) {
+						final long f_i = gd_itofx((int)i - (int)new_height / 2);
+						final long f_j = gd_itofx((int)j - (int)new_width  / 2);
+						final long f_m = gd_mulfx(f_j,f_sin) + gd_mulfx(f_i,f_cos) + f_0_5 + f_H;
+						final long f_n = gd_mulfx(f_j,f_cos) - gd_mulfx(f_i,f_sin) + f_0_5 + f_W;
+						final int m = gd_fxtoi(f_m);
+						final int n = gd_fxtoi(f_n);
+
+						if ((m > 0) && (m < src_h - 1) && (n > 0) && (n < src_w-1)) {
+							final long f_f = f_m - gd_itofx(m);
+							final long f_g = f_n - gd_itofx(n);
+							int[] src_offset_x = new int[16];
+							int[] src_offset_y = new int[16];
+							char red, green, blue, alpha;
+							long f_red=0, f_green=0, f_blue=0, f_alpha=0;
+
+							if ((m < 1) || (n < 1)) {
+								src_offset_x[0] = n;
+								src_offset_y[0] = m;
+							} else {
+								src_offset_x[0] = n - 1;
+								src_offset_y[0] = m;
+							}
 
-					if ((m >= src_h-1) || (n >= src_w-1)) {
-						src_offset_x[10] = - 1;
-						src_offset_y[10] = - 1;
-					} else {
-						src_offset_x[10] = n + 1;
-						src_offset_y[10] = m;
-					}
+							if (m < 1) {
+								src_offset_x[1] = n;
+								src_offset_y[1] = m;
+							} else {
+								src_offset_x[1] = n;
+								src_offset_y[1] = m ;
+							}
 
-					if ((m >= src_h-1) || (n >= src_w-2)) {
-						src_offset_x[11] = - 1;
-						src_offset_y[11] = - 1;
-					} else {
-						src_offset_x[11] = n + 1 + 1;
-						src_offset_y[11] = m;
-					}
+							if ((m < 1) || (n >= src_w-1)) {
+								src_offset_x[2] = - 1;
+								src_offset_y[2] = - 1;
+							} else {
+								src_offset_x[2] = n + 1;
+								src_offset_y[2] = m ;
+							}
 
-					if ((m >= src_h-2) || (n < 1)) {
-						src_offset_x[12] = - 1;
-						src_offset_y[12] = - 1;
-					} else {
-						src_offset_x[12] = n - 1;
-						src_offset_y[12] = m;
-					}
+							if ((m < 1) || (n >= src_w-2)) {
+								src_offset_x[3] = - 1;
+								src_offset_y[3] = - 1;
+							} else {
+								src_offset_x[3] = n + 1 + 1;
+								src_offset_y[3] = m ;
+							}
 
-					if (m >= src_h-2) {
-						src_offset_x[13] = - 1;
-						src_offset_y[13] = - 1;
-					} else {
-						src_offset_x[13] = n;
-						src_offset_y[13] = m;
-					}
+							if (n < 1) {
+								src_offset_x[4] = - 1;
+								src_offset_y[4] = - 1;
+							} else {
+								src_offset_x[4] = n - 1;
+								src_offset_y[4] = m;
+							}
 
-					if ((m >= src_h-2) || (n >= src_w - 1)) {
-						src_offset_x[14] = - 1;
-						src_offset_y[14] = - 1;
-					} else {
-						src_offset_x[14] = n + 1;
-						src_offset_y[14] = m;
-					}
+							src_offset_x[5] = n;
+							src_offset_y[5] = m;
+							if (n >= src_w-1) {
+								src_offset_x[6] = - 1;
+								src_offset_y[6] = - 1;
+							} else {
+								src_offset_x[6] = n + 1;
+								src_offset_y[6] = m;
+							}
 
-					if ((m >= src_h-2) || (n >= src_w-2)) {
-						src_offset_x[15] = - 1;
-						src_offset_y[15] = - 1;
-					} else {
-						src_offset_x[15] = n  + 1 + 1;
-						src_offset_y[15] = m;
-					}
+							if (n >= src_w-2) {
+								src_offset_x[7] = - 1;
+								src_offset_y[7] = - 1;
+							} else {
+								src_offset_x[7] = n + 1 + 1;
+								src_offset_y[7] = m;
+							}
 
-					for (int k=-1; k<3; k++) {
-						long f_RY;
-						{
-							final long f = gd_itofx(k)-f_f;
-							final long f_fm1 = f - f_1;
-							final long f_fp1 = f + f_1;
-							final long f_fp2 = f + f_2;
-							long f_a = 0, f_b = 0,f_c = 0, f_d = 0;
-
-							if (f_fp2 > 0) {
-								f_a = gd_mulfx(f_fp2,gd_mulfx(f_fp2,f_fp2));
+							if ((m >= src_h-1) || (n < 1)) {
+								src_offset_x[8] = - 1;
+								src_offset_y[8] = - 1;
+							} else {
+								src_offset_x[8] = n - 1;
+								src_offset_y[8] = m;
 							}
 
-							if (f_fp1 > 0) {
-								f_b = gd_mulfx(f_fp1,gd_mulfx(f_fp1,f_fp1));
+							if (m >= src_h-1) {
+								src_offset_x[8] = - 1;
+								src_offset_y[8] = - 1;
+							} else {
+								src_offset_x[9] = n;
+								src_offset_y[9] = m;
 							}
 
-							if (f > 0) {
-								f_c = gd_mulfx(f,gd_mulfx(f,f));
+							if ((m >= src_h-1) || (n >= src_w-1)) {
+								src_offset_x[10] = - 1;
+								src_offset_y[10] = - 1;
+							} else {
+								src_offset_x[10] = n + 1;
+								src_offset_y[10] = m;
 							}
 
-							if (f_fm1 > 0) {
-								f_d = gd_mulfx(f_fm1,gd_mulfx(f_fm1,f_fm1));
+							if ((m >= src_h-1) || (n >= src_w-2)) {
+								src_offset_x[11] = - 1;
+								src_offset_y[11] = - 1;
+							} else {
+								src_offset_x[11] = n + 1 + 1;
+								src_offset_y[11] = m;
 							}
-							f_RY = gd_divfx((f_a-gd_mulfx(f_4,f_b)+gd_mulfx(f_6,f_c)-gd_mulfx(f_4,f_d)),f_6);
-						}
 
-						for (int l=-1;  l< 3; l++) {
-							final long f = gd_itofx(l) - f_g;
-							final long f_fm1 = f - f_1;
-							final long f_fp1 = f + f_1;
-							final long f_fp2 = f + f_2;
-							long f_a = 0, f_b = 0, f_c = 0, f_d = 0;
-							long f_RX, f_R;
-							final int _k = ((k + 1) * 4) + (l + 1);
-							long f_rs, f_gs, f_bs, f_as;
-							int c;
-
-							if (f_fp2 > 0) {
-								f_a = gd_mulfx(f_fp2,gd_mulfx(f_fp2,f_fp2));
+							if ((m >= src_h-2) || (n < 1)) {
+								src_offset_x[12] = - 1;
+								src_offset_y[12] = - 1;
+							} else {
+								src_offset_x[12] = n - 1;
+								src_offset_y[12] = m;
 							}
 
-							if (f_fp1 > 0) {
-								f_b = gd_mulfx(f_fp1,gd_mulfx(f_fp1,f_fp1));
+							if (m >= src_h-2) {
+								src_offset_x[13] = - 1;
+								src_offset_y[13] = - 1;
+							} else {
+								src_offset_x[13] = n;
+								src_offset_y[13] = m;
 							}
 
-							if (f > 0) {
-								f_c = gd_mulfx(f,gd_mulfx(f,f));
+							if ((m >= src_h-2) || (n >= src_w - 1)) {
+								src_offset_x[14] = - 1;
+								src_offset_y[14] = - 1;
+							} else {
+								src_offset_x[14] = n + 1;
+								src_offset_y[14] = m;
 							}
 
-							if (f_fm1 > 0) {
-								f_d = gd_mulfx(f_fm1,gd_mulfx(f_fm1,f_fm1));
+							if ((m >= src_h-2) || (n >= src_w-2)) {
+								src_offset_x[15] = - 1;
+								src_offset_y[15] = - 1;
+							} else {
+								src_offset_x[15] = n  + 1 + 1;
+								src_offset_y[15] = m;
 							}
 
-							f_RX = gd_divfx((f_a - gd_mulfx(f_4, f_b) + gd_mulfx(f_6, f_c) - gd_mulfx(f_4, f_d)), f_6);
-							f_R = gd_mulfx(f_RY, f_RX);
+							for (int k=-1; k<3; k++) {
+								long f_RY;
+								{
+									final long f = gd_itofx(k)-f_f;
+									final long f_fm1 = f - f_1;
+									final long f_fp1 = f + f_1;
+									final long f_fp2 = f + f_2;
+									long f_a = 0, f_b = 0,f_c = 0, f_d = 0;
+
+									if (f_fp2 > 0) {
+										f_a = gd_mulfx(f_fp2,gd_mulfx(f_fp2,f_fp2));
+									}
+
+									if (f_fp1 > 0) {
+										f_b = gd_mulfx(f_fp1,gd_mulfx(f_fp1,f_fp1));
+									}
+
+									if (f > 0) {
+										f_c = gd_mulfx(f,gd_mulfx(f,f));
+									}
+
+									if (f_fm1 > 0) {
+										f_d = gd_mulfx(f_fm1,gd_mulfx(f_fm1,f_fm1));
+									}
+									f_RY = gd_divfx((f_a-gd_mulfx(f_4,f_b)+gd_mulfx(f_6,f_c)-gd_mulfx(f_4,f_d)),f_6);
+								}
 
-							if ((src_offset_x[_k] <= 0) || (src_offset_y[_k] <= 0) || (src_offset_y[_k] >= src_h) || (src_offset_x[_k] >= src_w)) {
-								c = bgColor;
-							} else if ((src_offset_x[_k] <= 1) || (src_offset_y[_k] <= 1) || (src_offset_y[_k] >= (int)src_h - 1) || (src_offset_x[_k] >= (int)src_w - 1)) {
-								long f_127 = gd_itofx(127);
-								c = tpixels[src_offset_y[_k]][src_offset_x[_k]];
-								c = c | (( (int) (gd_fxtof(gd_mulfx(f_R, f_127)) + 50.5f)) << 24);
-								c = _color_blend(bgColor, c);
-							} else {
-								c = tpixels[src_offset_y[_k]][src_offset_x[_k]];
+								for (int l=-1;  l< 3; l++) {
+									final long f = gd_itofx(l) - f_g;
+									final long f_fm1 = f - f_1;
+									final long f_fp1 = f + f_1;
+									final long f_fp2 = f + f_2;
+									long f_a = 0, f_b = 0, f_c = 0, f_d = 0;
+									long f_RX, f_R;
+									final int _k = ((k + 1) * 4) + (l + 1);
+									long f_rs, f_gs, f_bs, f_as;
+									int c;
+
+									if (f_fp2 > 0) {
+										f_a = gd_mulfx(f_fp2,gd_mulfx(f_fp2,f_fp2));
+									}
+
+									if (f_fp1 > 0) {
+										f_b = gd_mulfx(f_fp1,gd_mulfx(f_fp1,f_fp1));
+									}
+
+									if (f > 0) {
+										f_c = gd_mulfx(f,gd_mulfx(f,f));
+									}
+
+									if (f_fm1 > 0) {
+										f_d = gd_mulfx(f_fm1,gd_mulfx(f_fm1,f_fm1));
+									}
+
+									f_RX = gd_divfx((f_a - gd_mulfx(f_4, f_b) + gd_mulfx(f_6, f_c) - gd_mulfx(f_4, f_d)), f_6);
+									f_R = gd_mulfx(f_RY, f_RX);
+
+									if ((src_offset_x[_k] <= 0) || (src_offset_y[_k] <= 0) || (src_offset_y[_k] >= src_h) || (src_offset_x[_k] >= src_w)) {
+										c = bgColor;
+									} else if ((src_offset_x[_k] <= 1) || (src_offset_y[_k] <= 1) || (src_offset_y[_k] >= (int)src_h - 1) || (src_offset_x[_k] >= (int)src_w - 1)) {
+										long f_127 = gd_itofx(127);
+										c = tpixels.get(src_offset_x[_k], src_offset_y[_k]);
+										c = c | (( (int) (gd_fxtof(gd_mulfx(f_R, f_127)) + 50.5f)) << 24);
+										c = _color_blend(bgColor, c);
+									} else {
+										c = tpixels.get(src_offset_x[_k], src_offset_y[_k]);
+									}
+
+									f_rs = gd_itofx(GdUtils.trueColorGetRed(c));
+									f_gs = gd_itofx(GdUtils.trueColorGetGreen(c));
+									f_bs = gd_itofx(GdUtils.trueColorGetBlue(c));
+									f_as = gd_itofx(GdUtils.trueColorGetAlpha(c));
+
+									f_red   += gd_mulfx(f_rs, f_R);
+									f_green += gd_mulfx(f_gs, f_R);
+									f_blue  += gd_mulfx(f_bs, f_R);
+									f_alpha += gd_mulfx(f_as, f_R);
+								}
 							}
 
-							f_rs = gd_itofx(GdUtils.trueColorGetRed(c));
-							f_gs = gd_itofx(GdUtils.trueColorGetGreen(c));
-							f_bs = gd_itofx(GdUtils.trueColorGetBlue(c));
-							f_as = gd_itofx(GdUtils.trueColorGetAlpha(c));
+							red   = (char) CLAMP(gd_fxtoi(gd_mulfx(f_red, f_gama)),   0, 255);
+							green = (char) CLAMP(gd_fxtoi(gd_mulfx(f_green, f_gama)), 0, 255);
+							blue  = (char) CLAMP(gd_fxtoi(gd_mulfx(f_blue, f_gama)),  0, 255);
+							alpha = (char) CLAMP(gd_fxtoi(gd_mulfx(f_alpha, f_gama)), 0, 127);
 
-							f_red   += gd_mulfx(f_rs, f_R);
-							f_green += gd_mulfx(f_gs, f_R);
-							f_blue  += gd_mulfx(f_bs, f_R);
-							f_alpha += gd_mulfx(f_as, f_R);
+							dst.tpixels.set(dst_offset_x, dst_offset_y, GdUtils.trueColorMixAlpha(red, green, blue, alpha));
+						} else {
+							dst.tpixels.set(dst_offset_x, dst_offset_y, bgColor);
 						}
+						dst_offset_x++;
 					}
 
-					red   = (char) CLAMP(gd_fxtoi(gd_mulfx(f_red, f_gama)),   0, 255);
-					green = (char) CLAMP(gd_fxtoi(gd_mulfx(f_green, f_gama)), 0, 255);
-					blue  = (char) CLAMP(gd_fxtoi(gd_mulfx(f_blue, f_gama)),  0, 255);
-					alpha = (char) CLAMP(gd_fxtoi(gd_mulfx(f_alpha, f_gama)), 0, 127);
-
-					dst.tpixels[dst_offset_y][dst_offset_x] =  GdUtils.trueColorMixAlpha(red, green, blue, alpha);
-				} else {
-					dst.tpixels[dst_offset_y][dst_offset_x] =  bgColor;
 				}
-				dst_offset_x++;
 			}
-
-			dst_offset_y++;
-		}
+		});
 		return dst;
 	}
 
-	public GdImage rotateInterpolated(final float angle, int bgcolor) {
+	public GdImage rotateInterpolated(final float angle, final int bgcolor) {
+		return rotateInterpolated(angle, bgcolor, parallelism);
+	}
+
+	/**
+	 * Rotates the image, splitting the destination rows into the given
+	 * number of slices instead of the image's parallelism.
+	 * @param angle angle in degrees
+	 * @param bgcolor color of the uncovered area
+	 * @param parallelism number of slices, 1 runs in the calling thread
+	 * @return the rotated image
+	 */
+	public GdImage rotateInterpolated(final float angle, final int bgcolor, final int parallelism) {
 		if (interpolation_id == null) {
 			return null;
 		}
@@ -4728,16 +5682,16 @@ TODO:
 
 		switch (interpolation_id) {
 			case GD_NEAREST_NEIGHBOUR:
-				return rotateNearestNeighbour(angle, bgcolor);
+				return rotateNearestNeighbour(angle, bgcolor, parallelism);
 
 			case GD_BILINEAR_FIXED:
-				return rotateBilinear(angle, bgcolor);
+				return rotateBilinear(angle, bgcolor, parallelism);
 
 			case GD_BICUBIC_FIXED:
-				return rotateBicubicFixed(angle, bgcolor);
+				return rotateBicubicFixed(angle, bgcolor, parallelism);
 
 			default:
-				return rotateGeneric(angle, bgcolor);
+				return rotateGeneric(angle, bgcolor, parallelism);
 		}
 	}
 
@@ -4796,7 +5750,7 @@ TODO:
 
 		final GdRect bbox = this.gdTransformAffineBoundingBox(src_area, affine);
 
-		final GdImage dst = new GdImage(bbox.width, bbox.height, GdImageColorType.TRUE_COLOR);
+		final GdImage dst = createImage(bbox.width, bbox.height, GdImageColorType.TRUE_COLOR);
 		dst.saveAlphaFlag = 1;
 
 		if (!this.trueColor) {
@@ -4809,6 +5763,12 @@ TODO:
 
 		dst.setAlphaBlending(GdEffect.REPLACE);
 
+	/* pixels sampling nothing of the source are left transparent */
+		final int background = GdUtils.trueColorMixAlpha(0, 0, 0, GdUtils.ALPHA_MAX);
+		for (int y = 0; y < dst.sy; y++) {
+			dst.tpixels.fill(y, 0, dst.sx, background);
+		}
+
 		gdTransformAffineCopy(dst, 0, 0, this, src_area, m);
 		return dst;
 	}
@@ -4832,7 +5792,26 @@ TODO:
 		int c1x,c1y,c2x,c2y;
 		final GdClipRectangle backup_clip;
 		int end_x, end_y;
-		GdInterpolationMethod interpolation_id_bak = GdInterpolationMethod.GD_DEFAULT;
+		GdInterpolationMethod interpolation_id_bak = null;
+
+	/* Get inverse affine to let us work with destination -> source */
+		final GdAffine inv = affine.invert();
+		if (inv == null) {
+			return false;
+		}
+
+		src.gdImageClipRectangle(src_region);
+
+		final GdRect bbox = gdTransformAffineBoundingBox(src_region, affine);
+
+	/* Pixel to pixel mappings, with the origin of the sampling loops below */
+		if (dst.alphaBlendingFlag == GdEffect.REPLACE) {
+			if (transformAffineFast(dst, dst_x, dst_y, src, src_region, affine, 0, 0)) {
+				return true;
+			}
+		} else if (transformAffineFast(dst, dst_x, dst_y, src, src_region, affine, bbox.x, bbox.y)) {
+			return true;
+		}
 
 	/* These methods use special implementations */
 		if (src.interpolation_id == GdInterpolationMethod.GD_BILINEAR_FIXED || src.interpolation_id == GdInterpolationMethod.GD_BICUBIC_FIXED || src.interpolation_id == GdInterpolationMethod.GD_NEAREST_NEIGHBOUR) {
@@ -4841,9 +5820,6 @@ TODO:
 			src.setInterpolationMethod(GdInterpolationMethod.GD_BICUBIC);
 		}
 
-
-		src.gdImageClipRectangle(src_region);
-
 		if (src_region.x > 0 || src_region.y > 0
 				|| src_region.width < src.sx
 				|| src_region.height < src.sy) {
@@ -4856,8 +5832,6 @@ TODO:
 			backup_clip = null;
 		}
 
-		final GdRect bbox = gdTransformAffineBoundingBox(src_region, affine);
-
 		final GdClipRectangle clip = dst.getClip();
 		c1x = clip.x0;
 		c1y = clip.y0;
@@ -4867,54 +5841,218 @@ TODO:
 		end_x = bbox.width  + (int) abs(bbox.x);
 		end_y = bbox.height + (int) abs(bbox.y);
 
-	/* Get inverse affine to let us work with destination -> source */
-		final GdAffine inv = affine.invert();
-
-		final int src_offset_x =  src_region.x;
-		final int src_offset_y =  src_region.y;
-		final GdPointF pt = new GdPointF();
+	/*
+	 * The source point of a pixel moves by (inv[0], inv[1]) from one
+	 * column to the next: rows are walked by adding these steps, and only
+	 * over the columns sampling the clipping rectangle of src. The center
+	 * of a destination pixel maps to a point of the source plane, in
+	 * which pixel (x, y) spans x..x+1; the sampler takes pixel centers at
+	 * whole coordinates, hence the half pixel off the offsets.
+	 */
+		final double step_x = inv.get(0);
+		final double step_y = inv.get(1);
+		final double src_offset_x =  src_region.x - 0.5;
+		final double src_offset_y =  src_region.y - 0.5;
+		final int[] span = new int[2];
 
 		if (dst.alphaBlendingFlag == GdEffect.REPLACE) {
-			for (int y = bbox.y; y <= end_y; y++) {
-				pt.y = y + 0.5;
-				for (int x = 0; x <= end_x; x++) {
-					pt.x = x + 0.5;
-					final GdPointF src_pt = inv.applyToPointF(pt);
-					dst.setPixel(dst_x + x, dst_y + y, src.getPixelInterpolated(src_offset_x + src_pt.x, src_offset_y + src_pt.y, 0));
-				}
+			final GdSampler sampler = GdSampler.create(src, 0);
+			for (int y = MAX(bbox.y, c1y - dst_y); y <= MIN(end_y, c2y - dst_y); y++) {
+				final double py = y + 0.5;
+				span[0] = MAX(bbox.x, c1x - dst_x);
+				span[1] = MIN(end_x, c2x - dst_x);
+				transformAffineRow(dst, true, dst_x, dst_y + y, src, span,
+						src_offset_x + 0.5 * step_x + py * inv.get(2) + inv.get(4),
+						src_offset_y + 0.5 * step_y + py * inv.get(3) + inv.get(5),
+						step_x, step_y, sampler);
 			}
 		} else {
-			for (int y = 0; y <= end_y; y++) {
-				pt.y = y + 0.5 + bbox.y;
-				if ((dst_y + y) < 0 || ((dst_y + y) > dst.sy -1)) {
-					continue;
-				}
+			final GdSampler sampler = GdSampler.create(src, -1);
+			for (int y = MAX(0, -dst_y); y <= MIN(end_y, dst.sy - 1 - dst_y); y++) {
+				final double px = 0.5 + bbox.x;
+				final double py = y + 0.5 + bbox.y;
+				span[0] = MAX(0, -dst_x);
+				span[1] = MIN(end_x, dst.sx - 1 - dst_x);
+				transformAffineRow(dst, false, dst_x, dst_y + y, src, span,
+						src_offset_x + px * step_x + py * inv.get(2) + inv.get(4),
+						src_offset_y + px * step_y + py * inv.get(3) + inv.get(5),
+						step_x, step_y, sampler);
+			}
+		}
 
-				final int[] dst_row = dst.tpixels[dst_y + y];
-				int dst_p = dst_x;
+	/* Restore clip if required */
+		if (backup_clip != null) {
+			src.setClip(backup_clip.x0, backup_clip.y0, backup_clip.x1, backup_clip.y1);
+		}
 
-				for (int x = 0; x <= end_x; x++) {
-					pt.x = x + 0.5 + bbox.x;
-					final GdPointF src_pt = inv.applyToPointF(pt);
+		if (interpolation_id_bak != null) {
+			src.setInterpolationMethod(interpolation_id_bak);
+		}
+		return true;
+	}
 
-					if ((dst_x + x) < 0 || (dst_x + x) > (dst.sx - 1)) {
-						break;
-					}
-					dst_row[dst_p] = src.getPixelInterpolated(src_offset_x + src_pt.x, src_offset_y + src_pt.y, -1);
-					dst_p++;
+	/*
+	 * gdTransformAffineCopy for a matrix taking pixels onto pixels: a
+	 * translation by whole pixels is an imageCopy(), a scale along the
+	 * axes goes through scale() with the interpolation method of src, and
+	 * quarter turns through rotate90/180/270(). (origin_x, origin_y) is the
+	 * point of the destination plane at dst_x, dst_y. Returns false,
+	 * having done nothing, for any other matrix or if the result would not
+	 * start on a pixel boundary, and for translations and quarter turns
+	 * unless the interpolation method gives the pixels themselves at
+	 * their centers, as the sampling loops would. Pixels are replaced, as
+	 * by the sampling loops.
+	 */
+	private static boolean transformAffineFast(final GdImage dst, final int dst_x, final int dst_y, final GdImage src,
+											   final GdRect src_region, final GdAffine affine,
+											   final double origin_x, final double origin_y) {
+		final double a0 = affine.get(0), a1 = affine.get(1), a2 = affine.get(2), a3 = affine.get(3);
+		final boolean axes = abs(a1) < GdUtils.GD_EPSILON && abs(a2) < GdUtils.GD_EPSILON;
+		final boolean turn = abs(a0) < GdUtils.GD_EPSILON && abs(a3) < GdUtils.GD_EPSILON;
+
+		if (src_region.width < 1 || src_region.height < 1 || !(axes || turn)) {
+			return false;
+		}
+
+	/* destination of the source area */
+		final double x0 = affine.get(4), y0 = affine.get(5);
+		final double x1 = src_region.width * a0 + src_region.height * a2 + x0;
+		final double y1 = src_region.width * a1 + src_region.height * a3 + y0;
+		final double left = Math.min(x0, x1) - origin_x;
+		final double top = Math.min(y0, y1) - origin_y;
+		final int to_x = dst_x + (int) Math.round(left);
+		final int to_y = dst_y + (int) Math.round(top);
+		final int width = (int) Math.round(abs(x1 - x0));
+		final int height = (int) Math.round(abs(y1 - y0));
+
+		if (abs(left - Math.round(left)) > GdUtils.GD_EPSILON || abs(top - Math.round(top)) > GdUtils.GD_EPSILON
+				|| width < 1 || height < 1) {
+			return false;
+		}
+
+		final GdImage moved;
+		final boolean whole = (src.interpolation == null) || (abs(src.interpolation.filter(0) - 1) < GdUtils.GD_EPSILON
+				&& abs(src.interpolation.filter(1)) < GdUtils.GD_EPSILON && abs(src.interpolation.filter(-1)) < GdUtils.GD_EPSILON
+				&& abs(src.interpolation.filter(2)) < GdUtils.GD_EPSILON && abs(src.interpolation.filter(-2)) < GdUtils.GD_EPSILON);
+		final boolean unit = abs(abs(a0 + a1) - 1) < GdUtils.GD_EPSILON && abs(abs(a2 + a3) - 1) < GdUtils.GD_EPSILON;
+		if (axes && a0 > 0 && a3 > 0) {
+			if (width == src_region.width && height == src_region.height) {
+				if (!whole) {
+					return false;
+				}
+				moved = src;
+			} else {
+				moved = transformAffineSource(src, src_region).scale(width, height);
+				if (moved == null) {
+					return false;
 				}
 			}
+		} else if (!unit || !whole) {
+			return false;
+		} else if (axes) {
+			moved = transformAffineSource(src, src_region).rotate180(false);
+		} else if (a1 > 0) {
+			moved = transformAffineSource(src, src_region).rotate270(false);
+		} else {
+			moved = transformAffineSource(src, src_region).rotate90(false);
 		}
 
-	/* Restore clip if required */
-		if (backup_clip != null) {
-			src.setClip(clip.x0, clip.y0, clip.x1, clip.y1);
+		final GdEffect blending = dst.alphaBlendingFlag;
+		dst.alphaBlendingFlag = GdEffect.REPLACE;
+		if (moved == src) {
+			imageCopy(dst, src, to_x, to_y, src_region.x, src_region.y, src_region.width, src_region.height);
+		} else {
+			imageCopy(dst, moved, to_x, to_y, 0, 0, moved.sx, moved.sy);
 		}
-
-		src.setInterpolationMethod(interpolation_id_bak);
+		dst.alphaBlendingFlag = blending;
 		return true;
 	}
 
+	/*
+	 * The area of src to transform, as a truecolor image with the
+	 * interpolation method of src: src itself if it is all of a truecolor
+	 * image, else a copy.
+	 */
+	private static GdImage transformAffineSource(final GdImage src, final GdRect src_region) {
+		if (src.trueColor && src_region.x == 0 && src_region.y == 0
+				&& src_region.width == src.sx && src_region.height == src.sy) {
+			return src;
+		}
+		final GdImage part = src.createImage(src_region.width, src_region.height, GdImageColorType.TRUE_COLOR);
+		final int[] row = new int[src_region.width];
+		for (int y = 0; y < src_region.height; y++) {
+			if (src.trueColor) {
+				src.tpixels.getRow(src_region.y + y, src_region.x, row, 0, src_region.width);
+			} else {
+				src.pixels.getRow(src_region.y + y, src_region.x, row, 0, src_region.width);
+				for (int x = 0; x < src_region.width; x++) {
+					final int c = row[x];
+					row[x] = (c == src.transparent) ? GdUtils.trueColorMixAlpha(0, 0, 0, GdUtils.ALPHA_MAX)
+							: GdUtils.trueColorMixAlpha(src.red[c], src.green[c], src.blue[c], src.alpha[c]);
+				}
+			}
+			part.tpixels.setRow(y, 0, row, 0, src_region.width);
+		}
+		part.transparent = src.trueColor ? src.transparent : -1;
+		part.setInterpolationMethod(src.interpolation_id);
+		return part;
+	}
+
+	/*
+	 * One row of gdTransformAffineCopy: column x of the row, span[0] <= x
+	 * <= span[1], is pixel dst_x + x of row dst_y and samples src at
+	 * (src_x + x * step_x, src_y + x * step_y) through sampler. Columns whose interpolation
+	 * footprint, two pixels around the sample, misses the clipping
+	 * rectangle of src are left alone instead of being interpolated from
+	 * the background.
+	 */
+	private static void transformAffineRow(final GdImage dst, final boolean blend, final int dst_x, final int dst_y,
+										   final GdImage src, final int[] span, final double src_x, final double src_y,
+										   final double step_x, final double step_y, final GdSampler sampler) {
+		final double min_x = src.cx1 - 2, max_x = src.cx2 + 3;
+		final double min_y = src.cy1 - 2, max_y = src.cy2 + 3;
+
+		transformAffineSpan(src_x, step_x, min_x, max_x, span);
+		transformAffineSpan(src_y, step_y, min_y, max_y, span);
+
+		double px = src_x + span[0] * step_x;
+		double py = src_y + span[0] * step_y;
+		for (int x = span[0]; x <= span[1]; x++, px += step_x, py += step_y) {
+			if (px < min_x || px >= max_x || py < min_y || py >= max_y) {
+				continue;
+			}
+			final int c = sampler.sample(px, py);
+			if (blend) {
+				dst.setPixel(dst_x + x, dst_y, c);
+			} else {
+				dst.tpixels.set(dst_x + x, dst_y, c);
+			}
+		}
+	}
+
+	/*
+	 * Narrows span[0]..span[1] to the columns x for which s + x * step may
+	 * fall within [min, max). The bounds are widened by a column against
+	 * rounding; the columns are tested one by one anyway.
+	 */
+	private static void transformAffineSpan(final double s, final double step, final double min, final double max, final int[] span) {
+		if (step == 0) {
+			if (s < min || s >= max) {
+				span[1] = span[0] - 1;
+			}
+			return;
+		}
+		double lo = (min - s) / step;
+		double hi = (max - s) / step;
+		if (lo > hi) {
+			final double t = lo;
+			lo = hi;
+			hi = t;
+		}
+		span[0] = (int) Math.max(span[0], floor(lo) - 1);
+		span[1] = (int) Math.min(span[1], ceil(hi) + 1);
+	}
+
 	/**
 	 * Function: gdTransformAffineBoundingBox
 	 *  Returns the bounding box of an affine transformation applied to a
@@ -4933,6 +6071,10 @@ TODO:
 		GdPointF min, max, point;
 		int i;
 
+		for (i=0; i < 4; i++) {
+			extent[i] = new GdPointF();
+		}
+
 		extent[0].x=0.0;
 		extent[0].y=0.0;
 		extent[1].x=(double) src.width;
@@ -4946,8 +6088,12 @@ TODO:
 			point=extent[i];
 			extent[i] = affine.applyToPointF(point);
 		}
-		min=extent[0];
-		max=extent[0];
+		min=new GdPointF();
+		min.x=extent[0].x;
+		min.y=extent[0].y;
+		max=new GdPointF();
+		max.x=extent[0].x;
+		max.y=extent[0].y;
 
 		for (i=1; i < 4; i++) {
 			if (min.x > extent[i].x)
@@ -5065,7 +6211,7 @@ TODO:
 
 	/* Convert and clamp. */
 		result = (short)(clr + 0.5);
-		if (result > max) {
+		if (result > max || result < 0) {
 			result = (clr < 0) ? 0 : max;
 		}/* if */
 
@@ -5079,7 +6225,7 @@ TODO:
 	private static final double ROTATE_DEG2RAD = PI/180;
 	public void skewX(final GdImage dst, final int uRow, final int iOffset, final double dWeight, int clrBack, final boolean ignoretransparent) {
 		int i, r, g, b, a, clrBackR, clrBackG, clrBackB, clrBackA;
-		final int[][] f;
+		final GdPixelStorageInterface f;
 
 		int pxlOldLeft, pxlLeft=0, pxlSrc;
 
@@ -5106,7 +6252,7 @@ TODO:
 		}
 
 		for (i = 0; i < this.sx; i++) {
-			pxlSrc = f[uRow][i];
+			pxlSrc = f.get(i, uRow);
 
 			r = (int)(this.red[pxlSrc] * dWeight);
 			g = (int)(this.green[pxlSrc] * dWeight);
@@ -5174,7 +6320,7 @@ TODO:
 
 	public void skewY(GdImage dst, int uCol, int iOffset, double dWeight, final int clrBack, final boolean ignoretransparent) {
 		int i, iYPos=0, r, g, b, a;
-		final int[][] f;
+		final GdPixelStorageInterface f;
 		int pxlOldLeft, pxlLeft=0, pxlSrc;
 
 		if (this.trueColor) {
@@ -5194,7 +6340,7 @@ TODO:
 		pxlOldLeft = dst.colorAllocateAlpha(r, g, b, a);
 
 		for (i = 0; i < this.sy; i++) {
-			pxlSrc = f[i][uCol];
+			pxlSrc = f.get(uCol, i);
 			iYPos = i + iOffset;
 
 			r = (int)((double)this.red[pxlSrc] * dWeight);
@@ -5261,14 +6407,14 @@ TODO:
 	public GdImage rotate90(final boolean ignoretransparent) {
 		int uY, uX;
 		int c,r,g,b,a;
-		final int[][] f;
+		final GdPixelStorageInterface f;
 
 		if (this.trueColor) {
 			f = tpixels;
 		} else {
 			f = pixels;
 		}
-		final GdImage dst = new GdImage(sy, sx, GdImageColorType.TRUE_COLOR);
+		final GdImage dst = createImage(sy, sx, GdImageColorType.TRUE_COLOR);
 		final GdEffect old_blendmode = dst.alphaBlendingFlag;
 		dst.alphaBlendingFlag = GdEffect.REPLACE;
 
@@ -5278,7 +6424,7 @@ TODO:
 
 		for (uY = 0; uY<sy; uY++) {
 			for (uX = 0; uX<sx; uX++) {
-				c = f[uY][uX];
+				c = f.get(uX, uY);
 				if (!trueColor) {
 					r = this.red[c];
 					g = this.green[c];
@@ -5303,14 +6449,14 @@ TODO:
 		int uY, uX;
 		int c,r,g,b,a;
 		GdImage dst;
-		final int[][] f;
+		final GdPixelStorageInterface f;
 
 		if (this.trueColor) {
 			f = tpixels;
 		} else {
 			f = pixels;
 		}
-		dst = new GdImage(this.sx, this.sy, GdImageColorType.TRUE_COLOR);
+		dst = createImage(this.sx, this.sy, GdImageColorType.TRUE_COLOR);
 
 		if (dst != null) {
 			final GdEffect old_blendmode = dst.alphaBlendingFlag;
@@ -5322,7 +6468,7 @@ TODO:
 
 			for (uY = 0; uY<this.sy; uY++) {
 				for (uX = 0; uX<this.sx; uX++) {
-					c = f[uY][uX];
+					c = f.get(uX, uY);
 					if (!this.trueColor) {
 						r = this.red[c];
 						g = this.green[c];
@@ -5349,14 +6495,14 @@ TODO:
 		int uY, uX;
 		int c,r,g,b,a;
 		GdImage dst;
-		final int[][] f;
+		final GdPixelStorageInterface f;
 
 		if (this.trueColor) {
 			f = tpixels;
 		} else {
 			f = pixels;
 		}
-		dst = new GdImage(this.sy, this.sx, GdImageColorType.TRUE_COLOR);
+		dst = createImage(this.sy, this.sx, GdImageColorType.TRUE_COLOR);
 
 		if (dst != null) {
 			final GdEffect old_blendmode = dst.alphaBlendingFlag;
@@ -5368,7 +6514,7 @@ TODO:
 
 			for (uY = 0; uY<this.sy; uY++) {
 				for (uX = 0; uX<this.sx; uX++) {
-					c = f[uY][uX];
+					c = f.get(uX, uY);
 					if (!this.trueColor) {
 						r = this.red[c];
 						g = this.green[c];
@@ -5406,7 +6552,7 @@ TODO:
 		newy = this.sy;
 
 	/* 1st shear */
-		dst1 = new GdImage(newx, newy, GdImageColorType.TRUE_COLOR);
+		dst1 = createImage(newx, newy, GdImageColorType.TRUE_COLOR);
 		/******* Perform 1st shear (horizontal) ******/
 		if (dst1 == null) {
 			return null;
@@ -5464,7 +6610,7 @@ TODO:
 
 		newy = (int) ((double) this.sx * abs(dSinE) + (double) this.sy * cos (dRadAngle))+1;
 
-		dst2 = new GdImage(newx, newy, GdImageColorType.TRUE_COLOR);
+		dst2 = createImage(newx, newy, GdImageColorType.TRUE_COLOR);
 
 		dst2.alphaBlendingFlag = GdEffect.REPLACE;
 
@@ -5481,7 +6627,7 @@ TODO:
 		newx = (int) ((double)this.sy * abs(dSinE) + (double)this.sx * cos (dRadAngle)) + 1;
 		newy = dst2.sy;
 
-		dst3 = new GdImage(newx, newy, GdImageColorType.TRUE_COLOR);
+		dst3 = createImage(newx, newy, GdImageColorType.TRUE_COLOR);
 
 		dst3.alphaBlendingFlag = GdEffect.REPLACE;
 
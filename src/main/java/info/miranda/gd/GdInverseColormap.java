@@ -0,0 +1,181 @@
+package info.miranda.gd;
+
+import java.util.Arrays;
+
+/*
+	Inverse colormap of a palette: a cube of cells over red, green, blue
+	(and alpha) holding the palette entry closest to the center of each
+	cell, so that mapping a color is a single array load. Palette images
+	map colors through one (see GdImage.colorInverseMap()), and so do the
+	quantizers of GdImage.trueColorToPalette().
+
+	Cells are filled on first use and kept until reset(), which the owner
+	of the palette calls whenever it changes. When every entry in use has
+	the same alpha, alpha cannot change the ranking of the entries and the
+	cube is only indexed by red, green and blue.
+
+	The closest entry is the one at the least squared distance over red,
+	green, blue and alpha, ties going to the lowest index, as in
+	GdImage.findColorClosestAlpha(); but it is the closest to the cell
+	center, not to the color itself, so the two may differ for colors near
+	the border between two entries. With 8 bits per channel and entries of
+	one alpha they agree.
+
+	Filling a cell only reads the palette, so between two calls to reset()
+	the cube may be used from any number of threads at once; threads
+	racing to fill a cell all store the same value.
+*/
+class GdInverseColormap {
+
+	private final int[] red;
+	private final int[] green;
+	private final int[] blue;
+	private final int[] alpha;
+	private final boolean[] open;
+	private final int redBits;
+	private final int greenBits;
+	private final int blueBits;
+	private final int alphaBits;
+
+	/* palette version the cells are valid for, as told to reset() */
+	private int version = -1;
+	private int colors;
+	private boolean uniformAlpha;
+	/* alpha of the entries when uniformAlpha */
+	private int paletteAlpha;
+	/* palette index + 1, 0 for a cell not filled yet */
+	private short[] cells;
+
+	/**
+	 * @param redBits bits kept of red, 1 to 8; likewise greenBits and blueBits
+	 * @param alphaBits bits kept of alpha, 0 to 7; at most 24 bits in all
+	 */
+	GdInverseColormap(final int[] red, final int[] green, final int[] blue, final int[] alpha, final boolean[] open,
+					  final int redBits, final int greenBits, final int blueBits, final int alphaBits) {
+		if (redBits < 1 || redBits > 8 || greenBits < 1 || greenBits > 8 || blueBits < 1 || blueBits > 8
+				|| alphaBits < 0 || alphaBits > 7 || redBits + greenBits + blueBits + alphaBits > 24) {
+			throw new IllegalArgumentException("unsupported inverse colormap size: "
+					+ redBits + "/" + greenBits + "/" + blueBits + "/" + alphaBits);
+		}
+		this.red = red;
+		this.green = green;
+		this.blue = blue;
+		this.alpha = alpha;
+		this.open = open;
+		this.redBits = redBits;
+		this.greenBits = greenBits;
+		this.blueBits = blueBits;
+		this.alphaBits = alphaBits;
+	}
+
+	/**
+	 * @return the version given to the latest reset(), -1 before the first
+	 */
+	int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Forgets the cells, the palette having changed.
+	 * @param colors number of palette entries, open ones included
+	 * @param version version of the palette, see getVersion()
+	 */
+	void reset(final int colors, final int version) {
+		int a = -1;
+		uniformAlpha = true;
+		for (int c = 0; c < colors; c++) {
+			if (open[c]) {
+				continue;
+			}
+			if (a == -1) {
+				a = alpha[c];
+			} else if (a != alpha[c]) {
+				uniformAlpha = false;
+			}
+		}
+		paletteAlpha = Math.max(a, 0);
+		final int size = 1 << (redBits + greenBits + blueBits + (uniformAlpha ? 0 : alphaBits));
+		if (cells == null || cells.length < size) {
+			cells = new short[size];
+		} else {
+			Arrays.fill(cells, 0, size, (short) 0);
+		}
+		this.colors = colors;
+		this.version = version;
+	}
+
+	/**
+	 * @return palette entry closest to the cell of the color, -1 for an empty palette
+	 */
+	int lookup(final int r, final int g, final int b, final int a) {
+		int cell = (((clamp(r, 255) >> (8 - redBits)) << greenBits | (clamp(g, 255) >> (8 - greenBits))) << blueBits)
+				| (clamp(b, 255) >> (8 - blueBits));
+		if (!uniformAlpha) {
+			cell = (cell << alphaBits) | (clamp(a, 127) >> (7 - alphaBits));
+		}
+		final int c = cells[cell];
+		if (c != 0) {
+			return c - 1;
+		}
+		return fill(cell);
+	}
+
+	/**
+	 * @return palette entry closest to the cell of a truecolor pixel, -1 for an empty palette
+	 */
+	int lookup(final int pixel) {
+		return lookup((pixel >> 16) & 0xFF, (pixel >> 8) & 0xFF, pixel & 0xFF, (pixel >> 24) & 0x7F);
+	}
+
+	/**
+	 * Maps a row of truecolor pixels.
+	 */
+	void map(final int[] src, final int srcOffset, final int[] dst, final int dstOffset, final int len) {
+		for (int i = 0; i < len; i++) {
+			dst[dstOffset + i] = lookup(src[srcOffset + i]);
+		}
+	}
+
+	private static int clamp(final int v, final int max) {
+		return v < 0 ? 0 : (v > max ? max : v);
+	}
+
+	/* Center of the cell of quantized value q, s bits having been dropped. */
+	private static int center(final int q, final int s) {
+		return s == 0 ? q : (q << s) | (1 << (s - 1));
+	}
+
+	private int fill(final int cell) {
+		int rest = cell;
+		int a = paletteAlpha;
+		if (!uniformAlpha) {
+			a = center(rest & ((1 << alphaBits) - 1), 7 - alphaBits);
+			rest >>= alphaBits;
+		}
+		final int b = center(rest & ((1 << blueBits) - 1), 8 - blueBits);
+		rest >>= blueBits;
+		final int g = center(rest & ((1 << greenBits) - 1), 8 - greenBits);
+		final int r = center(rest >> greenBits, 8 - redBits);
+		int best = -1;
+		long bestDist = Long.MAX_VALUE;
+		for (int i = 0; i < colors; i++) {
+			if (open[i]) {
+				continue;
+			}
+			final long rd = red[i] - r;
+			final long gd = green[i] - g;
+			final long bd = blue[i] - b;
+			final long ad = alpha[i] - a;
+			final long dist = rd * rd + gd * gd + bd * bd + ad * ad;
+			if (dist < bestDist) {
+				bestDist = dist;
+				best = i;
+			}
+		}
+		if (best >= 0) {
+			cells[cell] = (short) (best + 1);
+		}
+		return best;
+	}
+
+}
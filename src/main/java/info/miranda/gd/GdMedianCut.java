@@ -0,0 +1,238 @@
+package info.miranda.gd;
+
+import info.miranda.gd.interfaces.GdCallbackRange;
+import info.miranda.gd.utils.GdParallel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+	Median cut quantization after the two-pass quantizer of libjpeg
+	(jquant2.c), as GD_QUANT_JQUANT.
+
+	Colors are counted in a histogram of 5 bits of red, 6 of green, 5 of
+	blue and 3 of alpha. The boxes of the color space are split at the
+	middle of their longest side, favoring the most populated boxes first
+	and the largest ones afterwards, until there are enough of them; each
+	box then gives the mean of its colors. The histogram has the cells of
+	the inverse colormap of GdQuantizer, and keeps the sums of the colors
+	falling in each cell as well as their count, so that the mean is that
+	of the colors themselves and not of the cell centers: an opaque image
+	keeps an opaque palette, and pure white stays white.
+*/
+class GdMedianCut extends GdQuantizer {
+
+	/* relative weight of the channels when measuring boxes, as in jquant2 */
+	private static final int[] SCALE = {2, 3, 1, 4};
+	private static final int[] SHIFT = {R_SHIFT, G_SHIFT, B_SHIFT, A_SHIFT};
+	/* pixels a slice counts before adding its int sums to the long ones */
+	private static final int FLUSH = 1 << 27;
+
+	private int[] histogram;
+	/* red, green, blue and alpha of the pixels of every cell, summed
+	   relative to the low corner of the cell */
+	private long[] sums;
+
+	/* A box of the color space, in histogram units, both ends inclusive. */
+	private static class Box {
+		final int[] min = new int[4];
+		final int[] max = new int[4];
+		long volume;
+		long colorCount;
+	}
+
+	void quantize(final GdImage im, final int colorsWanted) {
+		histogram = new int[CELLS];
+		sums = new long[4 * CELLS];
+		prescan(im);
+		selectColors(colorsWanted);
+		histogram = null;
+		sums = null;
+	}
+
+	/* Counts the colors, slices of rows into histograms of their own. */
+	private void prescan(final GdImage im) {
+		final int width = im.sx;
+		final int transparent = im.transparent;
+		final int rows = Math.max(1, FLUSH / Math.max(1, width));
+		GdParallel.forRange(im.parallelPool, im.parallelism, im.sy, new GdCallbackRange() {
+			@Override
+			public void callbackRange(final int from, final int to) {
+				final int[] row = new int[width];
+				final int[] counts = new int[CELLS];
+				final int[] offsets = new int[4 * CELLS];
+				for (int top = from; top < to; top += rows) {
+					for (int y = top; y < Math.min(to, top + rows); y++) {
+						im.tpixels.getRow(y, 0, row, 0, width);
+						for (int x = 0; x < width; x++) {
+							final int p = row[x];
+							if (p == transparent) {
+								continue;
+							}
+							final int c = cell(p);
+							counts[c]++;
+							offsets[4 * c] += (p >> 16) & ((1 << R_SHIFT) - 1);
+							offsets[4 * c + 1] += (p >> 8) & ((1 << G_SHIFT) - 1);
+							offsets[4 * c + 2] += p & ((1 << B_SHIFT) - 1);
+							offsets[4 * c + 3] += (p >> 24) & ((1 << A_SHIFT) - 1);
+						}
+					}
+				/* at most FLUSH pixels so far, which the int sums hold */
+					synchronized (histogram) {
+						for (int i = 0; i < CELLS; i++) {
+							if (counts[i] == 0) {
+								continue;
+							}
+							histogram[i] += counts[i];
+							counts[i] = 0;
+							for (int k = 4 * i; k < 4 * i + 4; k++) {
+								sums[k] += offsets[k];
+								offsets[k] = 0;
+							}
+						}
+					}
+				}
+			}
+		});
+	}
+
+	private void selectColors(final int desired) {
+		final List<Box> boxes = new ArrayList<Box>();
+		final Box first = new Box();
+		first.max[0] = (1 << R_BITS) - 1;
+		first.max[1] = (1 << G_BITS) - 1;
+		first.max[2] = (1 << B_BITS) - 1;
+		first.max[3] = (1 << A_BITS) - 1;
+		if (!updateBox(first)) {
+			colors = 0;
+			return;
+		}
+		boxes.add(first);
+		while (boxes.size() < desired) {
+		/* first split by population, then by volume */
+			final Box b1 = (boxes.size() * 2 <= desired) ? biggestColorPop(boxes) : biggestVolume(boxes);
+			if (b1 == null) {
+				break;
+			}
+			final Box b2 = new Box();
+			System.arraycopy(b1.min, 0, b2.min, 0, 4);
+			System.arraycopy(b1.max, 0, b2.max, 0, 4);
+		/* longest side, ties going to green, red, blue, then alpha */
+			int axis = 1;
+			long longest = -1;
+			for (final int k : new int[]{1, 0, 2, 3}) {
+				final long dist = (long) ((b1.max[k] - b1.min[k]) << SHIFT[k]) * SCALE[k];
+				if (dist > longest) {
+					longest = dist;
+					axis = k;
+				}
+			}
+			final int lb = (b1.max[axis] + b1.min[axis]) / 2;
+			b1.max[axis] = lb;
+			b2.min[axis] = lb + 1;
+			updateBox(b1);
+			updateBox(b2);
+			boxes.add(b2);
+		}
+		colors = boxes.size();
+		for (int i = 0; i < colors; i++) {
+			computeColor(boxes.get(i), i);
+		}
+	}
+
+	private static Box biggestColorPop(final List<Box> boxes) {
+		Box which = null;
+		long max = 0;
+		for (final Box b : boxes) {
+			if (b.colorCount > max && b.volume > 0) {
+				which = b;
+				max = b.colorCount;
+			}
+		}
+		return which;
+	}
+
+	private static Box biggestVolume(final List<Box> boxes) {
+		Box which = null;
+		long max = 0;
+		for (final Box b : boxes) {
+			if (b.volume > max) {
+				which = b;
+				max = b.volume;
+			}
+		}
+		return which;
+	}
+
+	/* Shrinks the box to the cells in use and measures it; false if it is empty. */
+	private boolean updateBox(final Box box) {
+		final int[] lo = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+		final int[] hi = {-1, -1, -1, -1};
+		long count = 0;
+		for (int c0 = box.min[0]; c0 <= box.max[0]; c0++) {
+			for (int c1 = box.min[1]; c1 <= box.max[1]; c1++) {
+				for (int c2 = box.min[2]; c2 <= box.max[2]; c2++) {
+					final int base = (c0 << POS[0]) | (c1 << POS[1]) | (c2 << POS[2]);
+					for (int c3 = box.min[3]; c3 <= box.max[3]; c3++) {
+						if (histogram[base | c3] == 0) {
+							continue;
+						}
+						count++;
+						lo[0] = Math.min(lo[0], c0);
+						hi[0] = Math.max(hi[0], c0);
+						lo[1] = Math.min(lo[1], c1);
+						hi[1] = Math.max(hi[1], c1);
+						lo[2] = Math.min(lo[2], c2);
+						hi[2] = Math.max(hi[2], c2);
+						lo[3] = Math.min(lo[3], c3);
+						hi[3] = Math.max(hi[3], c3);
+					}
+				}
+			}
+		}
+		box.colorCount = count;
+		if (count == 0) {
+			box.volume = 0;
+			return false;
+		}
+		long volume = 0;
+		for (int k = 0; k < 4; k++) {
+			box.min[k] = lo[k];
+			box.max[k] = hi[k];
+			final long dist = (long) ((hi[k] - lo[k]) << SHIFT[k]) * SCALE[k];
+			volume += dist * dist;
+		}
+		box.volume = volume;
+		return true;
+	}
+
+	/* The mean of the colors of the box. */
+	private void computeColor(final Box box, final int icolor) {
+		long total = 0;
+		final long[] sum = new long[4];
+		for (int c0 = box.min[0]; c0 <= box.max[0]; c0++) {
+			for (int c1 = box.min[1]; c1 <= box.max[1]; c1++) {
+				for (int c2 = box.min[2]; c2 <= box.max[2]; c2++) {
+					final int base = (c0 << POS[0]) | (c1 << POS[1]) | (c2 << POS[2]);
+					for (int c3 = box.min[3]; c3 <= box.max[3]; c3++) {
+						final int cell = base | c3;
+						final long count = histogram[cell];
+						if (count == 0) {
+							continue;
+						}
+						total += count;
+						sum[0] += (c0 << R_SHIFT) * count + sums[4 * cell];
+						sum[1] += (c1 << G_SHIFT) * count + sums[4 * cell + 1];
+						sum[2] += (c2 << B_SHIFT) * count + sums[4 * cell + 2];
+						sum[3] += (c3 << A_SHIFT) * count + sums[4 * cell + 3];
+					}
+				}
+			}
+		}
+		red[icolor] = (int) ((sum[0] + (total >> 1)) / total);
+		green[icolor] = (int) ((sum[1] + (total >> 1)) / total);
+		blue[icolor] = (int) ((sum[2] + (total >> 1)) / total);
+		alpha[icolor] = (int) ((sum[3] + (total >> 1)) / total);
+	}
+
+}
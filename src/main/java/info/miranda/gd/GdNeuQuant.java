@@ -0,0 +1,351 @@
+package info.miranda.gd;
+
+/*
+	NeuQuant neural-net quantization by Anthony Dekker ("Kohonen neural
+	networks for optimal colour quantization", 1994), as
+	GD_QUANT_NEUQUANT, learning alpha along with red, green and blue.
+
+	A one-dimensional self-organizing map of colorsWanted neurons is
+	trained on a sample of the pixels: every sampled pixel pulls the
+	closest neuron (biased towards rarely chosen ones) and, less so, its
+	neighbours towards itself. The sampling factor trades speed for
+	quality: 1 looks at every pixel, 10 at every tenth.
+
+	Alpha is learned on the 0..254 scale, twice the alpha of GdImage, so
+	that it weighs like the color channels.
+*/
+class GdNeuQuant extends GdQuantizer {
+
+	private static final int NCYCLES = 100;	/* number of learning cycles */
+
+	/* four primes near 500 - assume no image has a length so large that it
+	   is divisible by all four primes */
+	private static final int PRIME1 = 499;
+	private static final int PRIME2 = 491;
+	private static final int PRIME3 = 487;
+	private static final int PRIME4 = 503;
+
+	/* network definitions */
+	private static final int NETBIASSHIFT = 4;	/* bias for colour values */
+
+	/* definitions for frequency and bias */
+	private static final int INTBIASSHIFT = 16;	/* bias for fractions */
+	private static final int INTBIAS = 1 << INTBIASSHIFT;
+	private static final int GAMMASHIFT = 10;	/* gamma = 1024 */
+	private static final int BETASHIFT = 10;
+	private static final int BETA = INTBIAS >> BETASHIFT;	/* beta = 1/1024 */
+	private static final int BETAGAMMA = INTBIAS << (GAMMASHIFT - BETASHIFT);
+
+	/* definitions for decreasing radius factor */
+	private static final int RADIUSBIASSHIFT = 6;	/* at 32.0 biased by 6 bits */
+	private static final int RADIUSBIAS = 1 << RADIUSBIASSHIFT;
+	private static final int RADIUSDEC = 30;	/* factor of 1/30 each cycle */
+
+	/* definitions for decreasing alpha factor */
+	private static final int ALPHABIASSHIFT = 10;	/* alpha starts at 1.0 */
+	private static final int INITALPHA = 1 << ALPHABIASSHIFT;
+
+	/* radbias and alpharadbias used for radpower calculation */
+	private static final int RADBIASSHIFT = 8;
+	private static final int RADBIAS = 1 << RADBIASSHIFT;
+	private static final int ALPHARADBSHIFT = ALPHABIASSHIFT + RADBIASSHIFT;
+	private static final int ALPHARADBIAS = 1 << ALPHARADBSHIFT;
+
+	private final int sampleFactor;
+
+	private int netsize;
+	/* the network itself, NET ints per neuron: blue, green, red, alpha,
+	   then the palette entry once unbiased */
+	private static final int NET = 5;
+	private int[] network;
+	/* for network lookup - really 256 */
+	private final int[] netindex = new int[256];
+	/* bias and freq arrays for learning */
+	private int[] bias;
+	private int[] freq;
+	private int[] radpower;
+
+	/**
+	 * @param sampleFactor 1 (best quality) to 10 (fastest)
+	 */
+	GdNeuQuant(final int sampleFactor) {
+		super(false);
+		this.sampleFactor = Math.max(1, Math.min(10, sampleFactor));
+	}
+
+	void quantize(final GdImage im, final int colorsWanted) {
+		netsize = Math.max(1, colorsWanted);
+		network = new int[netsize * NET];
+		bias = new int[netsize];
+		freq = new int[netsize];
+		radpower = new int[netsize >> 3];
+		for (int i = 0; i < netsize; i++) {
+			final int p = i * NET;
+			network[p] = network[p + 1] = network[p + 2] = (i << (NETBIASSHIFT + 8)) / netsize;
+			network[p + 3] = 0;
+			freq[i] = INTBIAS / netsize;	/* 1/netsize */
+			bias[i] = 0;
+		}
+		learn(im);
+		unbiasnet();
+		inxbuild();
+		colors = netsize;
+		for (int i = 0; i < netsize; i++) {
+			final int p = i * NET;
+			final int c = network[p + 4];
+			blue[c] = network[p];
+			green[c] = network[p + 1];
+			red[c] = network[p + 2];
+			alpha[c] = Math.min(GdUtils.ALPHA_TRANSPARENT, (network[p + 3] + 1) >> 1);
+		}
+		bias = null;
+		freq = null;
+		radpower = null;
+	}
+
+	/* Main learning loop. */
+	private void learn(final GdImage im) {
+		final int width = im.sx;
+		final long lengthcount = (long) im.sx * im.sy;
+		final int samplefac = (lengthcount < PRIME4) ? 1 : sampleFactor;
+		final int alphadec = 30 + ((samplefac - 1) / 3);
+		final long samplepixels = lengthcount / samplefac;
+		long delta = samplepixels / NCYCLES;
+		if (delta == 0) {
+			delta = 1;
+		}
+		int alpha = INITALPHA;
+		int radius = (netsize >> 3) * RADIUSBIAS;
+		int rad = radius >> RADIUSBIASSHIFT;
+		if (rad <= 1) {
+			rad = 0;
+		}
+		setRadpower(rad, alpha);
+
+		final int step;
+		if ((lengthcount % PRIME1) != 0) {
+			step = PRIME1;
+		} else if ((lengthcount % PRIME2) != 0) {
+			step = PRIME2;
+		} else if ((lengthcount % PRIME3) != 0) {
+			step = PRIME3;
+		} else {
+			step = PRIME4;
+		}
+
+		long pix = 0;
+		for (long i = 0; i < samplepixels; ) {
+			final int p = im.tpixels.get((int) (pix % width), (int) (pix / width));
+			pix += step;
+			if (pix >= lengthcount) {
+				pix -= lengthcount;
+			}
+			i++;
+			if (p != im.transparent) {
+				final int b = (p & 0xFF) << NETBIASSHIFT;
+				final int g = ((p >> 8) & 0xFF) << NETBIASSHIFT;
+				final int r = ((p >> 16) & 0xFF) << NETBIASSHIFT;
+				final int a = (((p >> 24) & 0x7F) << 1) << NETBIASSHIFT;
+				final int j = contest(b, g, r, a);
+				altersingle(alpha, j, b, g, r, a);
+				if (rad != 0) {
+					alterneigh(rad, j, b, g, r, a);	/* alter neighbours */
+				}
+			}
+			if (i % delta == 0) {
+				alpha -= alpha / alphadec;
+				radius -= radius / RADIUSDEC;
+				rad = radius >> RADIUSBIASSHIFT;
+				if (rad <= 1) {
+					rad = 0;
+				}
+				setRadpower(rad, alpha);
+			}
+		}
+	}
+
+	private void setRadpower(final int rad, final int alpha) {
+		for (int i = 0; i < rad; i++) {
+			radpower[i] = alpha * (((rad * rad - i * i) * RADBIAS) / (rad * rad));
+		}
+	}
+
+	/* Search for biased BGRA values: finds the closest neuron (min dist) and
+	   updates freq, then finds the best neuron (min dist-bias) and returns
+	   its position. For frequently chosen neurons, freq[i] is high and
+	   bias[i] is negative: bias[i] = gamma * ((1 / netsize) - freq[i]). */
+	private int contest(final int b, final int g, final int r, final int a) {
+		int bestd = Integer.MAX_VALUE;
+		int bestbiasd = bestd;
+		int bestpos = -1;
+		int bestbiaspos = bestpos;
+
+		final int[] n = network;
+		for (int i = 0, p = 0; i < netsize; i++, p += NET) {
+			final int dist = Math.abs(n[p] - b) + Math.abs(n[p + 1] - g) + Math.abs(n[p + 2] - r) + Math.abs(n[p + 3] - a);
+			if (dist < bestd) {
+				bestd = dist;
+				bestpos = i;
+			}
+			final int biasdist = dist - ((bias[i]) >> (INTBIASSHIFT - NETBIASSHIFT));
+			if (biasdist < bestbiasd) {
+				bestbiasd = biasdist;
+				bestbiaspos = i;
+			}
+			final int betafreq = (freq[i] >> BETASHIFT);
+			freq[i] -= betafreq;
+			bias[i] += (betafreq << GAMMASHIFT);
+		}
+		freq[bestpos] += BETA;
+		bias[bestpos] -= BETAGAMMA;
+		return bestbiaspos;
+	}
+
+	/* Move neuron i towards biased (b,g,r,a) by factor alpha. */
+	private void altersingle(final int alpha, final int i, final int b, final int g, final int r, final int a) {
+		final int[] n = network;
+		final int p = i * NET;
+		n[p] -= (alpha * (n[p] - b)) / INITALPHA;
+		n[p + 1] -= (alpha * (n[p + 1] - g)) / INITALPHA;
+		n[p + 2] -= (alpha * (n[p + 2] - r)) / INITALPHA;
+		n[p + 3] -= (alpha * (n[p + 3] - a)) / INITALPHA;
+	}
+
+	/* Move adjacent neurons by precomputed alpha*(1-((i-j)^2/[r]^2)) in radpower[|i-j|]. */
+	private void alterneigh(final int rad, final int i, final int b, final int g, final int r, final int a) {
+		final int lo = Math.max(i - rad, -1);
+		final int hi = Math.min(i + rad, netsize);
+		int j = i + 1;
+		int k = i - 1;
+		int m = 1;
+		while ((j < hi) || (k > lo)) {
+			final int q = radpower[m++];
+			if (j < hi) {
+				alter(network, NET * j++, q, b, g, r, a);
+			}
+			if (k > lo) {
+				alter(network, NET * k--, q, b, g, r, a);
+			}
+		}
+	}
+
+	private static void alter(final int[] n, final int p, final int q, final int b, final int g, final int r, final int a) {
+		n[p] -= (q * (n[p] - b)) / ALPHARADBIAS;
+		n[p + 1] -= (q * (n[p + 1] - g)) / ALPHARADBIAS;
+		n[p + 2] -= (q * (n[p + 2] - r)) / ALPHARADBIAS;
+		n[p + 3] -= (q * (n[p + 3] - a)) / ALPHARADBIAS;
+	}
+
+	/* Unbias network to give byte values 0..255 and record position i to prepare for sort. */
+	private void unbiasnet() {
+		for (int i = 0; i < netsize; i++) {
+			final int p = i * NET;
+			for (int k = 0; k < 4; k++) {
+				final int v = (network[p + k] + (1 << (NETBIASSHIFT - 1))) >> NETBIASSHIFT;
+				network[p + k] = Math.max(0, Math.min(255, v));
+			}
+			network[p + 4] = i;	/* record colour no */
+		}
+	}
+
+	/* Insertion sort of network and building of netindex[0..255] (to do after unbias). */
+	private void inxbuild() {
+		int previouscol = 0;
+		int startpos = 0;
+		for (int i = 0; i < netsize; i++) {
+			int smallpos = i;
+			int smallval = network[i * NET + 1];	/* index on g */
+			/* find smallest in i..netsize-1 */
+			for (int j = i + 1; j < netsize; j++) {
+				if (network[j * NET + 1] < smallval) {	/* index on g */
+					smallpos = j;
+					smallval = network[j * NET + 1];
+				}
+			}
+			/* swap p (i) and q (smallpos) entries */
+			if (i != smallpos) {
+				for (int k = 0; k < NET; k++) {
+					final int t = network[smallpos * NET + k];
+					network[smallpos * NET + k] = network[i * NET + k];
+					network[i * NET + k] = t;
+				}
+			}
+			/* smallval entry is now in position i */
+			if (smallval != previouscol) {
+				netindex[previouscol] = (startpos + i) >> 1;
+				for (int j = previouscol + 1; j < smallval; j++) {
+					netindex[j] = i;
+				}
+				previouscol = smallval;
+				startpos = i;
+			}
+		}
+		final int maxnetpos = netsize - 1;
+		netindex[previouscol] = (startpos + maxnetpos) >> 1;
+		for (int j = previouscol + 1; j < 256; j++) {
+			netindex[j] = maxnetpos;	/* really 256 */
+		}
+	}
+
+	/* Search for BGRA values 0..255 (after net is unbiased) and return colour index. */
+	@Override
+	int map(final int r, final int g0, final int b, final int a0) {
+		final int g = Math.max(0, Math.min(255, g0));
+		final int a = a0 << 1;
+		int bestd = Integer.MAX_VALUE;	/* biggest possible dist is 4 * 255 */
+		int best = 0;
+		int i = netindex[g];	/* index on g */
+		int j = i - 1;	/* start at netindex[g] and work outwards */
+
+		while ((i < netsize) || (j >= 0)) {
+			if (i < netsize) {
+				final int p = i * NET;
+				int dist = network[p + 1] - g;	/* inx key */
+				if (dist >= bestd) {
+					i = netsize;	/* stop iter */
+				} else {
+					i++;
+					dist = Math.abs(dist) + Math.abs(network[p] - b);
+					if (dist < bestd) {
+						dist += Math.abs(network[p + 2] - r);
+						if (dist < bestd) {
+							dist += Math.abs(network[p + 3] - a);
+							if (dist < bestd) {
+								bestd = dist;
+								best = network[p + 4];
+							}
+						}
+					}
+				}
+			}
+			if (j >= 0) {
+				final int p = j * NET;
+				int dist = g - network[p + 1];	/* inx key - reverse dif */
+				if (dist >= bestd) {
+					j = -1;	/* stop iter */
+				} else {
+					j--;
+					dist = Math.abs(dist) + Math.abs(network[p] - b);
+					if (dist < bestd) {
+						dist += Math.abs(network[p + 2] - r);
+						if (dist < bestd) {
+							dist += Math.abs(network[p + 3] - a);
+							if (dist < bestd) {
+								bestd = dist;
+								best = network[p + 4];
+							}
+						}
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	@Override
+	int map(final int pixel) {
+		return map(GdUtils.trueColorGetRed(pixel), GdUtils.trueColorGetGreen(pixel),
+				GdUtils.trueColorGetBlue(pixel), GdUtils.trueColorGetAlpha(pixel));
+	}
+
+}
@@ -0,0 +1,344 @@
+package info.miranda.gd;
+
+import java.util.Arrays;
+
+/*
+	Nearest color search over the palette of an image.
+
+	The entries in use are kept in a k-d tree over red, green, blue and
+	alpha, and the latest answers in small direct-mapped caches. Both are
+	dropped when the palette changes (see GdImage.paletteChanged()); the
+	tree is only rebuilt once the palette has stayed the same for a few
+	searches, which are linear until then, so that filling up a palette
+	color by color does not pay for a tree at every step. Ties go to the
+	lowest palette index, so the answers are exactly those of the linear
+	scans of the C library.
+*/
+class GdPaletteIndex {
+
+	private static final int CACHE_BITS = 12;
+	private static final int CACHE_SIZE = 1 << CACHE_BITS;
+	/* linear searches on an unchanged palette before the tree is built */
+	private static final int BUILD_AFTER = 64;
+
+	private final GdImage im;
+	/* palette version the caches are valid for */
+	private int version = -1;
+	private boolean built;
+	private int searches;
+
+	/* Implicit k-d tree: the node of the range lo..hi-1 sits at its middle,
+	   splitting it along axis[] of that position. */
+	private final int[] index = new int[GdUtils.MAX_COLORS];
+	private final int[] components = new int[4 * GdUtils.MAX_COLORS];
+	private final int[] axis = new int[GdUtils.MAX_COLORS];
+	private final int[] sortKeys = new int[GdUtils.MAX_COLORS];
+	private int count;
+
+	/* HWB of every palette entry, for colorClosestHWB() */
+	private final GdImage.GdHWBType[] hwb = new GdImage.GdHWBType[GdUtils.MAX_COLORS];
+	private boolean hwbValid;
+
+	/* best match of the running search */
+	private long bestDist;
+	private int best;
+
+	private final Cache closestCache = new Cache();
+	private final Cache resolveCache = new Cache();
+	private final Cache hwbCache = new Cache();
+	/* transparent color resolveCache was filled for */
+	private int resolveTransparent;
+
+	GdPaletteIndex(final GdImage im) {
+		this.im = im;
+	}
+
+	/**
+	 * Closest entry in use, transparent one included; -1 for an empty
+	 * palette. See GdImage.findColorClosestAlpha().
+	 */
+	int closest(final int r, final int g, final int b, final int a) {
+		update();
+		final int key = key(r, g, b, a);
+		if (key >= 0) {
+			final int slot = closestCache.find(key);
+			if (slot >= 0) {
+				return closestCache.values[slot];
+			}
+		}
+		search(r, g, b, a, -1);
+		if (key >= 0) {
+			closestCache.put(key, best, bestDist);
+		}
+		return best;
+	}
+
+	/**
+	 * Lowest entry in use matching exactly, transparent one included; -1 if
+	 * there is none. See GdImage.colorExactAlpha().
+	 */
+	int exact(final int r, final int g, final int b, final int a) {
+		final int c = closest(r, g, b, a);
+		return (c >= 0 && bestDistance(r, g, b, a, c) == 0) ? c : -1;
+	}
+
+	/**
+	 * Closest entry in use, never the transparent one; -1 if there is none.
+	 * Leaves the distance to it in lastDistance().
+	 */
+	int closestOpaque(final int r, final int g, final int b, final int a) {
+		update();
+		if (resolveTransparent != im.transparent) {
+			resolveCache.clear();
+			resolveTransparent = im.transparent;
+		}
+		final int key = key(r, g, b, a);
+		if (key >= 0) {
+			final int slot = resolveCache.find(key);
+			if (slot >= 0) {
+				bestDist = resolveCache.dists[slot];
+				return resolveCache.values[slot];
+			}
+		}
+		search(r, g, b, a, im.transparent);
+		if (key >= 0) {
+			resolveCache.put(key, best, bestDist);
+		}
+		return best;
+	}
+
+	/**
+	 * @return squared distance to the color last returned by closestOpaque()
+	 */
+	long lastDistance() {
+		return bestDist;
+	}
+
+	/**
+	 * Closest entry in use by GdImage.HWB_Diff(); -1 for an empty palette.
+	 */
+	int closestHWB(final int r, final int g, final int b) {
+		update();
+		final int key = key(r, g, b, 0);
+		if (key >= 0) {
+			final int slot = hwbCache.find(key);
+			if (slot >= 0) {
+				return hwbCache.values[slot];
+			}
+		}
+		if (!hwbValid) {
+			for (int c = 0; c < im.colorsTotal; c++) {
+				if (!im.open[c]) {
+					hwb[c] = GdImage.RGB_to_HWB(new GdImage.GdRGBType(im.red[c], im.green[c], im.blue[c]));
+				}
+			}
+			hwbValid = true;
+		}
+		final GdImage.GdHWBType HWB2 = GdImage.RGB_to_HWB(new GdImage.GdRGBType(r, g, b));
+		int ct = -1;
+		boolean first = true;
+		double mindist = 0;
+		for (int c = 0; c < im.colorsTotal; c++) {
+			if (im.open[c]) {
+				continue;
+			}
+			final double dist = GdImage.HWB_Diff(hwb[c], HWB2);
+			if (first || (dist < mindist)) {
+				mindist = dist;
+				ct = c;
+				first = false;
+			}
+		}
+		if (key >= 0) {
+			hwbCache.put(key, ct, 0);
+		}
+		return ct;
+	}
+
+	/* Cache key of a color, -1 if out of range. */
+	private static int key(final int r, final int g, final int b, final int a) {
+		if (((r | g | b) & ~0xFF) != 0 || (a & ~0x7F) != 0) {
+			return -1;
+		}
+		return (a << 24) | (r << 16) | (g << 8) | b;
+	}
+
+	private long bestDistance(final int r, final int g, final int b, final int a, final int c) {
+		final long rd = im.red[c] - r;
+		final long gd = im.green[c] - g;
+		final long bd = im.blue[c] - b;
+		final long ad = im.alpha[c] - a;
+		return rd * rd + gd * gd + bd * bd + ad * ad;
+	}
+
+	/* Forgets the tree and the cached answers if the palette changed. */
+	private void update() {
+		if (version == im.paletteVersion) {
+			return;
+		}
+		built = false;
+		searches = 0;
+		hwbValid = false;
+		closestCache.clear();
+		resolveCache.clear();
+		hwbCache.clear();
+		resolveTransparent = im.transparent;
+		version = im.paletteVersion;
+	}
+
+	private void build() {
+		count = 0;
+		for (int c = 0; c < im.colorsTotal; c++) {
+			if (!im.open[c]) {
+				index[count++] = c;
+			}
+		}
+		build(0, count);
+		for (int i = 0; i < count; i++) {
+			final int c = index[i];
+			components[4 * i] = im.red[c];
+			components[4 * i + 1] = im.green[c];
+			components[4 * i + 2] = im.blue[c];
+			components[4 * i + 3] = im.alpha[c];
+		}
+		built = true;
+	}
+
+	private int component(final int c, final int axis) {
+		switch (axis) {
+			case 0:
+				return im.red[c];
+			case 1:
+				return im.green[c];
+			case 2:
+				return im.blue[c];
+			default:
+				return im.alpha[c];
+		}
+	}
+
+	/* Splits index[lo..hi-1] at its middle along the axis of largest spread. */
+	private void build(final int lo, final int hi) {
+		if (hi - lo <= 1) {
+			if (hi > lo) {
+				axis[lo] = 0;
+			}
+			return;
+		}
+		int split = 0;
+		int spread = -1;
+		for (int k = 0; k < 4; k++) {
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			for (int i = lo; i < hi; i++) {
+				final int v = component(index[i], k);
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+			if (max - min > spread) {
+				spread = max - min;
+				split = k;
+			}
+		}
+	/* palette components are small, pack them with the index to sort */
+		for (int i = lo; i < hi; i++) {
+			sortKeys[i] = (component(index[i], split) << 9) | index[i];
+		}
+		Arrays.sort(sortKeys, lo, hi);
+		for (int i = lo; i < hi; i++) {
+			index[i] = sortKeys[i] & 0x1FF;
+		}
+		final int mid = (lo + hi) >>> 1;
+		axis[mid] = split;
+		build(lo, mid);
+		build(mid + 1, hi);
+	}
+
+	private void search(final int r, final int g, final int b, final int a, final int exclude) {
+		bestDist = Long.MAX_VALUE;
+		best = -1;
+		if (!built && ++searches > BUILD_AFTER) {
+			build();
+		}
+		if (built) {
+			search(0, count, r, g, b, a, exclude);
+			return;
+		}
+		for (int c = 0; c < im.colorsTotal; c++) {
+			if (im.open[c] || c == exclude) {
+				continue;
+			}
+			final long dist = bestDistance(r, g, b, a, c);
+			if (dist < bestDist) {
+				bestDist = dist;
+				best = c;
+			}
+		}
+	}
+
+	private void search(final int lo, final int hi, final int r, final int g, final int b, final int a,
+						final int exclude) {
+		if (lo >= hi) {
+			return;
+		}
+		final int mid = (lo + hi) >>> 1;
+		final int p = 4 * mid;
+		final int c = index[mid];
+		if (c != exclude) {
+			final long rd = components[p] - r;
+			final long gd = components[p + 1] - g;
+			final long bd = components[p + 2] - b;
+			final long ad = components[p + 3] - a;
+			final long dist = rd * rd + gd * gd + bd * bd + ad * ad;
+			if (dist < bestDist || (dist == bestDist && c < best)) {
+				bestDist = dist;
+				best = c;
+			}
+		}
+		final int k = axis[mid];
+		final long diff = (long) (k == 0 ? r : k == 1 ? g : k == 2 ? b : a) - components[p + k];
+	/* the far side can still hold a tie with a lower index, hence <= */
+		if (diff < 0) {
+			search(lo, mid, r, g, b, a, exclude);
+			if (diff * diff <= bestDist) {
+				search(mid + 1, hi, r, g, b, a, exclude);
+			}
+		} else {
+			search(mid + 1, hi, r, g, b, a, exclude);
+			if (diff * diff <= bestDist) {
+				search(lo, mid, r, g, b, a, exclude);
+			}
+		}
+	}
+
+	/* Direct-mapped cache of recent answers. Clearing only starts a new
+	   generation; entries of older generations never match. */
+	private static class Cache {
+		final int[] keys = new int[CACHE_SIZE];
+		final int[] generations = new int[CACHE_SIZE];
+		final int[] values = new int[CACHE_SIZE];
+		final long[] dists = new long[CACHE_SIZE];
+		int generation = 1;
+
+		void clear() {
+			if (++generation == 0) {
+				Arrays.fill(generations, 0);
+				generation = 1;
+			}
+		}
+
+		int find(final int key) {
+			final int slot = (key * 0x9E3779B1) >>> (32 - CACHE_BITS);
+			return (keys[slot] == key && generations[slot] == generation) ? slot : -1;
+		}
+
+		void put(final int key, final int value, final long dist) {
+			final int slot = (key * 0x9E3779B1) >>> (32 - CACHE_BITS);
+			keys[slot] = key;
+			generations[slot] = generation;
+			values[slot] = value;
+			dists[slot] = dist;
+		}
+	}
+
+}
@@ -0,0 +1,267 @@
+package info.miranda.gd;
+
+import info.miranda.gd.enums.GdPngFilterStrategy;
+
+import java.util.Arrays;
+
+/*
+	Filters PNG scanlines, choosing the filter of each row by a strategy.
+
+	GD_PNG_FILTER_MINSUM tries the five filters on the whole row and keeps
+	the one whose output, as signed bytes, has the smallest sum of
+	absolute values, as libpng does; a filter is dropped as soon as its
+	sum reaches the best one so far. GD_PNG_FILTER_ENTROPY only looks at
+	about SAMPLES evenly spaced bytes of the row and keeps the filter
+	whose bytes there have the lowest entropy, which follows the cost of
+	the bytes to deflate more closely, at a fixed price per row.
+
+	The candidates are never written out: a filtered byte only depends on
+	the raw and prior rows, so it is computed where it is looked at and
+	only the chosen filter fills the output. Nothing is allocated per row;
+	the histogram makes a GdPngFilter good for one thread at a time.
+	unfilter() reverses any of the filters for GdPngReader.
+*/
+class GdPngFilter {
+
+	private static final int SAMPLES = 512;
+	/* c * log2(c) for the counts of a histogram of fewer than 2 * SAMPLES bytes */
+	private static final double[] CLOGC = new double[2 * SAMPLES];
+
+	static {
+		for (int c = 1; c < CLOGC.length; c++) {
+			CLOGC[c] = c * Math.log(c) / Math.log(2);
+		}
+	}
+
+	private final GdPngFilterStrategy strategy;
+	private final int bpp;
+	private final int[] histogram = new int[256];
+
+	GdPngFilter(final GdPngRows rows) {
+		this.strategy = rows.filter;
+		this.bpp = rows.filterStride();
+	}
+
+	/**
+	 * Filters the scanline raw[1..len] into out[off..off+len], its filter
+	 * type first; prior is the previous scanline of the pass, all zero for
+	 * the first one.
+	 */
+	void apply(final byte[] raw, final byte[] prior, final byte[] out, final int off, final int len) {
+		final int type;
+		switch (strategy) {
+			case GD_PNG_FILTER_SUB:
+				type = GdPngWriter.FILTER_SUB;
+				break;
+			case GD_PNG_FILTER_UP:
+				type = GdPngWriter.FILTER_UP;
+				break;
+			case GD_PNG_FILTER_AVERAGE:
+				type = GdPngWriter.FILTER_AVERAGE;
+				break;
+			case GD_PNG_FILTER_PAETH:
+				type = GdPngWriter.FILTER_PAETH;
+				break;
+			case GD_PNG_FILTER_MINSUM:
+				type = chooseMinSum(raw, prior, len);
+				break;
+			case GD_PNG_FILTER_ENTROPY:
+				type = chooseEntropy(raw, prior, len);
+				break;
+			default:
+				type = GdPngWriter.FILTER_NONE;
+				break;
+		}
+		filter(type, raw, prior, out, off, len, bpp);
+	}
+
+	private int chooseMinSum(final byte[] raw, final byte[] prior, final int len) {
+		int best = GdPngWriter.FILTER_NONE;
+		long bestSum = Long.MAX_VALUE;
+		for (int type = GdPngWriter.FILTER_NONE; type <= GdPngWriter.FILTER_PAETH; type++) {
+			final long sum = sum(type, raw, prior, len, bestSum);
+			if (sum < bestSum) {
+				best = type;
+				bestSum = sum;
+			}
+		}
+		return best;
+	}
+
+	/* Sum of the absolute filtered bytes, or some value from limit up once it gets there. */
+	private long sum(final int type, final byte[] raw, final byte[] prior, final int len, final long limit) {
+		final int head = Math.min(bpp, len);
+		long sum = 0;
+		for (int i = 1; i <= head; i++) {
+			sum += abs(residual(type, raw, prior, i, bpp));
+		}
+		switch (type) {
+			case GdPngWriter.FILTER_SUB:
+				for (int i = head + 1; i <= len && sum < limit; i++) {
+					sum += abs((byte) (raw[i] - raw[i - bpp]));
+				}
+				break;
+			case GdPngWriter.FILTER_UP:
+				for (int i = head + 1; i <= len && sum < limit; i++) {
+					sum += abs((byte) (raw[i] - prior[i]));
+				}
+				break;
+			case GdPngWriter.FILTER_AVERAGE:
+				for (int i = head + 1; i <= len && sum < limit; i++) {
+					sum += abs((byte) (raw[i] - (((raw[i - bpp] & 0xFF) + (prior[i] & 0xFF)) >> 1)));
+				}
+				break;
+			case GdPngWriter.FILTER_PAETH:
+				for (int i = head + 1; i <= len && sum < limit; i++) {
+					sum += abs((byte) (raw[i] - paeth(raw[i - bpp] & 0xFF, prior[i] & 0xFF, prior[i - bpp] & 0xFF)));
+				}
+				break;
+			default:
+				for (int i = head + 1; i <= len && sum < limit; i++) {
+					sum += abs(raw[i]);
+				}
+				break;
+		}
+		return sum;
+	}
+
+	private int chooseEntropy(final byte[] raw, final byte[] prior, final int len) {
+		final int step = Math.max(1, len / SAMPLES);
+		int best = GdPngWriter.FILTER_NONE;
+		double bestCost = Double.MAX_VALUE;
+		for (int type = GdPngWriter.FILTER_NONE; type <= GdPngWriter.FILTER_PAETH; type++) {
+			Arrays.fill(histogram, 0);
+			for (int i = 1; i <= len; i += step) {
+				histogram[residual(type, raw, prior, i, bpp) & 0xFF]++;
+			}
+		/* the samples are as many for every filter, so the entropy only
+		   differs by -sum(c log c) */
+			double cost = 0;
+			for (int c = 0; c < 256; c++) {
+				cost -= CLOGC[histogram[c]];
+			}
+			if (cost < bestCost) {
+				best = type;
+				bestCost = cost;
+			}
+		}
+		return best;
+	}
+
+	private static int abs(final int v) {
+		return v < 0 ? -v : v;
+	}
+
+	/* Byte i of raw filtered with the given type. */
+	private static byte residual(final int type, final byte[] raw, final byte[] prior, final int i, final int bpp) {
+		final int left = i > bpp ? raw[i - bpp] & 0xFF : 0;
+		switch (type) {
+			case GdPngWriter.FILTER_SUB:
+				return (byte) (raw[i] - left);
+			case GdPngWriter.FILTER_UP:
+				return (byte) (raw[i] - prior[i]);
+			case GdPngWriter.FILTER_AVERAGE:
+				return (byte) (raw[i] - ((left + (prior[i] & 0xFF)) >> 1));
+			case GdPngWriter.FILTER_PAETH:
+				return (byte) (raw[i] - paeth(left, prior[i] & 0xFF, i > bpp ? prior[i - bpp] & 0xFF : 0));
+			default:
+				return raw[i];
+		}
+	}
+
+	/**
+	 * Filters a scanline of len bytes, raw[1..len], into out[off..off+len]
+	 * with its filter type in out[off]; prior is the previous scanline of
+	 * the pass, all zero for the first one.
+	 * @param bpp bytes per complete pixel, at least 1
+	 */
+	static void filter(final int type, final byte[] raw, final byte[] prior, final byte[] out, final int off,
+					   final int len, final int bpp) {
+		out[off] = (byte) type;
+		switch (type) {
+			case GdPngWriter.FILTER_SUB:
+				for (int i = 1; i <= len; i++) {
+					out[off + i] = (byte) (raw[i] - (i > bpp ? raw[i - bpp] : 0));
+				}
+				break;
+			case GdPngWriter.FILTER_UP:
+				for (int i = 1; i <= len; i++) {
+					out[off + i] = (byte) (raw[i] - prior[i]);
+				}
+				break;
+			case GdPngWriter.FILTER_AVERAGE:
+				for (int i = 1; i <= len; i++) {
+					final int left = i > bpp ? raw[i - bpp] & 0xFF : 0;
+					out[off + i] = (byte) (raw[i] - ((left + (prior[i] & 0xFF)) >> 1));
+				}
+				break;
+			case GdPngWriter.FILTER_PAETH:
+				for (int i = 1; i <= len; i++) {
+					final int a = i > bpp ? raw[i - bpp] & 0xFF : 0;
+					final int b = prior[i] & 0xFF;
+					final int c = i > bpp ? prior[i - bpp] & 0xFF : 0;
+					out[off + i] = (byte) (raw[i] - paeth(a, b, c));
+				}
+				break;
+			default:
+				System.arraycopy(raw, 1, out, off + 1, len);
+				break;
+		}
+	}
+
+	/**
+	 * Undoes the filter of a scanline in place: row[0] holds its filter
+	 * type and row[1..len] the filtered bytes, which become the raw ones.
+	 * @param prior the previous raw scanline of the pass, all zero for the first one
+	 * @param bpp bytes per complete pixel, at least 1
+	 * @return false if the filter type is unknown
+	 */
+	static boolean unfilter(final byte[] row, final byte[] prior, final int len, final int bpp) {
+		final int head = Math.min(bpp, len);
+		switch (row[0]) {
+			case GdPngWriter.FILTER_NONE:
+				break;
+			case GdPngWriter.FILTER_SUB:
+				for (int i = head + 1; i <= len; i++) {
+					row[i] += row[i - bpp];
+				}
+				break;
+			case GdPngWriter.FILTER_UP:
+				for (int i = 1; i <= len; i++) {
+					row[i] += prior[i];
+				}
+				break;
+			case GdPngWriter.FILTER_AVERAGE:
+				for (int i = 1; i <= head; i++) {
+					row[i] += (prior[i] & 0xFF) >> 1;
+				}
+				for (int i = head + 1; i <= len; i++) {
+					row[i] += ((row[i - bpp] & 0xFF) + (prior[i] & 0xFF)) >> 1;
+				}
+				break;
+			case GdPngWriter.FILTER_PAETH:
+				for (int i = 1; i <= head; i++) {
+					row[i] += prior[i];
+				}
+				for (int i = head + 1; i <= len; i++) {
+					row[i] += paeth(row[i - bpp] & 0xFF, prior[i] & 0xFF, prior[i - bpp] & 0xFF);
+				}
+				break;
+			default:
+				return false;
+		}
+		return true;
+	}
+
+	static int paeth(final int a, final int b, final int c) {
+		final int p = a + b - c;
+		final int pa = Math.abs(p - a);
+		final int pb = Math.abs(p - b);
+		final int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) {
+			return a;
+		}
+		return pb <= pc ? b : c;
+	}
+
+}
@@ -0,0 +1,285 @@
+package info.miranda.gd;
+
+import info.miranda.gd.interfaces.GdCallbackRange;
+import info.miranda.gd.utils.GdParallel;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/*
+	Compresses the scanlines of a PNG in several threads, as pigz does.
+
+	The filtered scanlines, pass after pass, are cut into blocks of whole
+	rows of at least blockSize bytes. Each block is deflated on its own,
+	as raw deflate primed with the last 32 KiB of the block before it so
+	that matches still reach across the boundary, and ends with a sync
+	flush on a byte boundary; the last one ends the stream instead. Put
+	end to end, the blocks make a single deflate stream, which the zlib
+	header and the Adler-32 of the whole data, combined from those of the
+	blocks, turn into the zlib stream of the IDAT chunks.
+
+	Blocks are done threads at a time. All blocks of a round are filtered
+	first, each starting from the scanline before it, then deflated, since
+	a block needs the data of the one before. Only one round is held in
+	memory; the output is the same for any number of threads.
+*/
+class GdPngParallel {
+
+	private static final int ADLER_BASE = 65521;
+
+	private final GdPngWriter writer;
+	private final GdPngRows rows;
+	private final int level;
+	private final int blockSize;
+	private final int threads;
+	private final ForkJoinPool pool;
+
+	/* next scanline to put into a block */
+	private int pass, y;
+
+	/* the blocks of a round: first scanline, number of scanlines and
+	   bytes, filtered data, compressed data and checksum */
+	private final int[] blockPass, blockRow, blockRows, blockLength;
+	private final byte[][] data;
+	private final byte[][] packed;
+	private final int[] packedLength;
+	private final long[] adler;
+	/* per block of a round: deflater and scratch */
+	private final Deflater[] deflaters;
+	private final Adler32[] checksums;
+	private final GdPngFilter[] filters;
+	private final byte[][] raw, prior;
+	private final int[][] line;
+	/* end of the last block of the round before */
+	private final byte[] dictionary = new byte[GdPngWriter.WINDOW];
+	private int dictionaryLength;
+
+	GdPngParallel(final GdPngWriter writer, final GdPngRows rows, final int level, final int blockSize,
+				  final int threads, final ForkJoinPool pool) {
+		this.writer = writer;
+		this.rows = rows;
+		this.level = level;
+		this.blockSize = Math.max(GdPngWriter.WINDOW, blockSize);
+		this.threads = threads;
+		this.pool = pool;
+
+		blockPass = new int[threads];
+		blockRow = new int[threads];
+		blockRows = new int[threads];
+		blockLength = new int[threads];
+		data = new byte[threads][];
+		packed = new byte[threads][];
+		packedLength = new int[threads];
+		adler = new long[threads];
+		deflaters = new Deflater[threads];
+		checksums = new Adler32[threads];
+		filters = new GdPngFilter[threads];
+		raw = new byte[threads][];
+		prior = new byte[threads][];
+		line = new int[threads][];
+	}
+
+	void write() throws IOException {
+		final byte[] trailer = new byte[4];
+		long sum = 1;
+
+		writer.putData(header(level), 0, 2);
+		try {
+			boolean end = false;
+			while (!end) {
+				final int n = plan();
+				end = (pass == rows.passes());
+
+				GdParallel.forRange(pool, threads, n, new GdCallbackRange() {
+					@Override
+					public void callbackRange(final int from, final int to) {
+						for (int i = from; i < to; i++) {
+							filterBlock(i);
+						}
+					}
+				});
+				final boolean finish = end;
+				GdParallel.forRange(pool, threads, n, new GdCallbackRange() {
+					@Override
+					public void callbackRange(final int from, final int to) {
+						for (int i = from; i < to; i++) {
+							deflateBlock(i, finish && i == n - 1);
+						}
+					}
+				});
+
+				for (int i = 0; i < n; i++) {
+					writer.putData(packed[i], 0, packedLength[i]);
+					sum = adler32Combine(sum, adler[i], blockLength[i]);
+				}
+				dictionaryLength = Math.min(GdPngWriter.WINDOW, blockLength[n - 1]);
+				System.arraycopy(data[n - 1], blockLength[n - 1] - dictionaryLength, dictionary, 0, dictionaryLength);
+			}
+		} finally {
+			for (final Deflater deflater : deflaters) {
+				if (deflater != null) {
+					deflater.end();
+				}
+			}
+		}
+
+		trailer[0] = (byte) (sum >>> 24);
+		trailer[1] = (byte) (sum >>> 16);
+		trailer[2] = (byte) (sum >>> 8);
+		trailer[3] = (byte) sum;
+		writer.putData(trailer, 0, 4);
+	}
+
+	/* zlib header: deflate with a 32 KiB window, and the level class */
+	static byte[] header(final int level) {
+		final int cmf = 0x78;
+		final int flevel;
+		if (level >= 0 && level < 2) {
+			flevel = 0;
+		} else if (level >= 2 && level < 6) {
+			flevel = 1;
+		} else if (level == 6 || level == -1) {
+			flevel = 2;
+		} else {
+			flevel = 3;
+		}
+		int flg = flevel << 6;
+		flg += 31 - ((cmf << 8) + flg) % 31;
+		return new byte[] {(byte) cmf, (byte) flg};
+	}
+
+	/**
+	 * Adler-32 of two pieces of data put together, as adler32_combine() of zlib.
+	 * @param len2 length of the second piece
+	 */
+	static long adler32Combine(final long adler1, final long adler2, final long len2) {
+		final long rem = len2 % ADLER_BASE;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = (rem * sum1) % ADLER_BASE;
+		sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+		sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + ADLER_BASE - rem;
+		if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+		if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+		if (sum2 >= (ADLER_BASE << 1)) sum2 -= (ADLER_BASE << 1);
+		if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+		return sum1 | (sum2 << 16);
+	}
+
+	private boolean isEmpty(final int pass) {
+		return rows.passWidth(pass) == 0 || rows.passHeight(pass) == 0;
+	}
+
+	/* Moves the next scanline past the end of its pass and the empty passes after it. */
+	private void skipEnded() {
+		while (pass < rows.passes() && (y >= rows.passHeight(pass) || isEmpty(pass))) {
+			pass++;
+			y = 0;
+		}
+	}
+
+	/* Cuts the next round of blocks, returns how many. */
+	private int plan() {
+		int n = 0;
+		skipEnded();
+		while (n < threads && pass < rows.passes()) {
+			int count = 0;
+			int length = 0;
+			blockPass[n] = pass;
+			blockRow[n] = y;
+			while (length < blockSize && pass < rows.passes()) {
+				length += rows.rowBytes(rows.passWidth(pass)) + 1;
+				count++;
+				y++;
+				skipEnded();
+			}
+			blockRows[n] = count;
+			blockLength[n] = length;
+			n++;
+		}
+		return n;
+	}
+
+	private void filterBlock(final int i) {
+		final int full = rows.rowBytes(rows.width) + 1;
+		if (raw[i] == null) {
+			raw[i] = new byte[full];
+			prior[i] = new byte[full];
+			line[i] = new int[rows.width];
+			filters[i] = new GdPngFilter(rows);
+		}
+		if (data[i] == null || data[i].length < blockLength[i]) {
+			data[i] = new byte[blockLength[i]];
+		}
+		byte[] r = raw[i];
+		byte[] pr = prior[i];
+		final byte[] out = data[i];
+		int p = blockPass[i];
+		int yy = blockRow[i];
+		int len = rows.rowBytes(rows.passWidth(p));
+		int off = 0;
+
+		if (yy > 0) {
+			rows.read(p, yy - 1, pr, 1, line[i]);
+		} else {
+			Arrays.fill(pr, 0, len + 1, (byte) 0);
+		}
+		for (int k = 0; k < blockRows[i]; k++) {
+			if (yy == rows.passHeight(p)) {
+				do {
+					p++;
+				} while (isEmpty(p));
+				yy = 0;
+				len = rows.rowBytes(rows.passWidth(p));
+				Arrays.fill(pr, 0, len + 1, (byte) 0);
+			}
+			rows.read(p, yy, r, 1, line[i]);
+			filters[i].apply(r, pr, out, off, len);
+			off += len + 1;
+			yy++;
+			final byte[] t = pr;
+			pr = r;
+			r = t;
+		}
+	}
+
+	private void deflateBlock(final int i, final boolean last) {
+		if (deflaters[i] == null) {
+			deflaters[i] = new Deflater(level, true);
+			checksums[i] = new Adler32();
+			packed[i] = new byte[blockSize / 2];
+		}
+		final Deflater deflater = deflaters[i];
+		final int length = blockLength[i];
+		deflater.reset();
+		if (i > 0) {
+			final int n = Math.min(GdPngWriter.WINDOW, blockLength[i - 1]);
+			deflater.setDictionary(data[i - 1], blockLength[i - 1] - n, n);
+		} else if (dictionaryLength > 0) {
+			deflater.setDictionary(dictionary, 0, dictionaryLength);
+		}
+		deflater.setInput(data[i], 0, length);
+
+		byte[] out = packed[i];
+		int n = 0;
+		if (last) {
+			deflater.finish();
+		}
+		do {
+			if (n == out.length) {
+				out = Arrays.copyOf(out, out.length * 2);
+			}
+			n += last ? deflater.deflate(out, n, out.length - n)
+					: deflater.deflate(out, n, out.length - n, Deflater.SYNC_FLUSH);
+		} while (last ? !deflater.finished() : n == out.length);
+		packed[i] = out;
+		packedLength[i] = n;
+
+		checksums[i].reset();
+		checksums[i].update(data[i], 0, length);
+		adler[i] = checksums[i].getValue();
+	}
+
+}
@@ -0,0 +1,673 @@
+package info.miranda.gd;
+
+import info.miranda.gd.enums.GdImageColorType;
+import info.miranda.gd.enums.GdStorageMode;
+import info.miranda.gd.interfaces.GdPixelStorageInterface;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+	PNG decoder after gd_png.c (gdImageCreateFromPngCtx).
+
+	Palette images, and grayscale ones, become palette images: PLTE, or a
+	ramp of grays, gives the colors and tRNS their alpha; the first fully
+	transparent entry, or the gray of tRNS, is the transparent color. The
+	other types become truecolor images, the color of tRNS being the
+	transparent color; saveAlpha is set on those with an alpha channel.
+	16 bit samples keep their high byte, as with png_set_strip_16(), and
+	pHYs gives the resolution.
+
+	The file is read through a small buffer from a channel, or straight
+	from a mapped file. IDAT is inflated a scanline at a time into two
+	row buffers, unfiltered and stored into the image: only the image
+	itself is held in full. The scanlines of the passes of an interlaced
+	file are stored pixel by pixel into their places.
+
+	After shrinkTo(), the scanlines go to a Shrinker instead, which
+	averages them by boxes into a smaller truecolor image; the full size
+	image is never held at all.
+*/
+class GdPngReader {
+
+	private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+	/* size of the read buffer and of the pieces of IDAT given to the inflater */
+	private static final int BUFFER = 1 << 16;
+
+	/* null when reading a mapped file */
+	private final ReadableByteChannel channel;
+	private final ByteBuffer in;
+	private final CRC32 crc = new CRC32();
+	private final byte[] data = new byte[BUFFER];
+
+	/* chunk being read */
+	private int chunkLength;
+	private String chunkType;
+
+	/* IHDR */
+	int width, height, bitDepth, colorType;
+	boolean interlaced;
+	private int channels;
+
+	/* PLTE and tRNS, alpha in PNG range */
+	private int colors;
+	private final int[] red = new int[GdUtils.MAX_COLORS];
+	private final int[] green = new int[GdUtils.MAX_COLORS];
+	private final int[] blue = new int[GdUtils.MAX_COLORS];
+	private final int[] alpha = new int[GdUtils.MAX_COLORS];
+	/* transparent color of truecolor images, or gray, -1 for none */
+	private int transparent = -1;
+
+	/* pHYs in pixels per meter, 0 if unknown */
+	private int resX, resY;
+
+	/* shrink-on-load: size wanted, 0 for none, box size and the reducer */
+	private int targetWidth, targetHeight;
+	private int shrinkX = 1, shrinkY = 1;
+	private Shrinker shrinker;
+
+	GdPngReader(final ReadableByteChannel channel) {
+		this.channel = channel;
+		this.in = ByteBuffer.allocate(BUFFER);
+		in.limit(0);
+	}
+
+	/**
+	 * @param mapped the whole file, from its current position
+	 */
+	GdPngReader(final ByteBuffer mapped) {
+		this.channel = null;
+		this.in = mapped;
+	}
+
+	/**
+	 * Makes read() reduce the image by the largest whole factors that keep
+	 * it at least width x height, averaging boxes of pixels as they are
+	 * decoded. The image read is then truecolor if it is reduced at all.
+	 */
+	GdPngReader shrinkTo(final int width, final int height) {
+		this.targetWidth = width;
+		this.targetHeight = height;
+		return this;
+	}
+
+	GdImage read(final GdStorageMode storageMode) throws IOException {
+		GdImage im = null;
+		boolean decoded = false;
+
+		need(SIGNATURE.length);
+		for (final byte b : SIGNATURE) {
+			if (in.get() != b) {
+				throw new IOException("gd-png error: input is not a PNG file");
+			}
+		}
+		readChunkHeader();
+		if (!chunkType.equals("IHDR")) {
+			throw new IOException("gd-png error: IHDR missing");
+		}
+		for (;;) {
+			if (chunkType.equals("IHDR")) {
+				readHeader();
+			} else if (chunkType.equals("PLTE")) {
+				readPalette();
+			} else if (chunkType.equals("tRNS")) {
+				readTransparency();
+			} else if (chunkType.equals("pHYs")) {
+				readResolution();
+			} else if (chunkType.equals("IDAT") && !decoded) {
+				im = createImage(storageMode);
+				decode(im);
+				decoded = true;
+			} else if (chunkType.equals("IEND")) {
+				checkCrc();
+				break;
+			} else if (Character.isUpperCase(chunkType.charAt(0)) && !chunkType.equals("IDAT")) {
+				throw new IOException("gd-png error: unknown critical chunk " + chunkType);
+			} else {
+				skipData(chunkLength);
+			}
+			checkCrc();
+			readChunkHeader();
+		}
+		if (!decoded) {
+			throw new IOException("gd-png error: no image data");
+		}
+		return im;
+	}
+
+	private void readHeader() throws IOException {
+		if (chunkLength != 13) {
+			throw new IOException("gd-png error: bad IHDR");
+		}
+		readData(data, 0, 13);
+		final ByteBuffer b = ByteBuffer.wrap(data, 0, 13);
+		width = b.getInt();
+		height = b.getInt();
+		bitDepth = data[8];
+		colorType = data[9];
+		interlaced = data[12] == 1;
+		if (width <= 0 || height <= 0) {
+			throw new IOException("gd-png error: bad image size " + width + "x" + height);
+		}
+		if (data[10] != 0 || data[11] != 0 || data[12] > 1) {
+			throw new IOException("gd-png error: unknown compression, filter or interlace method");
+		}
+		final boolean valid;
+		switch (colorType) {
+			case GdPngWriter.COLOR_GRAY:
+				channels = 1;
+				valid = bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8 || bitDepth == 16;
+				break;
+			case GdPngWriter.COLOR_PALETTE:
+				channels = 1;
+				valid = bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+				break;
+			case GdPngWriter.COLOR_RGB:
+				channels = 3;
+				valid = bitDepth == 8 || bitDepth == 16;
+				break;
+			case GdPngWriter.COLOR_GRAY_ALPHA:
+				channels = 2;
+				valid = bitDepth == 8 || bitDepth == 16;
+				break;
+			case GdPngWriter.COLOR_RGBA:
+				channels = 4;
+				valid = bitDepth == 8 || bitDepth == 16;
+				break;
+			default:
+				valid = false;
+				break;
+		}
+		if (!valid) {
+			throw new IOException("gd-png error: bad color type " + colorType + " with bit depth " + bitDepth);
+		}
+		if (rowBytes(width) >= Integer.MAX_VALUE - 1) {
+			throw new IOException("gd-png error: image too wide");
+		}
+		if (targetWidth > 0 && targetHeight > 0) {
+			shrinkX = Math.max(1, width / targetWidth);
+			shrinkY = Math.max(1, height / targetHeight);
+		}
+	}
+
+	private void readPalette() throws IOException {
+		if (chunkLength % 3 != 0 || chunkLength / 3 > GdUtils.MAX_COLORS) {
+			throw new IOException("gd-png error: bad PLTE");
+		}
+		readData(data, 0, chunkLength);
+		colors = chunkLength / 3;
+		for (int i = 0; i < colors; i++) {
+			red[i] = data[3 * i] & 0xFF;
+			green[i] = data[3 * i + 1] & 0xFF;
+			blue[i] = data[3 * i + 2] & 0xFF;
+			alpha[i] = 255;
+		}
+	}
+
+	private void readTransparency() throws IOException {
+		if (chunkLength > GdUtils.MAX_COLORS) {
+			throw new IOException("gd-png error: bad tRNS");
+		}
+		readData(data, 0, chunkLength);
+		switch (colorType) {
+			case GdPngWriter.COLOR_PALETTE:
+				for (int i = 0; i < chunkLength && i < colors; i++) {
+					alpha[i] = data[i] & 0xFF;
+				}
+				break;
+			case GdPngWriter.COLOR_GRAY:
+				if (chunkLength >= 2) {
+					transparent = sample(0);
+				}
+				break;
+			case GdPngWriter.COLOR_RGB:
+				if (chunkLength >= 6) {
+					transparent = GdUtils.trueColorMixAlpha(sample(0), sample(2), sample(4), GdUtils.ALPHA_OPAQUE);
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	/* 16 bit sample of tRNS at i, cut to the range of the image, 8 bits at most */
+	private int sample(final int i) {
+		final int v = ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+		return (bitDepth == 16) ? v >> 8 : v & ((1 << bitDepth) - 1);
+	}
+
+	private void readResolution() throws IOException {
+		if (chunkLength != 9) {
+			throw new IOException("gd-png error: bad pHYs");
+		}
+		readData(data, 0, 9);
+		if (data[8] == 1) {
+			final ByteBuffer b = ByteBuffer.wrap(data, 0, 8);
+			resX = b.getInt();
+			resY = b.getInt();
+		}
+	}
+
+	private GdImage createImage(final GdStorageMode storageMode) throws IOException {
+		final GdImage im = (shrinkX > 1 || shrinkY > 1) ? createShrunkImage(storageMode) : createFullImage(storageMode);
+		im.interlace = interlaced ? 1 : 0;
+		if (resX > 0 && resY > 0) {
+			im.setResolution((int) (resX * 0.0254 + 0.5), (int) (resY * 0.0254 + 0.5));
+		}
+		return im;
+	}
+
+	private GdImage createFullImage(final GdStorageMode storageMode) throws IOException {
+		final boolean palette = colorType == GdPngWriter.COLOR_PALETTE || colorType == GdPngWriter.COLOR_GRAY;
+		final GdImage im = new GdImage(width, height,
+				palette ? GdImageColorType.PALETTE_BASED_COLOR : GdImageColorType.TRUE_COLOR, storageMode);
+
+		if (colorType == GdPngWriter.COLOR_PALETTE) {
+			if (colors == 0) {
+				throw new IOException("gd-png error: PLTE missing");
+			}
+			int first = -1;
+			for (int i = 0; i < colors; i++) {
+				setColor(im, i, red[i], green[i], blue[i], alpha[i]);
+				if (alpha[i] == 0 && first == -1) {
+					first = i;
+				}
+			}
+			im.colorsTotal = colors;
+			if (first != -1) {
+				im.gdImageColorTransparent(first);
+			}
+		} else if (colorType == GdPngWriter.COLOR_GRAY) {
+		/* a ramp of grays, 8 bits at most */
+			final int levels = 1 << Math.min(bitDepth, 8);
+			for (int i = 0; i < levels; i++) {
+				final int gray = 255 * i / (levels - 1);
+				setColor(im, i, gray, gray, gray, 255);
+			}
+			im.colorsTotal = levels;
+			if (transparent != -1) {
+				im.gdImageColorTransparent(transparent);
+			}
+		} else {
+			if (colorType == GdPngWriter.COLOR_RGB) {
+				im.transparent = transparent;
+			} else {
+				im.saveAlphaFlag = 1;
+			}
+		}
+		return im;
+	}
+
+	/* The truecolor image the Shrinker fills, with the colors of the
+	   palette or gray ramp; the transparent color becomes transparent. */
+	private GdImage createShrunkImage(final GdStorageMode storageMode) throws IOException {
+		final GdImage im = new GdImage((width + shrinkX - 1) / shrinkX, (height + shrinkY - 1) / shrinkY,
+				GdImageColorType.TRUE_COLOR, storageMode);
+		boolean translucent = colorType == GdPngWriter.COLOR_GRAY_ALPHA || colorType == GdPngWriter.COLOR_RGBA
+				|| transparent != -1;
+		int[] palette = null;
+
+		if (colorType == GdPngWriter.COLOR_PALETTE) {
+			if (colors == 0) {
+				throw new IOException("gd-png error: PLTE missing");
+			}
+			palette = new int[GdUtils.MAX_COLORS];
+			for (int i = 0; i < colors; i++) {
+				palette[i] = GdUtils.trueColorMixAlpha(red[i], green[i], blue[i], GdUtils.ALPHA_MAX - (alpha[i] >> 1));
+				translucent |= alpha[i] != 255;
+			}
+		} else if (colorType == GdPngWriter.COLOR_GRAY) {
+			final int levels = 1 << Math.min(bitDepth, 8);
+			palette = new int[GdUtils.MAX_COLORS];
+			for (int i = 0; i < levels; i++) {
+				final int gray = 255 * i / (levels - 1);
+				palette[i] = GdUtils.trueColorMixAlpha(gray, gray, gray,
+						(i == transparent) ? GdUtils.ALPHA_TRANSPARENT : GdUtils.ALPHA_OPAQUE);
+			}
+		}
+		im.saveAlphaFlag = translucent ? 1 : 0;
+		shrinker = new Shrinker(im, width, height, shrinkX, shrinkY, palette,
+				(colorType == GdPngWriter.COLOR_RGB) ? transparent : -1, interlaced);
+		return im;
+	}
+
+	private static void setColor(final GdImage im, final int i, final int r, final int g, final int b, final int a) {
+		im.red[i] = r;
+		im.green[i] = g;
+		im.blue[i] = b;
+		im.alpha[i] = GdUtils.ALPHA_MAX - (a >> 1);
+		im.open[i] = false;
+	}
+
+	private long rowBytes(final int pixels) {
+		return ((long) pixels * channels * bitDepth + 7) >> 3;
+	}
+
+	private int passWidth(final int pass) {
+		if (!interlaced) {
+			return width;
+		}
+		final int[] p = GdPngWriter.ADAM7[pass];
+		return (width - p[0] + p[2] - 1) / p[2];
+	}
+
+	private int passHeight(final int pass) {
+		if (!interlaced) {
+			return height;
+		}
+		final int[] p = GdPngWriter.ADAM7[pass];
+		return (height - p[1] + p[3] - 1) / p[3];
+	}
+
+	/* Inflates, unfilters and stores the scanlines, from the first IDAT
+	   chunk to the end of the one holding the last scanline. */
+	private void decode(final GdImage im) throws IOException {
+		final GdPixelStorageInterface storage = im.trueColor ? im.tpixels : im.pixels;
+		final int bpp = Math.max(1, (channels * bitDepth) >> 3);
+		final int full = (int) rowBytes(width) + 1;
+		byte[] row = new byte[full];
+		byte[] prior = new byte[full];
+		final int[] line = new int[width];
+		final Inflater inflater = new Inflater();
+		int remaining = chunkLength;
+
+		try {
+			for (int pass = 0; pass < (interlaced ? GdPngWriter.ADAM7.length : 1); pass++) {
+				final int w = passWidth(pass);
+				final int h = passHeight(pass);
+				if (w == 0 || h == 0) {
+					continue;
+				}
+				final int len = (int) rowBytes(w);
+				Arrays.fill(prior, 0, len + 1, (byte) 0);
+				for (int y = 0; y < h; y++) {
+					int pos = 0;
+					while (pos <= len) {
+						final int n = inflater.inflate(row, pos, len + 1 - pos);
+						pos += n;
+						if (n > 0) {
+							continue;
+						}
+						if (inflater.finished() || inflater.needsDictionary()) {
+							throw new IOException("gd-png error: image data too short");
+						}
+						if (inflater.needsInput()) {
+							while (remaining == 0) {
+								checkCrc();
+								readChunkHeader();
+								if (!chunkType.equals("IDAT")) {
+									throw new IOException("gd-png error: image data too short");
+								}
+								remaining = chunkLength;
+							}
+							final int k = Math.min(remaining, BUFFER);
+							readData(data, 0, k);
+							remaining -= k;
+							inflater.setInput(data, 0, k);
+						}
+					}
+					if (!GdPngFilter.unfilter(row, prior, len, bpp)) {
+						throw new IOException("gd-png error: unknown filter type " + row[0]);
+					}
+					convert(row, w, line);
+					if (!interlaced) {
+						if (shrinker != null) {
+							shrinker.add(y, 0, 1, line, w);
+						} else {
+							storage.setRow(y, 0, line, 0, w);
+						}
+					} else {
+						final int[] p = GdPngWriter.ADAM7[pass];
+						final int yy = p[1] + y * p[3];
+						if (shrinker != null) {
+							shrinker.add(yy, p[0], p[2], line, w);
+						} else {
+							for (int i = 0, x = p[0]; i < w; i++, x += p[2]) {
+								storage.set(x, yy, line[i]);
+							}
+						}
+					}
+					final byte[] t = prior;
+					prior = row;
+					row = t;
+				}
+			}
+			if (shrinker != null) {
+				shrinker.finish();
+			}
+		} catch (final DataFormatException e) {
+			throw new IOException("gd-png error: " + e.getMessage(), e);
+		} finally {
+			inflater.end();
+		}
+		skipData(remaining);
+	}
+
+	/* Raw scanline row[1..] of w pixels to palette indexes or truecolor pixels. */
+	private void convert(final byte[] row, final int w, final int[] line) {
+		switch (colorType) {
+			case GdPngWriter.COLOR_RGB:
+				for (int x = 0, i = 1, step = bitDepth >> 3; x < w; x++, i += 3 * step) {
+					line[x] = GdUtils.trueColorMixAlpha(row[i] & 0xFF, row[i + step] & 0xFF,
+							row[i + 2 * step] & 0xFF, GdUtils.ALPHA_OPAQUE);
+				}
+				break;
+			case GdPngWriter.COLOR_RGBA:
+				for (int x = 0, i = 1, step = bitDepth >> 3; x < w; x++, i += 4 * step) {
+					line[x] = GdUtils.trueColorMixAlpha(row[i] & 0xFF, row[i + step] & 0xFF,
+							row[i + 2 * step] & 0xFF, GdUtils.ALPHA_MAX - ((row[i + 3 * step] & 0xFF) >> 1));
+				}
+				break;
+			case GdPngWriter.COLOR_GRAY_ALPHA:
+				for (int x = 0, i = 1, step = bitDepth >> 3; x < w; x++, i += 2 * step) {
+					final int gray = row[i] & 0xFF;
+					line[x] = GdUtils.trueColorMixAlpha(gray, gray, gray,
+							GdUtils.ALPHA_MAX - ((row[i + step] & 0xFF) >> 1));
+				}
+				break;
+			default:
+				if (bitDepth >= 8) {
+					for (int x = 0, i = 1, step = bitDepth >> 3; x < w; x++, i += step) {
+						line[x] = row[i] & 0xFF;
+					}
+					break;
+				}
+			/* unpack, leftmost pixel in the high bits */
+				final int perByte = 8 / bitDepth;
+				final int mask = (1 << bitDepth) - 1;
+				for (int x = 0; x < w; x++) {
+					final int shift = 8 - bitDepth * (x % perByte + 1);
+					line[x] = (row[1 + x / perByte] >> shift) & mask;
+				}
+				break;
+		}
+	}
+
+	/* Makes n bytes, at most BUFFER, available in the buffer. */
+	private void need(final int n) throws IOException {
+		if (in.remaining() >= n) {
+			return;
+		}
+		if (channel == null) {
+			throw new EOFException("gd-png error: unexpected end of file");
+		}
+		in.compact();
+		while (in.position() < n) {
+			if (channel.read(in) < 0) {
+				throw new EOFException("gd-png error: unexpected end of file");
+			}
+		}
+		in.flip();
+	}
+
+	private int readInt() throws IOException {
+		need(4);
+		return in.getInt();
+	}
+
+	private void readChunkHeader() throws IOException {
+		chunkLength = readInt();
+		if (chunkLength < 0) {
+			throw new IOException("gd-png error: bad chunk length");
+		}
+		need(4);
+		in.get(data, 0, 4);
+		crc.reset();
+		crc.update(data, 0, 4);
+		chunkType = new String(data, 0, 4, StandardCharsets.ISO_8859_1);
+	}
+
+	/* Reads chunk data, adding it to the CRC. */
+	private void readData(final byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			final int n = Math.min(len, BUFFER);
+			need(n);
+			in.get(b, off, n);
+			crc.update(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void skipData(int len) throws IOException {
+		while (len > 0) {
+			final int n = Math.min(len, BUFFER);
+			readData(data, 0, n);
+			len -= n;
+		}
+	}
+
+	private void checkCrc() throws IOException {
+		if (readInt() != (int) crc.getValue()) {
+			throw new IOException("gd-png error: bad CRC in " + chunkType);
+		}
+	}
+
+	/*
+		Box filter: averages the decoded pixels by boxes of fx x fy, those
+		at the right and bottom edges possibly smaller, into the pixels of
+		im. Colors are weighted by opacity, so that the color of a pixel
+		which is all but transparent does not bleed into its box; a box
+		of transparent pixels only is transparent black. The sums of one
+		row of boxes are kept while its scanlines come in; for interlaced
+		files, whose scanlines come in any row order, the sums of all
+		boxes are. They are ints unless a box is too large for them.
+	*/
+	private static class Shrinker {
+		/* largest opacity times a channel */
+		private static final int WEIGHTED_MAX = GdUtils.ALPHA_MAX * 255;
+
+		private final GdImage im;
+		private final int width, height, fx, fy;
+		/* colors of palette indexes, null for truecolor scanlines */
+		private final int[] palette;
+		private final int transparent;
+		private final boolean all;
+		/* opacity and opacity weighted red, green and blue sums of each
+		   box, in ints or for large boxes in longs; the other is null */
+		private final int[] sums;
+		private final long[] longSums;
+		private final int[] out;
+
+		Shrinker(final GdImage im, final int width, final int height, final int fx, final int fy,
+				 final int[] palette, final int transparent, final boolean all) {
+			this.im = im;
+			this.width = width;
+			this.height = height;
+			this.fx = fx;
+			this.fy = fy;
+			this.palette = palette;
+			this.transparent = transparent;
+			this.all = all;
+			final int size = 4 * im.sx * (all ? im.sy : 1);
+			if ((long) fx * fy * WEIGHTED_MAX <= Integer.MAX_VALUE) {
+				this.sums = new int[size];
+				this.longSums = null;
+			} else {
+				this.sums = null;
+				this.longSums = new long[size];
+			}
+			this.out = new int[im.sx];
+		}
+
+		/* Adds n pixels of row y, from column x0 every dx columns. */
+		void add(final int y, final int x0, final int dx, final int[] line, final int n) {
+			final int base = all ? (y / fy) * im.sx : 0;
+			for (int i = 0, x = x0; i < n; i++, x += dx) {
+				int c = line[i];
+				if (palette != null) {
+					c = palette[c];
+				} else if (c == transparent) {
+					continue;
+				}
+				final int w = GdUtils.ALPHA_MAX - GdUtils.trueColorGetAlpha(c);
+				if (w == 0) {
+					continue;
+				}
+				final int s = 4 * (base + x / fx);
+				if (sums != null) {
+					sums[s] += w;
+					sums[s + 1] += w * GdUtils.trueColorGetRed(c);
+					sums[s + 2] += w * GdUtils.trueColorGetGreen(c);
+					sums[s + 3] += w * GdUtils.trueColorGetBlue(c);
+				} else {
+					longSums[s] += w;
+					longSums[s + 1] += w * GdUtils.trueColorGetRed(c);
+					longSums[s + 2] += w * GdUtils.trueColorGetGreen(c);
+					longSums[s + 3] += w * GdUtils.trueColorGetBlue(c);
+				}
+			}
+			if (!all && (y % fy == fy - 1 || y == height - 1)) {
+				emit(y / fy, 0);
+			}
+		}
+
+		/* Stores the rows still held. */
+		void finish() {
+			if (all) {
+				for (int oy = 0; oy < im.sy; oy++) {
+					emit(oy, oy * im.sx);
+				}
+			}
+		}
+
+		private void emit(final int oy, final int base) {
+			final int boxHeight = Math.min(fy, height - oy * fy);
+			for (int ox = 0; ox < im.sx; ox++) {
+				final long count = (long) Math.min(fx, width - ox * fx) * boxHeight;
+				final int s = 4 * (base + ox);
+				final long w, r, g, b;
+				if (sums != null) {
+					w = sums[s];
+					r = sums[s + 1];
+					g = sums[s + 2];
+					b = sums[s + 3];
+					sums[s] = sums[s + 1] = sums[s + 2] = sums[s + 3] = 0;
+				} else {
+					w = longSums[s];
+					r = longSums[s + 1];
+					g = longSums[s + 2];
+					b = longSums[s + 3];
+					longSums[s] = longSums[s + 1] = longSums[s + 2] = longSums[s + 3] = 0;
+				}
+				final int a = (int) ((count * GdUtils.ALPHA_MAX - w + count / 2) / count);
+				if (w == 0) {
+					out[ox] = GdUtils.trueColorMixAlpha(0, 0, 0, a);
+				} else {
+					out[ox] = GdUtils.trueColorMixAlpha((int) ((r + w / 2) / w), (int) ((g + w / 2) / w),
+							(int) ((b + w / 2) / w), a);
+				}
+			}
+			im.tpixels.setRow(oy, 0, out, 0, im.sx);
+		}
+	}
+
+}
@@ -0,0 +1,196 @@
+package info.miranda.gd;
+
+import info.miranda.gd.enums.GdPngFilterStrategy;
+
+import java.io.IOException;
+
+/*
+	The layout of an image as PNG, see GdPngWriter, and its scanlines
+	as raw PNG bytes, pass by pass when interlaced.
+*/
+class GdPngRows {
+
+	final int width;
+	final int height;
+	final int colorType;
+	final int bitDepth;
+	final boolean interlaced;
+	/* filter strategy, GD_PNG_FILTER_DEFAULT resolved */
+	final GdPngFilterStrategy filter;
+
+	/* PNG palette, alpha in PNG range; entries not opaque come first */
+	int colors;
+	final int[] red = new int[GdUtils.MAX_COLORS];
+	final int[] green = new int[GdUtils.MAX_COLORS];
+	final int[] blue = new int[GdUtils.MAX_COLORS];
+	final int[] alpha = new int[GdUtils.MAX_COLORS];
+	/* PNG palette entry of each entry of the image */
+	private final int[] mapping = new int[GdUtils.MAX_COLORS];
+
+	private final GdImage im;
+	private final int channels;
+
+	GdPngRows(final GdImage im) throws IOException {
+		this.im = im;
+		this.width = im.sx;
+		this.height = im.sy;
+		this.interlaced = im.interlace != 0;
+
+		if (im.pngFilter != GdPngFilterStrategy.GD_PNG_FILTER_DEFAULT) {
+			filter = im.pngFilter;
+		} else {
+			filter = im.trueColor ? GdPngFilterStrategy.GD_PNG_FILTER_MINSUM : GdPngFilterStrategy.GD_PNG_FILTER_NONE;
+		}
+
+		if (im.trueColor) {
+			colorType = (im.saveAlphaFlag != 0) ? GdPngWriter.COLOR_RGBA : GdPngWriter.COLOR_RGB;
+			channels = (im.saveAlphaFlag != 0) ? 4 : 3;
+			bitDepth = 8;
+			return;
+		}
+
+		colorType = GdPngWriter.COLOR_PALETTE;
+		channels = 1;
+	/* count the entries in use; colorsTotal is the high-water mark */
+		int translucent = 0;
+		for (int i = 0; i < im.colorsTotal; i++) {
+			if (!im.open[i]) {
+				colors++;
+				if (im.alpha[i] != GdUtils.ALPHA_OPAQUE) {
+					translucent++;
+				}
+			}
+		}
+		if (colors == 0) {
+			throw new IOException("gd-png error: no colors in palette");
+		}
+		if (colors <= 2) {
+			bitDepth = 1;
+		} else if (colors <= 4) {
+			bitDepth = 2;
+		} else if (colors <= 16) {
+			bitDepth = 4;
+		} else {
+			bitDepth = 8;
+		}
+
+	/* Remap the palette to put the entries with interesting alpha
+	   channel values first, which minimizes the size of tRNS. */
+		int j = 0;
+		int k = colors - 1;
+		for (int i = 0; i < im.colorsTotal; i++) {
+			if (im.open[i]) {
+				continue;
+			}
+			final int m;
+			if (translucent == 0) {
+				m = j++;
+			} else if (im.alpha[i] != GdUtils.ALPHA_OPAQUE) {
+				m = j++;
+			} else {
+				m = k--;
+			}
+			mapping[i] = m;
+			red[m] = im.red[i];
+			green[m] = im.green[i];
+			blue[m] = im.blue[i];
+			alpha[m] = pngAlpha(im.alpha[i]);
+		}
+	}
+
+	/* gd alpha, 0 opaque to 127 transparent, to PNG alpha */
+	static int pngAlpha(final int a) {
+		return 255 - ((a << 1) + (a >> 6));
+	}
+
+	int passes() {
+		return interlaced ? GdPngWriter.ADAM7.length : 1;
+	}
+
+	int passWidth(final int pass) {
+		if (!interlaced) {
+			return width;
+		}
+		final int[] p = GdPngWriter.ADAM7[pass];
+		return (width - p[0] + p[2] - 1) / p[2];
+	}
+
+	int passHeight(final int pass) {
+		if (!interlaced) {
+			return height;
+		}
+		final int[] p = GdPngWriter.ADAM7[pass];
+		return (height - p[1] + p[3] - 1) / p[3];
+	}
+
+	/**
+	 * @return bytes of a scanline of the given number of pixels
+	 */
+	int rowBytes(final int pixels) {
+		return (pixels * channels * bitDepth + 7) >> 3;
+	}
+
+	/**
+	 * @return distance in bytes to the corresponding byte of the pixel to the left, for filtering
+	 */
+	int filterStride() {
+		return Math.max(1, (channels * bitDepth) >> 3);
+	}
+
+	/**
+	 * Reads scanline y of a pass into dst from off, as raw PNG bytes.
+	 * @param line scratch of width pixels
+	 */
+	void read(final int pass, final int y, final byte[] dst, final int off, final int[] line) {
+		final int x0, step, row;
+		if (interlaced) {
+			final int[] p = GdPngWriter.ADAM7[pass];
+			x0 = p[0];
+			step = p[2];
+			row = p[1] + y * p[3];
+		} else {
+			x0 = 0;
+			step = 1;
+			row = y;
+		}
+
+		int d = off;
+		if (im.trueColor) {
+			im.tpixels.getRow(row, 0, line, 0, width);
+			for (int x = x0; x < width; x += step) {
+				final int c = line[x];
+				dst[d++] = (byte) GdUtils.trueColorGetRed(c);
+				dst[d++] = (byte) GdUtils.trueColorGetGreen(c);
+				dst[d++] = (byte) GdUtils.trueColorGetBlue(c);
+				if (channels == 4) {
+					dst[d++] = (byte) pngAlpha(GdUtils.trueColorGetAlpha(c));
+				}
+			}
+			return;
+		}
+
+		im.pixels.getRow(row, 0, line, 0, width);
+		if (bitDepth == 8) {
+			for (int x = x0; x < width; x += step) {
+				dst[d++] = (byte) mapping[line[x] & 0xFF];
+			}
+			return;
+		}
+	/* pack the pixels, leftmost in the high bits */
+		final int perByte = 8 / bitDepth;
+		int acc = 0;
+		int n = 0;
+		for (int x = x0; x < width; x += step) {
+			acc = (acc << bitDepth) | mapping[line[x] & 0xFF];
+			if (++n == perByte) {
+				dst[d++] = (byte) acc;
+				acc = 0;
+				n = 0;
+			}
+		}
+		if (n > 0) {
+			dst[d] = (byte) (acc << (bitDepth * (perByte - n)));
+		}
+	}
+
+}
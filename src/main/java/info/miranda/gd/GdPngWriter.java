@@ -0,0 +1,241 @@
+package info.miranda.gd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+	PNG encoder after gd_png.c (gdImagePngCtxEx).
+
+	Truecolor images are written as RGBA when saveAlphaFlag is set, else
+	as RGB with the transparent color, if any, in tRNS. Palette images
+	are written with the smallest bit depth holding their colors; as in
+	libgd, the entries that are not opaque are moved to the front of the
+	palette so that tRNS stays short. pHYs gives res_x/res_y, and the
+	rows are interlaced with Adam7 when interlace is set.
+
+	Scanlines are read one at a time from the pixel storage, filtered by
+	GdPngFilter and
+	fed to a Deflater, whose output is sent to the channel an IDAT chunk
+	at a time: neither the raw nor the compressed image is ever held in
+	full. With more than one thread, GdPngParallel compresses blocks of
+	scanlines concurrently instead.
+*/
+class GdPngWriter {
+
+	private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+	static final int COLOR_GRAY = 0;
+	static final int COLOR_RGB = 2;
+	static final int COLOR_PALETTE = 3;
+	static final int COLOR_GRAY_ALPHA = 4;
+	static final int COLOR_RGBA = 6;
+
+	static final int FILTER_NONE = 0;
+	static final int FILTER_SUB = 1;
+	static final int FILTER_UP = 2;
+	static final int FILTER_AVERAGE = 3;
+	static final int FILTER_PAETH = 4;
+
+	/* Adam7: first column, first row, column step and row step of each pass */
+	static final int[][] ADAM7 = {
+		{0, 0, 8, 8}, {4, 0, 8, 8}, {0, 4, 4, 8}, {2, 0, 4, 4}, {0, 2, 2, 4}, {1, 0, 2, 2}, {0, 1, 1, 2}
+	};
+
+	/* largest IDAT chunk written */
+	private static final int CHUNK = 1 << 16;
+
+	/* default bytes per block of parallel compression */
+	static final int BLOCK_SIZE = 1 << 17;
+	/* deflate window, the most of a block that helps the next one */
+	static final int WINDOW = 1 << 15;
+
+	private final WritableByteChannel out;
+	private final CRC32 crc = new CRC32();
+	/* chunk under construction: length, type, data, crc */
+	private final byte[] chunk = new byte[8 + CHUNK + 4];
+	/* end of the data of the IDAT chunk under construction */
+	private int pos = 8;
+
+	GdPngWriter(final WritableByteChannel out) {
+		this.out = out;
+	}
+
+	/**
+	 * @param level zlib compression level, 0 to 9, -1 for the default
+	 */
+	void write(final GdImage im, final int level) throws IOException {
+		if (level < -1 || level > 9) {
+			throw new IllegalArgumentException("compression level must be -1 to 9: " + level);
+		}
+		final GdPngRows rows = new GdPngRows(im);
+
+		writeFully(ByteBuffer.wrap(SIGNATURE));
+		writeHeader(im, rows);
+		writeResolution(im);
+		if (rows.colorType == COLOR_PALETTE) {
+			writePalette(rows);
+		}
+		writeTransparency(im, rows);
+
+		if (im.parallelism > 1) {
+			new GdPngParallel(this, rows, level, im.pngBlockSize, im.parallelism, im.parallelPool).write();
+		} else {
+			final Deflater deflater = new Deflater(level);
+			try {
+				writeData(rows, deflater);
+			} finally {
+				deflater.end();
+			}
+		}
+		flushData();
+		writeChunk("IEND", 0);
+	}
+
+	private void writeHeader(final GdImage im, final GdPngRows rows) throws IOException {
+		int p = putInt(8, im.sx);
+		p = putInt(p, im.sy);
+		chunk[p++] = (byte) rows.bitDepth;
+		chunk[p++] = (byte) rows.colorType;
+		chunk[p++] = 0;
+		chunk[p++] = 0;
+		chunk[p++] = (byte) (rows.interlaced ? 1 : 0);
+		writeChunk("IHDR", p - 8);
+	}
+
+	/* pixels per meter, unit meter */
+	private void writeResolution(final GdImage im) throws IOException {
+		int p = putInt(8, (int) (im.res_x / 0.0254 + 0.5));
+		p = putInt(p, (int) (im.res_y / 0.0254 + 0.5));
+		chunk[p++] = 1;
+		writeChunk("pHYs", p - 8);
+	}
+
+	private void writePalette(final GdPngRows rows) throws IOException {
+		int p = 8;
+		for (int i = 0; i < rows.colors; i++) {
+			chunk[p++] = (byte) rows.red[i];
+			chunk[p++] = (byte) rows.green[i];
+			chunk[p++] = (byte) rows.blue[i];
+		}
+		writeChunk("PLTE", p - 8);
+	}
+
+	private void writeTransparency(final GdImage im, final GdPngRows rows) throws IOException {
+		int p = 8;
+		if (rows.colorType == COLOR_PALETTE) {
+			for (int i = 0; i < rows.colors && rows.alpha[i] != 255; i++) {
+				chunk[p++] = (byte) rows.alpha[i];
+			}
+		} else if (rows.colorType == COLOR_RGB && im.transparent >= 0) {
+			p = putShort(p, GdUtils.trueColorGetRed(im.transparent));
+			p = putShort(p, GdUtils.trueColorGetGreen(im.transparent));
+			p = putShort(p, GdUtils.trueColorGetBlue(im.transparent));
+		}
+		if (p > 8) {
+			writeChunk("tRNS", p - 8);
+		}
+	}
+
+	/* Filters the rows into the deflater, and its output into IDAT chunks. */
+	private void writeData(final GdPngRows rows, final Deflater deflater) throws IOException {
+		final GdPngFilter filter = new GdPngFilter(rows);
+		byte[] prior = new byte[rows.rowBytes(rows.width) + 1];
+		byte[] raw = new byte[prior.length];
+		final byte[] filtered = new byte[prior.length];
+		final int[] line = new int[rows.width];
+
+		for (int pass = 0; pass < rows.passes(); pass++) {
+			final int width = rows.passWidth(pass);
+			final int height = rows.passHeight(pass);
+			if (width == 0 || height == 0) {
+				continue;
+			}
+			final int len = rows.rowBytes(width);
+			Arrays.fill(prior, 0, len + 1, (byte) 0);
+			for (int y = 0; y < height; y++) {
+				rows.read(pass, y, raw, 1, line);
+				filter.apply(raw, prior, filtered, 0, len);
+				deflater.setInput(filtered, 0, len + 1);
+				while (!deflater.needsInput()) {
+					drain(deflater);
+				}
+				final byte[] t = prior;
+				prior = raw;
+				raw = t;
+			}
+		}
+		deflater.finish();
+		while (!deflater.finished()) {
+			drain(deflater);
+		}
+	}
+
+	/* Moves deflater output into the IDAT chunk, writing the chunk once full. */
+	private void drain(final Deflater deflater) throws IOException {
+		pos += deflater.deflate(chunk, pos, 8 + CHUNK - pos);
+		if (pos == 8 + CHUNK) {
+			writeChunk("IDAT", CHUNK);
+			pos = 8;
+		}
+	}
+
+	/* Appends compressed data to the IDAT chunks. */
+	void putData(final byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			final int n = Math.min(len, 8 + CHUNK - pos);
+			System.arraycopy(b, off, chunk, pos, n);
+			pos += n;
+			off += n;
+			len -= n;
+			if (pos == 8 + CHUNK) {
+				writeChunk("IDAT", CHUNK);
+				pos = 8;
+			}
+		}
+	}
+
+	/* Writes the IDAT chunk under construction, if any. */
+	private void flushData() throws IOException {
+		if (pos > 8) {
+			writeChunk("IDAT", pos - 8);
+			pos = 8;
+		}
+	}
+
+	private int putInt(final int p, final int v) {
+		chunk[p] = (byte) (v >>> 24);
+		chunk[p + 1] = (byte) (v >>> 16);
+		chunk[p + 2] = (byte) (v >>> 8);
+		chunk[p + 3] = (byte) v;
+		return p + 4;
+	}
+
+	private int putShort(final int p, final int v) {
+		chunk[p] = (byte) (v >>> 8);
+		chunk[p + 1] = (byte) v;
+		return p + 2;
+	}
+
+	/* Writes the chunk of the given type whose data is in chunk[8..8+len). */
+	private void writeChunk(final String type, final int len) throws IOException {
+		putInt(0, len);
+		for (int i = 0; i < 4; i++) {
+			chunk[4 + i] = (byte) type.charAt(i);
+		}
+		crc.reset();
+		crc.update(chunk, 4, len + 4);
+		putInt(8 + len, (int) crc.getValue());
+		writeFully(ByteBuffer.wrap(chunk, 0, len + 12));
+	}
+
+	private void writeFully(final ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+	}
+
+}
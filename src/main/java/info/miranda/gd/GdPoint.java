@@ -18,4 +18,12 @@ package info.miranda.gd;
 */
 public class GdPoint {
 	int x, y;
+
+	public GdPoint() {
+	}
+
+	public GdPoint(final int x, final int y) {
+		this.x = x;
+		this.y = y;
+	}
 }
@@ -0,0 +1,128 @@
+package info.miranda.gd;
+
+import info.miranda.gd.enums.GdPaletteQuantizationMethod;
+
+/*
+	Chooses the palette of a truecolor image and maps colors to it, see
+	GdImage.trueColorToPalette().
+
+	quantize() runs once, then prepare(); afterwards map() may be called
+	from any number of threads at once. Unless a quantizer has a better
+	way, colors are mapped through a GdInverseColormap of 5 bits of red,
+	6 of green, 5 of blue and 3 of alpha.
+*/
+abstract class GdQuantizer {
+
+	static final int R_BITS = 5;
+	static final int G_BITS = 6;
+	static final int B_BITS = 5;
+	static final int A_BITS = 3;
+	static final int R_SHIFT = 8 - R_BITS;
+	static final int G_SHIFT = 8 - G_BITS;
+	static final int B_SHIFT = 8 - B_BITS;
+	static final int A_SHIFT = 7 - A_BITS;
+	/* position of the channels within a cell index */
+	static final int[] POS = {G_BITS + B_BITS + A_BITS, B_BITS + A_BITS, A_BITS, 0};
+	static final int CELLS = 1 << (R_BITS + G_BITS + B_BITS + A_BITS);
+
+	/* the palette, in the ranges of GdImage */
+	final int[] red = new int[GdUtils.MAX_COLORS];
+	final int[] green = new int[GdUtils.MAX_COLORS];
+	final int[] blue = new int[GdUtils.MAX_COLORS];
+	final int[] alpha = new int[GdUtils.MAX_COLORS];
+	/* entries never to map to */
+	final boolean[] open = new boolean[GdUtils.MAX_COLORS];
+	int colors;
+
+	/* null if the subclass maps colors by itself */
+	private final GdInverseColormap inverseColormap;
+
+	GdQuantizer() {
+		this(true);
+	}
+
+	/**
+	 * @param inverseColormap false if the subclass maps colors by itself
+	 */
+	GdQuantizer(final boolean inverseColormap) {
+		this.inverseColormap = inverseColormap
+				? new GdInverseColormap(red, green, blue, alpha, open, R_BITS, G_BITS, B_BITS, A_BITS) : null;
+	}
+
+	static GdQuantizer create(final GdPaletteQuantizationMethod method, final int speed) {
+		if (method == GdPaletteQuantizationMethod.GD_QUANT_NEUQUANT) {
+			return new GdNeuQuant(speed != 0 ? speed : 2);
+		}
+		return new GdMedianCut();
+	}
+
+	/**
+	 * @return a quantizer mapping to the palette of im as it is now, through
+	 * the inverse colormap of im
+	 */
+	static GdQuantizer forPalette(final GdImage im) {
+		final GdInverseColormap cube = im.inverseColormap();
+		final GdQuantizer q = new GdQuantizer(false) {
+			@Override
+			void quantize(final GdImage im, final int colorsWanted) {
+			}
+
+			@Override
+			int map(final int r, final int g, final int b, final int a) {
+				return cube.lookup(r, g, b, a);
+			}
+
+			@Override
+			int map(final int pixel) {
+				return cube.lookup(pixel);
+			}
+		};
+		q.colors = im.colorsTotal;
+		for (int i = 0; i < im.colorsTotal; i++) {
+			q.open[i] = im.open[i];
+			q.red[i] = im.red[i];
+			q.green[i] = im.green[i];
+			q.blue[i] = im.blue[i];
+			q.alpha[i] = im.alpha[i];
+		}
+		return q;
+	}
+
+	static int cell(final int r, final int g, final int b, final int a) {
+		return ((r >> R_SHIFT) << POS[0]) | ((g >> G_SHIFT) << POS[1]) | ((b >> B_SHIFT) << POS[2]) | (a >> A_SHIFT);
+	}
+
+	static int cell(final int pixel) {
+		return cell((pixel >> 16) & 0xFF, (pixel >> 8) & 0xFF, pixel & 0xFF, (pixel >> 24) & 0x7F);
+	}
+
+	/**
+	 * Chooses at most colorsWanted colors for the pixels of im, leaving out
+	 * those of the transparent color.
+	 */
+	abstract void quantize(GdImage im, int colorsWanted);
+
+	/**
+	 * Readies map() for the palette as it is now.
+	 */
+	void prepare() {
+		if (inverseColormap != null) {
+			inverseColormap.reset(colors, 0);
+		}
+	}
+
+	/**
+	 * @return palette entry for the color, GdImage ranges
+	 */
+	int map(final int r, final int g, final int b, final int a) {
+		return inverseColormap.lookup(r, g, b, a);
+	}
+
+	/**
+	 * @return palette entry for a truecolor pixel
+	 */
+	int map(final int pixel) {
+		return inverseColormap.lookup(pixel);
+	}
+
+}
@@ -0,0 +1,194 @@
+package info.miranda.gd;
+
+import info.miranda.gd.enums.GdInterpolationMethod;
+import info.miranda.gd.interfaces.GdFilterInterface;
+
+/*
+	Samples an image at fractional coordinates with its interpolation
+	method: the four by four pixels around the point, weighted by the
+	filter along each axis. It is set up once for an operation instead of
+	on every pixel.
+
+	The weights of the four taps along an axis only depend on the
+	fraction t of the coordinate. They are tabulated for STEPS fractions
+	from 0 to 1 and interpolated linearly in between; cells of the table
+	where the filter is not close enough to a line, as at the jump of
+	GD_BOX, call the filter instead. Whole coordinates hit the table
+	exactly. Filters that are zero on the outer taps (box, triangle,
+	hermite, power) only read the inner two. Samples whose taps all lie
+	within the clipping rectangle read the pixels directly, the others
+	go through getPixelOverflowTC() and getPixelOverflowPalette().
+
+	A sampler keeps scratch weights, so each thread needs its own; the
+	image must not change while it is in use.
+*/
+abstract class GdSampler {
+
+	private static final int STEPS = 1024;
+	/* largest error allowed for a weight interpolated from the table */
+	private static final double TOLERANCE = 1e-6;
+
+	/**
+	 * @param bgColor color of transparent pixels, -1 for transparent black
+	 * @return a sampler for the interpolation method of im; it returns -1
+	 *         for the methods with special implementations
+	 */
+	static GdSampler create(final GdImage im, final int bgColor) {
+		final GdInterpolationMethod id = im.interpolation_id;
+		if (id == GdInterpolationMethod.GD_BILINEAR_FIXED || id == GdInterpolationMethod.GD_BICUBIC_FIXED
+				|| id == GdInterpolationMethod.GD_NEAREST_NEIGHBOUR) {
+			return new Unsupported();
+		}
+		if (id == GdInterpolationMethod.GD_WEIGHTED4) {
+			return new Weighted4(im, bgColor);
+		}
+		if (im.interpolation == null) {
+			return new Unsupported();
+		}
+		return new Kernel(im, bgColor);
+	}
+
+	/**
+	 * @return the truecolor value at (x, y)
+	 */
+	abstract int sample(double x, double y);
+
+	private static class Unsupported extends GdSampler {
+		int sample(final double x, final double y) {
+			return -1;
+		}
+	}
+
+	private static class Weighted4 extends GdSampler {
+		private final GdImage im;
+		private final int bgColor;
+
+		Weighted4(final GdImage im, final int bgColor) {
+			this.im = im;
+			this.bgColor = bgColor;
+		}
+
+		int sample(final double x, final double y) {
+			return im.getPixelInterpolateWeight(x, y, bgColor);
+		}
+	}
+
+	private static class Kernel extends GdSampler {
+		private final GdImage im;
+		private final int bgColor;
+		/* what a transparent pixel reads as */
+		private final int transparentColor;
+		private final GdFilterInterface filter;
+		/* weights of the four taps at fraction k / STEPS, from 4 * k */
+		private final double[] table = new double[4 * (STEPS + 1)];
+		/* cells to compute with the filter itself */
+		private final boolean[] exact = new boolean[STEPS];
+		/* first and last tap with a weight */
+		private final int first, last;
+		private final int cx1, cy1, cx2, cy2;
+		private final double[] kx = new double[4];
+		private final double[] ky = new double[4];
+
+		Kernel(final GdImage im, final int bgColor) {
+			this.im = im;
+			this.bgColor = bgColor;
+			this.transparentColor = (bgColor == -1) ? GdUtils.trueColorMixAlpha(0, 0, 0, 127) : bgColor;
+			this.filter = im.interpolation;
+			this.cx1 = im.cx1;
+			this.cy1 = im.cy1;
+			this.cx2 = im.cx2;
+			this.cy2 = im.cy2;
+
+			boolean outer = false;
+			for (int k = 0; k <= STEPS; k++) {
+				final double t = (double) k / STEPS;
+				for (int i = 0; i < 4; i++) {
+					table[4 * k + i] = filter.filter(i - 1 - t);
+				}
+				outer |= table[4 * k] != 0 || table[4 * k + 3] != 0;
+			}
+			for (int k = 0; k < STEPS; k++) {
+				final double t = (k + 0.5) / STEPS;
+				for (int i = 0; i < 4; i++) {
+					final double mid = filter.filter(i - 1 - t);
+					outer |= (i == 0 || i == 3) && mid != 0;
+					if (abs(mid - (table[4 * k + i] + table[4 * k + 4 + i]) / 2) > TOLERANCE) {
+						exact[k] = true;
+					}
+				}
+			}
+			first = outer ? 0 : 1;
+			last = outer ? 3 : 2;
+		}
+
+		private static double abs(final double v) {
+			return v < 0 ? -v : v;
+		}
+
+		/* Weights of the taps around x, xi being the first but one. */
+		private void weights(final double x, final int xi, final double[] w) {
+			final double f = (x - xi) * STEPS;
+			final int k = (f <= 0) ? 0 : (f >= STEPS ? STEPS : (int) f);
+			if (k < STEPS && exact[k]) {
+				for (int i = first; i <= last; i++) {
+					w[i] = filter.filter(xi + i - 1 - x);
+				}
+				return;
+			}
+			final int base = 4 * k;
+			if (k == STEPS || f == k) {
+				for (int i = first; i <= last; i++) {
+					w[i] = table[base + i];
+				}
+				return;
+			}
+			final double d = f - k;
+			for (int i = first; i <= last; i++) {
+				w[i] = table[base + i] + d * (table[base + 4 + i] - table[base + i]);
+			}
+		}
+
+		int sample(final double x, final double y) {
+			final int xi = (int) ((x) < 0 ? x - 1 : x);
+			final int yi = (int) ((y) < 0 ? y - 1 : y);
+			double new_r = 0.0, new_g = 0.0, new_b = 0.0, new_a = 0.0;
+
+			weights(x, xi, kx);
+			weights(y, yi, ky);
+
+			final int x0 = xi - 1 + first, x1 = xi - 1 + last;
+			final int y0 = yi - 1 + first, y1 = yi - 1 + last;
+			final boolean inside = x0 >= cx1 && x1 <= cx2 && y0 >= cy1 && y1 <= cy2;
+
+			for (int yii = y0; yii <= y1; yii++) {
+				final double kernel_cache_y = ky[yii - (yi - 1)];
+				for (int xii = x0; xii <= x1; xii++) {
+					final int rgbs;
+					if (!inside) {
+						rgbs = im.trueColor ? im.getPixelOverflowTC(xii, yii, bgColor)
+								: im.getPixelOverflowPalette(xii, yii, bgColor);
+					} else if (im.trueColor) {
+						final int c = im.tpixels.get(xii, yii);
+						rgbs = (c == im.transparent) ? transparentColor : c;
+					} else {
+						final int c = im.pixels.get(xii, yii);
+						rgbs = (c == im.transparent) ? transparentColor : im.colorIndex2RGBA(c);
+					}
+					final double kernel = kernel_cache_y * kx[xii - (xi - 1)];
+					new_r += kernel * GdUtils.trueColorGetRed(rgbs);
+					new_g += kernel * GdUtils.trueColorGetGreen(rgbs);
+					new_b += kernel * GdUtils.trueColorGetBlue(rgbs);
+					new_a += kernel * GdUtils.trueColorGetAlpha(rgbs);
+				}
+			}
+
+			return GdUtils.trueColorMixAlpha(clamp((int) new_r, 255), clamp((int) new_g, 255),
+					clamp((int) new_b, 255), clamp((int) new_a, GdUtils.ALPHA_MAX));
+		}
+
+		private static int clamp(final int v, final int max) {
+			return v < 0 ? 0 : (v > max ? max : v);
+		}
+	}
+
+}
@@ -0,0 +1,6 @@
+package info.miranda.gd.enums;
+
+public enum GdDitherMethod {
+	GD_DITHER_FLOYD_STEINBERG, /* error diffusion; rows run in parallel as a wavefront, each trailing the one above */
+	GD_DITHER_ORDERED          /* 8x8 Bayer threshold matrix; every pixel on its own, fastest */
+}
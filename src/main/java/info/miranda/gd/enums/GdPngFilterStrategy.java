@@ -0,0 +1,12 @@
+package info.miranda.gd.enums;
+
+public enum GdPngFilterStrategy {
+	GD_PNG_FILTER_DEFAULT, /* GD_PNG_FILTER_NONE for palette images, GD_PNG_FILTER_MINSUM for the others */
+	GD_PNG_FILTER_NONE,    /* every row unfiltered */
+	GD_PNG_FILTER_SUB,     /* every row minus the pixel to the left */
+	GD_PNG_FILTER_UP,      /* every row minus the row above */
+	GD_PNG_FILTER_AVERAGE, /* every row minus the mean of left and above */
+	GD_PNG_FILTER_PAETH,   /* every row minus the Paeth predictor */
+	GD_PNG_FILTER_MINSUM,  /* per row, the filter of smallest sum of absolute differences, as libpng */
+	GD_PNG_FILTER_ENTROPY  /* per row, the filter of lowest byte entropy over a sample of the row */
+}
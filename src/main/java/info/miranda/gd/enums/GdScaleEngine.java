@@ -0,0 +1,6 @@
+package info.miranda.gd.enums;
+
+public enum GdScaleEngine {
+	GD_SCALE_DOUBLE, /* reference implementation, double precision weights */
+	GD_SCALE_FIXED   /* 16.16 fixed point weights on planar channels; within 1 of GD_SCALE_DOUBLE per channel */
+}
@@ -0,0 +1,18 @@
+package info.miranda.gd.enums;
+
+public enum GdStorageMode {
+	/**
+	 * Pixels are kept in a Java array on the heap; the default.
+	 */
+	HEAP,
+	/**
+	 * Pixels are kept in direct buffers outside of the Java heap.
+	 * Images may be larger than 2 GB.
+	 */
+	DIRECT,
+	/**
+	 * Pixels are kept in a scratch file mapped into memory; the operating
+	 * system pages them in and out as needed. Images may be larger than 2 GB.
+	 */
+	MAPPED,
+}
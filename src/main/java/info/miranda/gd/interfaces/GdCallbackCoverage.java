@@ -0,0 +1,14 @@
+package info.miranda.gd.interfaces;
+
+public interface GdCallbackCoverage {
+
+	/**
+	 * Receives the coverage of a run of pixels in one row.
+	 * @param y row
+	 * @param x first pixel of the run
+	 * @param len number of pixels
+	 * @param coverage coverage of the pixels, 0 (outside) to 255 (inside), starting at index 0
+	 */
+	void callbackCoverage(int y, int x, int len, int[] coverage);
+
+}
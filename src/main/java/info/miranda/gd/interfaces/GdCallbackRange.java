@@ -0,0 +1,12 @@
+package info.miranda.gd.interfaces;
+
+public interface GdCallbackRange {
+
+	/**
+	 * Processes one slice of a range of lines.
+	 * @param from first line, inclusive
+	 * @param to last line, exclusive
+	 */
+	void callbackRange(int from, int to);
+
+}
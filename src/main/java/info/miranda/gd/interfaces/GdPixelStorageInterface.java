@@ -0,0 +1,68 @@
+package info.miranda.gd.interfaces;
+
+/**
+ * Backing store for the pixels of a <GdImage>.
+ *
+ * Truecolor images keep one ARGB integer per pixel, palette images keep
+ * one color index (0..255) per pixel. Implementations are addressed by
+ * column and row only; no bounds or clipping checks are done here, the
+ * image takes care of that before calling in.
+ */
+public interface GdPixelStorageInterface {
+
+	/**
+	 * @return width of the storage in pixels
+	 */
+	int getWidth();
+
+	/**
+	 * @return height of the storage in pixels
+	 */
+	int getHeight();
+
+	/**
+	 * Reads a single pixel.
+	 * @param x column
+	 * @param y row
+	 * @return the pixel value
+	 */
+	int get(int x, int y);
+
+	/**
+	 * Writes a single pixel.
+	 * @param x column
+	 * @param y row
+	 * @param value the pixel value
+	 */
+	void set(int x, int y, int value);
+
+	/**
+	 * Copies len pixels of row y, starting at column x, to dst.
+	 * @param y row
+	 * @param x first column
+	 * @param dst destination array
+	 * @param offset first index written in dst
+	 * @param len number of pixels
+	 */
+	void getRow(int y, int x, int[] dst, int offset, int len);
+
+	/**
+	 * Copies len pixels from src into row y, starting at column x.
+	 * @param y row
+	 * @param x first column
+	 * @param src source array
+	 * @param offset first index read from src
+	 * @param len number of pixels
+	 */
+	void setRow(int y, int x, int[] src, int offset, int len);
+
+	/**
+	 * Sets len pixels of row y, starting at column x, to value.
+	 * @param y row
+	 * @param x first column
+	 * @param len number of pixels
+	 * @param value the pixel value
+	 */
+	void fill(int y, int x, int len, int value);
+
+}
@@ -0,0 +1,84 @@
+package info.miranda.gd.storage;
+
+import info.miranda.gd.interfaces.GdPixelStorageInterface;
+
+import java.util.Arrays;
+
+/**
+ * Palette pixel storage: one contiguous byte[] holding all the rows,
+ * row y starting at index y * stride. Like the unsigned char pixels
+ * of the C library, only the low 8 bits of a stored value are kept.
+ */
+public class GdPixelStorageByte implements GdPixelStorageInterface {
+
+	private final int width;
+	private final int height;
+	private final int stride;
+	private final byte[] data;
+
+	/**
+	 * @throws IllegalArgumentException if the image has more pixels than
+	 *         an array can hold; the DIRECT and MAPPED storage modes take
+	 *         larger images
+	 */
+	public GdPixelStorageByte(final int width, final int height) {
+		if ((long) width * height > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("image too large for heap storage: " + width + "x" + height
+					+ ", use the DIRECT or MAPPED storage mode");
+		}
+		this.width = width;
+		this.height = height;
+		this.stride = width;
+		this.data = new byte[width * height];
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return distance, in array elements, between two consecutive rows
+	 */
+	public int getStride() {
+		return stride;
+	}
+
+	/**
+	 * @return the backing array, row y starts at y * getStride()
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	public int get(final int x, final int y) {
+		return data[y * stride + x] & 0xFF;
+	}
+
+	public void set(final int x, final int y, final int value) {
+		data[y * stride + x] = (byte) value;
+	}
+
+	public void getRow(final int y, final int x, final int[] dst, final int offset, final int len) {
+		final int p = y * stride + x;
+		for (int i = 0; i < len; i++) {
+			dst[offset + i] = data[p + i] & 0xFF;
+		}
+	}
+
+	public void setRow(final int y, final int x, final int[] src, final int offset, final int len) {
+		final int p = y * stride + x;
+		for (int i = 0; i < len; i++) {
+			data[p + i] = (byte) src[offset + i];
+		}
+	}
+
+	public void fill(final int y, final int x, final int len, final int value) {
+		final int p = y * stride + x;
+		Arrays.fill(data, p, p + len, (byte) value);
+	}
+
+}
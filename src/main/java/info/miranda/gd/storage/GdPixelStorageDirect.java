@@ -0,0 +1,255 @@
+package info.miranda.gd.storage;
+
+import info.miranda.gd.interfaces.GdPixelStorageInterface;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Pixel storage living outside of the Java heap, either in direct buffers
+ * or in a memory mapped scratch file.
+ *
+ * A single buffer cannot address more than 2 GB, so the rows are split
+ * into chunks of a power of two rows each; a row never crosses a chunk.
+ * Truecolor storage keeps 4 bytes per pixel, palette storage 1 byte per
+ * pixel (only the low 8 bits of a stored value are kept).
+ *
+ * Java cannot free direct buffers or unmap files on demand: the memory
+ * and the mappings go back when the buffers are garbage collected.
+ * release() drops the buffers of the storage so that this can happen
+ * while the storage object itself is still referenced.
+ */
+public class GdPixelStorageDirect implements GdPixelStorageInterface {
+
+	/* upper bound of the size of one chunk */
+	private static final long CHUNK_SIZE = 1L << 30;
+
+	private final int width;
+	private final int height;
+	private final int bytesPerPixel;
+	private final int rowBytes;
+	private final int chunkShift;
+	private final int chunkMask;
+	private final boolean mapped;
+	private ByteBuffer[] chunks;
+
+	/**
+	 * Allocates the pixels in direct buffers.
+	 * @param width width in pixels
+	 * @param height height in pixels
+	 * @param bytesPerPixel 4 for truecolor, 1 for palette images
+	 */
+	public GdPixelStorageDirect(final int width, final int height, final int bytesPerPixel) {
+		this(width, height, bytesPerPixel, null);
+	}
+
+	/**
+	 * Maps the pixels to the given channel, which must be open for reading
+	 * and writing; it is grown as needed. The mapping stays valid after the
+	 * channel is closed.
+	 * @param width width in pixels
+	 * @param height height in pixels
+	 * @param bytesPerPixel 4 for truecolor, 1 for palette images
+	 * @param channel file to map, or null to allocate direct buffers
+	 */
+	public GdPixelStorageDirect(final int width, final int height, final int bytesPerPixel, final FileChannel channel) {
+		this(width, height, bytesPerPixel, channel, CHUNK_SIZE);
+	}
+
+	/**
+	 * Allocates or maps the pixels in chunks of at most chunkSize bytes,
+	 * instead of the default 1 GB; smaller chunks let small images cross
+	 * chunk boundaries.
+	 * @param width width in pixels
+	 * @param height height in pixels
+	 * @param bytesPerPixel 4 for truecolor, 1 for palette images
+	 * @param channel file to map, or null to allocate direct buffers
+	 * @param chunkSize largest size of a chunk in bytes, up to 1 GB; a
+	 *                  chunk holds a power of two rows, at least one
+	 */
+	public GdPixelStorageDirect(final int width, final int height, final int bytesPerPixel, final FileChannel channel,
+								final long chunkSize) {
+		if (bytesPerPixel != 1 && bytesPerPixel != 4) {
+			throw new IllegalArgumentException("unsupported pixel size: " + bytesPerPixel);
+		}
+		this.width = width;
+		this.height = height;
+		this.bytesPerPixel = bytesPerPixel;
+		this.rowBytes = width * bytesPerPixel;
+		this.mapped = (channel != null);
+
+		int shift = 0;
+		while (shift < 30 && ((long) rowBytes << (shift + 1)) <= Math.min(chunkSize, CHUNK_SIZE)) {
+			shift++;
+		}
+		this.chunkShift = shift;
+		this.chunkMask = (1 << shift) - 1;
+
+		final int rowsPerChunk = 1 << shift;
+		final int count = height <= 0 ? 0 : ((height - 1) >> shift) + 1;
+		chunks = new ByteBuffer[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				final int rows = Math.min(rowsPerChunk, height - i * rowsPerChunk);
+				final int size = Math.max(1, rows * rowBytes);
+				final ByteBuffer b;
+				if (channel == null) {
+					b = ByteBuffer.allocateDirect(size);
+				} else {
+					b = channel.map(FileChannel.MapMode.READ_WRITE, ((long) i << shift) * rowBytes, size);
+				}
+				chunks[i] = b.order(ByteOrder.nativeOrder());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Creates storage mapped to a new scratch file, which is removed when the
+	 * virtual machine exits (or right away, where the platform allows that).
+	 * @param width width in pixels
+	 * @param height height in pixels
+	 * @param bytesPerPixel 4 for truecolor, 1 for palette images
+	 * @param directory directory for the scratch file, null for the default temporary directory
+	 * @return the mapped storage
+	 */
+	public static GdPixelStorageDirect mapScratchFile(final int width, final int height, final int bytesPerPixel,
+													   final File directory) {
+		try {
+			final File file = File.createTempFile("libgd", ".pixels", directory);
+			file.deleteOnExit();
+			final GdPixelStorageDirect storage;
+			final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				storage = new GdPixelStorageDirect(width, height, bytesPerPixel, raf.getChannel());
+			} finally {
+				raf.close();
+			}
+			file.delete();
+			return storage;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return 4 for truecolor, 1 for palette storage
+	 */
+	public int getBytesPerPixel() {
+		return bytesPerPixel;
+	}
+
+	/**
+	 * @return true if the pixels are mapped to a file, false if they are in direct buffers
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	/**
+	 * Drops the buffers holding the pixels, which are freed, or unmapped,
+	 * once no longer reachable. The storage must not be used afterwards.
+	 */
+	public void release() {
+		chunks = new ByteBuffer[0];
+	}
+
+	/**
+	 * @return number of rows held by one chunk (a power of two)
+	 */
+	public int getRowsPerChunk() {
+		return chunkMask + 1;
+	}
+
+	/**
+	 * @param y row
+	 * @return the buffer holding row y; the row starts at getRowOffset(y)
+	 */
+	public ByteBuffer getChunk(final int y) {
+		return chunks[y >> chunkShift];
+	}
+
+	/**
+	 * @param y row
+	 * @return byte offset of row y within getChunk(y)
+	 */
+	public int getRowOffset(final int y) {
+		return (y & chunkMask) * rowBytes;
+	}
+
+	public int get(final int x, final int y) {
+		final ByteBuffer b = chunks[y >> chunkShift];
+		final int p = (y & chunkMask) * rowBytes;
+		if (bytesPerPixel == 4) {
+			return b.getInt(p + (x << 2));
+		}
+		return b.get(p + x) & 0xFF;
+	}
+
+	public void set(final int x, final int y, final int value) {
+		final ByteBuffer b = chunks[y >> chunkShift];
+		final int p = (y & chunkMask) * rowBytes;
+		if (bytesPerPixel == 4) {
+			b.putInt(p + (x << 2), value);
+		} else {
+			b.put(p + x, (byte) value);
+		}
+	}
+
+	public void getRow(final int y, final int x, final int[] dst, final int offset, final int len) {
+		final ByteBuffer b = chunks[y >> chunkShift];
+		final int p = (y & chunkMask) * rowBytes;
+		if (bytesPerPixel == 4) {
+			for (int i = 0, q = p + (x << 2); i < len; i++, q += 4) {
+				dst[offset + i] = b.getInt(q);
+			}
+		} else {
+			for (int i = 0, q = p + x; i < len; i++, q++) {
+				dst[offset + i] = b.get(q) & 0xFF;
+			}
+		}
+	}
+
+	public void setRow(final int y, final int x, final int[] src, final int offset, final int len) {
+		final ByteBuffer b = chunks[y >> chunkShift];
+		final int p = (y & chunkMask) * rowBytes;
+		if (bytesPerPixel == 4) {
+			for (int i = 0, q = p + (x << 2); i < len; i++, q += 4) {
+				b.putInt(q, src[offset + i]);
+			}
+		} else {
+			for (int i = 0, q = p + x; i < len; i++, q++) {
+				b.put(q, (byte) src[offset + i]);
+			}
+		}
+	}
+
+	public void fill(final int y, final int x, final int len, final int value) {
+		final ByteBuffer b = chunks[y >> chunkShift];
+		final int p = (y & chunkMask) * rowBytes;
+		if (bytesPerPixel == 4) {
+			for (int i = 0, q = p + (x << 2); i < len; i++, q += 4) {
+				b.putInt(q, value);
+			}
+		} else {
+			for (int i = 0, q = p + x; i < len; i++, q++) {
+				b.put(q, (byte) value);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,77 @@
+package info.miranda.gd.storage;
+
+import info.miranda.gd.interfaces.GdPixelStorageInterface;
+
+import java.util.Arrays;
+
+/**
+ * Truecolor pixel storage: one contiguous int[] holding all the rows,
+ * row y starting at index y * stride.
+ */
+public class GdPixelStorageInt implements GdPixelStorageInterface {
+
+	private final int width;
+	private final int height;
+	private final int stride;
+	private final int[] data;
+
+	/**
+	 * @throws IllegalArgumentException if the image has more pixels than
+	 *         an array can hold; the DIRECT and MAPPED storage modes take
+	 *         larger images
+	 */
+	public GdPixelStorageInt(final int width, final int height) {
+		if ((long) width * height > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("image too large for heap storage: " + width + "x" + height
+					+ ", use the DIRECT or MAPPED storage mode");
+		}
+		this.width = width;
+		this.height = height;
+		this.stride = width;
+		this.data = new int[width * height];
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return distance, in array elements, between two consecutive rows
+	 */
+	public int getStride() {
+		return stride;
+	}
+
+	/**
+	 * @return the backing array, row y starts at y * getStride()
+	 */
+	public int[] getData() {
+		return data;
+	}
+
+	public int get(final int x, final int y) {
+		return data[y * stride + x];
+	}
+
+	public void set(final int x, final int y, final int value) {
+		data[y * stride + x] = value;
+	}
+
+	public void getRow(final int y, final int x, final int[] dst, final int offset, final int len) {
+		System.arraycopy(data, y * stride + x, dst, offset, len);
+	}
+
+	public void setRow(final int y, final int x, final int[] src, final int offset, final int len) {
+		System.arraycopy(src, offset, data, y * stride + x, len);
+	}
+
+	public void fill(final int y, final int x, final int len, final int value) {
+		final int p = y * stride + x;
+		Arrays.fill(data, p, p + len, value);
+	}
+
+}
@@ -41,6 +41,22 @@ public class GdAffine {
 		return dst;
 	}
 
+	/**
+	 * Function: gdAffineGet
+	 *  Returns a coefficient of the affine matrix, as used by
+	 *  <gdAffineApplyToPointF>:
+	 *  x' = x * m[0] + y * m[2] + m[4], y' = x * m[1] + y * m[3] + m[5]
+	 *
+	 * Parameters:
+	 * 	i - Index of the coefficient, 0 to 5
+	 *
+	 * Returns:
+	 *  The coefficient
+	 */
+	public double get(final int i) {
+		return affine[i];
+	}
+
 	/**
 	 * Function: gdAffineInvert
 	 *  Find the inverse of an affine transformation.
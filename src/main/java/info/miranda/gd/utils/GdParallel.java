@@ -0,0 +1,64 @@
+package info.miranda.gd.utils;
+
+import info.miranda.gd.interfaces.GdCallbackRange;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+	Splits independent lines of work (rows or columns of an image) into
+	contiguous slices and runs them in a fork-join pool. Each line must
+	only write its own pixels, so the result does not depend on how the
+	lines are split or in which order the slices run.
+*/
+public class GdParallel {
+
+	/**
+	 * Runs callback over the lines 0..count-1.
+	 * @param pool pool to run in, null for the common pool
+	 * @param parallelism number of slices; 1 or less runs everything in the calling thread
+	 * @param count number of lines
+	 * @param callback the work for one slice
+	 */
+	public static void forRange(final ForkJoinPool pool, final int parallelism, final int count,
+								final GdCallbackRange callback) {
+		final int slices = Math.min(parallelism, count);
+		if (slices <= 1) {
+			callback.callbackRange(0, count);
+			return;
+		}
+
+		final RangeAction action = new RangeAction(callback, 0, count, slices);
+		(pool != null ? pool : ForkJoinPool.commonPool()).invoke(action);
+	}
+
+	/* Halves the range until each action holds a single slice. */
+	private static class RangeAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final GdCallbackRange callback;
+		private final int from;
+		private final int to;
+		private final int slices;
+
+		RangeAction(final GdCallbackRange callback, final int from, final int to, final int slices) {
+			this.callback = callback;
+			this.from = from;
+			this.to = to;
+			this.slices = slices;
+		}
+
+		@Override
+		protected void compute() {
+			if (slices <= 1) {
+				callback.callbackRange(from, to);
+				return;
+			}
+			final int half = slices / 2;
+			final int mid = from + (int) ((long) (to - from) * half / slices);
+			invokeAll(new RangeAction(callback, from, mid, half),
+					new RangeAction(callback, mid, to, slices - half));
+		}
+	}
+
+}
@@ -0,0 +1,321 @@
+package info.miranda.gd.utils;
+
+import info.miranda.gd.interfaces.GdCallbackCoverage;
+
+/*
+	Anti-aliased scanline rasterizer computing the exact area of every
+	pixel covered by an outline.
+
+	Each edge adds the signed area it sweeps to the cells of an
+	accumulation buffer; a running sum along a row then gives the
+	coverage of each pixel, in a single pass and without supersampling.
+	Rows are processed in bands, so the buffer stays small however large
+	the image is. Inside and outside follow the even-odd rule, like the
+	aliased polygon filler; a pixel in which two edges cross only gets
+	an approximate coverage.
+
+	A pixel (x, y) is the square from (x, y) to (x + 1, y + 1); add 0.5
+	to image coordinates to put a vertex on a pixel center.
+*/
+public class GdRasterizer {
+
+	/* rows accumulated per pass */
+	private static final int BAND = 32;
+
+	/* edges, 4 doubles each: x0, y0, x1, y1 */
+	private double[] edges = new double[64];
+	private int edgeCount;
+	private double minX, minY, maxX, maxY;
+
+	/* accumulation buffer of one band, left all zero after every pass */
+	private float[] cells;
+	private int[] rowStart;
+	private int[] rowEnd;
+	private int[] coverage;
+	private int width;
+	private int stride;
+
+	public GdRasterizer() {
+		reset();
+	}
+
+	/**
+	 * Forgets all the edges added so far.
+	 */
+	public void reset() {
+		edgeCount = 0;
+		minX = minY = Double.POSITIVE_INFINITY;
+		maxX = maxY = Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Adds one edge of the outline. The outline must be closed, but the
+	 * edges may come in any order.
+	 */
+	public void addLine(final double x0, final double y0, final double x1, final double y1) {
+	/* a horizontal edge does not sweep any area */
+		if (y0 == y1) {
+			return;
+		}
+		if (edgeCount + 4 > edges.length) {
+			final double[] grown = new double[edges.length * 2];
+			System.arraycopy(edges, 0, grown, 0, edgeCount);
+			edges = grown;
+		}
+		edges[edgeCount++] = x0;
+		edges[edgeCount++] = y0;
+		edges[edgeCount++] = x1;
+		edges[edgeCount++] = y1;
+		minX = Math.min(minX, Math.min(x0, x1));
+		maxX = Math.max(maxX, Math.max(x0, x1));
+		minY = Math.min(minY, Math.min(y0, y1));
+		maxY = Math.max(maxY, Math.max(y0, y1));
+	}
+
+	/**
+	 * Adds an ellipse, flattened to chords.
+	 * @param cx center x
+	 * @param cy center y
+	 * @param rx horizontal radius
+	 * @param ry vertical radius
+	 */
+	public void addEllipse(final double cx, final double cy, final double rx, final double ry) {
+		final int n = segments(rx, ry, 2 * Math.PI);
+		double px = cx + rx;
+		double py = cy;
+		for (int i = 1; i <= n; i++) {
+			final double a = 2 * Math.PI * i / n;
+			final double x = (i == n) ? cx + rx : cx + Math.cos(a) * rx;
+			final double y = (i == n) ? cy : cy + Math.sin(a) * ry;
+			addLine(px, py, x, y);
+			px = x;
+			py = y;
+		}
+	}
+
+	/**
+	 * Adds a pie slice of an ellipse, from the center along the arc and back.
+	 * Angles are in radians, growing clockwise on the image.
+	 * @param cx center x
+	 * @param cy center y
+	 * @param rx horizontal radius
+	 * @param ry vertical radius
+	 * @param start start angle
+	 * @param end end angle, not less than start
+	 */
+	public void addPie(final double cx, final double cy, final double rx, final double ry,
+					   final double start, final double end) {
+		final int n = segments(rx, ry, end - start);
+		double px = cx;
+		double py = cy;
+		for (int i = 0; i <= n; i++) {
+			final double a = start + (end - start) * i / n;
+			final double x = cx + Math.cos(a) * rx;
+			final double y = cy + Math.sin(a) * ry;
+			addLine(px, py, x, y);
+			px = x;
+			py = y;
+		}
+		addLine(px, py, cx, cy);
+	}
+
+	/**
+	 * Number of chords needed to keep a flattened elliptic arc within
+	 * a tenth of a pixel of the curve.
+	 * @param rx horizontal radius
+	 * @param ry vertical radius
+	 * @param angle angle spanned by the arc, in radians
+	 * @return number of chords, at least 1
+	 */
+	public static int segments(final double rx, final double ry, final double angle) {
+	/* the sagitta of a chord spanning t radians is about r * t * t / 8 */
+		final double r = Math.max(Math.abs(rx), Math.abs(ry));
+		final int full = Math.max(16, (int) Math.ceil(Math.PI * Math.sqrt(5 * r)));
+		return Math.max(1, (int) Math.ceil(full * Math.abs(angle) / (2 * Math.PI)));
+	}
+
+	/**
+	 * Computes the coverage of the outline and hands it over row by row.
+	 * Each row is reported at most once, as one run spanning every pixel
+	 * touched by the outline in that row; pixels of the run may have
+	 * zero coverage.
+	 * @param clipX1 left edge of the clipping rectangle, inclusive
+	 * @param clipY1 top edge of the clipping rectangle, inclusive
+	 * @param clipX2 right edge of the clipping rectangle, inclusive
+	 * @param clipY2 bottom edge of the clipping rectangle, inclusive
+	 * @param callback receives the runs; the coverage array is reused
+	 */
+	public void render(final int clipX1, final int clipY1, final int clipX2, final int clipY2,
+					   final GdCallbackCoverage callback) {
+		if (edgeCount == 0) {
+			return;
+		}
+		final int x1 = Math.max(clipX1, (int) Math.floor(minX));
+		final int x2 = Math.min(clipX2, (int) Math.ceil(maxX) - 1);
+		final int y1 = Math.max(clipY1, (int) Math.floor(minY));
+		final int y2 = Math.min(clipY2, (int) Math.ceil(maxY) - 1);
+		if (x1 > x2 || y1 > y2) {
+			return;
+		}
+
+		width = x2 - x1 + 1;
+		stride = width + 2;
+		if (cells == null || cells.length < stride * BAND) {
+			cells = new float[stride * BAND];
+			rowStart = new int[BAND];
+			rowEnd = new int[BAND];
+		}
+		if (coverage == null || coverage.length < width) {
+			coverage = new int[width];
+		}
+
+		for (int top = y1; top <= y2; top += BAND) {
+			final int rows = Math.min(BAND, y2 - top + 1);
+			for (int r = 0; r < rows; r++) {
+				rowStart[r] = stride;
+				rowEnd[r] = -1;
+			}
+			for (int i = 0; i < edgeCount; i += 4) {
+				final double ey0 = edges[i + 1];
+				final double ey1 = edges[i + 3];
+				if (Math.max(ey0, ey1) <= top || Math.min(ey0, ey1) >= top + rows) {
+					continue;
+				}
+				clipLine(edges[i] - x1, ey0 - top, edges[i + 2] - x1, ey1 - top, rows);
+			}
+			for (int r = 0; r < rows; r++) {
+				final int from = rowStart[r];
+				final int to = rowEnd[r];
+				if (to < from) {
+					continue;
+				}
+				final int base = r * stride;
+				final int last = Math.min(to, width - 1);
+				float acc = 0;
+				for (int i = from; i <= to; i++) {
+					acc += cells[base + i];
+					cells[base + i] = 0;
+					if (i <= last) {
+						coverage[i - from] = evenOdd(acc);
+					}
+				}
+				if (last >= from) {
+					callback.callbackCoverage(top + r, x1 + from, last - from + 1, coverage);
+				}
+			}
+		}
+	}
+
+	/* Folds the accumulated signed area by the even-odd rule, 0..255. */
+	private static int evenOdd(final float acc) {
+		float v = Math.abs(acc) % 2;
+		if (v > 1) {
+			v = 2 - v;
+		}
+		return (int) (v * 255 + 0.5f);
+	}
+
+	/* Splits an edge where it leaves the band horizontally; the parts
+	   outside are moved onto the border, where they still account for the
+	   area to their right. */
+	private void clipLine(final double x0, final double y0, final double x1, final double y1, final int rows) {
+		final double w = width;
+		if ((x0 < 0 && x1 > 0) || (x0 > 0 && x1 < 0)) {
+			final double y = y0 + (0 - x0) * (y1 - y0) / (x1 - x0);
+			clipLine(x0, y0, 0, y, rows);
+			clipLine(0, y, x1, y1, rows);
+			return;
+		}
+		if ((x0 < w && x1 > w) || (x0 > w && x1 < w)) {
+			final double y = y0 + (w - x0) * (y1 - y0) / (x1 - x0);
+			clipLine(x0, y0, w, y, rows);
+			clipLine(w, y, x1, y1, rows);
+			return;
+		}
+		accumulate(clamp(x0, w), y0, clamp(x1, w), y1, rows);
+	}
+
+	private static double clamp(final double x, final double w) {
+		return x < 0 ? 0 : (x > w ? w : x);
+	}
+
+	/* Adds the signed area swept by an edge lying within 0..width. */
+	private void accumulate(double x0, double y0, double x1, double y1, final int rows) {
+		final float dir;
+		if (y0 < y1) {
+			dir = 1;
+		} else if (y0 > y1) {
+			dir = -1;
+			double t = x0;
+			x0 = x1;
+			x1 = t;
+			t = y0;
+			y0 = y1;
+			y1 = t;
+		} else {
+			return;
+		}
+		if (y1 <= 0 || y0 >= rows) {
+			return;
+		}
+
+		final double dxdy = (x1 - x0) / (y1 - y0);
+		double x = x0;
+		if (y0 < 0) {
+			x = clamp(x - y0 * dxdy, width);
+			y0 = 0;
+		}
+		final double yEnd = Math.min(rows, y1);
+		final int yLast = (int) Math.ceil(yEnd);
+		for (int y = (int) y0; y < yLast; y++) {
+			final int line = y * stride;
+			final double dy = Math.min(y + 1, yEnd) - Math.max(y, y0);
+			final double xnext = clamp(x + dxdy * dy, width);
+			final double d = dy * dir;
+			final double xa = Math.min(x, xnext);
+			final double xb = Math.max(x, xnext);
+			final double xaFloor = Math.floor(xa);
+			final int ia = (int) xaFloor;
+			final double xbCeil = Math.ceil(xb);
+			final int ib = (int) xbCeil;
+			final int hi;
+			if (ib <= ia + 1) {
+			/* within one cell: split by the mean x */
+				final double xmf = 0.5 * (x + xnext) - xaFloor;
+				cells[line + ia] += d - d * xmf;
+				cells[line + ia + 1] += d * xmf;
+				hi = ia + 1;
+			} else {
+			/* across cells: a triangle in the first and last one,
+			   equal trapezoids in between */
+				final double s = 1 / (xb - xa);
+				final double xaf = xa - xaFloor;
+				final double a0 = 0.5 * s * (1 - xaf) * (1 - xaf);
+				final double xbf = xb - xbCeil + 1;
+				final double am = 0.5 * s * xbf * xbf;
+				cells[line + ia] += d * a0;
+				if (ib == ia + 2) {
+					cells[line + ia + 1] += d * (1 - a0 - am);
+				} else {
+					final double a1 = s * (1.5 - xaf);
+					cells[line + ia + 1] += d * (a1 - a0);
+					for (int i = ia + 2; i < ib - 1; i++) {
+						cells[line + i] += d * s;
+					}
+					final double a2 = a1 + (ib - ia - 3) * s;
+					cells[line + ib - 1] += d * (1 - a2 - am);
+				}
+				cells[line + ib] += d * am;
+				hi = ib;
+			}
+			if (ia < rowStart[y]) {
+				rowStart[y] = ia;
+			}
+			if (hi > rowEnd[y]) {
+				rowEnd[y] = hi;
+			}
+			x = xnext;
+		}
+	}
+
+}
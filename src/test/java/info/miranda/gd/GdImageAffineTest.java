@@ -0,0 +1,248 @@
+package info.miranda.gd;
+
+import info.miranda.gd.enums.GdEffect;
+import info.miranda.gd.enums.GdImageColorType;
+import info.miranda.gd.enums.GdInterpolationMethod;
+import info.miranda.gd.utils.GdAffine;
+import info.miranda.gd.utils.GdRect;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+public class GdImageAffineTest {
+
+	private static final GdInterpolationMethod[] METHODS = {
+			GdInterpolationMethod.GD_BICUBIC,
+			GdInterpolationMethod.GD_HAMMING,
+			GdInterpolationMethod.GD_TRIANGLE,
+	};
+
+	private static final int MARKER = GdUtils.trueColorMixAlpha(1, 2, 3, 4);
+
+	private static GdImage createImage(final int sx, final int sy) {
+		final GdImage im = new GdImage(sx, sy, GdImageColorType.TRUE_COLOR);
+		int seed = 12345;
+		for (int y = 0; y < sy; y++) {
+			for (int x = 0; x < sx; x++) {
+				seed = seed * 1103515245 + 12345;
+				final int c = seed >>> 1;
+				im.setPixel(x, y, GdUtils.trueColorMixAlpha((c >> 16) & 0xFF, (c >> 8) & 0xFF, c & 0xFF,
+						(x * y) % 128));
+			}
+		}
+		return im;
+	}
+
+	/* a canvas of MARKER, so that the pixels left alone show */
+	private static GdImage createCanvas(final GdEffect blending) {
+		final GdImage im = new GdImage(90, 80, GdImageColorType.TRUE_COLOR);
+		for (int y = 0; y < im.sy; y++) {
+			im.tpixels.fill(y, 0, im.sx, MARKER);
+		}
+		im.setAlphaBlending(blending);
+		return im;
+	}
+
+	private static GdRect rect(final int x, final int y, final int width, final int height) {
+		final GdRect r = new GdRect();
+		r.x = x;
+		r.y = y;
+		r.width = width;
+		r.height = height;
+		return r;
+	}
+
+	private static GdAffine concat(final GdAffine... steps) {
+		final GdAffine m = GdAffine.translate(0, 0);
+		for (final GdAffine step : steps) {
+			GdAffine.concat(m, m, step);
+		}
+		return m;
+	}
+
+	/* Same pixels but for the rounding of an interpolated channel, one either way. */
+	private static void assertWithinOne(final String message, final GdImage expected, final GdImage actual) {
+		assertEquals(message, expected.sx, actual.sx);
+		assertEquals(message, expected.sy, actual.sy);
+		for (int y = 0; y < expected.sy; y++) {
+			for (int x = 0; x < expected.sx; x++) {
+				final int e = expected.tpixels.get(x, y);
+				final int a = actual.tpixels.get(x, y);
+				for (int shift = 0; shift < 32; shift += 8) {
+					final int d = ((e >> shift) & 0xFF) - ((a >> shift) & 0xFF);
+					if (d < -1 || d > 1) {
+						fail(message + " at " + x + "," + y + ": " + Integer.toHexString(e) + " vs " + Integer.toHexString(a));
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Same pixels within tolerance over the transformed area bbox placed
+	 * at dst_x, dst_y, but for a margin as wide as the footprint of the
+	 * kernel, two source pixels, so that pixels sampling the edges of the
+	 * source area are not compared.
+	 */
+	private static void assertInterior(final String message, final GdImage expected, final GdImage actual,
+									   final int dst_x, final int dst_y, final GdRect bbox, final GdAffine affine,
+									   final int tolerance) {
+		final double stretch = Math.max(Math.abs(affine.get(0) + affine.get(1)), Math.abs(affine.get(2) + affine.get(3)));
+		final int margin = (int) Math.ceil(2 * Math.max(1, stretch)) + 1;
+		final int y2 = Math.min(actual.sy, dst_y + bbox.y + bbox.height - margin);
+		final int x2 = Math.min(actual.sx, dst_x + bbox.x + bbox.width - margin);
+		for (int y = Math.max(0, dst_y + bbox.y + margin); y < y2; y++) {
+			for (int x = Math.max(0, dst_x + bbox.x + margin); x < x2; x++) {
+				final int e = expected.tpixels.get(x, y);
+				final int a = actual.tpixels.get(x, y);
+				for (int shift = 0; shift < 32; shift += 8) {
+					if (Math.abs(((e >> shift) & 0xFF) - ((a >> shift) & 0xFF)) > tolerance) {
+						fail(message + " at " + x + "," + y + ": " + Integer.toHexString(e) + " vs " + Integer.toHexString(a));
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * gdTransformAffineCopy() as it was before the rows were stepped: the
+	 * source point of every pixel from applyToPointF(), pixels whose
+	 * interpolation footprint misses the source area left alone.
+	 */
+	private static void referenceAffineCopy(final GdImage dst, final int dst_x, final int dst_y, final GdImage src,
+											final GdRect region, final GdAffine affine) {
+		final GdAffine inv = affine.invert();
+		final GdRect bbox = src.gdTransformAffineBoundingBox(region, affine);
+		final boolean replace = dst.alphaBlendingFlag == GdEffect.REPLACE;
+		src.setClip(region.x, region.y, region.x + region.width - 1, region.y + region.height - 1);
+		final GdSampler sampler = GdSampler.create(src, replace ? 0 : -1);
+		final int end_x = bbox.width + Math.abs(bbox.x);
+		final int end_y = bbox.height + Math.abs(bbox.y);
+		final GdPointF pt = new GdPointF();
+		for (int y = replace ? bbox.y : 0; y <= end_y; y++) {
+			for (int x = replace ? bbox.x : 0; x <= end_x; x++) {
+				final int tx = dst_x + x;
+				final int ty = dst_y + y;
+				if (tx < 0 || ty < 0 || tx >= dst.sx || ty >= dst.sy) {
+					continue;
+				}
+				pt.x = x + 0.5 + (replace ? 0 : bbox.x);
+				pt.y = y + 0.5 + (replace ? 0 : bbox.y);
+				final GdPointF p = inv.applyToPointF(pt);
+				final double px = region.x - 0.5 + p.x;
+				final double py = region.y - 0.5 + p.y;
+				if (px < src.cx1 - 2 || px >= src.cx2 + 3 || py < src.cy1 - 2 || py >= src.cy2 + 3) {
+					continue;
+				}
+				dst.tpixels.set(tx, ty, sampler.sample(px, py));
+			}
+		}
+		src.setClip(0, 0, src.sx - 1, src.sy - 1);
+	}
+
+	@Test
+	public void testRowSteppingSameAsPerPoint() {
+		final GdImage src = createImage(53, 41);
+		final GdAffine[] affines = {
+				new GdAffine().rotate(30),
+				concat(new GdAffine().rotate(-17), new GdAffine().scale(1.3, 0.8), GdAffine.translate(5.25, -3.5)),
+				concat(new GdAffine().shearHorizontal(20), new GdAffine().scale(0.7, 1.1)),
+				concat(new GdAffine().rotate(123.4), new GdAffine().shearVertical(-10)),
+		};
+		final GdRect[] regions = {rect(0, 0, src.sx, src.sy), rect(5, 4, 40, 30)};
+		final int[][] offsets = {{0, 0}, {7, -5}, {-11, 9}};
+		for (final GdInterpolationMethod method : METHODS) {
+			src.setInterpolationMethod(method);
+			for (int a = 0; a < affines.length; a++) {
+				for (final GdRect region : regions) {
+					for (final int[] offset : offsets) {
+						for (final GdEffect blending : new GdEffect[]{GdEffect.REPLACE, GdEffect.ALPHA_BLEND}) {
+							final String message = method + " affine " + a + " region " + region.x + "," + region.y
+									+ " offset " + offset[0] + "," + offset[1] + " " + blending;
+							final GdImage expected = createCanvas(blending);
+							referenceAffineCopy(expected, offset[0], offset[1], src, region, affines[a]);
+							final GdImage actual = createCanvas(blending);
+							actual.gdTransformAffineCopy(actual, offset[0], offset[1], src, region, affines[a]);
+						/* the stepped source points differ from those of
+						   applyToPointF() in the last bits only */
+							assertWithinOne(message, expected, actual);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Translations by whole pixels and quarter turns are copies, scales go
+	 * through scale(); their pixels against those of the sampling loops,
+	 * away from the edges of the area, on a smooth gradient. scale() puts
+	 * its taps at u / scale rather than at the pixel centers and widens the
+	 * kernel to shrink, which on this gradient is a few levels.
+	 */
+	@Test
+	public void testFastPathsSameAsGeneric() {
+		final GdImage src = new GdImage(53, 41, GdImageColorType.TRUE_COLOR);
+		for (int y = 0; y < src.sy; y++) {
+			for (int x = 0; x < src.sx; x++) {
+				src.setPixel(x, y, GdUtils.trueColorMixAlpha(x * 4, y * 5, (x + y) * 2, (x + y) % 128));
+			}
+		}
+		final GdAffine[] affines = {
+				GdAffine.translate(6, -4),
+				concat(new GdAffine().rotate(90), GdAffine.translate(3, 41)),
+				new GdAffine().rotate(180),
+				new GdAffine().rotate(-90),
+				new GdAffine().scale(2, 3),
+				new GdAffine().scale(0.5, 0.25),
+		};
+		final int[] tolerances = {1, 1, 1, 1, 3, 6};
+		final GdInterpolationMethod[] methods = {
+				GdInterpolationMethod.GD_BICUBIC,
+				GdInterpolationMethod.GD_CATMULLROM,
+				GdInterpolationMethod.GD_TRIANGLE,
+				GdInterpolationMethod.GD_BSPLINE,
+		};
+		final GdRect region = rect(5, 4, 40, 30);
+		for (final GdInterpolationMethod method : methods) {
+			src.setInterpolationMethod(method);
+			for (int a = 0; a < affines.length; a++) {
+				final GdImage expected = createCanvas(GdEffect.REPLACE);
+				referenceAffineCopy(expected, 10, 12, src, region, affines[a]);
+				final GdImage actual = createCanvas(GdEffect.REPLACE);
+				actual.gdTransformAffineCopy(actual, 10, 12, src, region, affines[a]);
+				assertInterior(method + " affine " + a, expected, actual, 10, 12,
+						src.gdTransformAffineBoundingBox(region, affines[a]), affines[a], tolerances[a]);
+			}
+		}
+	}
+
+	/*
+	 * A kernel not giving the pixels themselves at their centers is not
+	 * copied: translations and quarter turns take the sampling loops.
+	 */
+	@Test
+	public void testFastPathsLeftToSampling() {
+		final GdImage src = createImage(53, 41);
+		final GdAffine[] affines = {
+				GdAffine.translate(6, -4),
+				concat(new GdAffine().rotate(90), GdAffine.translate(3, 41)),
+				new GdAffine().rotate(180),
+		};
+		final GdRect region = rect(5, 4, 40, 30);
+		for (final GdInterpolationMethod method : new GdInterpolationMethod[]{GdInterpolationMethod.GD_BSPLINE,
+				GdInterpolationMethod.GD_MITCHELL}) {
+			src.setInterpolationMethod(method);
+			for (int a = 0; a < affines.length; a++) {
+				final GdImage expected = createCanvas(GdEffect.REPLACE);
+				referenceAffineCopy(expected, 10, 12, src, region, affines[a]);
+				final GdImage actual = createCanvas(GdEffect.REPLACE);
+				actual.gdTransformAffineCopy(actual, 10, 12, src, region, affines[a]);
+				assertInterior(method + " affine " + a, expected, actual, 10, 12,
+						src.gdTransformAffineBoundingBox(region, affines[a]), affines[a], 1);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,514 @@
+package info.miranda.gd;
+
+import info.miranda.gd.enums.GdEffect;
+import info.miranda.gd.enums.GdImageColorType;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+public class GdImageFillTest {
+
+	private static GdImage createImage(final GdImageColorType type) {
+		final GdImage im = new GdImage(64, 48, type);
+		if (type == GdImageColorType.PALETTE_BASED_COLOR) {
+			for (int i = 0; i < 8; i++) {
+				im.colorAllocate(i * 32, 255 - i * 32, (i * 90) & 0xFF);
+			}
+		} else {
+			im.setAlphaBlending(GdEffect.REPLACE);
+		}
+		return im;
+	}
+
+	private static void assertSamePixels(final String message, final GdImage expected, final GdImage actual) {
+		for (int y = 0; y < expected.sy; y++) {
+			for (int x = 0; x < expected.sx; x++) {
+				if (expected.getPixel(x, y) != actual.getPixel(x, y)) {
+					fail(message + " at " + x + "," + y + ": " + Integer.toHexString(expected.getPixel(x, y))
+							+ " vs " + Integer.toHexString(actual.getPixel(x, y)));
+				}
+			}
+		}
+	}
+
+	/* fillPolygon() as it was before the edge table: every edge is
+	   intersected with every scanline, the intersections sorted */
+	private static void referenceFillPolygon(final GdImage im, final GdPoint[] p, final int c) {
+		int miny = p[0].y;
+		int maxy = p[0].y;
+		for (int i = 1; i < p.length; i++) {
+			miny = Math.min(miny, p[i].y);
+			maxy = Math.max(maxy, p[i].y);
+		}
+		final int pmaxy = maxy;
+		miny = Math.max(miny, im.cy1);
+		maxy = Math.min(maxy, im.cy2);
+		final int[] ints = new int[p.length];
+		for (int y = miny; y <= maxy; y++) {
+			int n = 0;
+			for (int i = 0; i < p.length; i++) {
+				final GdPoint a = p[(i == 0) ? p.length - 1 : i - 1];
+				final GdPoint b = p[i];
+				final int x1, y1, x2, y2;
+				if (a.y < b.y) {
+					x1 = a.x;
+					y1 = a.y;
+					x2 = b.x;
+					y2 = b.y;
+				} else if (a.y > b.y) {
+					x1 = b.x;
+					y1 = b.y;
+					x2 = a.x;
+					y2 = a.y;
+				} else {
+					continue;
+				}
+				if ((y >= y1) && (y < y2)) {
+					ints[n++] = (int) ((float) ((y - y1) * (x2 - x1)) / (float) (y2 - y1) + 0.5 + x1);
+				} else if ((y == pmaxy) && (y == y2)) {
+					ints[n++] = x2;
+				}
+			}
+			Arrays.sort(ints, 0, n);
+			for (int i = 0; i < n - 1; i += 2) {
+				im.drawLine(ints[i], y, ints[i + 1], y, c);
+			}
+		}
+	}
+
+	private static GdPoint[] randomPolygon(final Random random, final int sx, final int sy) {
+		final GdPoint[] p = new GdPoint[3 + random.nextInt(10)];
+		for (int i = 0; i < p.length; i++) {
+			p[i] = new GdPoint(random.nextInt(sx + 40) - 20, random.nextInt(sy + 40) - 20);
+		}
+	/* some horizontal edges */
+		if (p.length > 4) {
+			p[2].y = p[1].y;
+		}
+		return p;
+	}
+
+	/* gdImageFill() as it was before it read the rows directly and filled
+	   by spans: every pixel read with getPixel() and set with setPixel() */
+	private static void referenceFill(final GdImage im, int x, int y, final int nc) {
+		final GdEffect blending = im.alphaBlendingFlag;
+		final int oc = im.getPixel(x, y);
+		if (oc == nc || x < 0 || x >= im.sx || y < 0 || y >= im.sy) {
+			return;
+		}
+		im.alphaBlendingFlag = GdEffect.REPLACE;
+		final ArrayDeque<int[]> stack = new ArrayDeque<int[]>();
+		push(im, stack, y, x, x, 1);
+		push(im, stack, y + 1, x, x, -1);
+		while (!stack.isEmpty()) {
+			final int[] sp = stack.pop();
+			final int dy = sp[3];
+			final int x1 = sp[1];
+			final int x2 = sp[2];
+			int l;
+			y = sp[0] + dy;
+			for (x = x1; x >= 0 && im.getPixel(x, y) == oc; x--) {
+				im.setPixel(x, y, nc);
+			}
+			final boolean skip = (x >= x1);
+			if (skip) {
+				for (x++; x <= x2 && im.getPixel(x, y) != oc; x++);
+				l = x;
+			} else {
+				l = x + 1;
+				if (l < x1) {
+					push(im, stack, y, l, x1 - 1, -dy);
+				}
+				x = x1 + 1;
+			}
+			if (skip && x > x2) {
+				continue;
+			}
+			do {
+				for (; x < im.sx && im.getPixel(x, y) == oc; x++) {
+					im.setPixel(x, y, nc);
+				}
+				push(im, stack, y, l, x - 1, dy);
+				if (x > x2 + 1) {
+					push(im, stack, y, x2 + 1, x - 1, -dy);
+				}
+				for (x++; x <= x2 && im.getPixel(x, y) != oc; x++);
+				l = x;
+			} while (x <= x2);
+		}
+		im.alphaBlendingFlag = blending;
+	}
+
+	private static void push(final GdImage im, final ArrayDeque<int[]> stack, final int y, final int xl,
+							 final int xr, final int dy) {
+		if (y + dy >= 0 && y + dy < im.sy) {
+			stack.push(new int[] {y, xl, xr, dy});
+		}
+	}
+
+	/* Rectangles, ellipses and lines of two colors on a background. */
+	private static void drawScene(final GdImage im, final Random random, final int[] colors) {
+		im.fillRectangle(0, 0, im.sx - 1, im.sy - 1, colors[0]);
+		for (int i = 0; i < 12; i++) {
+			final int c = colors[1 + random.nextInt(2)];
+			final int x = random.nextInt(im.sx);
+			final int y = random.nextInt(im.sy);
+			switch (random.nextInt(3)) {
+				case 0:
+					im.fillRectangle(x, y, x + random.nextInt(20), y + random.nextInt(20), c);
+					break;
+				case 1:
+					im.drawEllipse(x, y, 5 + random.nextInt(30), 5 + random.nextInt(30), c);
+					break;
+				default:
+					im.drawLine(x, y, random.nextInt(im.sx), random.nextInt(im.sy), c);
+					break;
+			}
+		}
+	}
+
+	private static int[] colors(final GdImage im) {
+		if (im.trueColor) {
+			return new int[] {0xFFFFFF, 0x102030, 0x405060, 0x708090, 0x7F000000};
+		}
+		return new int[] {0, 1, 2, 3, 4};
+	}
+
+	@Test
+	public void testFillSameAsPixelFill() {
+		final Random random = new Random(11);
+		for (final GdImageColorType type : GdImageColorType.values()) {
+			for (int n = 0; n < 200; n++) {
+				final GdImage expected = createImage(type);
+				final GdImage actual = createImage(type);
+				final int[] colors = colors(expected);
+				final long seed = random.nextLong();
+				drawScene(expected, new Random(seed), colors);
+				drawScene(actual, new Random(seed), colors);
+			/* plain colors, then a style and a brush */
+				int c = colors[3 + random.nextInt(2)];
+				switch (n % 4) {
+					case 2: {
+						final int[] style = {colors[3], colors[3], colors[4]};
+						expected.setStyle(style, style.length);
+						actual.setStyle(style, style.length);
+						c = GdUtils.SPECIAL_COLOR_STYLED;
+						break;
+					}
+					case 3: {
+						final GdImage brush = new GdImage(3, 2, type);
+						if (!brush.trueColor) {
+							brush.colorAllocate(200, 100, 0);
+						}
+						brush.fillRectangle(0, 0, 2, 1, brush.trueColor ? 0xC86400 : 0);
+						expected.setBrush(brush);
+						actual.setBrush(brush);
+						c = GdUtils.SPECIAL_COLOR_BRUSHED;
+						break;
+					}
+					default:
+						break;
+				}
+				final int x = random.nextInt(expected.sx);
+				final int y = random.nextInt(expected.sy);
+				referenceFill(expected, x, y, c);
+				actual.gdImageFill(x, y, c);
+				assertSamePixels(type + " fill " + n, expected, actual);
+			}
+		}
+	}
+
+	/* fillToBorder() as the recursive C code */
+	private static void referenceFillToBorder(final GdImage im, final int x, final int y, final int border,
+											  final int color) {
+		int leftLimit = -1;
+		int rightLimit;
+		int i;
+		final GdEffect blending = im.alphaBlendingFlag;
+		im.alphaBlendingFlag = GdEffect.REPLACE;
+		for (i = x; i >= 0; i--) {
+			if (im.getPixel(i, y) == border) {
+				break;
+			}
+			im.setPixel(i, y, color);
+			leftLimit = i;
+		}
+		if (leftLimit == -1) {
+			im.alphaBlendingFlag = blending;
+			return;
+		}
+		rightLimit = x;
+		for (i = x + 1; i < im.sx; i++) {
+			if (im.getPixel(i, y) == border) {
+				break;
+			}
+			im.setPixel(i, y, color);
+			rightLimit = i;
+		}
+		for (int dy = -1; dy <= 1; dy += 2) {
+			if (y + dy < 0 || y + dy >= im.sy) {
+				continue;
+			}
+			boolean lastBorder = true;
+			for (i = leftLimit; i <= rightLimit; i++) {
+				final int c = im.getPixel(i, y + dy);
+				if (lastBorder) {
+					if (c != border && c != color) {
+						referenceFillToBorder(im, i, y + dy, border, color);
+						lastBorder = false;
+					}
+				} else if (c == border || c == color) {
+					lastBorder = true;
+				}
+			}
+		}
+		im.alphaBlendingFlag = blending;
+	}
+
+	@Test
+	public void testFillToBorderSameAsRecursiveFill() {
+		final Random random = new Random(12);
+		for (final GdImageColorType type : GdImageColorType.values()) {
+			for (int n = 0; n < 200; n++) {
+				final GdImage expected = createImage(type);
+				final GdImage actual = createImage(type);
+				final int[] colors = colors(expected);
+				final long seed = random.nextLong();
+				drawScene(expected, new Random(seed), colors);
+				drawScene(actual, new Random(seed), colors);
+			/* the border is one of the scene colors, the fill color may be another */
+				final int border = colors[1 + random.nextInt(2)];
+				final int color = colors[2 + random.nextInt(3)];
+				final int x = random.nextInt(expected.sx);
+				final int y = random.nextInt(expected.sy);
+				referenceFillToBorder(expected, x, y, border, color);
+				actual.fillToBorder(x, y, border, color);
+				assertSamePixels(type + " fill to border " + n, expected, actual);
+			}
+		}
+	}
+
+	@Test
+	public void testFillToBorderStaysInClip() {
+		for (final GdImageColorType type : GdImageColorType.values()) {
+			final GdImage im = createImage(type);
+			final int[] colors = colors(im);
+			im.fillRectangle(0, 0, im.sx - 1, im.sy - 1, colors[0]);
+			im.drawRectangle(2, 2, im.sx - 3, im.sy - 3, colors[1]);
+			im.setClip(10, 5, 30, 20);
+			im.fillToBorder(20, 10, colors[1], colors[2]);
+		/* getPixel() only reads within the clipping rectangle */
+			im.setClip(0, 0, im.sx - 1, im.sy - 1);
+			for (int y = 0; y < im.sy; y++) {
+				for (int x = 0; x < im.sx; x++) {
+					final boolean inside = x >= 10 && x <= 30 && y >= 5 && y <= 20;
+					final int expected = inside ? colors[2] : (x >= 2 && x <= im.sx - 3 && y >= 2 && y <= im.sy - 3
+							&& (x == 2 || x == im.sx - 3 || y == 2 || y == im.sy - 3) ? colors[1] : colors[0]);
+					assertEquals(type + " at " + x + "," + y, expected, im.getPixel(x, y));
+				}
+			}
+
+		/* a styled color never stays as painted and is refused */
+			final int[] style = {colors[3], colors[4]};
+			im.setStyle(style, style.length);
+			im.fillToBorder(20, 10, colors[1], GdUtils.SPECIAL_COLOR_STYLED);
+			assertEquals(colors[2], im.getPixel(20, 10));
+		}
+	}
+
+	/* Pixels 4-connected to (x, y) through pixels of its color within the
+	   clipping rectangle, by a breadth first search. */
+	private static boolean[][] clippedRegion(final GdImage im, final int x, final int y) {
+		final boolean[][] region = new boolean[im.sy][im.sx];
+		final int oc = im.getPixel(x, y);
+		final ArrayDeque<int[]> queue = new ArrayDeque<int[]>();
+		region[y][x] = true;
+		queue.add(new int[] {x, y});
+		while (!queue.isEmpty()) {
+			final int[] p = queue.poll();
+			final int[][] next = {{p[0] - 1, p[1]}, {p[0] + 1, p[1]}, {p[0], p[1] - 1}, {p[0], p[1] + 1}};
+			for (final int[] q : next) {
+				if (q[0] >= im.cx1 && q[0] <= im.cx2 && q[1] >= im.cy1 && q[1] <= im.cy2
+						&& !region[q[1]][q[0]] && im.getPixel(q[0], q[1]) == oc) {
+					region[q[1]][q[0]] = true;
+					queue.add(q);
+				}
+			}
+		}
+		return region;
+	}
+
+	/* Pixels outside the clip keep the old color: they must not be
+	   scanned, or their segments come back forever. */
+	@Test(timeout = 20000)
+	public void testFillClipped() {
+		final GdImage white = new GdImage(100, 100, GdImageColorType.TRUE_COLOR);
+		white.fillRectangle(0, 0, 99, 99, 0xFFFFFF);
+		white.setClip(10, 10, 50, 50);
+		white.gdImageFill(20, 20, 0xFF0000);
+		white.setClip(0, 0, 99, 99);
+		for (int y = 0; y < 100; y++) {
+			for (int x = 0; x < 100; x++) {
+				final boolean inside = x >= 10 && x <= 50 && y >= 10 && y <= 50;
+				assertEquals("at " + x + "," + y, inside ? 0xFF0000 : 0xFFFFFF, white.getPixel(x, y));
+			}
+		}
+
+		final Random random = new Random(13);
+		for (final GdImageColorType type : GdImageColorType.values()) {
+			for (int n = 0; n < 100; n++) {
+				final GdImage im = createImage(type);
+				final int[] colors = colors(im);
+				drawScene(im, random, colors);
+				final int x1 = random.nextInt(im.sx);
+				final int y1 = random.nextInt(im.sy);
+				final int x2 = x1 + random.nextInt(im.sx - x1);
+				final int y2 = y1 + random.nextInt(im.sy - y1);
+				final int x = x1 + random.nextInt(x2 - x1 + 1);
+				final int y = y1 + random.nextInt(y2 - y1 + 1);
+				final int c = colors[3 + random.nextInt(2)];
+				final int[][] before = new int[im.sy][im.sx];
+				for (int yy = 0; yy < im.sy; yy++) {
+					for (int xx = 0; xx < im.sx; xx++) {
+						before[yy][xx] = im.getPixel(xx, yy);
+					}
+				}
+				im.setClip(x1, y1, x2, y2);
+				final boolean[][] region = clippedRegion(im, x, y);
+				final boolean same = im.getPixel(x, y) == c;
+				im.gdImageFill(x, y, c);
+				im.setClip(0, 0, im.sx - 1, im.sy - 1);
+				for (int yy = 0; yy < im.sy; yy++) {
+					for (int xx = 0; xx < im.sx; xx++) {
+						final int expected = (region[yy][xx] && !same) ? c : before[yy][xx];
+						assertEquals(type + " fill " + n + " at " + xx + "," + yy, expected, im.getPixel(xx, yy));
+					}
+				}
+			}
+		}
+	}
+
+	/* Tiled gdImageFill() as it was before the bit mask and the tile
+	   cache: a flag per pixel, every tile color resolved when painted */
+	private static void referenceFillTiled(final GdImage im, int x, int y) {
+		final boolean[][] pts = new boolean[im.sy][im.sx + 1];
+		final int oc = im.getPixel(x, y);
+		final GdEffect blending = im.alphaBlendingFlag;
+		im.alphaBlendingFlag = GdEffect.REPLACE;
+		final ArrayDeque<int[]> stack = new ArrayDeque<int[]>();
+		push(im, stack, y, x, x, 1);
+		push(im, stack, y + 1, x, x, -1);
+		while (!stack.isEmpty()) {
+			final int[] sp = stack.pop();
+			final int dy = sp[3];
+			final int x1 = sp[1];
+			final int x2 = sp[2];
+			int l;
+			y = sp[0] + dy;
+			for (x = x1; x >= 0 && !pts[y][x] && im.getPixel(x, y) == oc; x--) {
+				pts[y][x] = true;
+				im.setPixel(x, y, im.gdImageTileGet(x, y));
+			}
+			final boolean skip = (x >= x1);
+			if (skip) {
+				for (x++; x <= x2 && (pts[y][x] || im.getPixel(x, y) != oc); x++);
+				l = x;
+			} else {
+				l = x + 1;
+				if (l < x1) {
+					push(im, stack, y, l, x1 - 1, -dy);
+				}
+				x = x1 + 1;
+			}
+			if (skip && x > x2) {
+				continue;
+			}
+			do {
+				for (; x < im.sx && !pts[y][x] && im.getPixel(x, y) == oc; x++) {
+					pts[y][x] = true;
+					im.setPixel(x, y, im.gdImageTileGet(x, y));
+				}
+				push(im, stack, y, l, x - 1, dy);
+				if (x > x2 + 1) {
+					push(im, stack, y, x2 + 1, x - 1, -dy);
+				}
+				for (x++; x <= x2 && (pts[y][x] || im.getPixel(x, y) != oc); x++);
+				l = x;
+			} while (x <= x2);
+		}
+		im.alphaBlendingFlag = blending;
+	}
+
+	/* A tile of a few colors, one of them transparent, some also in the scene. */
+	private static GdImage createTile(final GdImageColorType type, final Random random) {
+		final GdImage tile = new GdImage(3 + random.nextInt(5), 2 + random.nextInt(5), type);
+		final int[] colors = new int[6];
+		for (int i = 0; i < colors.length; i++) {
+			final int r = random.nextInt(2) * 0x10 + 0x10 * i;
+			colors[i] = tile.trueColor ? GdUtils.trueColorMixAlpha(r, 0x20, 0x30, 0)
+					: tile.colorAllocate(r, 0x20 + i, 0x30);
+		}
+		tile.gdImageColorTransparent(colors[5]);
+		for (int y = 0; y < tile.sy; y++) {
+			for (int x = 0; x < tile.sx; x++) {
+				tile.setPixel(x, y, colors[random.nextInt(colors.length)]);
+			}
+		}
+		return tile;
+	}
+
+	@Test
+	public void testFillTiledSameAsFlagFill() {
+		final Random random = new Random(13);
+		for (final GdImageColorType type : GdImageColorType.values()) {
+			for (final GdImageColorType tileType : GdImageColorType.values()) {
+				for (int n = 0; n < 50; n++) {
+					final GdImage expected = createImage(type);
+					final GdImage actual = createImage(type);
+					final int[] colors = colors(expected);
+					final long seed = random.nextLong();
+					drawScene(expected, new Random(seed), colors);
+					drawScene(actual, new Random(seed), colors);
+					expected.gdImageColorTransparent(colors[2]);
+					actual.gdImageColorTransparent(colors[2]);
+					final GdImage tile = createTile(tileType, random);
+					expected.setTile(tile);
+					actual.setTile(tile);
+					final int x = random.nextInt(expected.sx);
+					final int y = random.nextInt(expected.sy);
+					referenceFillTiled(expected, x, y);
+					actual.gdImageFill(x, y, GdUtils.SPECIAL_COLOR_TILED);
+					final String message = type + " tile " + tileType + " fill " + n;
+					assertSamePixels(message, expected, actual);
+					assertEquals(message, expected.colorsTotal, actual.colorsTotal);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testFillPolygonSameAsScanlineFill() {
+		final Random random = new Random(9);
+		for (final GdImageColorType type : GdImageColorType.values()) {
+			for (int n = 0; n < 300; n++) {
+				final GdImage expected = createImage(type);
+				final GdImage actual = createImage(type);
+				if (n % 3 == 0) {
+					expected.setClip(5, 7, 50, 30);
+					actual.setClip(5, 7, 50, 30);
+				}
+				final GdPoint[] p = randomPolygon(random, expected.sx, expected.sy);
+				final int c = type == GdImageColorType.TRUE_COLOR ? 0x123456 : 3;
+				referenceFillPolygon(expected, p, c);
+				actual.fillPolygon(p, c);
+				assertSamePixels(type + " polygon " + n, expected, actual);
+			}
+		}
+	}
+
+}
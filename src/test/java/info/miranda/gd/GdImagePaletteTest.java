@@ -0,0 +1,262 @@
+package info.miranda.gd;
+
+import info.miranda.gd.enums.GdEffect;
+import info.miranda.gd.enums.GdImageColorType;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+
+public class GdImagePaletteTest {
+
+	/* findColorClosestAlpha() as a linear scan, ties to the lowest index */
+	private static int closest(final GdImage im, final int r, final int g, final int b, final int a) {
+		int ct = -1;
+		long mindist = 0;
+		for (int i = 0; i < im.colorsTotal; i++) {
+			if (im.open[i]) {
+				continue;
+			}
+			final long rd = im.red[i] - r;
+			final long gd = im.green[i] - g;
+			final long bd = im.blue[i] - b;
+			final long ad = im.alpha[i] - a;
+			final long dist = rd * rd + gd * gd + bd * bd + ad * ad;
+			if (ct < 0 || dist < mindist) {
+				mindist = dist;
+				ct = i;
+			}
+		}
+		return ct;
+	}
+
+	private static int exact(final GdImage im, final int r, final int g, final int b, final int a) {
+		for (int i = 0; i < im.colorsTotal; i++) {
+			if (!im.open[i] && im.red[i] == r && im.green[i] == g && im.blue[i] == b && im.alpha[i] == a) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int closestHWB(final GdImage im, final int r, final int g, final int b) {
+		int ct = -1;
+		double mindist = 0;
+		for (int i = 0; i < im.colorsTotal; i++) {
+			if (im.open[i]) {
+				continue;
+			}
+			final double dist = GdImage.HWB_Diff(im.red[i], im.green[i], im.blue[i], r, g, b);
+			if (ct < 0 || dist < mindist) {
+				mindist = dist;
+				ct = i;
+			}
+		}
+		return ct;
+	}
+
+	/* Colors on a coarse grid, so that exact matches and ties are common. */
+	private static int component(final Random random) {
+		return random.nextInt(6) * 51;
+	}
+
+	private static void assertSearches(final String message, final GdImage im, final Random random) {
+	/* enough searches for the index to build its tree */
+		for (int n = 0; n < 2000; n++) {
+			final boolean coarse = random.nextBoolean();
+			final int r = coarse ? component(random) : random.nextInt(256);
+			final int g = coarse ? component(random) : random.nextInt(256);
+			final int b = coarse ? component(random) : random.nextInt(256);
+			final int a = coarse ? random.nextInt(2) * 127 : random.nextInt(128);
+			final String at = message + " " + r + "," + g + "," + b + "," + a;
+			assertEquals(at, closest(im, r, g, b, a), im.findColorClosestAlpha(r, g, b, a));
+			assertEquals(at, exact(im, r, g, b, a), im.colorExactAlpha(r, g, b, a));
+			if (n % 8 == 0) {
+				assertEquals(at, closestHWB(im, r, g, b), im.colorClosestHWB(r, g, b));
+			}
+		}
+	}
+
+	@Test
+	public void testIndexedSearchSameAsLinearScan() {
+		final Random random = new Random(14);
+		final GdImage im = new GdImage(8, 8, GdImageColorType.PALETTE_BASED_COLOR);
+		for (int i = 0; i < 200; i++) {
+			im.colorAllocateAlpha(component(random), component(random), component(random), random.nextInt(2) * 127);
+		}
+		assertSearches("full", im, random);
+
+		for (int round = 0; round < 6; round++) {
+			switch (round % 3) {
+				case 0:
+					for (int i = 0; i < 30; i++) {
+						im.gdImageColorDeallocate(random.nextInt(im.colorsTotal));
+					}
+					break;
+				case 1:
+					for (int i = 0; i < 20; i++) {
+						im.colorAllocateAlpha(random.nextInt(256), random.nextInt(256), random.nextInt(256),
+								random.nextInt(128));
+					}
+					break;
+				default:
+				/* a few entries changed in place */
+					for (int i = 0; i < 10; i++) {
+						final int c = random.nextInt(im.colorsTotal);
+						im.gdImageColorDeallocate(c);
+						im.colorAllocate(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+					}
+					break;
+			}
+			assertSearches("round " + round, im, random);
+		}
+	}
+
+	/* center of the cell of v in a cube keeping the high bits of 8 or 7 */
+	private static int center(final int v, final int bits, final int width) {
+		final int shift = width - bits;
+		return shift == 0 ? v : ((v >> shift) << shift) | (1 << (shift - 1));
+	}
+
+	@Test
+	public void testInverseColormap() {
+		final Random random = new Random(15);
+		final GdImage im = new GdImage(8, 8, GdImageColorType.PALETTE_BASED_COLOR);
+		for (int i = 0; i < 200; i++) {
+			im.colorAllocate(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+		}
+	/* entries of one alpha and every bit kept: the closest entries themselves */
+		im.setInverseColormapBits(8, 0);
+		for (int n = 0; n < 2000; n++) {
+			final int r = random.nextInt(256);
+			final int g = random.nextInt(256);
+			final int b = random.nextInt(256);
+			final int a = random.nextInt(128);
+			assertEquals(r + "," + g + "," + b, closest(im, r, g, b, GdUtils.ALPHA_OPAQUE), im.colorInverseMap(r, g, b, a));
+		}
+
+		im.setInverseColormapBits(5, 3);
+		final int[] row = new int[64];
+		final int[] mapped = new int[64];
+		for (int round = 0; round < 4; round++) {
+			for (int i = 0; i < 20; i++) {
+				im.gdImageColorDeallocate(random.nextInt(im.colorsTotal));
+				im.colorAllocateAlpha(random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(128));
+			}
+			for (int i = 0; i < row.length; i++) {
+				row[i] = GdUtils.trueColorMixAlpha(random.nextInt(256), random.nextInt(256), random.nextInt(256),
+						random.nextInt(128));
+			}
+			im.inverseMapRow(row, 0, mapped, 0, row.length);
+			for (int i = 0; i < row.length; i++) {
+				final int p = row[i];
+				final int expected = closest(im, center(GdUtils.trueColorGetRed(p), 5, 8),
+						center(GdUtils.trueColorGetGreen(p), 5, 8), center(GdUtils.trueColorGetBlue(p), 5, 8),
+						center(GdUtils.trueColorGetAlpha(p), 3, 7));
+				final String at = "round " + round + " " + Integer.toHexString(p);
+				assertEquals(at, expected, mapped[i]);
+				assertEquals(at, expected, im.colorInverseMap(GdUtils.trueColorGetRed(p), GdUtils.trueColorGetGreen(p),
+						GdUtils.trueColorGetBlue(p), GdUtils.trueColorGetAlpha(p)));
+			}
+		}
+	}
+
+	@Test
+	public void testCopyIntoFullPalette() {
+		final Random random = new Random(14);
+		final GdImage dst = new GdImage(64, 64, GdImageColorType.PALETTE_BASED_COLOR);
+		while (dst.colorsTotal < GdUtils.MAX_COLORS) {
+			final int r = random.nextInt(256);
+			final int g = random.nextInt(256);
+			final int b = random.nextInt(256);
+			final int a = random.nextInt(128);
+			if (exact(dst, r, g, b, a) == -1) {
+				dst.colorAllocateAlpha(r, g, b, a);
+			}
+		}
+		final GdImage src = new GdImage(64, 64, GdImageColorType.TRUE_COLOR);
+		src.setAlphaBlending(GdEffect.REPLACE);
+		final int[] colors = new int[src.sx * src.sy];
+		for (int i = 0; i < colors.length; i++) {
+			final int c = random.nextInt(GdUtils.MAX_COLORS);
+			colors[i] = c;
+			src.setPixel(i % src.sx, i / src.sx,
+					GdUtils.trueColorMixAlpha(dst.red[c], dst.green[c], dst.blue[c], dst.alpha[c]));
+		}
+
+	/* made of the palette colors only: every pixel gets its own entry back */
+		GdImage.imageCopy(dst, src, 0, 0, 0, 0, src.sx, src.sy);
+		for (int i = 0; i < colors.length; i++) {
+			assertEquals("copy " + i, colors[i], dst.getPixel(i % src.sx, i / src.sx));
+		}
+		dst.fillRectangle(0, 0, dst.sx - 1, dst.sy - 1, 0);
+		GdImage.imageCopyResized(dst, src, 0, 0, 0, 0, dst.sx, dst.sy, src.sx, src.sy);
+		for (int i = 0; i < colors.length; i++) {
+			assertEquals("resized " + i, colors[i], dst.getPixel(i % src.sx, i / src.sx));
+		}
+
+	/* any other color: the closest entry, as findColorClosestAlpha() finds it */
+		for (int y = 0; y < src.sy; y++) {
+			for (int x = 0; x < src.sx; x++) {
+				src.setPixel(x, y, GdUtils.trueColorMixAlpha(random.nextInt(256), random.nextInt(256),
+						random.nextInt(256), random.nextInt(128)));
+			}
+		}
+		GdImage.imageCopy(dst, src, 0, 0, 0, 0, src.sx, src.sy);
+		for (int y = 0; y < src.sy; y++) {
+			for (int x = 0; x < src.sx; x++) {
+				final int p = src.getPixel(x, y);
+				assertEquals(x + "," + y, closest(dst, GdUtils.trueColorGetRed(p), GdUtils.trueColorGetGreen(p),
+						GdUtils.trueColorGetBlue(p), GdUtils.trueColorGetAlpha(p)), dst.getPixel(x, y));
+			}
+		}
+	}
+
+	/* white rows on top of a gradient, every pixel of the given alpha */
+	private static GdImage createGradient(final int alpha) {
+		final GdImage im = new GdImage(64, 48, GdImageColorType.TRUE_COLOR);
+		im.setAlphaBlending(GdEffect.REPLACE);
+		for (int y = 0; y < im.sy; y++) {
+			for (int x = 0; x < im.sx; x++) {
+				im.setPixel(x, y, (y < 8) ? GdUtils.trueColorMixAlpha(255, 255, 255, alpha)
+						: GdUtils.trueColorMixAlpha(x * 4, y * 5, (x * y) & 0xFF, alpha));
+			}
+		}
+		return im;
+	}
+
+	@Test
+	public void testMedianCutKeepsAlpha() {
+		final GdImage im = createGradient(GdUtils.ALPHA_OPAQUE);
+		im.trueColorToPalette(false, 16);
+		for (int c = 0; c < im.colorsTotal; c++) {
+			assertEquals("entry " + c, GdUtils.ALPHA_OPAQUE, im.alpha[c]);
+		}
+
+	/* fewer colors than wanted: every one kept as it is */
+		final int[] colors = {0xFFFFFF, 0x000000, 0x7F0000FF, 0x3A8001C3};
+		final GdImage few = new GdImage(16, 16, GdImageColorType.TRUE_COLOR);
+		few.setAlphaBlending(GdEffect.REPLACE);
+		for (int y = 0; y < few.sy; y++) {
+			for (int x = 0; x < few.sx; x++) {
+				few.setPixel(x, y, colors[(x / 4 + y) % colors.length]);
+			}
+		}
+		few.trueColorToPalette(false, 16);
+		for (int y = 0; y < few.sy; y++) {
+			for (int x = 0; x < few.sx; x++) {
+				final int c = few.getPixel(x, y);
+				assertEquals(x + "," + y, colors[(x / 4 + y) % colors.length],
+						GdUtils.trueColorMixAlpha(few.red[c], few.green[c], few.blue[c], few.alpha[c]));
+			}
+		}
+
+		final GdImage translucent = createGradient(GdUtils.ALPHA_TRANSPARENT);
+		translucent.trueColorToPalette(false, 16);
+		for (int c = 0; c < translucent.colorsTotal; c++) {
+			assertEquals("entry " + c, GdUtils.ALPHA_TRANSPARENT, translucent.alpha[c]);
+		}
+	}
+
+}
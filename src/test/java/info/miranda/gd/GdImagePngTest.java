@@ -0,0 +1,238 @@
+package info.miranda.gd;
+
+import info.miranda.gd.enums.GdEffect;
+import info.miranda.gd.enums.GdImageColorType;
+import info.miranda.gd.enums.GdInterpolationMethod;
+import info.miranda.gd.enums.GdPngFilterStrategy;
+import info.miranda.gd.enums.GdStorageMode;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class GdImagePngTest {
+
+	private static GdImage createImage(final GdImageColorType type, final boolean saveAlpha) {
+		final GdImage im = new GdImage(53, 37, type);
+		int seed = 12345;
+		if (type == GdImageColorType.PALETTE_BASED_COLOR) {
+			for (int i = 0; i < 20; i++) {
+				im.colorAllocateAlpha(i * 12, 255 - i * 12, i * 7, (i % 4 == 0) ? i * 6 : 0);
+			}
+		}
+		im.setAlphaBlending(GdEffect.REPLACE);
+		im.setSaveAlpha(saveAlpha ? 1 : 0);
+		for (int y = 0; y < im.sy; y++) {
+			for (int x = 0; x < im.sx; x++) {
+				seed = seed * 1103515245 + 12345;
+				final int c = seed >>> 1;
+				if (type == GdImageColorType.PALETTE_BASED_COLOR) {
+					im.setPixel(x, y, (x / 3 + y + (c & 1)) % 20);
+				} else {
+					im.setPixel(x, y, GdUtils.trueColorMixAlpha((c >> 16) & 0xFF, (x * 4) & 0xFF, (y * 6) & 0xFF,
+							saveAlpha ? (x * y) % 128 : 0));
+				}
+			}
+		}
+		return im;
+	}
+
+	private static byte[] png(final GdImage im) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		im.png(Channels.newChannel(out));
+		return out.toByteArray();
+	}
+
+	private static GdImage roundTrip(final GdImage im) throws IOException {
+		return GdImage.createFromPng(Channels.newChannel(new ByteArrayInputStream(png(im))));
+	}
+
+	/* color of a pixel, looked up in the palette of palette images */
+	private static int color(final GdImage im, final int x, final int y) {
+		final int c = im.getPixel(x, y);
+		if (im.trueColor) {
+			return c;
+		}
+		return GdUtils.trueColorMixAlpha(im.red[c], im.green[c], im.blue[c], im.alpha[c]);
+	}
+
+	private static void assertSameColors(final String message, final GdImage expected, final GdImage actual) {
+		assertEquals(message, expected.sx, actual.sx);
+		assertEquals(message, expected.sy, actual.sy);
+		assertEquals(message, expected.trueColor, actual.trueColor);
+		for (int y = 0; y < expected.sy; y++) {
+			for (int x = 0; x < expected.sx; x++) {
+				assertEquals(message + " at " + x + "," + y, color(expected, x, y), color(actual, x, y));
+			}
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		final GdImage[] images = {
+				createImage(GdImageColorType.TRUE_COLOR, false),
+				createImage(GdImageColorType.TRUE_COLOR, true),
+				createImage(GdImageColorType.PALETTE_BASED_COLOR, false)
+		};
+		for (final GdImage im : images) {
+			for (final GdPngFilterStrategy strategy : GdPngFilterStrategy.values()) {
+				for (int interlace = 0; interlace <= 1; interlace++) {
+					for (int parallelism = 1; parallelism <= 3; parallelism += 2) {
+						final String message = (im.trueColor ? "truecolor" : "palette") + " alpha " + im.saveAlphaFlag
+								+ " " + strategy + " interlace " + interlace + " parallelism " + parallelism;
+						im.setPngFilter(strategy);
+						im.setInterlace(interlace);
+						im.setParallelism(parallelism);
+						final GdImage back = roundTrip(im);
+						assertSameColors(message, im, back);
+						assertEquals(message, interlace, back.interlace);
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * An image of many blocks of the smallest size, so that the parallel
+	 * writer goes through several rounds; where blocks are cut does not
+	 * depend on the number of threads, so neither do the bytes.
+	 */
+	@Test
+	public void testManyBlocks() throws IOException {
+		final GdImage im = new GdImage(611, 433, GdImageColorType.TRUE_COLOR);
+		im.setAlphaBlending(GdEffect.REPLACE);
+		im.setSaveAlpha(1);
+		int seed = 12345;
+		for (int y = 0; y < im.sy; y++) {
+			for (int x = 0; x < im.sx; x++) {
+				seed = seed * 1103515245 + 12345;
+				final int c = seed >>> 1;
+				im.setPixel(x, y, GdUtils.trueColorMixAlpha(x & 0xFF, (c >> 16) & 0x3F, (x + y) & 0xFF, y % 128));
+			}
+		}
+		im.setPngBlockSize(GdPngWriter.WINDOW);
+		for (int interlace = 0; interlace <= 1; interlace++) {
+			im.setInterlace(interlace);
+			byte[] first = null;
+			for (int parallelism = 2; parallelism <= 3; parallelism++) {
+				final String message = "interlace " + interlace + " parallelism " + parallelism;
+				im.setParallelism(parallelism);
+				final byte[] bytes = png(im);
+				assertSameColors(message, im, GdImage.createFromPng(Channels.newChannel(new ByteArrayInputStream(bytes))));
+				if (first == null) {
+					first = bytes;
+				} else {
+					assertTrue(message, Arrays.equals(first, bytes));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testTransparentAndResolution() throws IOException {
+		final GdImage im = createImage(GdImageColorType.TRUE_COLOR, false);
+		im.gdImageColorTransparent(im.getPixel(3, 4));
+		im.setResolution(300, 150);
+		final GdImage back = roundTrip(im);
+		assertEquals(im.transparent, back.transparent);
+		assertEquals(300, back.res_x);
+		assertEquals(150, back.res_y);
+	}
+
+	@Test
+	public void testShrinkOnLoad() throws IOException {
+		final GdImage im = createImage(GdImageColorType.PALETTE_BASED_COLOR, false);
+		for (int interlace = 0; interlace <= 1; interlace++) {
+			im.setInterlace(interlace);
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			im.png(Channels.newChannel(out));
+			final GdImage small = new GdPngReader(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())))
+					.shrinkTo(20, 10).read(GdStorageMode.HEAP);
+			/* boxes of 2 x 3, the last column and row cut short; colors
+			   weighted by opacity */
+			assertEquals(27, small.sx);
+			assertEquals(13, small.sy);
+			assertEquals(true, small.trueColor);
+			for (int y = 0; y < small.sy; y++) {
+				for (int x = 0; x < small.sx; x++) {
+					final int[] sum = new int[4];
+					int n = 0;
+					for (int yy = 3 * y; yy < Math.min(im.sy, 3 * y + 3); yy++) {
+						for (int xx = 2 * x; xx < Math.min(im.sx, 2 * x + 2); xx++) {
+							final int c = color(im, xx, yy);
+							final int w = GdUtils.ALPHA_MAX - GdUtils.trueColorGetAlpha(c);
+							sum[0] += w;
+							sum[1] += w * GdUtils.trueColorGetRed(c);
+							sum[2] += w * GdUtils.trueColorGetGreen(c);
+							sum[3] += w * GdUtils.trueColorGetBlue(c);
+							n++;
+						}
+					}
+					final int w = sum[0];
+					final int expected = GdUtils.trueColorMixAlpha((sum[1] + w / 2) / w, (sum[2] + w / 2) / w,
+							(sum[3] + w / 2) / w, (n * GdUtils.ALPHA_MAX - w + n / 2) / n);
+					assertEquals("interlace " + interlace + " at " + x + "," + y, expected, small.getPixel(x, y));
+				}
+			}
+
+			final GdImage scaled = GdImage.createFromPngScaled(
+					Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), 20, 10,
+					GdInterpolationMethod.GD_BILINEAR_FIXED);
+			assertEquals(20, scaled.sx);
+			assertEquals(10, scaled.sy);
+		}
+	}
+
+	/*
+	 * Transparent red on the left, opaque blue on the right: the red does
+	 * not show through; one box over all of it is too large for int sums.
+	 */
+	@Test
+	public void testShrinkByOpacity() throws IOException {
+		final GdImage im = new GdImage(300, 240, GdImageColorType.TRUE_COLOR);
+		im.setAlphaBlending(GdEffect.REPLACE);
+		im.setSaveAlpha(1);
+		im.fillRectangle(0, 0, 149, 239, GdUtils.trueColorMixAlpha(255, 0, 0, GdUtils.ALPHA_TRANSPARENT));
+		im.fillRectangle(150, 0, 299, 239, GdUtils.trueColorMixAlpha(0, 0, 255, GdUtils.ALPHA_OPAQUE));
+		for (int interlace = 0; interlace <= 1; interlace++) {
+			im.setInterlace(interlace);
+			final byte[] bytes = png(im);
+			final GdImage halves = new GdPngReader(Channels.newChannel(new ByteArrayInputStream(bytes)))
+					.shrinkTo(2, 1).read(GdStorageMode.HEAP);
+			assertEquals(GdUtils.trueColorMixAlpha(0, 0, 0, GdUtils.ALPHA_TRANSPARENT), halves.getPixel(0, 0));
+			assertEquals(GdUtils.trueColorMixAlpha(0, 0, 255, GdUtils.ALPHA_OPAQUE), halves.getPixel(1, 0));
+			final GdImage one = new GdPngReader(Channels.newChannel(new ByteArrayInputStream(bytes)))
+					.shrinkTo(1, 1).read(GdStorageMode.HEAP);
+			assertEquals(1, one.sx);
+			assertEquals(1, one.sy);
+			assertEquals(GdUtils.trueColorMixAlpha(0, 0, 255, 64), one.getPixel(0, 0));
+		}
+	}
+
+	@Test
+	public void testCorruptData() {
+		final GdImage im = createImage(GdImageColorType.TRUE_COLOR, false);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			im.png(Channels.newChannel(out));
+		} catch (final IOException e) {
+			fail(e.getMessage());
+		}
+		final byte[] png = out.toByteArray();
+		png[png.length / 2] ^= 0x10;
+		try {
+			GdImage.createFromPng(Channels.newChannel(new ByteArrayInputStream(png)));
+			fail("corrupt data was read");
+		} catch (final IOException e) {
+			/* expected */
+		}
+	}
+
+}
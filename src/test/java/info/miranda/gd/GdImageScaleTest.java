@@ -0,0 +1,142 @@
+package info.miranda.gd;
+
+import info.miranda.gd.enums.GdImageColorType;
+import info.miranda.gd.enums.GdInterpolationMethod;
+import info.miranda.gd.enums.GdScaleEngine;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class GdImageScaleTest {
+
+	private static final GdInterpolationMethod[] METHODS = {
+			GdInterpolationMethod.GD_BELL,
+			GdInterpolationMethod.GD_BICUBIC,
+			GdInterpolationMethod.GD_BOX,
+			GdInterpolationMethod.GD_CATMULLROM,
+			GdInterpolationMethod.GD_GAUSSIAN,
+			GdInterpolationMethod.GD_HAMMING,
+			GdInterpolationMethod.GD_MITCHELL,
+			GdInterpolationMethod.GD_SINC,
+			GdInterpolationMethod.GD_TRIANGLE,
+	};
+
+	/* methods with their own engine, not the generic two-pass one */
+	private static final GdInterpolationMethod[] FIXED_METHODS = {
+			GdInterpolationMethod.GD_NEAREST_NEIGHBOUR,
+			GdInterpolationMethod.GD_BILINEAR_FIXED,
+			GdInterpolationMethod.GD_BICUBIC_FIXED,
+	};
+
+	private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+	private static GdImage createImage(final int sx, final int sy) {
+		final GdImage im = new GdImage(sx, sy, GdImageColorType.TRUE_COLOR);
+		int seed = 12345;
+		for (int y = 0; y < sy; y++) {
+			for (int x = 0; x < sx; x++) {
+				seed = seed * 1103515245 + 12345;
+				final int c = seed >>> 1;
+				im.setPixel(x, y, GdUtils.trueColorMixAlpha((c >> 16) & 0xFF, (c >> 8) & 0xFF, c & 0xFF,
+						(x * y) % 128));
+			}
+		}
+		return im;
+	}
+
+	private static GdImage scale(final GdImage im, final GdInterpolationMethod method, final GdScaleEngine engine,
+								 final int width, final int height) {
+		im.setInterpolationMethod(method);
+		im.setScaleEngine(engine);
+		return im.scale(width, height);
+	}
+
+	private static void assertWithinOne(final String message, final GdImage expected, final GdImage actual) {
+		assertEquals(message, expected.sx, actual.sx);
+		assertEquals(message, expected.sy, actual.sy);
+		for (int y = 0; y < expected.sy; y++) {
+			for (int x = 0; x < expected.sx; x++) {
+				final int e = expected.getPixel(x, y);
+				final int a = actual.getPixel(x, y);
+				for (int shift = 0; shift < 32; shift += 8) {
+					final int d = ((e >> shift) & 0xFF) - ((a >> shift) & 0xFF);
+					assertTrue(message + " at " + x + "," + y + ": " + Integer.toHexString(e) + " vs "
+							+ Integer.toHexString(a), d >= -1 && d <= 1);
+				}
+			}
+		}
+	}
+
+	private static void assertSame(final String message, final GdImage expected, final GdImage actual) {
+		assertEquals(message, expected.sx, actual.sx);
+		assertEquals(message, expected.sy, actual.sy);
+		for (int y = 0; y < expected.sy; y++) {
+			for (int x = 0; x < expected.sx; x++) {
+				if (expected.getPixel(x, y) != actual.getPixel(x, y)) {
+					fail(message + " at " + x + "," + y + ": " + Integer.toHexString(expected.getPixel(x, y))
+							+ " vs " + Integer.toHexString(actual.getPixel(x, y)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testParallelScaleSameAsSerial() throws Exception {
+		final int[][] sizes = {{29, 57}, {131, 90}, {3, 200}};
+		final GdImage im = createImage(67, 57);
+		im.setParallelPool(POOL);
+		for (final GdInterpolationMethod[] methods : new GdInterpolationMethod[][] {METHODS, FIXED_METHODS}) {
+			for (final GdInterpolationMethod method : methods) {
+				for (final GdScaleEngine engine : GdScaleEngine.values()) {
+					im.setInterpolationMethod(method);
+					im.setScaleEngine(engine);
+					for (final int[] size : sizes) {
+						final GdImage expected = im.scale(size[0], size[1], 1);
+						for (int parallelism = 2; parallelism <= 7; parallelism += 5) {
+							assertSame(method + " " + engine + " " + size[0] + "x" + size[1] + " parallelism "
+									+ parallelism, expected, im.scale(size[0], size[1], parallelism));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testParallelRotationSameAsSerial() throws Exception {
+		final float[] angles = {30f, 90f, 201.5f, -13f};
+		final GdImage im = createImage(67, 57);
+		im.setParallelPool(POOL);
+		final int bg = GdUtils.trueColorMixAlpha(10, 20, 30, 40);
+		for (final GdInterpolationMethod[] methods : new GdInterpolationMethod[][] {METHODS, FIXED_METHODS}) {
+			for (final GdInterpolationMethod method : methods) {
+				im.setInterpolationMethod(method);
+				for (final float angle : angles) {
+					final GdImage expected = im.rotateInterpolated(angle, bg, 1);
+					for (int parallelism = 2; parallelism <= 7; parallelism += 5) {
+						assertSame(method + " " + angle + " parallelism " + parallelism, expected,
+								im.rotateInterpolated(angle, bg, parallelism));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testFixedEngineWithinOneOfDouble() throws Exception {
+		final int[][] sizes = {{29, 57}, {131, 57}, {67, 13}, {67, 170}, {5, 4}, {200, 9}};
+		for (final GdInterpolationMethod method : METHODS) {
+			for (final int[] size : sizes) {
+				final GdImage im = createImage(67, 57);
+				final GdImage expected = scale(im, method, GdScaleEngine.GD_SCALE_DOUBLE, size[0], size[1]);
+				final GdImage actual = scale(im, method, GdScaleEngine.GD_SCALE_FIXED, size[0], size[1]);
+				assertWithinOne(method + " " + size[0] + "x" + size[1], expected, actual);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,265 @@
+package info.miranda.gd;
+
+import info.miranda.gd.enums.GdImageColorType;
+import info.miranda.gd.enums.GdInterpolationMethod;
+import info.miranda.gd.enums.GdStorageMode;
+import info.miranda.gd.interfaces.GdPixelStorageInterface;
+import info.miranda.gd.storage.GdPixelStorageByte;
+import info.miranda.gd.storage.GdPixelStorageDirect;
+import info.miranda.gd.storage.GdPixelStorageInt;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class GdImageStorageTest {
+
+	@Test
+	public void testStorageModeOfGivenStorage() {
+		final GdImage direct = new GdImage(new GdPixelStorageDirect(40, 30, 4), GdImageColorType.TRUE_COLOR);
+		assertEquals(GdStorageMode.DIRECT, direct.getStorageMode());
+		assertEquals(GdStorageMode.DIRECT, direct.scale(20, 15).getStorageMode());
+
+		final GdPixelStorageDirect storage = GdPixelStorageDirect.mapScratchFile(40, 30, 1, null);
+		assertTrue(storage.isMapped());
+		final GdImage mapped = new GdImage(storage, GdImageColorType.PALETTE_BASED_COLOR);
+		assertEquals(GdStorageMode.MAPPED, mapped.getStorageMode());
+		assertEquals(GdStorageMode.MAPPED, mapped.imageClone().getStorageMode());
+
+		assertFalse(new GdPixelStorageDirect(4, 4, 1).isMapped());
+		assertEquals(GdStorageMode.HEAP, new GdImage(new GdPixelStorageInt(4, 4), GdImageColorType.TRUE_COLOR)
+				.getStorageMode());
+	}
+
+	@Test
+	public void testDestroy() {
+		final GdImage im = new GdImage(40, 30, GdImageColorType.TRUE_COLOR, GdStorageMode.DIRECT);
+		im.setPixel(1, 1, 0x123456);
+		im.destroy();
+		assertEquals(null, im.tpixels);
+	}
+
+	/* storage mapped to a scratch file, in chunks of at most chunkSize bytes */
+	private static GdPixelStorageDirect mapChunks(final int width, final int height, final int bytesPerPixel,
+												  final long chunkSize) throws IOException {
+		final File file = File.createTempFile("libgd", ".pixels");
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			return new GdPixelStorageDirect(width, height, bytesPerPixel, raf.getChannel(), chunkSize);
+		} finally {
+			raf.close();
+			file.delete();
+		}
+	}
+
+	/*
+	 * The same blank image in heap, direct and mapped storage, the last
+	 * two also in chunks of four rows.
+	 */
+	private static GdImage[] createImages(final int sx, final int sy, final GdImageColorType type) throws IOException {
+		final int bytesPerPixel = (type == GdImageColorType.TRUE_COLOR) ? 4 : 1;
+		final GdPixelStorageDirect direct = new GdPixelStorageDirect(sx, sy, bytesPerPixel, null, 4L * sx * bytesPerPixel);
+		final GdPixelStorageDirect mapped = mapChunks(sx, sy, bytesPerPixel, 4L * sx * bytesPerPixel);
+		assertEquals(4, direct.getRowsPerChunk());
+		assertEquals(4, mapped.getRowsPerChunk());
+		return new GdImage[]{
+				new GdImage(sx, sy, type, GdStorageMode.HEAP),
+				new GdImage(sx, sy, type, GdStorageMode.DIRECT),
+				new GdImage(sx, sy, type, GdStorageMode.MAPPED),
+				new GdImage(direct, type),
+				new GdImage(mapped, type),
+		};
+	}
+
+	private static String name(final GdImage im) {
+		final String chunks = (im.trueColor ? im.tpixels : im.pixels) instanceof GdPixelStorageDirect
+				? " " + ((GdPixelStorageDirect) (im.trueColor ? im.tpixels : im.pixels)).getRowsPerChunk() + " rows per chunk"
+				: "";
+		return (im.trueColor ? "truecolor " : "palette ") + im.getStorageMode() + chunks;
+	}
+
+	/* Shapes, fills and copies touching every row. */
+	private static void draw(final GdImage im, final GdImage pattern) {
+		final int[] c = {
+				im.colorAllocate(255, 255, 255), im.colorAllocate(200, 30, 30), im.colorAllocate(30, 160, 40),
+				im.colorAllocate(20, 40, 220), im.colorAllocateAlpha(250, 200, 0, 60), im.colorAllocate(0, 0, 0)
+		};
+		im.fillRectangle(0, 0, im.sx - 1, im.sy - 1, c[0]);
+		im.fillRectangle(3, 2, im.sx / 2, im.sy - 5, c[1]);
+		im.setThickness(3);
+		im.drawLine(0, im.sy - 1, im.sx - 1, 0, c[5]);
+		im.setThickness(1);
+		im.fillEllipse(im.sx / 2, im.sy / 2, im.sx * 2 / 3, im.sy / 2, c[4]);
+		im.fillPolygon(new GdPoint[]{new GdPoint(5, im.sy - 2), new GdPoint(im.sx - 3, im.sy / 3),
+				new GdPoint(im.sx / 3, 1), new GdPoint(im.sx - 8, im.sy - 4)}, c[2]);
+		im.fillArc(im.sx - 12, 10, 20, 16, 30, 250, c[3], 0);
+		im.drawRectangle(1, 1, im.sx - 2, im.sy - 2, c[5]);
+		im.gdImageFill(im.sx - 2, im.sy / 2 + 3, c[3]);
+		GdImage.imageCopy(im, pattern, 10, 7, 2, 3, 20, im.sy - 9);
+		GdImage.imageCopyResized(im, pattern, im.sx - 25, 3, 0, 0, 22, im.sy - 6, pattern.sx, pattern.sy);
+		for (int y = 0; y < im.sy; y += 3) {
+			im.setPixel((y * 7) % im.sx, y, c[y % c.length]);
+		}
+	}
+
+	private static void assertSamePixels(final String message, final GdImage expected, final GdImage actual) {
+		assertEquals(message, expected.sx, actual.sx);
+		assertEquals(message, expected.sy, actual.sy);
+		assertEquals(message, expected.trueColor, actual.trueColor);
+		if (!expected.trueColor) {
+			assertEquals(message, expected.colorsTotal, actual.colorsTotal);
+			for (int i = 0; i < expected.colorsTotal; i++) {
+				assertEquals(message + " color " + i, GdUtils.trueColorMixAlpha(expected.red[i], expected.green[i],
+						expected.blue[i], expected.alpha[i]), GdUtils.trueColorMixAlpha(actual.red[i],
+						actual.green[i], actual.blue[i], actual.alpha[i]));
+			}
+		}
+		for (int y = 0; y < expected.sy; y++) {
+			for (int x = 0; x < expected.sx; x++) {
+				assertEquals(message + " at " + x + "," + y, expected.getPixel(x, y), actual.getPixel(x, y));
+			}
+		}
+	}
+
+	/*
+	 * Drawing, copying, scaling and rotating give the same pixels in every
+	 * storage mode, with rows spread over many chunks or not; the images
+	 * made from an image keep its storage mode.
+	 */
+	@Test
+	public void testSamePixelsInEveryStorage() throws IOException {
+		final GdImage pattern = new GdImage(37, 29, GdImageColorType.TRUE_COLOR);
+		for (int y = 0; y < pattern.sy; y++) {
+			for (int x = 0; x < pattern.sx; x++) {
+				pattern.setPixel(x, y, GdUtils.trueColorMixAlpha(x * 7, y * 8, (x * y) & 0xFF, 0));
+			}
+		}
+		for (final GdImageColorType type : new GdImageColorType[]{GdImageColorType.TRUE_COLOR,
+				GdImageColorType.PALETTE_BASED_COLOR}) {
+			final GdImage[] images = createImages(61, 45, type);
+			for (final GdImage im : images) {
+				draw(im, pattern);
+				im.setInterpolationMethod(GdInterpolationMethod.GD_BICUBIC);
+			}
+			for (int i = 1; i < images.length; i++) {
+				assertSamePixels(name(images[i]), images[0], images[i]);
+			}
+		/* scaling and rotating turn palette images to truecolor: the same
+		   calls in the same order on every image */
+			final String[] names = {"clone", "rotate90", "rotated", "scaled"};
+			final GdImage[][] results = new GdImage[images.length][];
+			for (int i = 0; i < images.length; i++) {
+				final GdImage im = images[i];
+				results[i] = new GdImage[]{im.imageClone(), im.rotate90(false), im.rotateInterpolated(30, 0, 1),
+						im.scale(44, 70, 1)};
+				for (final GdImage result : results[i]) {
+					assertEquals(name(im), im.getStorageMode(), result.getStorageMode());
+				}
+			}
+			for (int i = 1; i < images.length; i++) {
+				for (int n = 0; n < names.length; n++) {
+					assertSamePixels(name(images[i]) + " " + names[n], results[0][n], results[i][n]);
+				}
+			}
+		}
+	}
+
+	/* Rows of one storage through get/set, getRow/setRow with offsets and fill. */
+	private static void checkRows(final String message, final GdPixelStorageInterface storage, final int mask) {
+		final int width = storage.getWidth();
+		final int height = storage.getHeight();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				storage.set(x, y, 0x01020300 + y * width + x);
+			}
+		}
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				assertEquals(message, (0x01020300 + y * width + x) & mask, storage.get(x, y));
+			}
+		}
+
+		final int[] row = new int[width + 4];
+		storage.getRow(2, 3, row, 1, width - 5);
+		for (int i = 0; i < width - 5; i++) {
+			assertEquals(message, storage.get(3 + i, 2), row[1 + i]);
+		}
+		for (int i = 0; i < row.length; i++) {
+			row[i] = 0x7f000000 + i;
+		}
+		storage.setRow(4, 2, row, 3, width - 2);
+		for (int x = 0; x < width; x++) {
+			final int expected = (x < 2) ? 0x01020300 + 4 * width + x : 0x7f000000 + 3 + x - 2;
+			assertEquals(message + " setRow at " + x, expected & mask, storage.get(x, 4));
+		}
+		assertEquals(message, (0x01020300 + 3 * width + width - 1) & mask, storage.get(width - 1, 3));
+		assertEquals(message, (0x01020300 + 5 * width) & mask, storage.get(0, 5));
+
+		storage.fill(1, 1, width - 3, 0x0abcdef0);
+		for (int x = 0; x < width; x++) {
+			final int expected = (x >= 1 && x < width - 2) ? 0x0abcdef0 : 0x01020300 + width + x;
+			assertEquals(message + " fill at " + x, expected & mask, storage.get(x, 1));
+		}
+		assertEquals(message, (0x01020300 + 2 * width) & mask, storage.get(0, 2));
+	}
+
+	@Test
+	public void testHeapRows() {
+		checkRows("int", new GdPixelStorageInt(13, 7), 0xffffffff);
+		checkRows("byte", new GdPixelStorageByte(13, 7), 0xff);
+	}
+
+	@Test
+	public void testTooLargeForHeap() {
+		try {
+			new GdPixelStorageInt(1 << 16, 1 << 15);
+			fail("2^31 pixels in an int[]");
+		} catch (final IllegalArgumentException e) {
+			/* expected */
+		}
+		try {
+			new GdPixelStorageByte(70000, 40000);
+			fail("2.8e9 pixels in a byte[]");
+		} catch (final IllegalArgumentException e) {
+			/* expected */
+		}
+	}
+
+	@Test
+	public void testFlipPalette() {
+		final GdImage im = new GdImage(7, 5, GdImageColorType.PALETTE_BASED_COLOR);
+		for (int i = 0; i < 35; i++) {
+			im.colorAllocate(i * 7, 255 - i * 7, i);
+		}
+		for (int y = 0; y < im.sy; y++) {
+			for (int x = 0; x < im.sx; x++) {
+				im.setPixel(x, y, y * im.sx + x);
+			}
+		}
+		im.flipVertical();
+		for (int y = 0; y < im.sy; y++) {
+			for (int x = 0; x < im.sx; x++) {
+				assertEquals("vertical at " + x + "," + y, (im.sy - 1 - y) * im.sx + x, im.getPixel(x, y));
+			}
+		}
+		im.flipHorizontal();
+		for (int y = 0; y < im.sy; y++) {
+			for (int x = 0; x < im.sx; x++) {
+				assertEquals("both at " + x + "," + y, (im.sy - 1 - y) * im.sx + im.sx - 1 - x, im.getPixel(x, y));
+			}
+		}
+		im.flipBoth();
+		for (int y = 0; y < im.sy; y++) {
+			for (int x = 0; x < im.sx; x++) {
+				assertEquals("back at " + x + "," + y, y * im.sx + x, im.getPixel(x, y));
+			}
+		}
+	}
+
+}
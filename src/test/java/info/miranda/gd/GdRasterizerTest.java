@@ -0,0 +1,148 @@
+package info.miranda.gd;
+
+import info.miranda.gd.enums.GdImageColorType;
+import info.miranda.gd.interfaces.GdCallbackCoverage;
+import info.miranda.gd.utils.GdRasterizer;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class GdRasterizerTest {
+
+	private static final int SIZE = 40;
+
+	/* Coverage of every pixel of a SIZE x SIZE image, 0..255. */
+	private static int[][] render(final GdRasterizer r) {
+		final int[][] coverage = new int[SIZE][SIZE];
+		r.render(0, 0, SIZE - 1, SIZE - 1, new GdCallbackCoverage() {
+			public void callbackCoverage(final int y, final int x, final int len, final int[] c) {
+				for (int i = 0; i < len; i++) {
+					coverage[y][x + i] = c[i];
+				}
+			}
+		});
+		return coverage;
+	}
+
+	/* Area of the convex polygon x[], y[] within the pixel (px, py), by
+	   clipping it to the four sides of the pixel. */
+	private static double pixelArea(final double[] x, final double[] y, final int px, final int py) {
+		double[][] poly = new double[x.length][];
+		for (int i = 0; i < x.length; i++) {
+			poly[i] = new double[] {x[i], y[i]};
+		}
+		poly = clip(poly, 0, px, 1);
+		poly = clip(poly, 0, px + 1, -1);
+		poly = clip(poly, 1, py, 1);
+		poly = clip(poly, 1, py + 1, -1);
+		double area = 0;
+		for (int i = 0; i < poly.length; i++) {
+			final double[] a = poly[i];
+			final double[] b = poly[(i + 1) % poly.length];
+			area += a[0] * b[1] - b[0] * a[1];
+		}
+		return Math.abs(area) / 2;
+	}
+
+	/* Keeps the part of poly where sign * (coordinate axis - v) >= 0. */
+	private static double[][] clip(final double[][] poly, final int axis, final double v, final int sign) {
+		final double[][] out = new double[poly.length * 2][];
+		int n = 0;
+		for (int i = 0; i < poly.length; i++) {
+			final double[] a = poly[i];
+			final double[] b = poly[(i + 1) % poly.length];
+			final double da = sign * (a[axis] - v);
+			final double db = sign * (b[axis] - v);
+			if (da >= 0) {
+				out[n++] = a;
+			}
+			if ((da >= 0) != (db >= 0)) {
+				final double t = da / (da - db);
+				out[n++] = new double[] {a[0] + t * (b[0] - a[0]), a[1] + t * (b[1] - a[1])};
+			}
+		}
+		final double[][] result = new double[n][];
+		System.arraycopy(out, 0, result, 0, n);
+		return result;
+	}
+
+	@Test
+	public void testConvexPolygonCoverageIsExact() {
+		final double[][][] shapes = {
+				/* triangle, clockwise and anticlockwise */
+				{{3.2, 30.7, 12.1}, {2.5, 9.3, 35.9}},
+				{{12.1, 30.7, 3.2}, {35.9, 9.3, 2.5}},
+				/* square rotated by 30 degrees */
+				{{20, 32.99, 20, 7.01}, {5, 20, 35, 20}},
+				/* thin sliver and a polygon partly outside the image */
+				{{1.5, 38.5, 38.6}, {10.25, 11.0, 11.75}},
+				{{-10, 25.5, 50.3, 15}, {-5.5, 3.3, 30, 45}},
+		};
+		final GdRasterizer r = new GdRasterizer();
+		for (int s = 0; s < shapes.length; s++) {
+			final double[] x = shapes[s][0];
+			final double[] y = shapes[s][1];
+			r.reset();
+			for (int i = 0; i < x.length; i++) {
+				final int j = (i + 1) % x.length;
+				r.addLine(x[i], y[i], x[j], y[j]);
+			}
+			final int[][] coverage = render(r);
+			for (int py = 0; py < SIZE; py++) {
+				for (int px = 0; px < SIZE; px++) {
+					final int expected = (int) (pixelArea(x, y, px, py) * 255 + 0.5);
+					final int d = coverage[py][px] - expected;
+					assertTrue("shape " + s + " at " + px + "," + py + ": " + coverage[py][px] + " vs " + expected,
+							d >= -1 && d <= 1);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testEllipseArea() {
+		final GdRasterizer r = new GdRasterizer();
+		r.addEllipse(20.3, 19.6, 15.5, 9.25);
+		final int[][] coverage = render(r);
+		double area = 0;
+		for (int py = 0; py < SIZE; py++) {
+			for (int px = 0; px < SIZE; px++) {
+				area += coverage[py][px] / 255.0;
+			}
+		}
+		final double expected = Math.PI * 15.5 * 9.25;
+	/* the chords stay within a tenth of a pixel inside the curve */
+		final double perimeter = Math.PI * (3 * (15.5 + 9.25) - Math.sqrt((3 * 15.5 + 9.25) * (15.5 + 3 * 9.25)));
+		assertTrue(area + " vs " + expected, area <= expected + 0.5 && area >= expected - 0.1 * perimeter);
+		assertEquals(255, coverage[20][20]);
+		assertEquals(0, coverage[2][2]);
+	}
+
+	@Test
+	public void testAntiAliasedFillPolygon() {
+		final GdImage im = new GdImage(SIZE, SIZE, GdImageColorType.TRUE_COLOR);
+		final int white = GdUtils.trueColorMixAlpha(255, 255, 255, 0);
+		im.fillRectangle(0, 0, SIZE - 1, SIZE - 1, white);
+		final GdPoint[] p = {new GdPoint(3, 2), new GdPoint(30, 9), new GdPoint(12, 35)};
+		im.setAntiAliased(0);
+		im.fillPolygon(p, GdUtils.SPECIAL_COLOR_ANTI_ALIASED);
+
+		final GdRasterizer r = new GdRasterizer();
+		for (int i = 0; i < p.length; i++) {
+			final GdPoint a = p[i];
+			final GdPoint b = p[(i + 1) % p.length];
+			r.addLine(a.x + 0.5, a.y + 0.5, b.x + 0.5, b.y + 0.5);
+		}
+		final int[][] coverage = render(r);
+		for (int py = 0; py < SIZE; py++) {
+			for (int px = 0; px < SIZE; px++) {
+			/* black over white: every channel is the uncovered part */
+				final int red = GdUtils.trueColorGetRed(im.getPixel(px, py));
+				final int d = red - (255 - coverage[py][px]);
+				assertTrue(px + "," + py + ": " + red + " for coverage " + coverage[py][px], d >= -1 && d <= 1);
+			}
+		}
+	}
+
+}